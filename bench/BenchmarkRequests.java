@@ -0,0 +1,61 @@
+/**
+ * The {@code BenchmarkRequests} class builds the drawing requests used by the workloads of the benchmark suite.
+ * <p>
+ * The shapes are of a typical size on the default 1000x800 canvas. The bulk {@code CIRCLES} and {@code SEGMENTS}
+ * requests carry {@value #BULK_SIZE} shapes each.
+ * </p>
+ */
+final class BenchmarkRequests {
+    /** The number of shapes of a bulk request. */
+    static final int BULK_SIZE = 100;
+
+    private BenchmarkRequests() {
+    }
+
+    /**
+     * Builds a request.
+     *
+     * @param keyword the shape keyword, for example {@code CIRCLE}.
+     * @param style   the color of the shape and its optional style tokens, for example {@code blue FILL}.
+     * @return the request, without line terminator.
+     */
+    static String request(String keyword, String style) {
+        return "b " + keyword + " " + coordinates(keyword) + " " + style;
+    }
+
+    /**
+     * Returns the coordinates of the benchmarked shape of a keyword.
+     *
+     * @param keyword the shape keyword.
+     * @return the coordinates, separated by spaces.
+     * @throws IllegalArgumentException If the keyword is not a built-in shape.
+     */
+    static String coordinates(String keyword) {
+        return switch (keyword.toUpperCase()) {
+            case "CIRCLE" -> "500 400 50";
+            case "SEGMENT" -> "100 100 900 700";
+            case "TRIANGLE" -> "100 100 900 150 500 700";
+            case "POLYGONE" -> "100 100 400 80 700 200 900 500 600 750 200 650";
+            case "CIRCLES" -> bulk(3);
+            case "SEGMENTS" -> bulk(4);
+            default -> throw new IllegalArgumentException("Unknown shape: " + keyword);
+        };
+    }
+
+    /**
+     * Spreads the shapes of a bulk request over the canvas.
+     */
+    private static String bulk(int coordinatesPerShape) {
+        StringBuilder coordinates = new StringBuilder();
+        for (int i = 0; i < BULK_SIZE; i++) {
+            int x = 50 + i * 37 % 900;
+            int y = 50 + i * 53 % 700;
+            if (i > 0) {
+                coordinates.append(' ');
+            }
+            coordinates.append(x).append(' ').append(y).append(' ');
+            coordinates.append(coordinatesPerShape == 3 ? "20" : (x + 40) + " " + (y + 30));
+        }
+        return coordinates.toString();
+    }
+}
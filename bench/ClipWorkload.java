@@ -0,0 +1,99 @@
+import benchmarks.Workload;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Draws a random scene into an offscreen image, with or without a {@link ShapeClipper}, see
+ * {@code benchmarks.ClipBenchmark}.
+ * <p>
+ * Parameters: the percentage of shapes lying entirely outside the canvas, and {@code true} to prepare the shapes
+ * with a clipper as the render thread does. The scene mixes circles, segments, triangles and polygons; off-screen
+ * shapes are placed up to ten canvas sizes away, and a tenth of the visible ones reach far beyond the canvas.
+ * </p>
+ */
+public class ClipWorkload implements Workload {
+    private static final int SHAPES = 1000;
+    private static final int WIDTH = 1000;
+    private static final int HEIGHT = 800;
+
+    private final ShapeCommand[] scene = new ShapeCommand[SHAPES];
+    private final ShapeCommand command = new ShapeCommand();
+    private ShapeClipper clipper;
+    private Graphics2D graphics;
+
+    @Override
+    public void setUp(String... parameters) {
+        int offscreen = Integer.parseInt(parameters[0]);
+        clipper = Boolean.parseBoolean(parameters[1]) ? new ShapeClipper(WIDTH, HEIGHT, null) : null;
+        CommandParser parser = new CommandParser(DrawingServer.getShapeRegistry());
+        Random random = new Random(42);
+        for (int i = 0; i < SHAPES; i++) {
+            byte[] request = randomRequest(random, random.nextInt(100) < offscreen)
+                    .getBytes(StandardCharsets.US_ASCII);
+            scene[i] = new ShapeCommand();
+            if (!parser.parse(ByteBuffer.wrap(request), 0, request.length, scene[i])) {
+                throw new IllegalStateException("Invalid request: " + scene[i]);
+            }
+        }
+        graphics = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB).createGraphics();
+    }
+
+    @Override
+    public int run() {
+        int drawn = 0;
+        for (ShapeCommand shape : scene) {
+            // The clipper rewrites the command in place, as it does with the queued copy on the render thread.
+            command.copyFrom(shape);
+            if (clipper == null || clipper.clip(command)) {
+                command.draw(graphics);
+                drawn++;
+            }
+        }
+        return drawn;
+    }
+
+    @Override
+    public void tearDown() {
+        graphics.dispose();
+    }
+
+    /**
+     * Builds a random request, either visible or entirely outside the canvas.
+     */
+    private static String randomRequest(Random random, boolean offscreen) {
+        // The center of an off-screen shape is far enough that the shape cannot reach the canvas.
+        int x;
+        int y;
+        if (offscreen) {
+            x = (random.nextBoolean() ? -1 : 1) * (3000 + random.nextInt(7000)) + WIDTH / 2;
+            y = (random.nextBoolean() ? -1 : 1) * (3000 + random.nextInt(7000)) + HEIGHT / 2;
+        } else {
+            x = random.nextInt(WIDTH);
+            y = random.nextInt(HEIGHT);
+        }
+        int size = !offscreen && random.nextInt(10) == 0 ? 100_000 : 20 + random.nextInt(200);
+        StringBuilder request = new StringBuilder("b ");
+        switch (random.nextInt(4)) {
+            case 0 -> request.append("CIRCLE ").append(x).append(' ').append(y).append(' ')
+                    .append(Math.min(size, 2000));
+            case 1 -> request.append("SEGMENT ").append(x).append(' ').append(y).append(' ')
+                    .append(x + size).append(' ').append(y + size / 2);
+            case 2 -> request.append("TRIANGLE ").append(x).append(' ').append(y).append(' ')
+                    .append(x + size).append(' ').append(y).append(' ').append(x).append(' ').append(y + size);
+            default -> {
+                request.append("POLYGONE");
+                for (int i = 0; i < 12; i++) {
+                    double angle = 2 * Math.PI * i / 12;
+                    int radius = i % 2 == 0 ? size : size / 2;
+                    request.append(' ').append(x + (int) (radius * Math.cos(angle)))
+                            .append(' ').append(y + (int) (radius * Math.sin(angle)));
+                }
+            }
+        }
+        return request.append(random.nextBoolean() ? " blue" : " red FILL").toString();
+    }
+}
@@ -0,0 +1,53 @@
+import benchmarks.Workload;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+/**
+ * Dispatches a tokenized request, see {@code benchmarks.DispatchBenchmark}.
+ * <p>
+ * Parameters: the dispatcher, {@code chain} or {@code registry}, and the shape keyword.
+ * </p>
+ */
+public class DispatchWorkload implements Workload {
+    private Handler dispatcher;
+    private String[] tokens;
+    private Graphics graphics;
+
+    @Override
+    public void setUp(String... parameters) {
+        if ("chain".equals(parameters[0])) {
+            ShapeHandler[] handlers = {
+                    new CircleHandler(), new SegmentHandler(), new TriangleHandler(), new PolygonHandler()
+            };
+            for (int i = 0; i < handlers.length - 1; i++) {
+                handlers[i].setNextHandler(handlers[i + 1]);
+            }
+            dispatcher = handlers[0];
+        } else {
+            dispatcher = ShapeRegistry.createDefault();
+        }
+        tokens = ("b " + parameters[1] + " " + tinyCoordinates(parameters[1]) + " blue").split(" ");
+        graphics = new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB).createGraphics();
+    }
+
+    @Override
+    public int run() {
+        dispatcher.handleRequest(tokens, graphics);
+        return tokens.length;
+    }
+
+    @Override
+    public void tearDown() {
+        graphics.dispose();
+    }
+
+    private static String tinyCoordinates(String keyword) {
+        return switch (keyword) {
+            case "CIRCLE" -> "8 8 1";
+            case "SEGMENT" -> "1 1 2 2";
+            case "TRIANGLE" -> "1 1 3 1 2 3";
+            default -> "1 1 3 1 3 3 1 3";
+        };
+    }
+}
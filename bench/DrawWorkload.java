@@ -0,0 +1,46 @@
+import benchmarks.Workload;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Draws one parsed command into an offscreen image, see {@code benchmarks.DrawBenchmark}.
+ * <p>
+ * Parameters: the shape keyword, and the style: {@code outline}, {@code filled}, {@code wide} or
+ * {@code translucent}.
+ * </p>
+ */
+public class DrawWorkload implements Workload {
+    private final ShapeCommand command = new ShapeCommand();
+    private Graphics2D graphics;
+
+    @Override
+    public void setUp(String... parameters) {
+        String style = switch (parameters[1]) {
+            case "outline" -> "blue";
+            case "filled" -> "blue FILL";
+            case "wide" -> "blue WIDTH=5";
+            case "translucent" -> "#80336699";
+            default -> throw new IllegalArgumentException("Unknown style: " + parameters[1]);
+        };
+        byte[] request = BenchmarkRequests.request(parameters[0], style).getBytes(StandardCharsets.US_ASCII);
+        if (!new CommandParser(DrawingServer.getShapeRegistry()).parse(ByteBuffer.wrap(request), 0,
+                request.length, command)) {
+            throw new IllegalStateException("Invalid request: " + command);
+        }
+        graphics = new BufferedImage(1000, 800, BufferedImage.TYPE_INT_RGB).createGraphics();
+    }
+
+    @Override
+    public int run() {
+        command.draw(graphics);
+        return command.getCoordinateCount();
+    }
+
+    @Override
+    public void tearDown() {
+        graphics.dispose();
+    }
+}
@@ -0,0 +1,132 @@
+import benchmarks.Workload;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+
+/**
+ * Sends batches of requests to a server over a loopback connection, see {@code benchmarks.EndToEndBenchmark}.
+ * <p>
+ * Parameters: the transport, {@code nio} or {@code blocking}, the protocol, {@code text} or {@code binary}, and the
+ * number of requests per batch, which is also the acknowledgement batch of the server. The server is configured
+ * from the {@code drawing.server.*} system properties, so they can be varied with {@code -jvmArgsAppend}; the
+ * scene is not retained unless {@code drawing.server.retainScene} is set, since a long run draws tens of millions
+ * of circles.
+ * </p>
+ */
+public class EndToEndWorkload implements Workload {
+    private CanvasManager canvases;
+    private Socket socket;
+    private OutputStream out;
+    private InputStream in;
+    private byte[] batch;
+    private int batchSize;
+
+    @Override
+    public void setUp(String... parameters) throws Exception {
+        ServerLog.setLevel(ServerLog.Level.WARN);
+        batchSize = Integer.parseInt(parameters[2]);
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        Properties properties = new Properties();
+        properties.putAll(System.getProperties());
+        properties.putIfAbsent(ServerConfig.RETAIN_SCENE_PROPERTY, "false");
+        properties.setProperty(ServerConfig.PORT_PROPERTY, String.valueOf(port));
+        properties.setProperty(ServerConfig.TRANSPORT_PROPERTY, parameters[0]);
+        properties.setProperty(ServerConfig.PERSISTENT_PROPERTY, "true");
+        properties.setProperty(ServerConfig.HEADLESS_PROPERTY, "true");
+        properties.setProperty(ServerConfig.ACK_BATCH_PROPERTY, String.valueOf(batchSize));
+        ServerConfig config = new ServerConfig(properties);
+        ShapeRegistry registry = DrawingServer.getShapeRegistry();
+        canvases = new CanvasManager(config, registry);
+        canvases.openDefault(new ImageSurface(config.getWidth(), config.getHeight()), new ServerMetrics(registry));
+        Thread server = new Thread(() -> serve(config), "benchmark-server");
+        server.setDaemon(true);
+        server.start();
+
+        socket = connect(port);
+        socket.setTcpNoDelay(true);
+        out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+        in = socket.getInputStream();
+        boolean binary = "binary".equals(parameters[1]);
+        if (binary) {
+            out.write(new byte[] {BinaryProtocol.MAGIC, BinaryProtocol.VERSION});
+            out.flush();
+            if (in.read() != (BinaryProtocol.MAGIC & 0xFF) || in.read() != BinaryProtocol.VERSION) {
+                throw new IOException("Binary protocol refused");
+            }
+        }
+        ByteArrayOutputStream requests = new ByteArrayOutputStream();
+        ByteBuffer frame = ByteBuffer.allocate(64);
+        int[] coordinates = new int[3];
+        for (int i = 0; i < batchSize; i++) {
+            if (binary) {
+                frame.clear();
+                LoadGenerator.binaryRequest(0, i, coordinates, frame);
+                requests.write(frame.array(), 0, frame.position());
+            } else {
+                requests.write((LoadGenerator.request(0, i) + "\n").getBytes(StandardCharsets.US_ASCII));
+            }
+        }
+        batch = requests.toByteArray();
+    }
+
+    @Override
+    public int run() throws IOException {
+        out.write(batch);
+        out.flush();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new IOException("Connection closed by the server");
+            }
+        }
+        return batchSize;
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        socket.close();
+        canvases.getDefault().close();
+    }
+
+    private void serve(ServerConfig config) {
+        try {
+            if (config.usesNioTransport()) {
+                new NioServer(config, canvases).serve();
+            } else {
+                DrawingServer.serveBlocking(config, canvases);
+            }
+        } catch (IOException e) {
+            ServerLog.error("Benchmark server failed", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Connects to the server, waiting for it to bind its port.
+     */
+    private static Socket connect(int port) throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return new Socket("localhost", port);
+            } catch (ConnectException e) {
+                if (attempt == 100) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+import java.awt.*;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * The {@code JournalBenchmark} class is a small command-line benchmark of the {@link CommandJournal}.
+ * <p>
+ * It writes a journal of random circles, segments and triangles into an empty directory, then measures in turn:
+ * <ul>
+ *   <li>{@code append}: the rate at which the render thread can log shapes, group commits included;</li>
+ *   <li>{@code decode}: the rate at which the log is mapped, checked and decoded, without drawing;</li>
+ *   <li>{@code rebuild}: the time to rebuild the canvas from the log with a {@link CanvasRenderer}, which is what
+ *   a restart costs before any compaction;</li>
+ *   <li>{@code compact} and {@code restore}: the time to fold the journal into a snapshot, and the time to restart
+ *   from that snapshot.</li>
+ * </ul>
+ * The renderer reads its settings from the {@code drawing.server.*} system properties, for example the render
+ * threads. With the scene retained, ten million shapes need a few gigabytes of heap; run with
+ * {@code -Ddrawing.server.retainScene=false} to measure drawing alone.
+ * </p>
+ *
+ * It is built into the benchmark jar with the JMH workloads, but runs on its own:
+ * <pre>
+ * java -cp target/benchmarks.jar JournalBenchmark [commands] [directory]
+ * </pre>
+ *
+ * @see CommandJournal
+ */
+public class JournalBenchmark {
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args optional number of commands (default {@code 10000000}) and directory of the journal (default
+     *             a new temporary directory, deleted at the end).
+     * @throws IOException If the journal cannot be written or read.
+     */
+    public static void main(String[] args) throws IOException {
+        int commands = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        boolean temporary = args.length < 2;
+        Path directory = temporary ? Files.createTempDirectory("journal-benchmark") : Path.of(args[1]);
+        ServerConfig config = ServerConfig.fromSystemProperties();
+        ShapeRegistry registry = DrawingServer.getShapeRegistry();
+        ServerLog.setLevel(ServerLog.Level.WARN);
+
+        CommandJournal journal = new CommandJournal(directory, registry, config.getJournalSyncMillis(), 0);
+        if (journal.open(new IgnoringReplayer()) > 0) {
+            throw new IllegalArgumentException(directory + " already holds a journal");
+        }
+        long start = System.nanoTime();
+        append(journal, registry, commands, config.getWidth(), config.getHeight());
+        journal.close();
+        double appendSeconds = seconds(start);
+        long bytes = journalBytes(directory);
+        report("append", commands, appendSeconds, bytes);
+
+        journal = new CommandJournal(directory, registry, config.getJournalSyncMillis(), 0);
+        start = System.nanoTime();
+        long records = journal.open(new IgnoringReplayer());
+        double decodeSeconds = seconds(start);
+        journal.close();
+        report("decode", records, decodeSeconds, bytes);
+
+        CanvasRenderer renderer = new CanvasRenderer(new ImageSurface(config.getWidth(), config.getHeight()),
+                config, new ServerMetrics(registry));
+        journal = new CommandJournal(directory, registry, config.getJournalSyncMillis(), 0);
+        start = System.nanoTime();
+        records = renderer.restore(journal);
+        report("rebuild", records, seconds(start), bytes);
+
+        start = System.nanoTime();
+        renderer.compactJournal();
+        journal.close();
+        double compactSeconds = seconds(start);
+        report("compact", records, compactSeconds, journalBytes(directory));
+
+        renderer = new CanvasRenderer(new ImageSurface(config.getWidth(), config.getHeight()), config,
+                new ServerMetrics(registry));
+        journal = new CommandJournal(directory, registry, config.getJournalSyncMillis(), 0);
+        start = System.nanoTime();
+        renderer.restore(journal);
+        double restoreSeconds = seconds(start);
+        journal.close();
+        report("restore", records, restoreSeconds, journalBytes(directory));
+
+        if (temporary) {
+            delete(directory);
+        }
+    }
+
+    /**
+     * Appends random shapes as the render thread would.
+     */
+    private static void append(CommandJournal journal, ShapeRegistry registry, int commands, int width, int height) {
+        ShapeHandler[] handlers = {
+                registry.lookup("CIRCLE"), registry.lookup("SEGMENT"), registry.lookup("TRIANGLE")
+        };
+        Color[] colors = {Color.BLACK, Color.RED, Color.BLUE, new Color(0x336699), new Color(0x80FF8000, true)};
+        Random random = new Random(42);
+        ShapeCommand command = new ShapeCommand();
+        int[] coordinates = new int[6];
+        for (int i = 0; i < commands; i++) {
+            int shape = random.nextInt(handlers.length);
+            int x = random.nextInt(width);
+            int y = random.nextInt(height);
+            int count;
+            if (shape == 0) {
+                coordinates[0] = x;
+                coordinates[1] = y;
+                coordinates[2] = 1 + random.nextInt(20);
+                count = 3;
+            } else {
+                count = shape == 1 ? 4 : 6;
+                for (int j = 0; j < count; j += 2) {
+                    coordinates[j] = x + random.nextInt(41) - 20;
+                    coordinates[j + 1] = y + random.nextInt(41) - 20;
+                }
+            }
+            command.set(handlers[shape], coordinates, count, colors[random.nextInt(colors.length)],
+                    random.nextInt(4) == 0, 1);
+            journal.append(command);
+        }
+    }
+
+    private static void report(String phase, long records, double seconds, long bytes) {
+        System.out.printf("phase=%s records=%d elapsed=%.2fs throughput=%.1f records/s bytes=%d bytes/s=%.1f%n",
+                phase, records, seconds, records / seconds, bytes, bytes / seconds);
+    }
+
+    private static double seconds(long start) {
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    private static long journalBytes(Path directory) throws IOException {
+        long bytes = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                bytes += Files.size(file);
+            }
+        }
+        return bytes;
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    /**
+     * Ignores the replayed records, so only reading and decoding them is measured.
+     */
+    private static final class IgnoringReplayer implements CommandJournal.Replayer {
+        @Override
+        public void restoreShape(int id, ShapeCommand command) {
+        }
+
+        @Override
+        public void restoreCanvas(int[] pixels, int width, int height, int nextShapeId) {
+        }
+
+        @Override
+        public void shape(ShapeCommand command) {
+        }
+
+        @Override
+        public void remove(int[] ids, int count) {
+        }
+
+        @Override
+        public void clear() {
+        }
+
+        @Override
+        public void finish() {
+        }
+    }
+}
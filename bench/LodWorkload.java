@@ -0,0 +1,71 @@
+import benchmarks.Workload;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Draws one detailed polygon into an offscreen image after simplifying it with a {@link ShapeClipper}, see
+ * {@code benchmarks.LodBenchmark}.
+ * <p>
+ * Parameters: the number of vertices of the polygon, {@code true} to fill it, and the polygon tolerance of the
+ * clipper, in pixels, {@code 0} drawing every vertex. The polygon is a closed outline traced from a random walk of
+ * its radius, like a coastline taken from geographic data: the more vertices, the more of them fall on the same
+ * pixels. The number of vertices left after simplification is printed once the workload is prepared.
+ * </p>
+ */
+public class LodWorkload implements Workload {
+    private static final int WIDTH = 1000;
+    private static final int HEIGHT = 800;
+
+    private final ShapeCommand polygon = new ShapeCommand();
+    private final ShapeCommand command = new ShapeCommand();
+    private ShapeClipper clipper;
+    private Graphics2D graphics;
+
+    @Override
+    public void setUp(String... parameters) {
+        int vertices = Integer.parseInt(parameters[0]);
+        boolean fill = Boolean.parseBoolean(parameters[1]);
+        clipper = new ShapeClipper(WIDTH, HEIGHT, Double.parseDouble(parameters[2]), null);
+        StringBuilder request = new StringBuilder("b POLYGONE");
+        Random random = new Random(42);
+        // The walk is scaled so the outline is as rough whatever the number of vertices.
+        double step = 3 * Math.sqrt(1000.0 / vertices);
+        double radius = 300;
+        for (int i = 0; i < vertices; i++) {
+            double angle = 2 * Math.PI * i / vertices;
+            radius = Math.max(50, Math.min(390, radius + random.nextGaussian() * step));
+            request.append(' ').append(WIDTH / 2 + (int) (radius * Math.cos(angle)))
+                    .append(' ').append(HEIGHT / 2 + (int) (radius * Math.sin(angle)));
+        }
+        byte[] bytes = request.append(fill ? " blue FILL" : " blue").toString().getBytes(StandardCharsets.US_ASCII);
+        CommandParser parser = new CommandParser(DrawingServer.getShapeRegistry(), vertices);
+        if (!parser.parse(ByteBuffer.wrap(bytes), 0, bytes.length, polygon)) {
+            throw new IllegalStateException("Invalid request: " + polygon);
+        }
+        graphics = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB).createGraphics();
+        System.out.println("LodWorkload: " + vertices + " vertices in, " + run() + " vertices out");
+    }
+
+    /**
+     * @return the number of vertices drawn.
+     */
+    @Override
+    public int run() {
+        // The clipper rewrites the command in place, as it does with the queued copy on the render thread.
+        command.copyFrom(polygon);
+        if (!clipper.clip(command)) {
+            return 0;
+        }
+        command.draw(graphics);
+        return command.getCoordinateCount() / 2;
+    }
+
+    @Override
+    public void tearDown() {
+        graphics.dispose();
+    }
+}
@@ -0,0 +1,61 @@
+import benchmarks.Workload;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tokenizes one request into a {@link ShapeCommand}, see {@code benchmarks.ParseBenchmark}.
+ * <p>
+ * Parameters: the decoder, {@code text}, {@code binary} or {@code split}, and the command type in lower case.
+ * </p>
+ */
+public class ParseWorkload implements Workload {
+    private final ShapeRegistry registry = DrawingServer.getShapeRegistry();
+    private final ShapeCommand command = new ShapeCommand();
+    private String decoder;
+    private String line;
+    private ByteBuffer buffer;
+    private int from;
+    private int to;
+    private CommandParser parser;
+    private BinaryDecoder binaryDecoder;
+
+    @Override
+    public void setUp(String... parameters) {
+        decoder = parameters[0];
+        line = BenchmarkRequests.request(keyword(parameters[1]), "blue");
+        byte[] bytes = line.getBytes(StandardCharsets.US_ASCII);
+        parser = new CommandParser(registry);
+        buffer = ByteBuffer.allocateDirect(bytes.length * 2);
+        buffer.put(bytes);
+        to = bytes.length;
+        if (!parser.parse(buffer, 0, to, command)) {
+            throw new IllegalStateException("Invalid request: " + command);
+        }
+        if ("binary".equals(decoder)) {
+            binaryDecoder = new BinaryDecoder(registry);
+            buffer.clear();
+            BinaryProtocol.encode(registry.getOpcode(command.getHandler()), command.getCoordinates(),
+                    command.getCoordinateCount(), command.getColor(), command.isFilled(),
+                    command.getStrokeWidth(), buffer);
+            from = BinaryProtocol.bodyStart(buffer, 0);
+            to = buffer.position();
+        }
+    }
+
+    @Override
+    public int run() {
+        return switch (decoder) {
+            case "text" -> parser.parse(buffer, from, to, command) ? command.getCoordinateCount() : -1;
+            case "binary" -> binaryDecoder.decode(buffer, from, to, command) ? command.getCoordinateCount() : -1;
+            default -> {
+                String[] tokens = line.split(" ");
+                yield ShapeCommand.fromTokens(tokens, registry.lookup(tokens[1])).getCoordinateCount();
+            }
+        };
+    }
+
+    private static String keyword(String command) {
+        return "polygon".equals(command) ? "POLYGONE" : command.toUpperCase();
+    }
+}
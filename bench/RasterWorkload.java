@@ -0,0 +1,94 @@
+import benchmarks.Workload;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Draws a batch of shapes into the framebuffer with a {@link TileRasterizer}, see {@code benchmarks.RasterBenchmark}.
+ * <p>
+ * Parameters: the number of render threads, {@code 1} drawing the batch sequentially as the renderer does without
+ * tiles, and the scene. An {@code opaque} scene holds small opaque shapes, nearly all drawn per tile. A
+ * {@code mixed} scene adds what the tiles cannot draw on their own: a quarter of translucent shapes, drawn alone
+ * when they span tiles, opaque circles and wide outlines spanning tiles, which are drawn through a mask, and a
+ * tenth of large shapes. The batch is clipped as the render thread clips it, and drawn again on every operation.
+ * </p>
+ */
+public class RasterWorkload implements Workload {
+    private static final int SHAPES = 4096;
+    private static final int WIDTH = 1000;
+    private static final int HEIGHT = 800;
+    private static final int TILE_SIZE = 128;
+    private static final String[] OPAQUE = {"red", "blue", "black", "#336699", "green"};
+    private static final String[] TRANSLUCENT = {"#80336699", "#40FF8000", "#C0000000"};
+
+    private final ShapeCommand[] batch = new ShapeCommand[SHAPES];
+    private TileRasterizer rasterizer;
+    private BufferedImage image;
+
+    @Override
+    public void setUp(String... parameters) {
+        int threads = Integer.parseInt(parameters[0]);
+        boolean mixed = switch (parameters[1]) {
+            case "opaque" -> false;
+            case "mixed" -> true;
+            default -> throw new IllegalArgumentException("Unknown scene: " + parameters[1]);
+        };
+        CommandParser parser = new CommandParser(DrawingServer.getShapeRegistry());
+        ShapeClipper clipper = new ShapeClipper(WIDTH, HEIGHT, null);
+        Random random = new Random(42);
+        for (int i = 0; i < SHAPES; ) {
+            byte[] request = randomRequest(random, mixed).getBytes(StandardCharsets.US_ASCII);
+            ShapeCommand command = new ShapeCommand();
+            if (!parser.parse(ByteBuffer.wrap(request), 0, request.length, command)) {
+                throw new IllegalStateException("Invalid request: " + command);
+            }
+            if (clipper.clip(command)) {
+                batch[i++] = command;
+            }
+        }
+        rasterizer = new TileRasterizer(WIDTH, HEIGHT, TILE_SIZE, threads);
+        image = new ImageSurface(WIDTH, HEIGHT).getImage();
+    }
+
+    @Override
+    public int run() {
+        rasterizer.draw(image, batch, SHAPES);
+        return SHAPES;
+    }
+
+    @Override
+    public void tearDown() {
+        rasterizer.shutdown();
+    }
+
+    private static String randomRequest(Random random, boolean mixed) {
+        int x = random.nextInt(WIDTH);
+        int y = random.nextInt(HEIGHT);
+        int size = mixed && random.nextInt(10) == 0 ? 200 + random.nextInt(400) : 2 + random.nextInt(30);
+        String color = mixed && random.nextInt(4) == 0
+                ? TRANSLUCENT[random.nextInt(TRANSLUCENT.length)]
+                : OPAQUE[random.nextInt(OPAQUE.length)];
+        String style = color + (random.nextBoolean() ? " FILL" : "")
+                + (mixed && random.nextInt(5) == 0 ? " WIDTH=" + (2 + random.nextInt(6)) : "");
+        String request = switch (random.nextInt(4)) {
+            case 0 -> "b CIRCLE " + x + " " + y + " " + size;
+            case 1 -> "b SEGMENT " + x + " " + y + " " + around(random, x, size) + " " + around(random, y, size);
+            case 2 -> "b TRIANGLE " + x + " " + y + " " + around(random, x, size) + " " + around(random, y, size)
+                    + " " + around(random, x, size) + " " + around(random, y, size);
+            default -> {
+                StringBuilder polygon = new StringBuilder("b POLYGONE");
+                for (int i = 0; i < 5; i++) {
+                    polygon.append(' ').append(around(random, x, size)).append(' ').append(around(random, y, size));
+                }
+                yield polygon.toString();
+            }
+        };
+        return request + " " + style;
+    }
+
+    private static int around(Random random, int center, int size) {
+        return center + random.nextInt(2 * size + 1) - size;
+    }
+}
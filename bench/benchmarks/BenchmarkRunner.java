@@ -0,0 +1,33 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The {@code BenchmarkRunner} class is the entry point of {@code benchmarks.jar}.
+ * <p>
+ * It runs the JMH command line with the given arguments, and, unless a result format is given with {@code -rf},
+ * writes the results as JSON into {@code jmh-result.json} so they can be archived and compared between builds.
+ * For example, {@code java -jar target/benchmarks.jar EndToEnd -p transport=nio} only runs the loopback
+ * benchmarks over the non-blocking transport, and {@code -h} lists the JMH options.
+ * </p>
+ */
+public class BenchmarkRunner {
+    /** The file receiving the results when no result format is given. */
+    public static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+    /**
+     * Runs the benchmarks.
+     *
+     * @param args the JMH command-line arguments.
+     * @throws Exception If JMH fails.
+     */
+    public static void main(String[] args) throws Exception {
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        if (!arguments.contains("-rf")) {
+            arguments.addAll(List.of("-rf", "json", "-rff", DEFAULT_RESULT_FILE));
+        }
+        org.openjdk.jmh.Main.main(arguments.toArray(new String[0]));
+    }
+}
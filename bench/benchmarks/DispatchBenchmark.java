@@ -0,0 +1,49 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the dispatch of a tokenized request through {@code ShapeHandler.handleRequest}.
+ * <p>
+ * The {@code chain} dispatcher is the historical chain of responsibility, in which {@code POLYGONE} is asked of
+ * every handler before its own; the {@code registry} dispatcher is the {@code ShapeRegistry} lookup used since.
+ * The shapes are one pixel wide and drawn into a small image, so the dispatch dominates.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+    @Param({"chain", "registry"})
+    public String dispatcher;
+
+    @Param({"CIRCLE", "SEGMENT", "TRIANGLE", "POLYGONE"})
+    public String shape;
+
+    private Workload workload;
+
+    @Setup
+    public void setUp() throws Exception {
+        workload = Workload.load("DispatchWorkload", dispatcher, shape);
+    }
+
+    @Benchmark
+    public int dispatch() throws Exception {
+        return workload.run();
+    }
+}
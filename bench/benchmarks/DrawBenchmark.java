@@ -0,0 +1,55 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the drawing of a parsed command by each handler into an offscreen {@code BufferedImage}.
+ * <p>
+ * Each shape is drawn with every style, so the cost of each attribute shows against the one-pixel outline:
+ * {@code filled}, a {@code wide} 5-pixel outline, and a {@code translucent} color blended into the image. The
+ * {@code CIRCLES} and {@code SEGMENTS} commands draw 100 shapes each.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DrawBenchmark {
+    @Param({"CIRCLE", "SEGMENT", "TRIANGLE", "POLYGONE", "CIRCLES", "SEGMENTS"})
+    public String shape;
+
+    @Param({"outline", "filled", "wide", "translucent"})
+    public String style;
+
+    private Workload workload;
+
+    @Setup
+    public void setUp() throws Exception {
+        workload = Workload.load("DrawWorkload", shape, style);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        workload.tearDown();
+    }
+
+    @Benchmark
+    public int draw() throws Exception {
+        return workload.run();
+    }
+}
@@ -0,0 +1,60 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a client drawing on a headless server over a loopback connection.
+ * <p>
+ * Each forked JVM starts a server on a free port with the selected transport, in persistent mode with an
+ * acknowledgement every {@code batch} requests. One operation sends a batch of circles and waits for its
+ * {@code ACK}, so the throughput times {@code batch} is the rate of shapes, and the sampled times of
+ * {@code batch=1} are the latency of a request from the client to the render queue. Once the render queue is
+ * full the acknowledgements wait for the render thread, so sustained throughput includes drawing.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndBenchmark {
+    @Param({"nio", "blocking"})
+    public String transport;
+
+    @Param({"text", "binary"})
+    public String protocol;
+
+    @Param({"1", "100"})
+    public String batch;
+
+    private Workload workload;
+
+    @Setup
+    public void setUp() throws Exception {
+        workload = Workload.load("EndToEndWorkload", transport, protocol, batch);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        workload.tearDown();
+    }
+
+    @Benchmark
+    public int roundTrip() throws Exception {
+        return workload.run();
+    }
+}
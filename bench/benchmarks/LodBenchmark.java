@@ -0,0 +1,59 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the drawing of a detailed polygon simplified to a tolerance in pixels by the {@code ShapeClipper}.
+ * <p>
+ * The benchmark returns the number of vertices drawn, and the workload prints it against the number requested
+ * before each trial, as {@code LodWorkload: 100000 vertices in, 2468 vertices out}. A tolerance of {@code 0} draws
+ * every vertex and is the baseline.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LodBenchmark {
+    @Param({"1000", "100000"})
+    public int vertices;
+
+    @Param({"false", "true"})
+    public boolean fill;
+
+    @Param({"0", "0.5", "1", "2"})
+    public double tolerance;
+
+    private Workload workload;
+
+    @Setup
+    public void setUp() throws Exception {
+        workload = Workload.load("LodWorkload", String.valueOf(vertices), String.valueOf(fill),
+                String.valueOf(tolerance));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        workload.tearDown();
+    }
+
+    @Benchmark
+    public int drawPolygon() throws Exception {
+        return workload.run();
+    }
+}
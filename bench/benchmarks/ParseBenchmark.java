@@ -0,0 +1,50 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the tokenization of one request of each command type into a {@code ShapeCommand}.
+ * <p>
+ * The {@code text} decoder is the {@code CommandParser} reading the bytes of a line, {@code binary} the
+ * {@code BinaryDecoder} reading the same request as a frame, and {@code split} the historical
+ * {@code String.split} tokenization with {@code Integer.parseInt} of the coordinates. The {@code circles} and
+ * {@code segments} commands carry 100 shapes each, to compare with 100 times the single commands.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+    @Param({"text", "binary", "split"})
+    public String decoder;
+
+    @Param({"circle", "segment", "triangle", "polygon", "circles", "segments"})
+    public String command;
+
+    private Workload workload;
+
+    @Setup
+    public void setUp() throws Exception {
+        workload = Workload.load("ParseWorkload", decoder, command);
+    }
+
+    @Benchmark
+    public int parse() throws Exception {
+        return workload.run();
+    }
+}
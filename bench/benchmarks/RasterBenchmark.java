@@ -0,0 +1,56 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the drawing of a batch of 4096 shapes by the {@code TileRasterizer} with each number of render
+ * threads.
+ * <p>
+ * One thread is the sequential baseline. The {@code opaque} scene shows the speedup of tiles on shapes they draw
+ * on their own; the {@code mixed} one its cost on the translucent and clip-dependent shapes spanning tiles, which
+ * are drawn alone or through a mask.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RasterBenchmark {
+    @Param({"1", "2", "4", "8"})
+    public int renderThreads;
+
+    @Param({"opaque", "mixed"})
+    public String scene;
+
+    private Workload workload;
+
+    @Setup
+    public void setUp() throws Exception {
+        workload = Workload.load("RasterWorkload", String.valueOf(renderThreads), scene);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        workload.tearDown();
+    }
+
+    @Benchmark
+    public int drawBatch() throws Exception {
+        return workload.run();
+    }
+}
@@ -0,0 +1,52 @@
+package benchmarks;
+
+/**
+ * The {@code Workload} interface is the operation measured by one benchmark of the suite.
+ * <p>
+ * JMH only accepts benchmarks declared in a named package, while the classes of the server are in the unnamed
+ * package, which code in a named package cannot refer to. Each benchmark of this package therefore drives a
+ * workload class of the unnamed package, found next to it in {@code bench/}, which is loaded by name once per trial
+ * with {@link #load(String, String...)}. The measured loop then only adds one monomorphic interface call per
+ * operation.
+ * </p>
+ */
+public interface Workload {
+
+    /**
+     * Prepares the workload before the first operation of a trial.
+     *
+     * @param parameters the values of the {@code @Param} fields of the benchmark, in declaration order.
+     * @throws Exception If the workload cannot be prepared.
+     */
+    void setUp(String... parameters) throws Exception;
+
+    /**
+     * Performs one operation.
+     *
+     * @return a value depending on the work done, consumed by the benchmark so the work is not eliminated.
+     * @throws Exception If the operation fails.
+     */
+    int run() throws Exception;
+
+    /**
+     * Releases the resources of the workload after the last operation of a trial.
+     *
+     * @throws Exception If the resources cannot be released.
+     */
+    default void tearDown() throws Exception {
+    }
+
+    /**
+     * Creates and prepares a workload of the unnamed package.
+     *
+     * @param className  the simple name of the workload class, which must have a public no-argument constructor.
+     * @param parameters the parameters passed to {@link #setUp(String...)}.
+     * @return the prepared workload.
+     * @throws Exception If the class cannot be loaded or the workload cannot be prepared.
+     */
+    static Workload load(String className, String... parameters) throws Exception {
+        Workload workload = (Workload) Class.forName(className).getDeclaredConstructor().newInstance();
+        workload.setUp(parameters);
+        return workload;
+    }
+}
@@ -0,0 +1,199 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The {@code Acknowledgements} class tracks the requests of a connection and builds its acknowledgement replies.
+ * <p>
+ * The requests of a connection are numbered from {@code 1} in the order they are read, whatever they are: drawing
+ * requests, canvas selections or control commands. An {@code ACK <n>} reply means that the first {@code n} requests
+ * have been processed: drawing requests queued for rendering, other requests executed and answered. With
+ * {@link ServerConfig#getAckBatch()}, the server sends one after every batch of that many requests and a last
+ * one at end of stream, and refusals are {@code ERROR <message>} lines.
+ * </p>
+ *
+ * <p>
+ * A client that needs to know the fate of every request sends {@code <sender> ACKS [batch]}, which is answered
+ * with {@code OK ACKS <n> <batch>}, {@code <n>} being the number of the {@code ACKS} request itself. From then on
+ * the connection has sequenced replies:
+ * <ul>
+ *   <li>an {@code ACK <n>} is sent after every {@code batch} requests ({@value #DEFAULT_BATCH} by default), and
+ *   also as soon as the server has processed all the input the client sent so far, so a client never waits for a
+ *   batch to fill up;</li>
+ *   <li>each failed request is answered with {@code NACK <n> <code> <message>}, where {@code <n>} is its number and
+ *   {@code <code>} one of {@value #INVALID}, {@value #RATE_LIMITED}, {@value #OVERLOADED} or {@value #FAILED}. This
+ *   includes the invalid drawing requests, which are otherwise only logged, and the control commands failing with
+ *   an {@code ERROR} reply.</li>
+ * </ul>
+ * A request is thus acknowledged as successful if an {@code ACK} covers it and no {@code NACK} named it. An
+ * acknowledged drawing request is queued, not yet drawn; the {@code SYNC} control command of {@link SyncCommand}
+ * tells when it is.
+ * </p>
+ *
+ * @see ConnectionHandler
+ * @see NioServer
+ * @see DrawingClient
+ */
+public class Acknowledgements {
+    /** The code of a request that is neither a valid drawing request nor a known command. */
+    public static final String INVALID = "INVALID";
+    /** The code of a request refused because its client exceeded its rate limit. */
+    public static final String RATE_LIMITED = "RATE_LIMITED";
+    /** The code of a drawing request refused because the server is over its in-flight budget. */
+    public static final String OVERLOADED = "OVERLOADED";
+    /** The code of a request whose execution failed, such as a control command with invalid arguments. */
+    public static final String FAILED = "FAILED";
+    /** The number of requests per acknowledgement when an {@code ACKS} request does not give it. */
+    public static final int DEFAULT_BATCH = 1024;
+
+    private static final String ACKS_KEYWORD = "ACKS";
+    private static final byte[] ERROR_PREFIX = "ERROR ".getBytes(StandardCharsets.US_ASCII);
+
+    private int batch;
+    private boolean sequenced;
+    private long requests;
+    private long acknowledged;
+
+    /**
+     * Creates the acknowledgement state of a new connection.
+     *
+     * @param ackBatch the number of requests per acknowledgement until the client asks for sequenced replies, or
+     *                 {@code 0} for none.
+     */
+    public Acknowledgements(int ackBatch) {
+        this.batch = ackBatch;
+    }
+
+    /**
+     * Reads an {@code ACKS} request.
+     *
+     * @param buffer the buffer holding the request, in ASCII.
+     * @param from   the absolute index of the first byte of the request.
+     * @param to     the absolute index after the last byte of the request.
+     * @return the number of requests per acknowledgement asked for, or {@code -1} if the request is not an
+     * {@code ACKS} request.
+     * @throws IllegalArgumentException If the batch size is invalid; the message is sent back as an error.
+     */
+    public static int request(ByteBuffer buffer, int from, int to) {
+        if (to > from && buffer.get(to - 1) == '\r') {
+            to--;
+        }
+        int keywordStart = CommandParser.skipSpaces(buffer,
+                CommandParser.tokenEnd(buffer, CommandParser.skipSpaces(buffer, from, to), to), to);
+        int keywordEnd = CommandParser.tokenEnd(buffer, keywordStart, to);
+        if (!CommandParser.matches(buffer, keywordStart, keywordEnd, ACKS_KEYWORD)) {
+            return -1;
+        }
+        String batch = ControlCommands.token(buffer, CommandParser.skipSpaces(buffer, keywordEnd, to), to);
+        if (batch == null) {
+            return DEFAULT_BATCH;
+        }
+        try {
+            int value = Integer.parseInt(batch);
+            if (value >= 1) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below.
+        }
+        throw new IllegalArgumentException("batch must be a positive integer");
+    }
+
+    /**
+     * Counts a request read from the connection.
+     *
+     * @return the number of the request.
+     */
+    public long next() {
+        return ++requests;
+    }
+
+    /**
+     * @return the number of requests read from the connection.
+     */
+    public long getRequests() {
+        return requests;
+    }
+
+    /**
+     * @return {@code true} if the client asked for sequenced replies.
+     */
+    public boolean isSequenced() {
+        return sequenced;
+    }
+
+    /**
+     * Switches the connection to sequenced replies, following the current request.
+     *
+     * @param batch the number of requests per acknowledgement.
+     * @return the {@code OK ACKS} reply.
+     */
+    public byte[] enable(int batch) {
+        this.batch = batch;
+        this.sequenced = true;
+        return ("OK " + ACKS_KEYWORD + " " + requests + " " + batch + "\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Builds the reply to the current request failing.
+     *
+     * @param code    the code of the failure.
+     * @param message the description of the failure.
+     * @return a {@code NACK} reply with sequenced replies, an {@code ERROR} reply otherwise.
+     */
+    public byte[] failure(String code, String message) {
+        if (!sequenced) {
+            return ControlCommands.error(message);
+        }
+        return ("NACK " + requests + " " + code + " " + message + "\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Adapts the reply of a control command or canvas selection to the reply mode of the connection.
+     *
+     * @param reply the reply.
+     * @return the reply, its {@code ERROR} line turned into a {@value #FAILED} {@code NACK} with sequenced replies.
+     */
+    public byte[] reply(byte[] reply) {
+        if (!sequenced || reply.length < ERROR_PREFIX.length
+                || !Arrays.equals(reply, 0, ERROR_PREFIX.length, ERROR_PREFIX, 0, ERROR_PREFIX.length)) {
+            return reply;
+        }
+        String message = new String(reply, ERROR_PREFIX.length, reply.length - ERROR_PREFIX.length - 1,
+                StandardCharsets.US_ASCII);
+        return failure(FAILED, message);
+    }
+
+    /**
+     * Builds the acknowledgement due after the current request, if any.
+     *
+     * @return the {@code ACK} reply if a batch is complete, or {@code null}.
+     */
+    public byte[] completed() {
+        return batch > 0 && requests - acknowledged >= batch ? acknowledge() : null;
+    }
+
+    /**
+     * Builds the acknowledgement due once all the input received so far has been processed, if any.
+     *
+     * @return the {@code ACK} reply if replies are sequenced and requests are not acknowledged yet, or {@code null}.
+     */
+    public byte[] drained() {
+        return sequenced && requests > acknowledged ? acknowledge() : null;
+    }
+
+    /**
+     * Builds the acknowledgement due at end of stream, if any.
+     *
+     * @return the {@code ACK} reply if acknowledgements are on and requests are not acknowledged yet, or
+     * {@code null}.
+     */
+    public byte[] finished() {
+        return batch > 0 && requests > acknowledged ? acknowledge() : null;
+    }
+
+    private byte[] acknowledge() {
+        acknowledged = requests;
+        return ("ACK " + requests + "\n").getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,195 @@
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The {@code AdmissionControl} class decides whether the {@link DrawingServer} takes on more work.
+ * <p>
+ * Two limits apply to every request, on top of the size limits enforced while reading it:
+ * <ul>
+ *   <li>a token bucket per client address, refilled at {@link ServerConfig#getClientRateLimit()} requests per
+ *   second up to {@link ServerConfig#getClientRateBurst()} tokens, shared by all the connections of the client, so
+ *   one client cannot starve the others by opening more connections;</li>
+ *   <li>a global budget of {@link ServerConfig#getMaxInFlight()} drawing commands accepted but not yet drawn, and
+ *   of {@link ServerConfig#getMaxInFlightBytes()} bytes of those commands, over all the canvases, so a burst of
+ *   clients on many canvases cannot fill every render queue at once. Counting bytes as well as commands keeps a
+ *   stream of maximum-size polygons within the same memory as one of small shapes.</li>
+ * </ul>
+ * A request over either limit is not queued: the transports answer it with an {@code ERROR} line and go on with
+ * the next request, which sheds load explicitly instead of letting queues and memory grow until the JVM fails.
+ * </p>
+ *
+ * <p>
+ * All methods are thread-safe. The buckets of clients that have been idle long enough to be full again are
+ * forgotten from time to time, so the number of buckets follows the number of active clients.
+ * </p>
+ *
+ * @see ServerConfig#getClientRateLimit()
+ * @see ServerConfig#getMaxInFlight()
+ * @see ServerConfig#getMaxInFlightBytes()
+ */
+public class AdmissionControl {
+    /** The reply to a request refused by the rate limit of its client. */
+    public static final String RATE_LIMITED = "rate limit exceeded";
+    /** The reply to a drawing command refused because too many commands are in flight. */
+    public static final String OVERLOADED = "server overloaded";
+
+    private static final long SWEEP_INTERVAL_NANOS = 10_000_000_000L;
+    /** The memory a queued command takes besides its coordinates: its slot, fields and array header. */
+    private static final long COMMAND_BYTES = 64;
+
+    private final double rate;
+    private final double burst;
+    private final long maxInFlight;
+    private final long maxInFlightBytes;
+    private final AtomicLong inFlight = new AtomicLong();
+    private final AtomicLong inFlightBytes = new AtomicLong();
+    private final Map<InetAddress, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong nextSweepNanos = new AtomicLong(System.nanoTime() + SWEEP_INTERVAL_NANOS);
+
+    /**
+     * Creates the admission control of a server.
+     *
+     * @param config the server configuration providing the limits.
+     */
+    public AdmissionControl(ServerConfig config) {
+        this.rate = config.getClientRateLimit();
+        this.burst = config.getClientRateBurst();
+        this.maxInFlight = config.getMaxInFlight();
+        this.maxInFlightBytes = config.getMaxInFlightBytes();
+    }
+
+    /**
+     * Estimates the memory a drawing command takes while it waits to be drawn.
+     *
+     * @param command the parsed command.
+     * @return the size of the command, in bytes.
+     */
+    public static long sizeOf(ShapeCommand command) {
+        return sizeOf(command.getCoordinateCount());
+    }
+
+    /**
+     * Estimates the memory a drawing command with a given number of coordinates takes while it waits to be drawn.
+     *
+     * @param coordinates the number of coordinates of the command.
+     * @return the size of the command, in bytes.
+     */
+    public static long sizeOf(int coordinates) {
+        return COMMAND_BYTES + 4L * coordinates;
+    }
+
+    /**
+     * Takes a token from the bucket of a client for one request.
+     *
+     * @param client the address of the client.
+     * @return {@code true} if the request is within the rate of the client, {@code false} if it must be refused.
+     */
+    public boolean allowRequest(InetAddress client) {
+        if (rate <= 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        long nextSweep = nextSweepNanos.get();
+        if (now - nextSweep > 0 && nextSweepNanos.compareAndSet(nextSweep, now + SWEEP_INTERVAL_NANOS)) {
+            buckets.values().removeIf(bucket -> bucket.isFull(now));
+        }
+        TokenBucket bucket = buckets.get(client);
+        if (bucket == null) {
+            bucket = buckets.computeIfAbsent(client, address -> new TokenBucket(rate, burst));
+        }
+        return bucket.tryAcquire(now);
+    }
+
+    /**
+     * Reserves room for a drawing command in the global in-flight budget.
+     *
+     * @param bytes the size of the command, see {@link #sizeOf(ShapeCommand)}.
+     * @return {@code true} if the command may be queued, {@code false} if it must be refused.
+     */
+    public boolean acquireInFlight(long bytes) {
+        if (maxInFlight > 0 && inFlight.incrementAndGet() > maxInFlight) {
+            inFlight.decrementAndGet();
+            return false;
+        }
+        if (maxInFlightBytes > 0 && inFlightBytes.addAndGet(bytes) > maxInFlightBytes) {
+            inFlightBytes.addAndGet(-bytes);
+            if (maxInFlight > 0) {
+                inFlight.decrementAndGet();
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gives back the room of drawn commands. Called by the render threads.
+     *
+     * @param count the number of commands drawn.
+     * @param bytes the total size of the commands drawn, as it was when they were acquired.
+     */
+    public void releaseInFlight(int count, long bytes) {
+        if (maxInFlight > 0) {
+            inFlight.addAndGet(-count);
+        }
+        if (maxInFlightBytes > 0) {
+            inFlightBytes.addAndGet(-bytes);
+        }
+    }
+
+    /**
+     * @return the number of drawing commands accepted and not drawn yet, when the budget is enabled.
+     */
+    public long getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return the size of the drawing commands accepted and not drawn yet, when the byte budget is enabled.
+     */
+    public long getInFlightBytes() {
+        return inFlightBytes.get();
+    }
+
+    /**
+     * The {@code TokenBucket} class limits the request rate of one client.
+     * <p>
+     * The bucket holds up to {@code burst} tokens and is refilled continuously at {@code rate} tokens per second;
+     * every request takes one token. It starts full, so a client may send a burst right after connecting.
+     * </p>
+     */
+    private static final class TokenBucket {
+        private final double tokensPerNano;
+        private final double capacity;
+        private double tokens;
+        private long refilledNanos = System.nanoTime();
+
+        TokenBucket(double rate, double burst) {
+            this.tokensPerNano = rate / 1e9;
+            this.capacity = burst;
+            this.tokens = burst;
+        }
+
+        synchronized boolean tryAcquire(long now) {
+            refill(now);
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+        synchronized boolean isFull(long now) {
+            refill(now);
+            return tokens >= capacity;
+        }
+
+        private void refill(long now) {
+            if (now - refilledNanos > 0) {
+                tokens = Math.min(capacity, tokens + (now - refilledNanos) * tokensPerNano);
+                refilledNanos = now;
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+import java.awt.*;
+import java.nio.ByteBuffer;
+
+/**
+ * The {@code BinaryDecoder} class decodes the shape frames of the {@link BinaryProtocol} into a
+ * {@link ShapeCommand}.
+ * <p>
+ * It is the binary counterpart of {@link CommandParser}: the opcode is resolved through the
+ * {@link ShapeRegistry}, coordinates are decoded from varints straight into the command's primitive array, and
+ * the command is then drawn by the same handlers as a text request. Nothing is allocated for a valid frame whose
+ * color is in the palette or in the cache of {@link ColorTable#valueOf(int)}.
+ * Malformed frames do not throw: {@link #decode(ByteBuffer, int, int, ShapeCommand)} returns {@code false} and
+ * the command records the offset and a description of the first error. A decoder holds no state and can be
+ * shared between threads.
+ * </p>
+ *
+ * @see BinaryProtocol
+ * @see CommandParser
+ */
+public class BinaryDecoder {
+    private final ShapeRegistry registry;
+    private final int maxCoordinates;
+
+    /**
+     * Creates a decoder resolving opcodes with the given registry, without limit on the number of coordinates.
+     *
+     * @param registry the registry of shape handlers.
+     */
+    public BinaryDecoder(ShapeRegistry registry) {
+        this(registry, Integer.MAX_VALUE / 2);
+    }
+
+    /**
+     * Creates a decoder resolving opcodes with the given registry and rejecting frames with too many vertices.
+     *
+     * @param registry    the registry of shape handlers.
+     * @param maxVertices the maximum number of vertices of a frame, i.e. half its number of coordinates.
+     */
+    public BinaryDecoder(ShapeRegistry registry, int maxVertices) {
+        this.registry = registry;
+        this.maxCoordinates = maxVertices * 2;
+    }
+
+    /**
+     * Decodes the body of a shape frame.
+     *
+     * @param buffer  the buffer holding the frame body.
+     * @param from    the absolute index of the opcode.
+     * @param to      the absolute index after the last byte of the body.
+     * @param command the command to fill; it is reset first.
+     * @return {@code true} if the frame is a valid shape, {@code false} if the command holds an error.
+     */
+    public boolean decode(ByteBuffer buffer, int from, int to, ShapeCommand command) {
+        command.reset();
+        if (to - from < 2) {
+            return command.fail(0, "truncated frame");
+        }
+        ShapeHandler handler = registry.lookup(buffer.get(from) & 0xFF);
+        if (handler == null) {
+            return command.fail(0, "unsupported shape");
+        }
+        command.setHandler(handler);
+
+        int i = from + 1;
+        int tag = buffer.get(i++) & 0xFF;
+        if (tag == BinaryProtocol.STYLE) {
+            if (to - i < 3) {
+                return command.fail(1, "truncated style");
+            }
+            int flags = buffer.get(i) & 0xFF;
+            int strokeWidth = buffer.get(i + 1) & 0xFF;
+            if ((flags & ~BinaryProtocol.FILLED) != 0 || strokeWidth < 1) {
+                return command.fail(2, "invalid style");
+            }
+            command.setFilled((flags & BinaryProtocol.FILLED) != 0);
+            command.setStrokeWidth(strokeWidth);
+            i += 2;
+            tag = buffer.get(i++) & 0xFF;
+        }
+        if (tag == BinaryProtocol.RGB_COLOR || tag == BinaryProtocol.ARGB_COLOR) {
+            boolean alpha = tag == BinaryProtocol.ARGB_COLOR;
+            if (to - i < (alpha ? 4 : 3)) {
+                return command.fail(1, "truncated color");
+            }
+            int argb = alpha
+                    ? buffer.getInt(i)
+                    : 0xFF000000 | (buffer.getShort(i) & 0xFFFF) << 8 | buffer.get(i + 2) & 0xFF;
+            i += alpha ? 4 : 3;
+            command.setColor(ColorTable.valueOf(argb));
+        } else if (tag < BinaryProtocol.PALETTE.length) {
+            command.setColor(BinaryProtocol.PALETTE[tag]);
+        } else {
+            return command.fail(1, "unknown color index");
+        }
+
+        while (i < to) {
+            int start = i;
+            if (command.getCoordinateCount() == maxCoordinates) {
+                return command.fail(start - from, "more than " + maxCoordinates / 2 + " vertices");
+            }
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (i == to || shift > 28) {
+                    return command.fail(start - from, "malformed coordinate");
+                }
+                int b = buffer.get(i++);
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            command.addCoordinate(BinaryProtocol.unzigzag(value));
+        }
+
+        if (!handler.acceptsCoordinates(command.getCoordinateCount())) {
+            return command.fail(to - from, "wrong number of coordinates");
+        }
+        return true;
+    }
+}
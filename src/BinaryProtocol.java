@@ -0,0 +1,232 @@
+import java.awt.*;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The {@code BinaryProtocol} class defines the compact binary framing accepted alongside the text requests.
+ * <p>
+ * <b>Negotiation.</b> A client selects the binary protocol by sending {@link #MAGIC} followed by the protocol
+ * version as the first two bytes of the connection; since {@code MAGIC} is not an ASCII character, it can never
+ * start a text request. The server answers with {@code MAGIC} and the accepted version, or {@code MAGIC} and
+ * {@code 0} before closing the connection if it does not support the requested version. A binary connection
+ * carries frames until the client closes its side, whatever {@link ServerConfig#isPersistent()} says.
+ * </p>
+ *
+ * <p>
+ * <b>Frames.</b> Each frame is the length of its body as an unsigned varint, followed by the body:
+ * <ul>
+ *   <li>the opcode of the shape, one byte, as assigned by {@link ShapeRegistry#getOpcode(CharSequence)};</li>
+ *   <li>optionally, {@link #STYLE} followed by a flags byte ({@link #FILLED}) and the outline width, one byte
+ *   between {@code 1} and {@value ShapeHandler#MAX_STROKE_WIDTH}; without it the shape is outlined one pixel
+ *   wide;</li>
+ *   <li>the color: one byte indexing {@link #PALETTE}, or {@link #RGB_COLOR} followed by three bytes
+ *   {@code R G B}, or {@link #ARGB_COLOR} followed by four bytes {@code A R G B};</li>
+ *   <li>the coordinates, each a zigzag-encoded varint, up to the end of the body.</li>
+ * </ul>
+ * The opcode {@link #TEXT_OPCODE} instead carries one text request in ASCII, sender token included, which is how
+ * control commands such as {@code SNAPSHOT} are sent on a binary connection. Replies, including
+ * {@code ACK <count>}, are the same text lines as on a text connection.
+ * </p>
+ *
+ * <p>
+ * A circle therefore takes 6 to 9 bytes instead of about 25 as text, and a polygon about one to two bytes per
+ * coordinate. Frames are decoded by {@link BinaryDecoder}.
+ * </p>
+ *
+ * @see BinaryDecoder
+ */
+public final class BinaryProtocol {
+    /** The first byte sent by a client selecting the binary protocol. */
+    public static final byte MAGIC = (byte) 0xD7;
+    /** The version of the protocol described here. */
+    public static final int VERSION = 1;
+    /** The opcode of a frame carrying a text request. */
+    public static final int TEXT_OPCODE = 0;
+    /** The color tag followed by three bytes {@code R G B}. */
+    public static final int RGB_COLOR = 0xFF;
+    /** The color tag followed by four bytes {@code A R G B}. */
+    public static final int ARGB_COLOR = 0xFE;
+    /** The tag preceding the color, followed by a flags byte and the outline width. */
+    public static final int STYLE = 0xFD;
+    /** The style flag filling the shape. */
+    public static final int FILLED = 0x01;
+    /** The largest accepted frame body, in bytes. */
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    /** The colors that can be sent as a one-byte index. */
+    static final Color[] PALETTE = {
+            Color.BLACK, Color.RED, Color.GREEN, Color.BLUE, Color.YELLOW, Color.CYAN
+    };
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Finds the end of the frame starting at an index of a buffer.
+     *
+     * @param buffer the buffer holding the frame.
+     * @param from   the absolute index of the first byte of the frame.
+     * @param to     the absolute index after the last byte available.
+     * @return the absolute index after the last byte of the frame, or {@code -1} if the frame is not complete yet.
+     * @throws ProtocolException If the length of the frame is malformed or too large.
+     */
+    public static int frameEnd(ByteBuffer buffer, int from, int to) throws ProtocolException {
+        return frameEnd(buffer, from, to, MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * Finds the end of the frame starting at an index of a buffer, refusing frames longer than a maximum.
+     *
+     * @param buffer    the buffer holding the frame.
+     * @param from      the absolute index of the first byte of the frame.
+     * @param to        the absolute index after the last byte available.
+     * @param maxLength the maximum length of the frame body, at most {@link #MAX_FRAME_LENGTH}.
+     * @return the absolute index after the last byte of the frame, or {@code -1} if the frame is not complete yet.
+     * @throws ProtocolException If the length of the frame is malformed or too large.
+     */
+    public static int frameEnd(ByteBuffer buffer, int from, int to, int maxLength) throws ProtocolException {
+        int length = 0;
+        for (int i = from, shift = 0; i < to; i++, shift += 7) {
+            int b = buffer.get(i);
+            length |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                if (length < 0 || length > maxLength) {
+                    throw new ProtocolException("frame too large");
+                }
+                return to - (i + 1) >= length ? i + 1 + length : -1;
+            }
+            if (shift == 28) {
+                throw new ProtocolException("malformed frame length");
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Skips the length prefix of a complete frame.
+     *
+     * @param buffer the buffer holding the frame.
+     * @param from   the absolute index of the first byte of the frame.
+     * @return the absolute index of the first byte of the body.
+     */
+    public static int bodyStart(ByteBuffer buffer, int from) {
+        while (buffer.get(from) < 0) {
+            from++;
+        }
+        return from + 1;
+    }
+
+    /**
+     * Encodes a shape as a frame.
+     *
+     * @param opcode      the opcode of the shape.
+     * @param coordinates the coordinates of the shape.
+     * @param count       the number of coordinates.
+     * @param color       the color of the shape.
+     * @param out         the buffer receiving the frame at its position.
+     * @throws java.nio.BufferOverflowException If the buffer is too small.
+     */
+    public static void encode(int opcode, int[] coordinates, int count, Color color, ByteBuffer out) {
+        encode(opcode, coordinates, count, color, false, 1, out);
+    }
+
+    /**
+     * Encodes a styled shape as a frame. The style is only sent when it differs from a one pixel outline.
+     *
+     * @param opcode      the opcode of the shape.
+     * @param coordinates the coordinates of the shape.
+     * @param count       the number of coordinates.
+     * @param color       the color of the shape.
+     * @param filled      whether the shape is filled.
+     * @param strokeWidth the width of the outline, between {@code 1} and {@value ShapeHandler#MAX_STROKE_WIDTH}.
+     * @param out         the buffer receiving the frame at its position.
+     * @throws java.nio.BufferOverflowException If the buffer is too small.
+     */
+    public static void encode(int opcode, int[] coordinates, int count, Color color, boolean filled,
+                              int strokeWidth, ByteBuffer out) {
+        boolean styled = filled || strokeWidth != 1;
+        int paletteIndex = paletteIndex(color);
+        int length = 1 + (styled ? 3 : 0) + (paletteIndex >= 0 ? 1 : color.getAlpha() == 255 ? 4 : 5);
+        for (int i = 0; i < count; i++) {
+            length += varintSize(zigzag(coordinates[i]));
+        }
+        writeVarint(length, out);
+        out.put((byte) opcode);
+        if (styled) {
+            out.put((byte) STYLE).put((byte) (filled ? FILLED : 0)).put((byte) strokeWidth);
+        }
+        if (paletteIndex >= 0) {
+            out.put((byte) paletteIndex);
+        } else if (color.getAlpha() == 255) {
+            out.put((byte) RGB_COLOR);
+            out.put((byte) color.getRed()).put((byte) color.getGreen()).put((byte) color.getBlue());
+        } else {
+            out.put((byte) ARGB_COLOR);
+            out.putInt(color.getRGB());
+        }
+        for (int i = 0; i < count; i++) {
+            writeVarint(zigzag(coordinates[i]), out);
+        }
+    }
+
+    /**
+     * Encodes a text request, such as a control command, as a frame.
+     *
+     * @param request the request, sender token included, without line terminator.
+     * @param out     the buffer receiving the frame at its position.
+     * @throws java.nio.BufferOverflowException If the buffer is too small.
+     */
+    public static void encodeText(String request, ByteBuffer out) {
+        byte[] bytes = request.getBytes(StandardCharsets.US_ASCII);
+        writeVarint(1 + bytes.length, out);
+        out.put((byte) TEXT_OPCODE);
+        out.put(bytes);
+    }
+
+    /**
+     * Writes an unsigned varint: seven bits per byte, least significant group first, high bit set on every byte
+     * but the last.
+     *
+     * @param value the value, interpreted as unsigned.
+     * @param out   the buffer receiving the bytes.
+     */
+    static void writeVarint(int value, ByteBuffer out) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * @return the number of bytes of the unsigned varint encoding of a value.
+     */
+    static int varintSize(int value) {
+        return (31 - Integer.numberOfLeadingZeros(value | 1)) / 7 + 1;
+    }
+
+    /**
+     * Maps signed integers to unsigned ones so that small magnitudes have short varints:
+     * {@code 0, -1, 1, -2, 2...} become {@code 0, 1, 2, 3, 4...}.
+     */
+    static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    /**
+     * Reverses {@link #zigzag(int)}.
+     */
+    static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int paletteIndex(Color color) {
+        for (int i = 0; i < PALETTE.length; i++) {
+            if (PALETTE[i].equals(color)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,59 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * The {@code BufferPool} class recycles fixed-size direct {@link ByteBuffer}s.
+ * <p>
+ * Direct buffers are expensive to allocate and are only reclaimed by the garbage collector, so the
+ * {@link NioServer} borrows one for the duration of a single read and returns it right after. The number of
+ * buffers in use is therefore bounded by the number of connections being read at the same time, not by the
+ * number of open connections. The pool keeps at most {@code maxPooled} idle buffers. Instances are not
+ * thread-safe; each selector thread owns its pool.
+ * </p>
+ *
+ * @see NioServer
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ArrayDeque<ByteBuffer> idle = new ArrayDeque<>();
+
+    /**
+     * Creates an empty pool.
+     *
+     * @param bufferSize the capacity of every buffer, in bytes.
+     * @param maxPooled  the maximum number of idle buffers kept for reuse.
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Borrows a cleared buffer, allocating a new one if the pool is empty.
+     *
+     * @return a buffer of {@link #bufferSize()} bytes, ready to be written to.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = idle.pollFirst();
+        return buffer != null ? buffer.clear() : ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire()} to the pool.
+     *
+     * @param buffer the buffer to recycle.
+     */
+    public void release(ByteBuffer buffer) {
+        if (idle.size() < maxPooled) {
+            idle.addFirst(buffer);
+        }
+    }
+
+    /**
+     * @return the capacity of the pooled buffers, in bytes.
+     */
+    public int bufferSize() {
+        return bufferSize;
+    }
+}
@@ -0,0 +1,503 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.regex.Pattern;
+
+/**
+ * The {@code CanvasManager} class holds the named canvases of the {@link DrawingServer}.
+ * <p>
+ * Every connection starts on the {@value #DEFAULT_CANVAS} canvas, the one shown in the window. A client selects
+ * another canvas with {@code <sender> CANVAS <name> [<width> <height>]}, which applies to the rest of the
+ * connection and replies {@code OK CANVAS <name> <width> <height>}; in one-shot mode the selection may precede
+ * the single request of the connection. A canvas is opened the first time it is selected, with the given size or
+ * the size of the default canvas, and is then shared by every connection selecting it. Names are made of ASCII
+ * letters, digits, {@code '_'} and {@code '-'}, 64 characters at most.
+ * </p>
+ *
+ * <p>
+ * Canvases no connection uses are evicted: after {@link ServerConfig#getCanvasIdleSeconds()}, when
+ * {@link ServerConfig#getMaxCanvases()} canvases are open and another one is selected, and when the heap is
+ * nearly full. With a journal directory, each canvas journals into its own {@code canvases/<name>} subdirectory
+ * and is compacted into a snapshot when evicted, so it comes back as it was the next time it is selected; without
+ * one, an evicted canvas is dropped and comes back empty. The default canvas is never evicted.
+ * </p>
+ *
+ * <p>
+ * All methods are thread-safe. The lock of the manager only guards the map of canvases and the connection
+ * counts: opening a canvas, which may replay its journal, and evicting one, which waits for its render thread and
+ * compacts its journal, both run outside of it, so they never hold up the connections of other canvases. While a
+ * canvas opens the map holds a future for it, which the other connections selecting it wait for, and a canvas
+ * selected again while its eviction saves it waits for the eviction to end. {@link #attach} and {@link #select}
+ * may therefore block, and the {@link NioServer} calls them on a worker thread; drawing only goes through the
+ * {@link CanvasSession} a connection holds.
+ * </p>
+ *
+ * @see CanvasSession
+ */
+public class CanvasManager {
+    /** The name of the canvas every connection starts on. */
+    public static final String DEFAULT_CANVAS = "default";
+
+    private static final String SELECT_KEYWORD = "CANVAS";
+    private static final String CANVASES_DIRECTORY = "canvases";
+    private static final String SIZE_FILE = "canvas.properties";
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+    private static final int MAX_SIDE = 8192;
+    private static final double LOW_MEMORY_RATIO = 0.9;
+
+    private final ServerConfig config;
+    private final ShapeRegistry registry;
+    private final AdmissionControl admission;
+    private final Map<String, CompletableFuture<CanvasSession>> canvases = new LinkedHashMap<>();
+    private final Map<String, CompletableFuture<Void>> evictions = new HashMap<>();
+    private CanvasSession defaultCanvas;
+
+    /**
+     * Creates a manager without any canvas, with the {@link AdmissionControl} its canvases share, and starts the
+     * thread evicting idle canvases.
+     *
+     * @param config   the server configuration.
+     * @param registry the registry of shape handlers.
+     */
+    public CanvasManager(ServerConfig config, ShapeRegistry registry) {
+        this.config = config;
+        this.registry = registry;
+        this.admission = new AdmissionControl(config);
+        Thread evictor = new Thread(this::evictLoop, "canvas-evictor");
+        evictor.setDaemon(true);
+        evictor.start();
+    }
+
+    /**
+     * Opens the default canvas on a given surface, rebuilding it from the journal directory if one is configured.
+     *
+     * @param surface the surface of the default canvas, for example the window.
+     * @param metrics the metrics of the server, which also count the connections of every canvas.
+     * @return the default canvas.
+     * @throws IOException If the journal cannot be read.
+     */
+    public synchronized CanvasSession openDefault(RenderSurface surface, ServerMetrics metrics) throws IOException {
+        defaultCanvas = CanvasSession.open(DEFAULT_CANVAS, surface, metrics, config, registry, admission,
+                config.getJournalDirectory());
+        canvases.put(DEFAULT_CANVAS, CompletableFuture.completedFuture(defaultCanvas));
+        return defaultCanvas;
+    }
+
+    /**
+     * @return the admission control shared by the canvases and the connections of the server.
+     */
+    public AdmissionControl getAdmissionControl() {
+        return admission;
+    }
+
+    /**
+     * @return the canvas every connection starts on.
+     */
+    public synchronized CanvasSession getDefault() {
+        return defaultCanvas;
+    }
+
+    /**
+     * Attaches a new connection to the default canvas.
+     *
+     * @return the default canvas.
+     */
+    public synchronized CanvasSession attachDefault() {
+        defaultCanvas.connectionAttached();
+        return defaultCanvas;
+    }
+
+    /**
+     * Attaches a connection to a canvas, opening the canvas if needed.
+     *
+     * @param name   the name of the canvas.
+     * @param width  the width of the canvas, or {@code 0} for the width it already has or the default one.
+     * @param height the height of the canvas, or {@code 0} for the height it already has or the default one.
+     * @return the canvas.
+     * @throws IllegalArgumentException If the name or size is invalid, or the canvas cannot be opened.
+     */
+    public CanvasSession attach(String name, int width, int height) {
+        if (!NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("invalid canvas name");
+        }
+        if (width < 0 || height < 0 || width > MAX_SIDE || height > MAX_SIDE || (width == 0) != (height == 0)) {
+            throw new IllegalArgumentException("canvas size must be between 1 and " + MAX_SIDE);
+        }
+        while (true) {
+            CompletableFuture<CanvasSession> future;
+            CompletableFuture<CanvasSession> opening = null;
+            CanvasSession evicted = null;
+            synchronized (this) {
+                future = canvases.get(name);
+                if (future == null) {
+                    if (canvases.size() >= config.getMaxCanvases()) {
+                        evicted = retireLeastRecentlyUsed();
+                        if (evicted == null) {
+                            throw new IllegalArgumentException("too many canvases");
+                        }
+                    }
+                    opening = new CompletableFuture<>();
+                    canvases.put(name, opening);
+                } else if (future.isDone()) {
+                    CanvasSession canvas = future.join();
+                    if (width != 0 && !hasSize(canvas, width, height)) {
+                        throw new IllegalArgumentException("canvas " + canvas + " already exists");
+                    }
+                    canvas.connectionAttached();
+                    return canvas;
+                }
+            }
+            if (opening != null) {
+                return openAttached(name, width, height, opening, evicted);
+            }
+            // Opened by another connection: attach once it is open, or reopen it if it was evicted meanwhile.
+            awaitOpen(name, future);
+        }
+    }
+
+    /**
+     * Opens a canvas whose future the calling thread has put in the map, and attaches the connection to it.
+     *
+     * @param future  the future of the canvas, completed once it is open.
+     * @param evicted the canvas retired to make room for this one, to be evicted first, or {@code null}.
+     */
+    private CanvasSession openAttached(String name, int width, int height, CompletableFuture<CanvasSession> future,
+                                       CanvasSession evicted) {
+        try {
+            if (evicted != null) {
+                evict(evicted, memoryLow() ? "low memory" : "least recently used");
+            }
+            awaitEviction(name);
+            CanvasSession canvas = open(name, width, height);
+            synchronized (this) {
+                canvas.connectionAttached();
+            }
+            future.complete(canvas);
+            return canvas;
+        } catch (RuntimeException e) {
+            // Forget the canvas before failing its future, so the map only holds futures that open or succeeded.
+            synchronized (this) {
+                canvases.remove(name);
+            }
+            future.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for another connection to open a canvas.
+     *
+     * @throws IllegalArgumentException If the canvas could not be opened.
+     */
+    private static void awaitOpen(String name, CompletableFuture<CanvasSession> future) {
+        try {
+            future.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IllegalArgumentException cause
+                    ? cause
+                    : new IllegalArgumentException("cannot open canvas " + name);
+        }
+    }
+
+    /**
+     * Waits for the eviction of a canvas to end, so a canvas selected again is only reopened once its journal has
+     * been compacted.
+     */
+    private void awaitEviction(String name) {
+        CompletableFuture<Void> eviction;
+        synchronized (this) {
+            eviction = evictions.get(name);
+        }
+        if (eviction != null) {
+            eviction.join();
+        }
+    }
+
+    /**
+     * Detaches a connection from a canvas, which becomes evictable once no connection uses it.
+     *
+     * @param canvas the canvas the connection was attached to.
+     */
+    public synchronized void detach(CanvasSession canvas) {
+        canvas.connectionDetached();
+    }
+
+    /**
+     * Executes a {@code CANVAS} request, moving a connection from its current canvas to the selected one.
+     *
+     * @param buffer  the buffer holding the request, in ASCII.
+     * @param from    the absolute index of the first byte of the request.
+     * @param to      the absolute index after the last byte of the request.
+     * @param current the canvas of the connection.
+     * @return the selected canvas, or {@code null} if the request is not a {@code CANVAS} request.
+     * @throws IllegalArgumentException If the request is invalid; the message is sent back as an error.
+     */
+    public CanvasSession select(ByteBuffer buffer, int from, int to, CanvasSession current) {
+        if (to > from && buffer.get(to - 1) == '\r') {
+            to--;
+        }
+        int keywordEnd = CommandParser.tokenEnd(buffer, keywordStart(buffer, from, to), to);
+        if (!isSelection(buffer, from, to)) {
+            return null;
+        }
+        List<String> arguments = new ArrayList<>();
+        int i = CommandParser.skipSpaces(buffer, keywordEnd, to);
+        while (i < to) {
+            arguments.add(ControlCommands.token(buffer, i, to));
+            i = CommandParser.skipSpaces(buffer, CommandParser.tokenEnd(buffer, i, to), to);
+        }
+        if (arguments.size() != 1 && arguments.size() != 3) {
+            throw new IllegalArgumentException("wrong number of arguments for " + SELECT_KEYWORD);
+        }
+        int width = 0;
+        int height = 0;
+        if (arguments.size() == 3) {
+            try {
+                width = Integer.parseInt(arguments.get(1));
+                height = Integer.parseInt(arguments.get(2));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid canvas size");
+            }
+            if (width == 0 || height == 0) {
+                throw new IllegalArgumentException("canvas size must be between 1 and " + MAX_SIDE);
+            }
+        }
+        CanvasSession selected = attach(arguments.get(0), width, height);
+        detach(current);
+        return selected;
+    }
+
+    /**
+     * Tells whether a request is a {@code CANVAS} request, without executing it.
+     *
+     * @param buffer the buffer holding the request, in ASCII.
+     * @param from   the absolute index of the first byte of the request.
+     * @param to     the absolute index after the last byte of the request.
+     * @return {@code true} if {@link #select} would execute the request.
+     */
+    public static boolean isSelection(ByteBuffer buffer, int from, int to) {
+        if (to > from && buffer.get(to - 1) == '\r') {
+            to--;
+        }
+        int keywordStart = keywordStart(buffer, from, to);
+        return CommandParser.matches(buffer, keywordStart, CommandParser.tokenEnd(buffer, keywordStart, to),
+                SELECT_KEYWORD);
+    }
+
+    /**
+     * Skips the sender of a request.
+     */
+    private static int keywordStart(ByteBuffer buffer, int from, int to) {
+        return CommandParser.skipSpaces(buffer,
+                CommandParser.tokenEnd(buffer, CommandParser.skipSpaces(buffer, from, to), to), to);
+    }
+
+    /**
+     * Formats the reply to a successful {@code CANVAS} request.
+     *
+     * @param canvas the selected canvas.
+     * @return {@code OK CANVAS <name> <width> <height>} and a newline, in ASCII.
+     */
+    public static byte[] selectionReply(CanvasSession canvas) {
+        RenderSurface surface = canvas.getRenderer().getSurface();
+        return ("OK " + SELECT_KEYWORD + " " + canvas.getName() + " " + surface.getWidth() + " "
+                + surface.getHeight() + "\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Closes the journals of every open canvas, so the last commands are on disk. This is called when the server
+     * shuts down.
+     */
+    public synchronized void closeJournals() {
+        for (CompletableFuture<CanvasSession> future : canvases.values()) {
+            CanvasSession canvas = future.getNow(null);
+            if (canvas != null) {
+                canvas.closeJournal();
+            }
+        }
+    }
+
+    /**
+     * @return the number of open canvases, the default one included, and of canvases being opened.
+     */
+    public synchronized int size() {
+        return canvases.size();
+    }
+
+    /**
+     * Opens a named canvas. Must be called without the lock held, since the journal of the canvas is replayed.
+     */
+    private CanvasSession open(String name, int width, int height) {
+        Path journalDirectory = config.getJournalDirectory() == null
+                ? null
+                : config.getJournalDirectory().resolve(CANVASES_DIRECTORY).resolve(name);
+        try {
+            if (journalDirectory != null) {
+                int[] size = journaledSize(journalDirectory, width, height);
+                width = size[0];
+                height = size[1];
+            } else if (width == 0) {
+                width = config.getWidth();
+                height = config.getHeight();
+            }
+            ServerMetrics metrics = new ServerMetrics(registry);
+            metrics.registerMBean(name);
+            CanvasSession canvas = CanvasSession.open(name, new ImageSurface(width, height), metrics, config,
+                    registry, admission, journalDirectory);
+            ServerLog.info("Canvas " + canvas + " opened (" + size() + " open)");
+            return canvas;
+        } catch (IOException e) {
+            ServerLog.error("Cannot open the canvas " + name, e);
+            throw new IllegalArgumentException("cannot open canvas " + name);
+        }
+    }
+
+    /**
+     * Reads the size of a journaled canvas, or records it the first time the canvas is opened, so a canvas
+     * reopened after an eviction keeps its size.
+     *
+     * @return the width and height of the canvas.
+     */
+    private int[] journaledSize(Path directory, int width, int height) throws IOException {
+        Path file = directory.resolve(SIZE_FILE);
+        Properties properties = new Properties();
+        if (Files.exists(file)) {
+            try (Reader in = Files.newBufferedReader(file)) {
+                properties.load(in);
+            }
+            int savedWidth = Integer.parseInt(properties.getProperty("width"));
+            int savedHeight = Integer.parseInt(properties.getProperty("height"));
+            if (width != 0 && (width != savedWidth || height != savedHeight)) {
+                throw new IllegalArgumentException("canvas " + directory.getFileName() + " " + savedWidth + "x"
+                        + savedHeight + " already exists");
+            }
+            return new int[] {savedWidth, savedHeight};
+        }
+        if (width == 0) {
+            width = config.getWidth();
+            height = config.getHeight();
+        }
+        Files.createDirectories(directory);
+        properties.setProperty("width", String.valueOf(width));
+        properties.setProperty("height", String.valueOf(height));
+        try (Writer out = Files.newBufferedWriter(file)) {
+            properties.store(out, "Canvas size");
+        }
+        return new int[] {width, height};
+    }
+
+    private static boolean hasSize(CanvasSession canvas, int width, int height) {
+        RenderSurface surface = canvas.getRenderer().getSurface();
+        return surface.getWidth() == width && surface.getHeight() == height;
+    }
+
+    /**
+     * Evicts canvases in the background: those idle for too long, and the least recently used idle one while the
+     * heap is nearly full.
+     */
+    private void evictLoop() {
+        long idleNanos = config.getCanvasIdleSeconds() * 1_000_000_000L;
+        while (true) {
+            try {
+                Thread.sleep(1_000);
+                List<CanvasSession> idle = new ArrayList<>();
+                if (idleNanos > 0) {
+                    synchronized (this) {
+                        long now = System.nanoTime();
+                        for (CompletableFuture<CanvasSession> future : canvases.values()) {
+                            CanvasSession canvas = future.getNow(null);
+                            if (canvas != null && canvas != defaultCanvas && canvas.getConnections() == 0
+                                    && now - canvas.getLastUsedNanos() > idleNanos) {
+                                idle.add(canvas);
+                            }
+                        }
+                        for (CanvasSession canvas : idle) {
+                            retire(canvas);
+                        }
+                    }
+                }
+                for (CanvasSession canvas : idle) {
+                    evict(canvas, "idle");
+                }
+                if (memoryLow()) {
+                    CanvasSession oldest;
+                    synchronized (this) {
+                        oldest = retireLeastRecentlyUsed();
+                    }
+                    if (oldest != null) {
+                        evict(oldest, "low memory");
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                ServerLog.error("Cannot evict canvases", e);
+            }
+        }
+    }
+
+    /**
+     * Retires the idle canvas unused for the longest time. Must be called with the lock held.
+     *
+     * @return the canvas to {@linkplain #evict evict}, or {@code null} if every canvas is in use.
+     */
+    private CanvasSession retireLeastRecentlyUsed() {
+        CanvasSession oldest = null;
+        for (CompletableFuture<CanvasSession> future : canvases.values()) {
+            CanvasSession canvas = future.getNow(null);
+            if (canvas != null && canvas != defaultCanvas && canvas.getConnections() == 0
+                    && (oldest == null || canvas.getLastUsedNanos() < oldest.getLastUsedNanos())) {
+                oldest = canvas;
+            }
+        }
+        if (oldest != null) {
+            retire(oldest);
+        }
+        return oldest;
+    }
+
+    /**
+     * Forgets a canvas, which no connection can select any more, and records its eviction as pending. Must be
+     * called with the lock held, and followed by {@link #evict}.
+     */
+    private void retire(CanvasSession canvas) {
+        canvases.remove(canvas.getName());
+        evictions.put(canvas.getName(), new CompletableFuture<>());
+    }
+
+    /**
+     * Stops a canvas {@linkplain #retire retired} from the map. Must be called without the lock held.
+     */
+    private void evict(CanvasSession canvas, String reason) {
+        try {
+            canvas.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            CompletableFuture<Void> eviction;
+            synchronized (this) {
+                eviction = evictions.remove(canvas.getName());
+            }
+            eviction.complete(null);
+        }
+        ServerLog.info("Canvas " + canvas + " evicted (" + reason + ", "
+                + (config.getJournalDirectory() == null ? "dropped" : "saved") + ")");
+    }
+
+    private static boolean memoryLow() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory() > LOW_MEMORY_RATIO * runtime.maxMemory();
+    }
+}
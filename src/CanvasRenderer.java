@@ -0,0 +1,666 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The {@code CanvasRenderer} class is the render stage of the {@link DrawingServer}.
+ * <p>
+ * Drawing surfaces are not thread-safe and flipping a buffer is expensive, while the server receives commands
+ * from many connections at once. Network threads therefore only enqueue parsed commands into a bounded
+ * {@link RenderQueue}. A single render thread drains the queue in batches: every command waiting at the start of
+ * a frame is drawn onto one {@code Graphics} of the {@link RenderSurface}, and the frame is published once.
+ * Frames are limited to {@link ServerConfig#getMaxFps()}, so commands arriving faster than that are coalesced into
+ * the same frame.
+ * When the queue is full, producers wait for the render thread, which slows down the clients instead of
+ * exhausting memory; producers that must not wait use {@link #offerRender(ShapeCommand)} and
+ * {@link #whenQueueHasRoom(Runnable)} instead. With an {@link AdmissionControl}, {@link #tryRender(ShapeCommand)}
+ * and {@link #offerRender(ShapeCommand)} also refuse commands beyond the in-flight budget the renderers of a
+ * server share, so the clients get an error rather than wait.
+ * </p>
+ *
+ * <p>
+ * When enabled with {@link ServerConfig#retainsScene()}, every drawn shape is also added to a {@link Scene}.
+ * When shapes are removed from the scene, the next frame first repaints the affected regions from the scene, then
+ * draws the new commands on top.
+ * </p>
+ *
+ * <p>
+ * When the surface is an {@link ImageSurface} and {@link ServerConfig#getRenderThreads()} is more than one, the
+ * commands of a frame are drawn in place from the queue by a {@link TileRasterizer}, which splits the framebuffer
+ * into tiles and rasterizes them on several cores with the same result as drawing the commands one by one.
+ * </p>
+ *
+ * <p>
+ * Unless disabled with {@link ServerConfig#clipsShapes()}, every command goes through a {@link ShapeClipper} once
+ * it has been filed in the scene and the journal, so shapes outside the canvas are never handed to Java2D. Scene
+ * repaints go through a clipper of their own, so a repainted shape is drawn exactly as it first was. With a
+ * {@link ServerConfig#getPolygonTolerance()}, the clipper also simplifies polygons to the resolution of the canvas.
+ * </p>
+ *
+ * <p>
+ * With a {@link CommandJournal}, see {@link #restore(CommandJournal)}, the canvas is rebuilt from the journal at
+ * startup, and every shape drawn and every shape removed is logged in the order it changed the canvas. Frames and
+ * scene edits hold a common lock, so between two frames the render thread can capture a framebuffer and a scene
+ * that match the journal exactly, and compact it into a snapshot.
+ * </p>
+ *
+ * <p>
+ * The renderer keeps simple counters (frames, shapes, shapes per frame, queue depth and blocked enqueues) that
+ * can be read from any thread, and reports the shapes drawn per type and the time spent drawing and publishing
+ * each frame to the {@link ServerMetrics}.
+ * </p>
+ *
+ * @see DrawingServer
+ * @see RenderQueue
+ * @see Scene
+ * @see CommandJournal
+ */
+public class CanvasRenderer implements Runnable {
+    /**
+     * The outcome of offering a drawing request with {@link #offerRender(ShapeCommand)}.
+     */
+    public enum Offer {
+        /** The request is in the render queue. */
+        QUEUED,
+        /** The request was refused because the in-flight budget of the server is spent. */
+        SHED,
+        /** The render queue is full; the request may be offered again once it has room. */
+        FULL
+    }
+
+    private final RenderSurface surface;
+    private final RenderQueue queue;
+    private final Scene scene;
+    private final ShapeCommand repaintCommand = new ShapeCommand();
+    private final ServerMetrics metrics;
+    private final TileRasterizer rasterizer;
+    private final ShapeCommand[] batch;
+    private final ShapeClipper clipper;
+    private final ShapeClipper repaintClipper;
+    private final double polygonTolerance;
+    private final long frameIntervalNanos;
+    private final LongAdder blockedEnqueues = new LongAdder();
+    private final ReentrantLock stateLock = new ReentrantLock();
+    private final AdmissionControl admission;
+    private CommandJournal journal;
+    private volatile long frames;
+    private volatile long shapes;
+    private volatile int lastFrameShapes;
+    private volatile int maxFrameShapes;
+    /** The in-flight size of the commands of the current frame, taken before clipping changes them. */
+    private long frameBytes;
+
+    /**
+     * Creates a renderer drawing onto the given surface.
+     *
+     * @param surface the surface receiving the frames.
+     * @param config  the server configuration providing the queue capacity, frame rate and render threads.
+     * @param metrics the metrics receiving the render counters and latencies.
+     */
+    public CanvasRenderer(RenderSurface surface, ServerConfig config, ServerMetrics metrics) {
+        this(surface, config, metrics, null);
+    }
+
+    /**
+     * Creates a renderer drawing onto the given surface and taking part in the in-flight budget of a server.
+     *
+     * @param surface   the surface receiving the frames.
+     * @param config    the server configuration providing the queue capacity, frame rate and render threads.
+     * @param metrics   the metrics receiving the render counters and latencies.
+     * @param admission the admission control whose in-flight budget {@link #tryRender(ShapeCommand)} takes from,
+     *                  or {@code null} for none.
+     */
+    public CanvasRenderer(RenderSurface surface, ServerConfig config, ServerMetrics metrics,
+                          AdmissionControl admission) {
+        this.surface = surface;
+        this.metrics = metrics;
+        this.admission = admission;
+        this.queue = new RenderQueue(config.getRenderQueueCapacity());
+        this.frameIntervalNanos = config.getMaxFps() > 0 ? 1_000_000_000L / config.getMaxFps() : 0;
+        this.scene = config.retainsScene() ? new Scene(surface.getWidth(), surface.getHeight(), Color.WHITE) : null;
+        this.polygonTolerance = config.getPolygonTolerance();
+        this.clipper = config.clipsShapes()
+                ? new ShapeClipper(surface.getWidth(), surface.getHeight(), polygonTolerance, metrics) : null;
+        this.repaintClipper = config.clipsShapes()
+                ? new ShapeClipper(surface.getWidth(), surface.getHeight(), polygonTolerance, null) : null;
+        if (surface instanceof ImageSurface && config.getRenderThreads() > 1) {
+            this.rasterizer = new TileRasterizer(surface.getWidth(), surface.getHeight(), config.getTileSize(),
+                    config.getRenderThreads());
+            this.batch = new ShapeCommand[queue.capacity()];
+        } else {
+            this.rasterizer = null;
+            this.batch = null;
+        }
+    }
+
+    /**
+     * Rebuilds the canvas from a journal, then logs every change of the canvas to it. Must be called before
+     * {@link #start()}.
+     *
+     * @param journal the journal of the canvas.
+     * @return the number of journal records replayed, not counting the snapshot.
+     * @throws IOException If the journal cannot be read.
+     */
+    public long restore(CommandJournal journal) throws IOException {
+        long records = journal.open(new JournalReplay());
+        this.journal = journal;
+        return records;
+    }
+
+    /**
+     * Starts the render thread.
+     *
+     * @return the started render thread.
+     */
+    public Thread start() {
+        return start("render");
+    }
+
+    /**
+     * Starts the render thread with a given name.
+     *
+     * @param threadName the name of the render thread.
+     * @return the started render thread.
+     */
+    public Thread start(String threadName) {
+        metrics.attach(this);
+        Thread thread = new Thread(this, threadName);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Enqueues a parsed drawing request for the next frame, waiting while the render queue is full.
+     *
+     * @param command the parsed, valid drawing request; it is copied and can be reused as soon as this returns.
+     * @throws InterruptedException If the calling thread is interrupted while waiting for room in the queue.
+     */
+    public void render(ShapeCommand command) throws InterruptedException {
+        if (queue.put(command)) {
+            blockedEnqueues.increment();
+        }
+    }
+
+    /**
+     * Enqueues a parsed drawing request for the next frame if the in-flight budget of the server allows it,
+     * waiting while the render queue is full.
+     *
+     * @param command the parsed, valid drawing request; it is copied and can be reused as soon as this returns.
+     * @return {@code true} if the command was enqueued, {@code false} if it was refused to shed load.
+     * @throws InterruptedException If the calling thread is interrupted while waiting for room in the queue.
+     */
+    public boolean tryRender(ShapeCommand command) throws InterruptedException {
+        long size = AdmissionControl.sizeOf(command);
+        if (admission != null && !admission.acquireInFlight(size)) {
+            return false;
+        }
+        try {
+            render(command);
+        } catch (InterruptedException e) {
+            if (admission != null) {
+                admission.releaseInFlight(1, size);
+            }
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Enqueues a parsed drawing request for the next frame if the in-flight budget of the server allows it and the
+     * render queue has a free slot, without waiting.
+     *
+     * @param command the parsed, valid drawing request; it is copied if enqueued, and can be reused as soon as
+     *                this returns.
+     * @return {@link Offer#QUEUED} if the command was enqueued, {@link Offer#SHED} if it was refused to shed load,
+     * or {@link Offer#FULL} if the render queue is full; the command may then be offered again once
+     * {@link #whenQueueHasRoom(Runnable)} runs its action.
+     */
+    public Offer offerRender(ShapeCommand command) {
+        long size = AdmissionControl.sizeOf(command);
+        if (admission != null && !admission.acquireInFlight(size)) {
+            return Offer.SHED;
+        }
+        if (queue.offer(command)) {
+            return Offer.QUEUED;
+        }
+        if (admission != null) {
+            admission.releaseInFlight(1, size);
+        }
+        blockedEnqueues.increment();
+        return Offer.FULL;
+    }
+
+    /**
+     * Runs an action once the render thread has freed room in the render queue, after an
+     * {@link #offerRender(ShapeCommand)} found it full.
+     *
+     * @param action the action to run, on the render thread or on the calling thread; it must not block.
+     * @see RenderQueue#whenSpaceAvailable(Runnable)
+     */
+    public void whenQueueHasRoom(Runnable action) {
+        queue.whenSpaceAvailable(action);
+    }
+
+    /**
+     * Creates a clipper treating shapes as the render thread does, for drawing them on another thread.
+     *
+     * @param metrics the metrics counting the shapes the clipper changes, or {@code null} not to count them.
+     * @return a new clipper, or {@code null} if shapes are drawn without clipping.
+     */
+    public ShapeClipper createClipper(ServerMetrics metrics) {
+        return clipper == null ? null
+                : new ShapeClipper(surface.getWidth(), surface.getHeight(), polygonTolerance, metrics);
+    }
+
+    /**
+     * Waits until every command enqueued before this call has been drawn, and every pending repaint done.
+     * <p>
+     * This is used before reading the surface, for example to take a snapshot that includes the commands a client
+     * sent before asking for it.
+     * </p>
+     *
+     * @throws InterruptedException If the calling thread is interrupted while waiting.
+     */
+    public void awaitRendered() throws InterruptedException {
+        long target = queue.enqueuedCount();
+        while (queue.releasedCount() < target || (scene != null && scene.needsRepaint())) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            LockSupport.parkNanos(1_000_000L);
+        }
+    }
+
+    /**
+     * Removes shapes from the scene and asks the render thread to repaint the regions they covered.
+     *
+     * @param ids the identifiers of the shapes.
+     * @return the number of shapes that were in the scene.
+     * @throws IllegalStateException If the scene is not retained.
+     */
+    public int removeShapes(int[] ids) {
+        if (scene == null) {
+            throw new IllegalStateException("the scene is not retained");
+        }
+        int[] removed = new int[ids.length];
+        int count = 0;
+        stateLock.lock();
+        try {
+            for (int id : ids) {
+                if (scene.remove(id)) {
+                    removed[count++] = id;
+                }
+            }
+            if (journal != null && count > 0) {
+                journal.appendRemove(removed, count);
+            }
+        } finally {
+            stateLock.unlock();
+        }
+        requestRepaint();
+        return count;
+    }
+
+    /**
+     * Removes every shape from the scene and asks the render thread to repaint the canvas.
+     *
+     * @throws IllegalStateException If the scene is not retained.
+     */
+    public void clearScene() {
+        if (scene == null) {
+            throw new IllegalStateException("the scene is not retained");
+        }
+        stateLock.lock();
+        try {
+            scene.clear();
+            if (journal != null) {
+                journal.appendClear();
+            }
+        } finally {
+            stateLock.unlock();
+        }
+        requestRepaint();
+    }
+
+    /**
+     * Asks the render thread to repaint the regions marked dirty in the scene, without waiting for a new command.
+     */
+    public void requestRepaint() {
+        queue.wakeConsumer();
+    }
+
+    /**
+     * @return the scene holding every shape drawn so far, or {@code null} if the scene is not retained.
+     */
+    public Scene getScene() {
+        return scene;
+    }
+
+    /**
+     * @return the metrics of the server.
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the surface receiving the frames.
+     */
+    public RenderSurface getSurface() {
+        return surface;
+    }
+
+    /**
+     * Runs the render loop until the render thread is interrupted.
+     */
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            queue.awaitCommand(100_000_000L);
+            if (queue.peek() == null && !needsRepaint()) {
+                continue;
+            }
+            long frameStart = System.nanoTime();
+            frameBytes = 0;
+            int drawn = drawFrame();
+            if (admission != null) {
+                admission.releaseInFlight(drawn, frameBytes);
+            }
+            lastFrameShapes = drawn;
+            maxFrameShapes = Math.max(maxFrameShapes, drawn);
+            shapes += drawn;
+            frames++;
+            if (journal != null && journal.needsCompaction()) {
+                compactJournal();
+            }
+
+            long idle = frameIntervalNanos - (System.nanoTime() - frameStart);
+            if (idle > 0) {
+                LockSupport.parkNanos(idle);
+            }
+        }
+        if (rasterizer != null) {
+            rasterizer.shutdown();
+        }
+    }
+
+    private boolean needsRepaint() {
+        return scene != null && scene.needsRepaint();
+    }
+
+    /**
+     * Captures the framebuffer and the scene and hands them to the journal as a snapshot. Must be called by the
+     * render thread between frames, or before the render thread is started.
+     *
+     * @return {@code true} if the journal was compacted, {@code false} if the canvas cannot be captured now.
+     */
+    boolean compactJournal() {
+        if (!(surface instanceof ImageSurface)) {
+            return false;
+        }
+        stateLock.lock();
+        try {
+            // Pixels with pending repaints do not match the scene; try again after the next frame.
+            if (needsRepaint()) {
+                return false;
+            }
+            journal.compact(((ImageSurface) surface).copyPixels(), surface.getWidth(), surface.getHeight(),
+                    scene == null ? new SceneShape[0] : scene.copyShapes());
+            return true;
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Draws the commands waiting in the queue onto the surface and publishes the frame.
+     *
+     * @return the number of commands drawn.
+     */
+    private int drawFrame() {
+        int drawn = 0;
+        int limit = queue.capacity();
+        long start = System.nanoTime();
+        stateLock.lock();
+        Graphics graphics = surface.beginFrame();
+        try {
+            if (scene != null) {
+                scene.repaintDirty(graphics, repaintCommand, repaintClipper);
+            }
+            if (rasterizer != null) {
+                drawn = drawBatch(limit);
+            } else {
+                ShapeCommand command;
+                while (drawn < limit && (command = queue.peek()) != null) {
+                    frameBytes += AdmissionControl.sizeOf(command);
+                    try {
+                        if (scene != null) {
+                            scene.add(command);
+                        }
+                        if (journal != null) {
+                            journal.append(command);
+                        }
+                        metrics.shapeDrawn(command.getHandler());
+                        if (clipper == null || clipper.clip(command)) {
+                            command.draw(graphics);
+                        }
+                    } catch (RuntimeException e) {
+                        ServerLog.error("Cannot draw " + command, e);
+                    } finally {
+                        queue.release();
+                    }
+                    drawn++;
+                }
+            }
+        } finally {
+            long flipStart = System.nanoTime();
+            metrics.recordRender(flipStart - start);
+            try {
+                surface.endFrame(graphics);
+            } finally {
+                stateLock.unlock();
+            }
+            metrics.recordFlip(System.nanoTime() - flipStart);
+        }
+        return drawn;
+    }
+
+    /**
+     * Draws the commands waiting in the queue in place with the {@link TileRasterizer}, then releases them.
+     *
+     * @param limit the maximum number of commands to draw.
+     * @return the number of commands drawn, culled ones included.
+     */
+    private int drawBatch(int limit) {
+        int taken = 0;
+        int count = 0;
+        ShapeCommand command;
+        while (taken < limit && (command = queue.peek(taken)) != null) {
+            taken++;
+            frameBytes += AdmissionControl.sizeOf(command);
+            if (scene != null) {
+                scene.add(command);
+            }
+            if (journal != null) {
+                journal.append(command);
+            }
+            metrics.shapeDrawn(command.getHandler());
+            if (clipper == null || clipper.clip(command)) {
+                batch[count++] = command;
+            }
+        }
+        try {
+            rasterizer.draw(((ImageSurface) surface).getImage(), batch, count);
+        } finally {
+            queue.release(taken);
+        }
+        return taken;
+    }
+
+    /**
+     * The {@code JournalReplay} class rebuilds the canvas from a {@link CommandJournal} before the render thread
+     * starts. Replayed shapes are drawn in batches like the frames of the render loop, on the calling thread.
+     */
+    private final class JournalReplay implements CommandJournal.Replayer {
+        private final ShapeCommand[] replayed = new ShapeCommand[4096];
+        private int count;
+
+        @Override
+        public void restoreShape(int id, ShapeCommand command) {
+            if (scene != null) {
+                scene.restore(id, command);
+            }
+        }
+
+        @Override
+        public void restoreCanvas(int[] pixels, int width, int height, int nextShapeId) {
+            if (scene != null) {
+                scene.reserveIds(nextShapeId);
+            }
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            image.setRGB(0, 0, width, height, pixels, 0, width);
+            Graphics2D graphics = (Graphics2D) surface.beginFrame();
+            try {
+                graphics.setComposite(AlphaComposite.Src);
+                graphics.drawImage(image, 0, 0, null);
+            } finally {
+                surface.endFrame(graphics);
+            }
+        }
+
+        @Override
+        public void shape(ShapeCommand command) {
+            if (replayed[count] == null) {
+                replayed[count] = new ShapeCommand();
+            }
+            replayed[count++].copyFrom(command);
+            if (count == replayed.length) {
+                flush();
+            }
+        }
+
+        @Override
+        public void remove(int[] ids, int idCount) {
+            // The removed shapes must be in the scene; the repaint waits for the next flush.
+            flush();
+            if (scene != null) {
+                for (int i = 0; i < idCount; i++) {
+                    scene.remove(ids[i]);
+                }
+            }
+        }
+
+        @Override
+        public void clear() {
+            flush();
+            if (scene != null) {
+                scene.clear();
+            }
+        }
+
+        @Override
+        public void finish() {
+            flush();
+        }
+
+        private void flush() {
+            if (count == 0 && !needsRepaint()) {
+                return;
+            }
+            Graphics graphics = surface.beginFrame();
+            try {
+                if (scene != null) {
+                    scene.repaintDirty(graphics, repaintCommand, repaintClipper);
+                    for (int i = 0; i < count; i++) {
+                        scene.add(replayed[i]);
+                    }
+                }
+                int drawn = count;
+                if (repaintClipper != null) {
+                    drawn = 0;
+                    for (int i = 0; i < count; i++) {
+                        if (repaintClipper.clip(replayed[i])) {
+                            ShapeCommand kept = replayed[i];
+                            replayed[i] = replayed[drawn];
+                            replayed[drawn++] = kept;
+                        }
+                    }
+                }
+                if (rasterizer != null) {
+                    rasterizer.draw(((ImageSurface) surface).getImage(), replayed, drawn);
+                } else {
+                    for (int i = 0; i < drawn; i++) {
+                        replayed[i].draw(graphics);
+                    }
+                }
+            } finally {
+                surface.endFrame(graphics);
+            }
+            for (int i = 0; i < count; i++) {
+                replayed[i].trim();
+            }
+            count = 0;
+        }
+    }
+
+    /**
+     * @return the number of frames shown.
+     */
+    public long getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * @return the number of shapes drawn.
+     */
+    public long getShapeCount() {
+        return shapes;
+    }
+
+    /**
+     * @return the number of shapes drawn in the last frame.
+     */
+    public int getLastFrameShapes() {
+        return lastFrameShapes;
+    }
+
+    /**
+     * @return the largest number of shapes drawn in a single frame.
+     */
+    public int getMaxFrameShapes() {
+        return maxFrameShapes;
+    }
+
+    /**
+     * @return the average number of shapes drawn per frame.
+     */
+    public double getAverageFrameShapes() {
+        long frameCount = frames;
+        return frameCount == 0 ? 0 : (double) shapes / frameCount;
+    }
+
+    /**
+     * @return the approximate number of commands waiting to be drawn.
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of enqueues that found the render queue full, and either waited or were offered again
+     * later.
+     */
+    public long getBlockedEnqueues() {
+        return blockedEnqueues.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("frames=%d shapes=%d shapes/frame=%.1f (last %d, max %d) queue=%d blocked=%d",
+                getFrameCount(), getShapeCount(), getAverageFrameShapes(), getLastFrameShapes(),
+                getMaxFrameShapes(), getQueueDepth(), getBlockedEnqueues());
+    }
+}
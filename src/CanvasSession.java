@@ -0,0 +1,172 @@
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * The {@code CanvasSession} class is one named canvas of the {@link DrawingServer}, with everything needed to draw
+ * on it independently of the other canvases.
+ * <p>
+ * A canvas has its own framebuffer, its own {@link CanvasRenderer} with its render queue, render thread and
+ * {@link Scene}, its own {@link ControlCommands}, so {@code SNAPSHOT}, {@code HIT} or {@code CLEAR} only apply to
+ * it, its own {@link ServerMetrics}, and, when journaling is enabled, its own {@link CommandJournal}. Clients
+ * drawing on different canvases therefore never wait for each other's render thread. Each canvas also has its own
+ * {@link CanvasStreamer}, which streams it to the connections viewing it.
+ * </p>
+ *
+ * <p>
+ * Sessions are opened, shared between connections and closed by the {@link CanvasManager}, which also keeps
+ * track of the connections using each of them.
+ * </p>
+ *
+ * @see CanvasManager
+ */
+public class CanvasSession {
+    private final String name;
+    private final CanvasRenderer renderer;
+    private final ControlCommands controlCommands;
+    private final CommandJournal journal;
+    private final CanvasStreamer streamer;
+    private final Thread renderThread;
+    private int connections;
+    private long lastUsedNanos = System.nanoTime();
+
+    private CanvasSession(String name, CanvasRenderer renderer, ControlCommands controlCommands,
+                          CommandJournal journal, CanvasStreamer streamer, Thread renderThread) {
+        this.name = name;
+        this.renderer = renderer;
+        this.controlCommands = controlCommands;
+        this.journal = journal;
+        this.streamer = streamer;
+        this.renderThread = renderThread;
+    }
+
+    /**
+     * Opens a canvas: rebuilds it from its journal if there is one, then starts its render thread.
+     *
+     * @param name             the name of the canvas.
+     * @param surface          the surface of the canvas.
+     * @param metrics          the metrics of the canvas, registered by the caller if needed.
+     * @param config           the server configuration.
+     * @param registry         the registry of shape handlers.
+     * @param admission        the admission control of the server.
+     * @param journalDirectory the directory of the journal of the canvas, or {@code null} for none.
+     * @return the open canvas.
+     * @throws IOException If the journal cannot be read.
+     */
+    static CanvasSession open(String name, RenderSurface surface, ServerMetrics metrics, ServerConfig config,
+                              ShapeRegistry registry, AdmissionControl admission, Path journalDirectory)
+            throws IOException {
+        CanvasRenderer renderer = new CanvasRenderer(surface, config, metrics, admission);
+        CommandJournal journal = null;
+        if (journalDirectory != null) {
+            journal = new CommandJournal(journalDirectory, registry, config.getJournalSyncMillis(),
+                    config.getJournalCompactBytes());
+            long start = System.nanoTime();
+            long records = renderer.restore(journal);
+            ServerLog.info("Canvas " + name + " restored from " + journalDirectory + " (" + records
+                    + " journal records) in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        }
+        Thread renderThread = renderer.start(CanvasManager.DEFAULT_CANVAS.equals(name) ? "render" : "render-" + name);
+        return new CanvasSession(name, renderer, ControlCommands.createDefault(renderer, config), journal,
+                new CanvasStreamer(name, renderer, config), renderThread);
+    }
+
+    /**
+     * Stops the canvas once its connections are gone: stops its streamer, draws the commands still queued, stops
+     * the render thread, and folds the journal into a snapshot so the canvas reopens quickly.
+     *
+     * @throws InterruptedException If the calling thread is interrupted while waiting for the render thread.
+     */
+    void close() throws InterruptedException {
+        streamer.close();
+        renderer.awaitRendered();
+        renderThread.interrupt();
+        renderThread.join();
+        if (journal != null) {
+            renderer.compactJournal();
+            journal.close();
+        }
+        renderer.getMetrics().unregisterMBean();
+    }
+
+    /**
+     * Closes the journal of the canvas, if any, without stopping anything else. This is used when the server
+     * shuts down.
+     */
+    void closeJournal() {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    /**
+     * Counts a connection starting to use the canvas. Must be called with the lock of the manager held.
+     */
+    void connectionAttached() {
+        connections++;
+        lastUsedNanos = System.nanoTime();
+    }
+
+    /**
+     * Counts a connection no longer using the canvas. Must be called with the lock of the manager held.
+     */
+    void connectionDetached() {
+        connections--;
+        lastUsedNanos = System.nanoTime();
+    }
+
+    /**
+     * @return the number of connections using the canvas. Must be called with the lock of the manager held.
+     */
+    int getConnections() {
+        return connections;
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} at which a connection last started or stopped using the canvas. Must
+     * be called with the lock of the manager held.
+     */
+    long getLastUsedNanos() {
+        return lastUsedNanos;
+    }
+
+    /**
+     * @return the name of the canvas.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the renderer of the canvas.
+     */
+    public CanvasRenderer getRenderer() {
+        return renderer;
+    }
+
+    /**
+     * @return the control commands applying to the canvas.
+     */
+    public ControlCommands getControlCommands() {
+        return controlCommands;
+    }
+
+    /**
+     * @return the streamer sending the canvas to its viewers.
+     */
+    public CanvasStreamer getStreamer() {
+        return streamer;
+    }
+
+    /**
+     * @return the metrics of the canvas.
+     */
+    public ServerMetrics getMetrics() {
+        return renderer.getMetrics();
+    }
+
+    @Override
+    public String toString() {
+        RenderSurface surface = renderer.getSurface();
+        return name + " " + surface.getWidth() + "x" + surface.getHeight();
+    }
+}
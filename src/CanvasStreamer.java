@@ -0,0 +1,412 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * The {@code CanvasStreamer} class streams the content of a canvas to viewer connections.
+ * <p>
+ * A client turns its connection into a viewer with {@code <sender> VIEW [fps]}, which applies to the canvas the
+ * connection is on. The server replies {@code OK VIEW <width> <height> <tileSize>}, then sends frames until the
+ * client disconnects; anything else the client sends is ignored. Each frame is a
+ * {@code FRAME <version> <tiles> <length>} header line followed by {@code <length>} bytes holding {@code <tiles>}
+ * tile records. The first frame covers the whole canvas, the next ones only the tiles that changed since the
+ * previous frame of the viewer. When nothing changes for a second, an empty frame {@code FRAME <version> 0 0} is
+ * sent, so a viewer that went away is noticed.
+ * </p>
+ *
+ * <p>
+ * A tile record is big-endian: the {@code x}, {@code y}, {@code width} and {@code height} of the tile in pixels as
+ * unsigned 16-bit integers, an encoding byte and the 32-bit length of the data that follows, which is either
+ * <ul>
+ *   <li>{@value #RAW}: the ARGB pixels of the tile in row-major order, four bytes each;</li>
+ *   <li>{@value #RLE}: runs of identical pixels in the same order, each an unsigned 16-bit count and the ARGB
+ *   pixel;</li>
+ *   <li>{@value #DEFLATE}: the run-length encoding compressed by a {@link Deflater}, in the zlib format.</li>
+ * </ul>
+ * Each tile is sent with the smallest of these encodings, deflate only being tried if
+ * {@link ServerConfig#deflatesViewerTiles()}.
+ * </p>
+ *
+ * <p>
+ * While the canvas has viewers, a streamer thread captures its framebuffer at most
+ * {@link ServerConfig#getViewerFps()} times per second, and only once the render thread has published a new frame.
+ * It holds the frame lock of the {@link ImageSurface} just long enough to copy the pixels, compares the copy with
+ * the previous one tile by tile, and encodes each changed tile once, whatever the number of viewers. Every capture
+ * with changes gets a new version, and every tile remembers the version in which it last changed. Viewers send
+ * from their own connection thread: each takes the tiles changed since the version it last sent, at most at the
+ * frame rate it asked for. A slow viewer therefore never holds up the streamer or the render thread; it skips the
+ * versions captured while it was writing, and its next frame carries every tile they changed.
+ * </p>
+ *
+ * @see ServerConfig#getMaxViewers()
+ * @see ViewerLoadGenerator
+ */
+public class CanvasStreamer implements Runnable {
+    /** The largest side of a tile, so that the runs of a tile fit in an unsigned 16-bit count. */
+    public static final int MAX_TILE_SIZE = 256;
+    /** The encoding of a tile sent as raw pixels. */
+    public static final int RAW = 0;
+    /** The encoding of a tile sent as runs of identical pixels. */
+    public static final int RLE = 1;
+    /** The encoding of a tile sent as deflated runs. */
+    public static final int DEFLATE = 2;
+    /** The length of the header of a tile record, before its data. */
+    public static final int TILE_HEADER_LENGTH = 13;
+
+    private static final String VIEW_KEYWORD = "VIEW";
+    private static final long HEARTBEAT_NANOS = 1_000_000_000L;
+    private static final int MAX_RUN = 0xFFFF;
+
+    private final String name;
+    private final CanvasRenderer renderer;
+    private final ImageSurface surface;
+    private final ServerMetrics metrics;
+    private final int maxFps;
+    private final int maxViewers;
+    private final int tileSize;
+    private final int columns;
+    private final boolean deflate;
+    private final byte[][] tiles;
+    private final long[] tileVersions;
+    private long version;
+    private int viewers;
+    private boolean closed;
+    private Thread thread;
+
+    // Owned by the streamer thread.
+    private int[] current;
+    private int[] previous;
+    private long capturedFrames = -1;
+    private int[] changedTiles;
+    private byte[][] changedRecords;
+    private ByteBuffer runs;
+    private byte[] deflated;
+    private Deflater deflater;
+
+    /**
+     * Creates the streamer of a canvas. Its thread is only started with the first viewer.
+     *
+     * @param name     the name of the canvas.
+     * @param renderer the renderer of the canvas.
+     * @param config   the server configuration providing the frame rate, tile size and viewer limit.
+     */
+    public CanvasStreamer(String name, CanvasRenderer renderer, ServerConfig config) {
+        this.name = name;
+        this.renderer = renderer;
+        this.surface = renderer.getSurface() instanceof ImageSurface image ? image : null;
+        this.metrics = renderer.getMetrics();
+        this.maxFps = config.getViewerFps();
+        this.maxViewers = config.getMaxViewers();
+        this.tileSize = config.getViewerTileSize();
+        this.deflate = config.deflatesViewerTiles();
+        RenderSurface target = renderer.getSurface();
+        this.columns = (target.getWidth() + tileSize - 1) / tileSize;
+        int rows = (target.getHeight() + tileSize - 1) / tileSize;
+        this.tiles = new byte[columns * rows][];
+        this.tileVersions = new long[columns * rows];
+    }
+
+    /**
+     * Reads a {@code VIEW} request.
+     *
+     * @param buffer the buffer holding the request, in ASCII.
+     * @param from   the absolute index of the first byte of the request.
+     * @param to     the absolute index after the last byte of the request.
+     * @return the frame rate asked for, {@code 0} if the request leaves it to the server, or {@code -1} if the
+     * request is not a {@code VIEW} request.
+     * @throws IllegalArgumentException If the frame rate is invalid; the message is sent back as an error.
+     */
+    public static int viewRequest(ByteBuffer buffer, int from, int to) {
+        if (to > from && buffer.get(to - 1) == '\r') {
+            to--;
+        }
+        int keywordStart = CommandParser.skipSpaces(buffer,
+                CommandParser.tokenEnd(buffer, CommandParser.skipSpaces(buffer, from, to), to), to);
+        int keywordEnd = CommandParser.tokenEnd(buffer, keywordStart, to);
+        if (!CommandParser.matches(buffer, keywordStart, keywordEnd, VIEW_KEYWORD)) {
+            return -1;
+        }
+        String fps = ControlCommands.token(buffer, CommandParser.skipSpaces(buffer, keywordEnd, to), to);
+        if (fps == null) {
+            return 0;
+        }
+        try {
+            int value = Integer.parseInt(fps);
+            if (value >= 1) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below.
+        }
+        throw new IllegalArgumentException("frame rate must be a positive integer");
+    }
+
+    /**
+     * Streams the canvas to a viewer on the calling thread, until the viewer disconnects or the canvas is closed.
+     *
+     * @param out the stream to the viewer; it is flushed after every frame and not closed.
+     * @param fps the largest frame rate the viewer wants, or {@code 0} for the rate of the server.
+     * @throws IllegalArgumentException If the canvas cannot be viewed, before anything is written.
+     * @throws InterruptedException If the calling thread is interrupted.
+     */
+    public void view(OutputStream out, int fps) throws InterruptedException {
+        if (surface == null) {
+            throw new IllegalArgumentException("viewers require a framebuffer");
+        }
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalArgumentException("canvas closed");
+            }
+            if (viewers >= maxViewers) {
+                throw new IllegalArgumentException("too many viewers");
+            }
+            viewers++;
+            if (thread == null) {
+                thread = new Thread(this, CanvasManager.DEFAULT_CANVAS.equals(name) ? "stream" : "stream-" + name);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            notifyAll();
+        }
+        metrics.viewerConnected();
+        try {
+            stream(out, fps == 0 ? maxFps : Math.min(fps, maxFps));
+        } catch (IOException e) {
+            ServerLog.debug("Viewer of " + name + " gone: " + e.getMessage());
+        } finally {
+            synchronized (this) {
+                viewers--;
+            }
+            metrics.viewerDisconnected();
+        }
+    }
+
+    /**
+     * Sends the frames of the canvas to a viewer.
+     */
+    private void stream(OutputStream out, int fps) throws IOException, InterruptedException {
+        out.write(("OK " + VIEW_KEYWORD + " " + surface.getWidth() + " " + surface.getHeight() + " " + tileSize
+                + "\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        long intervalNanos = 1_000_000_000L / fps;
+        long nextFrame = System.nanoTime();
+        long sent = 0;
+        List<byte[]> frame = new ArrayList<>();
+        while (true) {
+            long delay = nextFrame - System.nanoTime();
+            if (delay > 0) {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            }
+            long frameVersion;
+            int length = 0;
+            synchronized (this) {
+                long deadline = System.nanoTime() + HEARTBEAT_NANOS;
+                long remaining;
+                while (!closed && version <= sent && (remaining = deadline - System.nanoTime()) > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+                if (closed) {
+                    return;
+                }
+                frameVersion = version;
+                if (frameVersion > sent) {
+                    for (int i = 0; i < tiles.length; i++) {
+                        if (tileVersions[i] > sent) {
+                            frame.add(tiles[i]);
+                            length += tiles[i].length;
+                        }
+                    }
+                }
+            }
+            byte[] header = ("FRAME " + frameVersion + " " + frame.size() + " " + length + "\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+            out.write(header);
+            for (byte[] tile : frame) {
+                out.write(tile);
+            }
+            out.flush();
+            metrics.viewerFrameSent(header.length + length,
+                    sent == 0 || frameVersion == sent ? 0 : frameVersion - sent - 1);
+            frame.clear();
+            sent = frameVersion;
+            nextFrame = Math.max(nextFrame + intervalNanos, System.nanoTime());
+        }
+    }
+
+    /**
+     * Captures and encodes the canvas while it has viewers, until the streamer is closed.
+     */
+    @Override
+    public void run() {
+        long intervalNanos = 1_000_000_000L / maxFps;
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (!closed && viewers == 0) {
+                        wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                }
+                long start = System.nanoTime();
+                try {
+                    capture();
+                } catch (RuntimeException e) {
+                    ServerLog.error("Cannot capture the canvas " + name, e);
+                }
+                long idle = intervalNanos - (System.nanoTime() - start);
+                if (idle > 0) {
+                    TimeUnit.NANOSECONDS.sleep(idle);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closed.
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Stops the streamer thread and ends the streams of the viewers.
+     */
+    public void close() {
+        Thread running;
+        synchronized (this) {
+            closed = true;
+            running = thread;
+            notifyAll();
+        }
+        if (running != null) {
+            running.interrupt();
+        }
+    }
+
+    /**
+     * Copies the framebuffer if the render thread published a frame since the last capture, and encodes the tiles
+     * that changed under a new version.
+     */
+    private void capture() {
+        long frames = renderer.getFrameCount();
+        if (frames == capturedFrames) {
+            return;
+        }
+        capturedFrames = frames;
+        long start = System.nanoTime();
+        int width = surface.getWidth();
+        int height = surface.getHeight();
+        if (current == null) {
+            current = new int[width * height];
+            previous = new int[width * height];
+            changedTiles = new int[tiles.length];
+            changedRecords = new byte[tiles.length][];
+            runs = ByteBuffer.allocate(tileSize * tileSize * 6);
+            deflated = new byte[runs.capacity()];
+            deflater = deflate ? new Deflater(Deflater.BEST_SPEED) : null;
+        }
+        surface.copyPixels(current);
+        int changed = 0;
+        for (int tile = 0; tile < tiles.length; tile++) {
+            int x = tile % columns * tileSize;
+            int y = tile / columns * tileSize;
+            int w = Math.min(tileSize, width - x);
+            int h = Math.min(tileSize, height - y);
+            if (tiles[tile] == null || !unchanged(x, y, w, h, width)) {
+                changedTiles[changed] = tile;
+                changedRecords[changed++] = encode(x, y, w, h, width);
+            }
+        }
+        int[] swap = previous;
+        previous = current;
+        current = swap;
+        if (changed > 0) {
+            synchronized (this) {
+                version++;
+                for (int i = 0; i < changed; i++) {
+                    tiles[changedTiles[i]] = changedRecords[i];
+                    tileVersions[changedTiles[i]] = version;
+                    changedRecords[i] = null;
+                }
+                notifyAll();
+            }
+        }
+        metrics.recordStream(changed, System.nanoTime() - start);
+    }
+
+    /**
+     * Compares a tile of the new capture with the previous capture.
+     */
+    private boolean unchanged(int x, int y, int w, int h, int width) {
+        for (int row = y; row < y + h; row++) {
+            int offset = row * width + x;
+            if (!Arrays.equals(current, offset, offset + w, previous, offset, offset + w)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Encodes a tile of the new capture into a tile record, with the smallest encoding.
+     */
+    private byte[] encode(int x, int y, int w, int h, int width) {
+        runs.clear();
+        int run = 0;
+        int pixel = 0;
+        for (int row = y; row < y + h; row++) {
+            int offset = row * width + x;
+            for (int i = offset; i < offset + w; i++) {
+                int value = current[i];
+                if (run > 0 && (value != pixel || run == MAX_RUN)) {
+                    runs.putShort((short) run).putInt(pixel);
+                    run = 0;
+                }
+                pixel = value;
+                run++;
+            }
+        }
+        runs.putShort((short) run).putInt(pixel);
+        int runLength = runs.position();
+
+        int deflatedLength = Integer.MAX_VALUE;
+        if (deflater != null) {
+            deflater.reset();
+            deflater.setInput(runs.array(), 0, runLength);
+            deflater.finish();
+            int length = deflater.deflate(deflated);
+            // A stream that does not fit is larger than the runs anyway.
+            if (deflater.finished()) {
+                deflatedLength = length;
+            }
+        }
+        int rawLength = w * h * 4;
+
+        ByteBuffer record;
+        if (rawLength <= runLength && rawLength <= deflatedLength) {
+            record = header(x, y, w, h, RAW, rawLength);
+            for (int row = y; row < y + h; row++) {
+                record.asIntBuffer().put(current, row * width + x, w);
+                record.position(record.position() + w * 4);
+            }
+        } else if (runLength <= deflatedLength) {
+            record = header(x, y, w, h, RLE, runLength).put(runs.array(), 0, runLength);
+        } else {
+            record = header(x, y, w, h, DEFLATE, deflatedLength).put(deflated, 0, deflatedLength);
+        }
+        return record.array();
+    }
+
+    private static ByteBuffer header(int x, int y, int w, int h, int encoding, int length) {
+        return ByteBuffer.allocate(TILE_HEADER_LENGTH + length)
+                .putShort((short) x).putShort((short) y).putShort((short) w).putShort((short) h)
+                .put((byte) encoding).putInt(length);
+    }
+}
@@ -34,7 +34,8 @@ public class CircleHandler extends ShapeHandler {
     /**
      * Processes the drawing request for a circle.
      * <p>
-     * This method delegates the drawing operation to the {@link #drawCircle(String[], Graphics)} method.
+     * This method parses the tokens into a {@link ShapeCommand} and delegates the drawing operation to the
+     * {@link #drawCircle(ShapeCommand, Graphics)} method.
      * </p>
      *
      * @param tokens   an array of strings representing the drawing request details.
@@ -44,34 +45,102 @@ public class CircleHandler extends ShapeHandler {
      */
     @Override
     protected void process(String[] tokens, Graphics graphics) {
-        drawCircle(tokens, graphics);
+        drawCircle(ShapeCommand.fromTokens(tokens, this), graphics);
     }
 
     /**
-     * Draws a circle using the specified tokens and {@code Graphics} context.
+     * Determines whether a circle request may carry the given number of coordinates.
      * <p>
-     * This method parses the center coordinates, radius, and color from the tokens array.
-     * It then retrieves the corresponding {@code Color} object via {@link DrawingServer#getColor(String)}
-     * and draws the circle using {@code Graphics.drawOval}.
+     * A circle needs at least three coordinates: the center and the radius.
      * </p>
      *
-     * @param tokens   an array of strings containing the drawing parameters. The expected tokens are:
+     * @param count the number of integer coordinates in the request.
+     * @return {@code true} if there are at least three coordinates.
+     */
+    @Override
+    protected boolean acceptsCoordinates(int count) {
+        return count >= 3;
+    }
+
+    /**
+     * Computes the bounding box of a circle from its center and radius.
+     *
+     * @param coordinates the coordinates of the circle: center x, center y and radius.
+     * @param count       the number of coordinates.
+     * @param bounds      receives the bounding box as {@code minX, minY, maxX, maxY}.
+     */
+    @Override
+    protected void computeBounds(int[] coordinates, int count, int[] bounds) {
+        long radius = Math.abs((long) coordinates[2]);
+        bounds[0] = (int) Math.max(Integer.MIN_VALUE, coordinates[0] - radius);
+        bounds[1] = (int) Math.max(Integer.MIN_VALUE, coordinates[1] - radius);
+        bounds[2] = (int) Math.min(Integer.MAX_VALUE, coordinates[0] + radius);
+        bounds[3] = (int) Math.min(Integer.MAX_VALUE, coordinates[1] + radius);
+    }
+
+    /**
+     * Circles are drawn as flattened curves, which Java2D subdivides differently where they cross a clip.
+     *
+     * @param command the command to draw.
+     * @return {@code false}.
+     */
+    @Override
+    protected boolean isClipInvariant(ShapeCommand command) {
+        return false;
+    }
+
+    /**
+     * Culls a circle that misses the canvas, or whose outline surrounds it, and collapses a circle of radius
+     * zero to a point.
+     *
+     * @param command the command to prepare.
+     * @param clipper the clipper of the canvas.
+     * @return the outcome of the preparation.
+     */
+    @Override
+    protected ShapeClipper.Result clip(ShapeCommand command, ShapeClipper clipper) {
+        return clipper.cullCircle(command);
+    }
+
+    /**
+     * Draws a parsed circle request.
+     * <p>
+     * This method delegates the drawing operation to the {@link #drawCircle(ShapeCommand, Graphics)} method.
+     * </p>
+     *
+     * @param command  the parsed request.
+     * @param graphics the {@code Graphics} context used for drawing.
+     */
+    @Override
+    protected void draw(ShapeCommand command, Graphics graphics) {
+        drawCircle(command, graphics);
+    }
+
+    /**
+     * Draws a circle using the specified command and {@code Graphics} context.
+     * <p>
+     * This method reads the center coordinates and radius from the command, sets the command's color and outline
+     * width and draws the circle using {@code Graphics.drawOval}, or {@code Graphics.fillOval} if it is filled.
+     * </p>
+     *
+     * @param command  the parsed request. The expected coordinates are:
      *                 <ul>
-     *                   <li>tokens[2] - the x-coordinate of the circle's center</li>
-     *                   <li>tokens[3] - the y-coordinate of the circle's center</li>
-     *                   <li>tokens[4] - the radius of the circle</li>
-     *                   <li>the last token - the color name of the circle</li>
+     *                   <li>coordinate 0 - the x-coordinate of the circle's center</li>
+     *                   <li>coordinate 1 - the y-coordinate of the circle's center</li>
+     *                   <li>coordinate 2 - the radius of the circle</li>
      *                 </ul>
      * @param graphics the {@code Graphics} object used to render the circle.
      */
-    private void drawCircle(String[] tokens, Graphics graphics) {
-        System.out.println("Drawing Circle...");
-        int cx = Integer.parseInt(tokens[2]);
-        int cy = Integer.parseInt(tokens[3]);
-        int radius = Integer.parseInt(tokens[4]);
-        String colorName = tokens[tokens.length - 1].trim().toLowerCase();
-        Color color = DrawingServer.getColor(colorName);
-        graphics.setColor(color);
-        graphics.drawOval(cx - radius, cy - radius, radius * 2, radius * 2);
+    private void drawCircle(ShapeCommand command, Graphics graphics) {
+        ServerLog.debug("Drawing Circle...");
+        int cx = command.getCoordinate(0);
+        int cy = command.getCoordinate(1);
+        int radius = command.getCoordinate(2);
+        applyStyle(command, graphics);
+        if (command.isFilled()) {
+            graphics.fillOval(cx - radius, cy - radius, radius * 2, radius * 2);
+        } else {
+            graphics.drawOval(cx - radius, cy - radius, radius * 2, radius * 2);
+        }
     }
 }
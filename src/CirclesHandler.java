@@ -0,0 +1,147 @@
+import java.awt.*;
+
+/**
+ * The {@code CirclesHandler} class handles bulk drawing requests for many circles of one color.
+ * <p>
+ * This class extends {@link ShapeHandler} as part of the Chain of Responsibility pattern. A request identified by
+ * the token "CIRCLES" carries a packed array of {@code x y radius} triples followed by a single color and style,
+ * for example {@code x CIRCLES 10 10 3 20 15 3 30 12 4 red fill}. The triples stay in the primitive coordinate
+ * array of the {@link ShapeCommand}, and are drawn in one tight loop after setting the color and stroke once.
+ * Circles lying entirely outside the clip of the {@code Graphics} are skipped without calling Java2D, which
+ * matters when the {@link TileRasterizer} draws the same request once per tile.
+ * </p>
+ *
+ * <p>
+ * The circles of a request are one shape for the {@link Scene}: they share a single identifier and a bounding
+ * box enclosing all of them.
+ * </p>
+ *
+ * @see CircleHandler
+ * @see SegmentsHandler
+ */
+public class CirclesHandler extends ShapeHandler {
+
+    /**
+     * Determines whether this handler can process the drawing request based on the shape type.
+     * <p>
+     * This implementation returns {@code true} if the provided {@code shapeType} equals "CIRCLES"
+     * (ignoring case).
+     * </p>
+     *
+     * @param shapeType the type of the shape to be drawn.
+     * @return {@code true} if the shape type is "CIRCLES", {@code false} otherwise.
+     */
+    @Override
+    protected boolean canHandle(String shapeType) {
+        return "CIRCLES".equalsIgnoreCase(shapeType);
+    }
+
+    /**
+     * Processes the drawing request for a batch of circles.
+     *
+     * @param tokens   an array of strings representing the drawing request details: the shape type at index 1,
+     *                 then the {@code x y radius} triples, and the color in the last token.
+     * @param graphics the {@code Graphics} context used for drawing.
+     */
+    @Override
+    protected void process(String[] tokens, Graphics graphics) {
+        drawCircles(ShapeCommand.fromTokens(tokens, this), graphics);
+    }
+
+    /**
+     * Determines whether a bulk circle request may carry the given number of coordinates.
+     *
+     * @param count the number of integer coordinates in the request.
+     * @return {@code true} if the coordinates form at least one complete {@code x y radius} triple.
+     */
+    @Override
+    protected boolean acceptsCoordinates(int count) {
+        return count > 0 && count % 3 == 0;
+    }
+
+    /**
+     * Computes the bounding box enclosing every circle of the request.
+     *
+     * @param coordinates the {@code x y radius} triples.
+     * @param count       the number of coordinates.
+     * @param bounds      receives the bounding box as {@code minX, minY, maxX, maxY}.
+     */
+    @Override
+    protected void computeBounds(int[] coordinates, int count, int[] bounds) {
+        long minX = Long.MAX_VALUE;
+        long minY = Long.MAX_VALUE;
+        long maxX = Long.MIN_VALUE;
+        long maxY = Long.MIN_VALUE;
+        for (int i = 0; i + 2 < count; i += 3) {
+            long radius = Math.abs((long) coordinates[i + 2]);
+            minX = Math.min(minX, coordinates[i] - radius);
+            maxX = Math.max(maxX, coordinates[i] + radius);
+            minY = Math.min(minY, coordinates[i + 1] - radius);
+            maxY = Math.max(maxY, coordinates[i + 1] + radius);
+        }
+        bounds[0] = (int) Math.max(Integer.MIN_VALUE, minX);
+        bounds[1] = (int) Math.max(Integer.MIN_VALUE, minY);
+        bounds[2] = (int) Math.min(Integer.MAX_VALUE, maxX);
+        bounds[3] = (int) Math.min(Integer.MAX_VALUE, maxY);
+    }
+
+    /**
+     * Circles are drawn as flattened curves, which Java2D subdivides differently where they cross a clip.
+     *
+     * @param command the command to draw.
+     * @return {@code false}.
+     */
+    @Override
+    protected boolean isClipInvariant(ShapeCommand command) {
+        return false;
+    }
+
+    /**
+     * Draws a parsed bulk circle request.
+     *
+     * @param command  the parsed request.
+     * @param graphics the {@code Graphics} context used for drawing.
+     */
+    @Override
+    protected void draw(ShapeCommand command, Graphics graphics) {
+        drawCircles(command, graphics);
+    }
+
+    /**
+     * Draws every circle of a command with {@code Graphics.drawOval}, or {@code Graphics.fillOval} if it is
+     * filled, exactly as the same circles sent one by one to the {@link CircleHandler}.
+     *
+     * @param command  the parsed request, holding {@code x y radius} triples.
+     * @param graphics the {@code Graphics} object used to render the circles.
+     */
+    private void drawCircles(ShapeCommand command, Graphics graphics) {
+        if (ServerLog.isEnabled(ServerLog.Level.DEBUG)) {
+            ServerLog.debug("Drawing " + command.getCoordinateCount() / 3 + " circles...");
+        }
+        applyStyle(command, graphics);
+        int[] coordinates = command.getCoordinates();
+        int count = command.getCoordinateCount();
+        boolean filled = command.isFilled();
+        Rectangle clip = graphics.getClipBounds();
+        // Reach of the outline beyond the radius, so culling never drops a visible pixel.
+        int margin = command.getStrokeWidth() / 2 + 1;
+        long clipX0 = clip == null ? Long.MIN_VALUE : clip.x - margin;
+        long clipY0 = clip == null ? Long.MIN_VALUE : clip.y - margin;
+        long clipX1 = clip == null ? Long.MAX_VALUE : (long) clip.x + clip.width + margin;
+        long clipY1 = clip == null ? Long.MAX_VALUE : (long) clip.y + clip.height + margin;
+        for (int i = 0; i < count; i += 3) {
+            int cx = coordinates[i];
+            int cy = coordinates[i + 1];
+            int radius = coordinates[i + 2];
+            long reach = Math.abs((long) radius);
+            if (cx + reach < clipX0 || cx - reach > clipX1 || cy + reach < clipY0 || cy - reach > clipY1) {
+                continue;
+            }
+            if (filled) {
+                graphics.fillOval(cx - radius, cy - radius, radius * 2, radius * 2);
+            } else {
+                graphics.drawOval(cx - radius, cy - radius, radius * 2, radius * 2);
+            }
+        }
+    }
+}
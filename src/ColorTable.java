@@ -0,0 +1,243 @@
+import java.awt.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The {@code ColorTable} class resolves the color tokens of drawing requests to {@code Color} instances.
+ * <p>
+ * A color is either one of the CSS named colors, matched ignoring the case of ASCII letters, or a hexadecimal
+ * {@code #RRGGBB} or {@code #AARRGGBB} value. The six colors historically known to the server ({@code black},
+ * {@code red}, {@code green}, {@code blue}, {@code yellow} and {@code cyan}) keep their AWT values, so
+ * {@code green} is {@code #00FF00} as before rather than the CSS {@code #008000}.
+ * </p>
+ *
+ * <p>
+ * Names are looked up without creating any {@code String}, through a perfect hash built once when the class is
+ * initialized: a first hash selects a bucket, whose displacement selects a second hash placing every name of the
+ * bucket in its own slot. A lookup is therefore two hashes of the token and a single comparison with the only
+ * name that can match. Named colors are preallocated; hexadecimal colors go through a small cache, so repeated
+ * values do not allocate either. All methods are thread-safe.
+ * </p>
+ *
+ * @see CommandParser
+ */
+public final class ColorTable {
+    private static final int SLOTS = 256;
+    private static final int BUCKETS = 64;
+    private static final int CACHE_SIZE = 1024;
+
+    private static final byte[][] names = new byte[SLOTS][];
+    private static final Color[] colors = new Color[SLOTS];
+    private static final int[] displacements = new int[BUCKETS];
+    private static final AtomicReferenceArray<Color> cache = new AtomicReferenceArray<>(CACHE_SIZE);
+
+    // Build the perfect hash of the named colors.
+    static {
+        Map<String, Integer> table = namedColors();
+        byte[][][] buckets = new byte[BUCKETS][][];
+        Arrays.setAll(buckets, i -> new byte[0][]);
+        Map<byte[], Color> values = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> entry : table.entrySet()) {
+            byte[] name = entry.getKey().getBytes(StandardCharsets.US_ASCII);
+            int bucket = hash(name, 0, name.length, 0) & (BUCKETS - 1);
+            buckets[bucket] = Arrays.copyOf(buckets[bucket], buckets[bucket].length + 1);
+            buckets[bucket][buckets[bucket].length - 1] = name;
+            int argb = entry.getValue();
+            values.put(name, switch (entry.getKey()) {
+                case "black" -> Color.BLACK;
+                case "red" -> Color.RED;
+                case "green" -> Color.GREEN;
+                case "blue" -> Color.BLUE;
+                case "yellow" -> Color.YELLOW;
+                case "cyan" -> Color.CYAN;
+                default -> new Color(argb, true);
+            });
+        }
+
+        // Place the largest buckets first, while most slots are still free.
+        Integer[] order = new Integer[BUCKETS];
+        Arrays.setAll(order, i -> i);
+        Arrays.sort(order, Comparator.comparingInt((Integer bucket) -> buckets[bucket].length).reversed());
+        for (int bucket : order) {
+            byte[][] keys = buckets[bucket];
+            int[] placed = new int[keys.length];
+            int displacement = 1;
+            while (!place(keys, displacement, placed)) {
+                displacement++;
+            }
+            displacements[bucket] = displacement;
+            for (int i = 0; i < keys.length; i++) {
+                names[placed[i]] = keys[i];
+                colors[placed[i]] = values.get(keys[i]);
+            }
+        }
+    }
+
+    private ColorTable() {
+    }
+
+    /**
+     * Resolves a color token stored in a buffer.
+     *
+     * @param buffer the buffer holding the token, in ASCII.
+     * @param from   the absolute index of the first byte of the token.
+     * @param to     the absolute index after the last byte of the token.
+     * @return the color, or {@code null} if the token is neither a known name nor a valid hexadecimal color.
+     */
+    public static Color lookup(ByteBuffer buffer, int from, int to) {
+        if (to > from && buffer.get(from) == '#') {
+            return parseHex(buffer, from + 1, to);
+        }
+        int length = to - from;
+        if (length == 0) {
+            return null;
+        }
+        int bucket = hash(buffer, from, to, 0) & (BUCKETS - 1);
+        int slot = hash(buffer, from, to, displacements[bucket]) & (SLOTS - 1);
+        byte[] name = names[slot];
+        if (name == null || name.length != length) {
+            return null;
+        }
+        for (int i = 0; i < length; i++) {
+            if (name[i] != (buffer.get(from + i) | 0x20)) {
+                return null;
+            }
+        }
+        return colors[slot];
+    }
+
+    /**
+     * Resolves a color token.
+     *
+     * @param token the color name or hexadecimal value.
+     * @return the color, or {@code null} if the token is neither a known name nor a valid hexadecimal color.
+     */
+    public static Color lookup(String token) {
+        byte[] bytes = token.getBytes(StandardCharsets.US_ASCII);
+        return lookup(ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+
+    /**
+     * Returns a color with the given ARGB value, reusing a cached instance when one exists.
+     *
+     * @param argb the color as {@code 0xAARRGGBB}.
+     * @return the color.
+     */
+    public static Color valueOf(int argb) {
+        int index = (argb * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(CACHE_SIZE));
+        Color color = cache.get(index);
+        if (color == null || color.getRGB() != argb) {
+            color = new Color(argb, true);
+            cache.lazySet(index, color);
+        }
+        return color;
+    }
+
+    /**
+     * Parses the digits of a {@code #RRGGBB} or {@code #AARRGGBB} color.
+     */
+    private static Color parseHex(ByteBuffer buffer, int from, int to) {
+        int length = to - from;
+        if (length != 6 && length != 8) {
+            return null;
+        }
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = Character.digit(buffer.get(i), 16);
+            if (digit < 0) {
+                return null;
+            }
+            value = value << 4 | digit;
+        }
+        return valueOf(length == 6 ? 0xFF000000 | value : value);
+    }
+
+    /**
+     * Tries to place the names of a bucket in free and distinct slots.
+     */
+    private static boolean place(byte[][] keys, int displacement, int[] placed) {
+        for (int i = 0; i < keys.length; i++) {
+            int slot = hash(keys[i], 0, keys[i].length, displacement) & (SLOTS - 1);
+            if (names[slot] != null) {
+                return false;
+            }
+            for (int j = 0; j < i; j++) {
+                if (placed[j] == slot) {
+                    return false;
+                }
+            }
+            placed[i] = slot;
+        }
+        return true;
+    }
+
+    private static int hash(ByteBuffer buffer, int from, int to, int seed) {
+        int h = 0x811C9DC5 ^ seed * 0x9E3779B9;
+        for (int i = from; i < to; i++) {
+            h = (h ^ (buffer.get(i) | 0x20)) * 0x01000193;
+        }
+        return h ^ h >>> 15;
+    }
+
+    private static int hash(byte[] bytes, int from, int to, int seed) {
+        int h = 0x811C9DC5 ^ seed * 0x9E3779B9;
+        for (int i = from; i < to; i++) {
+            h = (h ^ (bytes[i] | 0x20)) * 0x01000193;
+        }
+        return h ^ h >>> 15;
+    }
+
+    /**
+     * @return the CSS named colors, in lower case, with their ARGB values.
+     */
+    private static Map<String, Integer> namedColors() {
+        Map<String, Integer> table = new LinkedHashMap<>();
+        String[] entries = {
+                "aliceblue F0F8FF", "antiquewhite FAEBD7", "aqua 00FFFF", "aquamarine 7FFFD4", "azure F0FFFF",
+                "beige F5F5DC", "bisque FFE4C4", "black 000000", "blanchedalmond FFEBCD", "blue 0000FF",
+                "blueviolet 8A2BE2", "brown A52A2A", "burlywood DEB887", "cadetblue 5F9EA0", "chartreuse 7FFF00",
+                "chocolate D2691E", "coral FF7F50", "cornflowerblue 6495ED", "cornsilk FFF8DC", "crimson DC143C",
+                "cyan 00FFFF", "darkblue 00008B", "darkcyan 008B8B", "darkgoldenrod B8860B", "darkgray A9A9A9",
+                "darkgreen 006400", "darkgrey A9A9A9", "darkkhaki BDB76B", "darkmagenta 8B008B",
+                "darkolivegreen 556B2F", "darkorange FF8C00", "darkorchid 9932CC", "darkred 8B0000",
+                "darksalmon E9967A", "darkseagreen 8FBC8F", "darkslateblue 483D8B", "darkslategray 2F4F4F",
+                "darkslategrey 2F4F4F", "darkturquoise 00CED1", "darkviolet 9400D3", "deeppink FF1493",
+                "deepskyblue 00BFFF", "dimgray 696969", "dimgrey 696969", "dodgerblue 1E90FF",
+                "firebrick B22222", "floralwhite FFFAF0", "forestgreen 228B22", "fuchsia FF00FF",
+                "gainsboro DCDCDC", "ghostwhite F8F8FF", "gold FFD700", "goldenrod DAA520", "gray 808080",
+                "green 008000", "greenyellow ADFF2F", "grey 808080", "honeydew F0FFF0", "hotpink FF69B4",
+                "indianred CD5C5C", "indigo 4B0082", "ivory FFFFF0", "khaki F0E68C", "lavender E6E6FA",
+                "lavenderblush FFF0F5", "lawngreen 7CFC00", "lemonchiffon FFFACD", "lightblue ADD8E6",
+                "lightcoral F08080", "lightcyan E0FFFF", "lightgoldenrodyellow FAFAD2", "lightgray D3D3D3",
+                "lightgreen 90EE90", "lightgrey D3D3D3", "lightpink FFB6C1", "lightsalmon FFA07A",
+                "lightseagreen 20B2AA", "lightskyblue 87CEFA", "lightslategray 778899", "lightslategrey 778899",
+                "lightsteelblue B0C4DE", "lightyellow FFFFE0", "lime 00FF00", "limegreen 32CD32", "linen FAF0E6",
+                "magenta FF00FF", "maroon 800000", "mediumaquamarine 66CDAA", "mediumblue 0000CD",
+                "mediumorchid BA55D3", "mediumpurple 9370DB", "mediumseagreen 3CB371", "mediumslateblue 7B68EE",
+                "mediumspringgreen 00FA9A", "mediumturquoise 48D1CC", "mediumvioletred C71585",
+                "midnightblue 191970", "mintcream F5FFFA", "mistyrose FFE4E1", "moccasin FFE4B5",
+                "navajowhite FFDEAD", "navy 000080", "oldlace FDF5E6", "olive 808000", "olivedrab 6B8E23",
+                "orange FFA500", "orangered FF4500", "orchid DA70D6", "palegoldenrod EEE8AA", "palegreen 98FB98",
+                "paleturquoise AFEEEE", "palevioletred DB7093", "papayawhip FFEFD5", "peachpuff FFDAB9",
+                "peru CD853F", "pink FFC0CB", "plum DDA0DD", "powderblue B0E0E6", "purple 800080",
+                "rebeccapurple 663399", "red FF0000", "rosybrown BC8F8F", "royalblue 4169E1",
+                "saddlebrown 8B4513", "salmon FA8072", "sandybrown F4A460", "seagreen 2E8B57",
+                "seashell FFF5EE", "sienna A0522D", "silver C0C0C0", "skyblue 87CEEB", "slateblue 6A5ACD",
+                "slategray 708090", "slategrey 708090", "snow FFFAFA", "springgreen 00FF7F",
+                "steelblue 4682B4", "tan D2B48C", "teal 008080", "thistle D8BFD8", "tomato FF6347",
+                "turquoise 40E0D0", "violet EE82EE", "wheat F5DEB3", "white FFFFFF", "whitesmoke F5F5F5",
+                "yellow FFFF00", "yellowgreen 9ACD32"
+        };
+        for (String entry : entries) {
+            int space = entry.indexOf(' ');
+            table.put(entry.substring(0, space), 0xFF000000 | Integer.parseInt(entry.substring(space + 1), 16));
+        }
+        table.put("transparent", 0x00000000);
+        return table;
+    }
+}
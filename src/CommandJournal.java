@@ -0,0 +1,842 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * The {@code CommandJournal} class is the append-only log of every command applied to the canvas, replayed when
+ * the server starts so the canvas survives restarts.
+ * <p>
+ * The render thread appends each shape as it adds it to the canvas, and the scene commands append their
+ * {@code REMOVE} and {@code CLEAR} operations, so the journal holds the changes in the order they were applied.
+ * Shapes are encoded as {@link BinaryProtocol} frames and scene operations as text frames. Appends only copy the
+ * frame into a memory buffer. A {@code journal} thread performs group commits: once data is pending it waits
+ * {@link ServerConfig#getJournalSyncMillis()} for more, then writes everything as one block through a
+ * {@link FileChannel} and forces it to disk, so one {@code fsync} covers thousands of commands. A crash loses at
+ * most the commands of that interval, plus those still waiting in the render queue. When the writer falls behind,
+ * appends wait for it once {@value #MAX_PENDING_BYTES} bytes are pending.
+ * </p>
+ *
+ * <p>
+ * Each block starts with its length and its CRC-32C. On startup, {@link #open(Replayer)} maps the files in memory
+ * and replays them block by block; a block that is incomplete or fails its checksum marks the point where the
+ * previous run stopped, and the file is truncated there before new records are appended to it.
+ * </p>
+ *
+ * <p>
+ * Once {@link ServerConfig#getJournalCompactBytes()} bytes have been appended, the renderer captures the
+ * framebuffer and the scene and hands them to {@link #compact(int[], int, int, SceneShape[])}: the journal
+ * switches to a new log file, a {@code journal-snapshot} thread writes the captured state to a snapshot file,
+ * and the older logs and snapshots are deleted once the snapshot is safely on disk. Startup then restores the
+ * pixels and the scene from the latest snapshot without drawing anything, and only replays the logs written
+ * since. Files are numbered by generation: {@code snapshot-N.bin} holds the state before {@code journal-N.log}.
+ * </p>
+ *
+ * <p>
+ * Opcodes are recorded rather than keywords, so shape types registered in the {@link ShapeRegistry} must keep
+ * their registration order across restarts. I/O errors are logged and disable the journal: the server keeps
+ * drawing, but without durability.
+ * </p>
+ *
+ * @see CanvasRenderer
+ */
+public class CommandJournal implements Closeable {
+    /**
+     * The {@code Replayer} interface receives the content of a journal when it is opened. The replayed commands
+     * are reused after each call.
+     */
+    public interface Replayer {
+        /**
+         * Puts back a shape of the snapshot into the scene, without drawing it. Shapes come in identifier order,
+         * before {@link #restoreCanvas(int[], int, int, int)}.
+         *
+         * @param id      the identifier of the shape.
+         * @param command the shape.
+         */
+        void restoreShape(int id, ShapeCommand command);
+
+        /**
+         * Puts back the pixels of the snapshot.
+         *
+         * @param pixels      the ARGB pixels in row-major order.
+         * @param width       the width of the saved canvas, in pixels.
+         * @param height      the height of the saved canvas, in pixels.
+         * @param nextShapeId the identifier of the next shape added to the scene.
+         */
+        void restoreCanvas(int[] pixels, int width, int height, int nextShapeId);
+
+        /**
+         * Applies a shape of the log.
+         *
+         * @param command the shape.
+         */
+        void shape(ShapeCommand command);
+
+        /**
+         * Applies the removal of shapes from the scene.
+         *
+         * @param ids   the identifiers of the removed shapes.
+         * @param count the number of identifiers.
+         */
+        void remove(int[] ids, int count);
+
+        /**
+         * Applies the removal of every shape from the scene.
+         */
+        void clear();
+
+        /**
+         * Completes the replay, once every record has been applied.
+         */
+        void finish();
+    }
+
+    static final String LOG_PREFIX = "journal-";
+    static final String LOG_SUFFIX = ".log";
+    static final String SNAPSHOT_PREFIX = "snapshot-";
+    static final String SNAPSHOT_SUFFIX = ".bin";
+
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final String REMOVE = "REMOVE";
+    private static final String CLEAR = "CLEAR";
+    private static final int BLOCK_HEADER_SIZE = 8;
+    private static final int SNAPSHOT_MAGIC = 0x44534E50;
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int SNAPSHOT_HEADER_SIZE = 24;
+    private static final int MAX_SHAPE_OVERHEAD = 14;
+    private static final int MAX_PENDING_BYTES = 32 * 1024 * 1024;
+    private static final int MAP_WINDOW = 1 << 30;
+
+    private final Path directory;
+    private final ShapeRegistry registry;
+    private final BinaryDecoder decoder;
+    private final long syncNanos;
+    private final long compactBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    private final Condition written = lock.newCondition();
+    private final CRC32C checksum = new CRC32C();
+    private final ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private ByteBuffer writing = ByteBuffer.allocate(64 * 1024);
+    private Compaction compaction;
+    private long generation;
+    private long appendedBytes;
+    private long writtenBytes;
+    private long uncompactedBytes;
+    private boolean compacting;
+    private boolean closed;
+    private boolean failed;
+    private FileChannel channel;
+    private Thread writer;
+    private volatile Thread snapshotWriter;
+
+    /**
+     * The state captured by a compaction, and the last records of the generation it ends.
+     */
+    private static final class Compaction {
+        final long generation;
+        final ByteBuffer tail;
+        final int[] pixels;
+        final int width;
+        final int height;
+        final SceneShape[] shapes;
+
+        Compaction(long generation, ByteBuffer tail, int[] pixels, int width, int height, SceneShape[] shapes) {
+            this.generation = generation;
+            this.tail = tail;
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+            this.shapes = shapes;
+        }
+    }
+
+    /**
+     * Creates a journal stored in a directory. Nothing is read or written before {@link #open(Replayer)}.
+     *
+     * @param directory    the directory holding the logs and snapshots; it is created if needed.
+     * @param registry     the registry resolving the opcodes of the shapes.
+     * @param syncMillis   the group commit interval, in milliseconds; {@code 0} writes as soon as data is pending.
+     * @param compactBytes the number of bytes logged after which the journal is compacted, or {@code 0} to never
+     *                     compact.
+     */
+    public CommandJournal(Path directory, ShapeRegistry registry, int syncMillis, long compactBytes) {
+        this.directory = directory;
+        this.registry = registry;
+        this.decoder = new BinaryDecoder(registry);
+        this.syncNanos = syncMillis * 1_000_000L;
+        this.compactBytes = compactBytes;
+    }
+
+    /**
+     * Replays the latest snapshot and the logs written since, then starts a new log receiving the appends.
+     *
+     * @param replayer the receiver of the replayed state and commands.
+     * @return the number of log records replayed.
+     * @throws IOException If the directory cannot be read, or a log holds a record that cannot be decoded.
+     */
+    public long open(Replayer replayer) throws IOException {
+        Files.createDirectories(directory);
+        deleteTemporaryFiles();
+        List<Long> snapshots = generations(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        List<Long> logs = generations(LOG_PREFIX, LOG_SUFFIX);
+        ShapeCommand command = new ShapeCommand();
+
+        long base = -1;
+        for (int i = snapshots.size() - 1; i >= 0 && base < 0; i--) {
+            Path file = path(SNAPSHOT_PREFIX, snapshots.get(i), SNAPSHOT_SUFFIX);
+            try {
+                restoreSnapshot(file, replayer, command);
+                base = snapshots.get(i);
+            } catch (IOException e) {
+                ServerLog.error("Ignoring the unreadable snapshot " + file, e);
+            }
+        }
+        long records = 0;
+        long last = base;
+        for (long log : logs) {
+            if (log >= base) {
+                Path file = path(LOG_PREFIX, log, LOG_SUFFIX);
+                records += replayLog(file, replayer, command);
+                uncompactedBytes += Files.size(file);
+                last = log;
+            }
+        }
+        replayer.finish();
+
+        // Keep appending to the last log, now that any incomplete block has been cut off.
+        generation = Math.max(last, 0);
+        channel = openLog(generation);
+        writer = new Thread(this::writeLoop, "journal");
+        writer.start();
+        return records;
+    }
+
+    /**
+     * Appends a shape. Must be called in the order the shapes are applied to the canvas.
+     *
+     * @param command the valid shape; it is not retained.
+     */
+    public void append(ShapeCommand command) {
+        int opcode = registry.getOpcode(command.getHandler());
+        if (opcode == 0) {
+            // Shapes drawn by handlers that are not registered cannot be replayed.
+            return;
+        }
+        int count = command.getCoordinateCount();
+        lock.lock();
+        try {
+            ByteBuffer out = reserve(MAX_SHAPE_OVERHEAD + count * 5);
+            if (out != null) {
+                int start = out.position();
+                BinaryProtocol.encode(opcode, command.getCoordinates(), count, command.getColor(),
+                        command.isFilled(), command.getStrokeWidth(), out);
+                appended(out.position() - start);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends the removal of shapes from the scene.
+     *
+     * @param ids   the identifiers of the removed shapes.
+     * @param count the number of identifiers.
+     */
+    public void appendRemove(int[] ids, int count) {
+        StringBuilder record = new StringBuilder(REMOVE);
+        for (int i = 0; i < count; i++) {
+            record.append(' ').append(ids[i]);
+        }
+        appendText(record.toString());
+    }
+
+    /**
+     * Appends the removal of every shape from the scene.
+     */
+    public void appendClear() {
+        appendText(CLEAR);
+    }
+
+    /**
+     * @return {@code true} if enough has been logged since the last snapshot to compact the journal.
+     */
+    public boolean needsCompaction() {
+        lock.lock();
+        try {
+            return compactBytes > 0 && uncompactedBytes >= compactBytes && !compacting && !closed && !failed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Folds everything logged so far into a snapshot of the canvas.
+     * <p>
+     * The caller must capture the state and call this method atomically with respect to the appends, so the
+     * snapshot is exactly the result of the records logged before it. The snapshot is written in the
+     * background; records appended from now on go to a new log.
+     * </p>
+     *
+     * @param pixels the ARGB pixels of the canvas, in row-major order; the array must not be changed afterwards.
+     * @param width  the width of the canvas, in pixels.
+     * @param height the height of the canvas, in pixels.
+     * @param shapes the shapes of the scene indexed by identifier, with {@code null} for removed identifiers; the
+     *               length of the array is the identifier of the next shape.
+     */
+    public void compact(int[] pixels, int width, int height, SceneShape[] shapes) {
+        lock.lock();
+        try {
+            if (compacting || closed || failed || writer == null) {
+                return;
+            }
+            compacting = true;
+            uncompactedBytes = 0;
+            generation++;
+            compaction = new Compaction(generation, pending, pixels, width, height, shapes);
+            pending = ByteBuffer.allocate(pending.capacity());
+            appended.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until every record appended before this call is on disk.
+     */
+    public void sync() {
+        lock.lock();
+        try {
+            long target = appendedBytes;
+            appended.signal();
+            while (writtenBytes < target && !failed && writer != null && writer.isAlive()) {
+                written.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the pending records, waits for a running compaction and closes the log. Later appends are ignored.
+     */
+    @Override
+    public void close() {
+        Thread journalWriter;
+        lock.lock();
+        try {
+            closed = true;
+            appended.signal();
+            journalWriter = writer;
+        } finally {
+            lock.unlock();
+        }
+        joinUninterruptibly(journalWriter);
+        joinUninterruptibly(snapshotWriter);
+    }
+
+    /**
+     * @return the directory holding the logs and snapshots.
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Appends a scene operation as a text frame.
+     */
+    private void appendText(String record) {
+        byte[] bytes = record.getBytes(StandardCharsets.US_ASCII);
+        lock.lock();
+        try {
+            ByteBuffer out = reserve(bytes.length + 6);
+            if (out != null) {
+                int start = out.position();
+                BinaryProtocol.encodeText(record, out);
+                appended(out.position() - start);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes room for a record in the pending buffer, waiting for the writer if too much is pending. Must be
+     * called with the lock held.
+     *
+     * @return the pending buffer, or {@code null} if the journal does not accept appends.
+     */
+    private ByteBuffer reserve(int size) {
+        while (!closed && !failed && writer != null && pending.position() > 0
+                && pending.position() + size > MAX_PENDING_BYTES) {
+            appended.signal();
+            written.awaitUninterruptibly();
+        }
+        if (closed || failed || writer == null) {
+            return null;
+        }
+        if (pending.remaining() < size) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + size));
+            pending = larger.put(pending.flip());
+        }
+        return pending;
+    }
+
+    /**
+     * Accounts for an appended record and wakes the writer up. Must be called with the lock held.
+     */
+    private void appended(int bytes) {
+        if (pending.position() == bytes) {
+            appended.signal();
+        }
+        appendedBytes += bytes;
+        uncompactedBytes += bytes;
+    }
+
+    /**
+     * Runs the group commits until the journal is closed.
+     */
+    private void writeLoop() {
+        while (true) {
+            ByteBuffer block;
+            Compaction request;
+            boolean last;
+            lock.lock();
+            try {
+                while (pending.position() == 0 && compaction == null && !closed) {
+                    appended.awaitUninterruptibly();
+                }
+                if (syncNanos > 0 && !closed) {
+                    // Let more records join this commit.
+                    lock.unlock();
+                    try {
+                        LockSupport.parkNanos(syncNanos);
+                    } finally {
+                        lock.lock();
+                    }
+                }
+                block = pending;
+                pending = writing.clear();
+                writing = block;
+                request = compaction;
+                compaction = null;
+                last = closed;
+            } finally {
+                lock.unlock();
+            }
+
+            int bytes = (request == null ? 0 : request.tail.position()) + block.position();
+            try {
+                if (request != null) {
+                    writeBlock(request.tail);
+                    channel.force(false);
+                    channel.close();
+                    channel = openLog(request.generation);
+                    startSnapshot(request);
+                }
+                if (writeBlock(block)) {
+                    channel.force(false);
+                }
+                if (last) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                ServerLog.error("Cannot write the journal, commands are no longer logged", e);
+                closeQuietly();
+                lock.lock();
+                try {
+                    failed = true;
+                    written.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            }
+
+            lock.lock();
+            try {
+                writtenBytes += bytes;
+                written.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (last) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes the records of a buffer as one block: its length, its CRC-32C, then the records.
+     *
+     * @return {@code true} if the buffer held records.
+     */
+    private boolean writeBlock(ByteBuffer data) throws IOException {
+        data.flip();
+        if (!data.hasRemaining()) {
+            return false;
+        }
+        checksum.reset();
+        checksum.update(data.duplicate());
+        blockHeader.clear();
+        blockHeader.putInt(data.remaining()).putInt((int) checksum.getValue()).flip();
+        ByteBuffer[] buffers = {blockHeader, data};
+        while (data.hasRemaining()) {
+            channel.write(buffers);
+        }
+        return true;
+    }
+
+    private void startSnapshot(Compaction request) {
+        Thread thread = new Thread(() -> writeSnapshot(request), "journal-snapshot");
+        snapshotWriter = thread;
+        thread.start();
+    }
+
+    /**
+     * Writes a snapshot, then deletes the files it replaces.
+     * <p>
+     * The snapshot holds a header ({@code magic version width height nextShapeId shapeCount}), the pixels as
+     * big-endian ARGB integers, each shape as the gap between its identifier and the previous one followed by its
+     * frame, and finally the CRC-32C of everything before.
+     * </p>
+     */
+    private void writeSnapshot(Compaction request) {
+        long start = System.nanoTime();
+        Path target = path(SNAPSHOT_PREFIX, request.generation, SNAPSHOT_SUFFIX);
+        Path temporary = target.resolveSibling(target.getFileName() + TEMPORARY_SUFFIX);
+        int shapeCount = 0;
+        for (SceneShape shape : request.shapes) {
+            if (shape != null) {
+                shapeCount++;
+            }
+        }
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            SnapshotOutput output = new SnapshotOutput(out);
+            output.reserve(SNAPSHOT_HEADER_SIZE).putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION)
+                    .putInt(request.width).putInt(request.height).putInt(request.shapes.length).putInt(shapeCount);
+            for (int pixel : request.pixels) {
+                output.reserve(4).putInt(pixel);
+            }
+            int previous = -1;
+            for (SceneShape shape : request.shapes) {
+                if (shape == null) {
+                    continue;
+                }
+                int[] coordinates = shape.getCoordinates();
+                ByteBuffer buffer = output.reserve(5 + MAX_SHAPE_OVERHEAD + coordinates.length * 5);
+                BinaryProtocol.writeVarint(shape.getId() - previous - 1, buffer);
+                BinaryProtocol.encode(registry.getOpcode(shape.getHandler()), coordinates, coordinates.length,
+                        shape.getColor(), shape.isFilled(), shape.getStrokeWidth(), buffer);
+                previous = shape.getId();
+            }
+            output.finish();
+            out.force(true);
+        } catch (IOException e) {
+            ServerLog.error("Cannot write the snapshot " + target, e);
+            deleteQuietly(temporary);
+            finishCompaction();
+            return;
+        }
+
+        try {
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            for (long log : generations(LOG_PREFIX, LOG_SUFFIX)) {
+                if (log < request.generation) {
+                    Files.deleteIfExists(path(LOG_PREFIX, log, LOG_SUFFIX));
+                }
+            }
+            for (long snapshot : generations(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+                if (snapshot < request.generation) {
+                    Files.deleteIfExists(path(SNAPSHOT_PREFIX, snapshot, SNAPSHOT_SUFFIX));
+                }
+            }
+            ServerLog.info("Journal compacted into " + target + " (" + shapeCount + " shapes) in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (IOException e) {
+            ServerLog.error("Cannot install the snapshot " + target, e);
+        } finally {
+            finishCompaction();
+        }
+    }
+
+    private void finishCompaction() {
+        lock.lock();
+        try {
+            compacting = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Buffers the content of a snapshot and computes its checksum on the way to the file.
+     */
+    private static final class SnapshotOutput {
+        private final FileChannel channel;
+        private final CRC32C checksum = new CRC32C();
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+
+        SnapshotOutput(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        ByteBuffer reserve(int size) throws IOException {
+            if (buffer.remaining() < size) {
+                drain();
+                if (buffer.capacity() < size) {
+                    buffer = ByteBuffer.allocateDirect(size);
+                }
+            }
+            return buffer;
+        }
+
+        void finish() throws IOException {
+            drain();
+            buffer.putInt((int) checksum.getValue()).flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            checksum.update(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Restores the state saved in a snapshot. The checksum is verified before anything is restored.
+     */
+    private void restoreSnapshot(Path file, Replayer replayer, ShapeCommand command) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = in.size();
+            if (size < SNAPSHOT_HEADER_SIZE + 4 || size > Integer.MAX_VALUE) {
+                throw new ProtocolException("invalid snapshot size: " + size);
+            }
+            MappedByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int end = (int) size - 4;
+            CRC32C crc = new CRC32C();
+            crc.update(buffer.slice(0, end));
+            if ((int) crc.getValue() != buffer.getInt(end)) {
+                throw new ProtocolException("snapshot checksum mismatch");
+            }
+            if (buffer.getInt(0) != SNAPSHOT_MAGIC || buffer.getInt(4) != SNAPSHOT_VERSION) {
+                throw new ProtocolException("unsupported snapshot format");
+            }
+            int width = buffer.getInt(8);
+            int height = buffer.getInt(12);
+            int nextShapeId = buffer.getInt(16);
+            int shapeCount = buffer.getInt(20);
+            long pixelBytes = 4L * width * height;
+            if (width < 1 || height < 1 || SNAPSHOT_HEADER_SIZE + pixelBytes > end) {
+                throw new ProtocolException("invalid snapshot size: " + width + "x" + height);
+            }
+
+            int i = SNAPSHOT_HEADER_SIZE + (int) pixelBytes;
+            int id = -1;
+            for (int n = 0; n < shapeCount; n++) {
+                int gap = 0;
+                for (int shift = 0; ; shift += 7) {
+                    if (i == end || shift > 28) {
+                        throw new ProtocolException("malformed snapshot identifier");
+                    }
+                    int b = buffer.get(i++);
+                    gap |= (b & 0x7F) << shift;
+                    if (b >= 0) {
+                        break;
+                    }
+                }
+                id += gap + 1;
+                int frameEnd = BinaryProtocol.frameEnd(buffer, i, end);
+                if (frameEnd < 0 || !decoder.decode(buffer, BinaryProtocol.bodyStart(buffer, i), frameEnd, command)) {
+                    throw new ProtocolException("invalid snapshot shape " + id);
+                }
+                replayer.restoreShape(id, command);
+                i = frameEnd;
+            }
+
+            int[] pixels = new int[width * height];
+            buffer.slice(SNAPSHOT_HEADER_SIZE, (int) pixelBytes).asIntBuffer().get(pixels);
+            replayer.restoreCanvas(pixels, width, height, nextShapeId);
+        }
+    }
+
+    /**
+     * Replays the complete blocks of a log and truncates whatever follows them.
+     *
+     * @return the number of records replayed.
+     */
+    private long replayLog(Path file, Replayer replayer, ShapeCommand command) throws IOException {
+        long records = 0;
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            long position = 0;
+            long windowStart = 0;
+            MappedByteBuffer window = null;
+            CRC32C crc = new CRC32C();
+            while (position + BLOCK_HEADER_SIZE <= size) {
+                if (window == null || position + BLOCK_HEADER_SIZE > windowStart + window.limit()) {
+                    windowStart = position;
+                    window = in.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size - position, MAP_WINDOW));
+                }
+                int length = window.getInt((int) (position - windowStart));
+                int expected = window.getInt((int) (position - windowStart) + 4);
+                long end = position + BLOCK_HEADER_SIZE + length;
+                if (length <= 0 || end > size) {
+                    break;
+                }
+                if (end > windowStart + window.limit()) {
+                    windowStart = position;
+                    window = in.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size - position,
+                            Math.max(MAP_WINDOW, end - position)));
+                }
+                int from = (int) (position - windowStart) + BLOCK_HEADER_SIZE;
+                crc.reset();
+                crc.update(window.slice(from, length));
+                if ((int) crc.getValue() != expected) {
+                    break;
+                }
+                records += replayBlock(window, from, from + length, replayer, command);
+                position = end;
+            }
+            if (position < size) {
+                ServerLog.warn("Journal " + file + " ends with an incomplete block at offset " + position
+                        + ", truncating " + (size - position) + " bytes");
+                in.truncate(position);
+            }
+        }
+        return records;
+    }
+
+    private long replayBlock(ByteBuffer buffer, int from, int to, Replayer replayer, ShapeCommand command)
+            throws ProtocolException {
+        long records = 0;
+        for (int i = from; i < to; records++) {
+            int end = BinaryProtocol.frameEnd(buffer, i, to);
+            if (end < 0) {
+                throw new ProtocolException("truncated journal record");
+            }
+            int body = BinaryProtocol.bodyStart(buffer, i);
+            if (buffer.get(body) == BinaryProtocol.TEXT_OPCODE) {
+                replayText(buffer, body + 1, end, replayer);
+            } else if (decoder.decode(buffer, body, end, command)) {
+                replayer.shape(command);
+            } else {
+                throw new ProtocolException("invalid journal record: " + command.getErrorMessage());
+            }
+            i = end;
+        }
+        return records;
+    }
+
+    private static void replayText(ByteBuffer buffer, int from, int to, Replayer replayer)
+            throws ProtocolException {
+        byte[] bytes = new byte[to - from];
+        buffer.get(from, bytes);
+        String[] tokens = new String(bytes, StandardCharsets.US_ASCII).split(" ");
+        if (tokens[0].equals(CLEAR)) {
+            replayer.clear();
+        } else if (tokens[0].equals(REMOVE)) {
+            int[] ids = new int[tokens.length - 1];
+            try {
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = Integer.parseInt(tokens[i + 1]);
+                }
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("invalid journal record: " + tokens[0]);
+            }
+            replayer.remove(ids, ids.length);
+        } else {
+            throw new ProtocolException("invalid journal record: " + tokens[0]);
+        }
+    }
+
+    private FileChannel openLog(long logGeneration) throws IOException {
+        return FileChannel.open(path(LOG_PREFIX, logGeneration, LOG_SUFFIX), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private Path path(String prefix, long fileGeneration, String suffix) {
+        return directory.resolve(String.format("%s%08d%s", prefix, fileGeneration, suffix));
+    }
+
+    /**
+     * Lists the generations of the files with a given prefix and suffix, in increasing order.
+     */
+    private List<Long> generations(String prefix, String suffix) throws IOException {
+        List<Long> found = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    found.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+                } catch (NumberFormatException e) {
+                    // Not one of our files.
+                }
+            }
+        }
+        Collections.sort(found);
+        return found;
+    }
+
+    private void deleteTemporaryFiles() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + TEMPORARY_SUFFIX)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Already failing.
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            ServerLog.error("Cannot delete " + file, e);
+        }
+    }
+
+    private static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (thread != null && thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
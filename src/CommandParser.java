@@ -0,0 +1,267 @@
+import java.awt.*;
+import java.nio.ByteBuffer;
+
+/**
+ * The {@code CommandParser} class parses text drawing requests straight from bytes into a {@link ShapeCommand}.
+ * <p>
+ * A request has the form {@code <sender> <SHAPE> <int> ... <color> [FILL] [WIDTH=<n>]}, for example
+ * {@code x CIRCLE 100 100 50 red} or {@code x TRIANGLE 0 0 90 0 45 80 #80FF8800 fill}. Tokens are separated by
+ * spaces or tabs. The parser walks the bytes once: the shape keyword is resolved through the
+ * {@link ShapeRegistry}, coordinates are accumulated as primitive integers and the color, a name or a
+ * {@code #RRGGBB} or {@code #AARRGGBB} value, is resolved with {@link ColorTable}. Unknown color names are drawn
+ * in black, as they always were. The optional style tokens after the color fill the shape and set the width of its
+ * outline, between {@code 1} and {@value ShapeHandler#MAX_STROKE_WIDTH} pixels. No {@code String}, token array or
+ * boxed value is created for a valid request.
+ * </p>
+ *
+ * <p>
+ * Malformed requests do not throw: {@link #parse(ByteBuffer, int, int, ShapeCommand)} returns {@code false}
+ * and the command records the offset and a description of the first error. A parser holds no state and can be
+ * shared between threads; the command it fills cannot.
+ * </p>
+ *
+ * @see ShapeCommand
+ * @see ShapeRegistry
+ */
+public class CommandParser {
+    private static final String WIDTH_PREFIX = "WIDTH=";
+
+    private final ShapeRegistry registry;
+    private final int maxCoordinates;
+
+    /**
+     * Creates a parser resolving shape keywords with the given registry, without limit on the number of
+     * coordinates.
+     *
+     * @param registry the registry of shape handlers.
+     */
+    public CommandParser(ShapeRegistry registry) {
+        this(registry, Integer.MAX_VALUE / 2);
+    }
+
+    /**
+     * Creates a parser resolving shape keywords with the given registry and rejecting requests with too many
+     * vertices, which would otherwise grow the coordinate arrays of the commands and the render queue slots they
+     * are copied into.
+     *
+     * @param registry    the registry of shape handlers.
+     * @param maxVertices the maximum number of vertices of a request, i.e. half its number of coordinates.
+     */
+    public CommandParser(ShapeRegistry registry, int maxVertices) {
+        this.registry = registry;
+        this.maxCoordinates = maxVertices * 2;
+    }
+
+    /**
+     * Parses one request stored in a buffer.
+     * <p>
+     * The buffer's position and limit are not modified. A trailing carriage return is ignored, so lines
+     * terminated by {@code "\r\n"} can be passed without the terminator.
+     * </p>
+     *
+     * @param buffer  the buffer holding the request, in ASCII.
+     * @param from    the absolute index of the first byte of the request.
+     * @param to      the absolute index after the last byte of the request.
+     * @param command the command to fill; it is reset first.
+     * @return {@code true} if the request is valid, {@code false} if the command holds an error.
+     */
+    public boolean parse(ByteBuffer buffer, int from, int to, ShapeCommand command) {
+        command.reset();
+        if (to > from && buffer.get(to - 1) == '\r') {
+            to--;
+        }
+
+        // Sender token: any bytes, ignored.
+        int i = skipSpaces(buffer, from, to);
+        int senderEnd = tokenEnd(buffer, i, to);
+        if (senderEnd == i) {
+            return command.fail(i - from, "empty request");
+        }
+
+        // Shape keyword.
+        int keywordStart = skipSpaces(buffer, senderEnd, to);
+        int keywordEnd = tokenEnd(buffer, keywordStart, to);
+        if (keywordEnd == keywordStart) {
+            return command.fail(keywordStart - from, "missing shape type");
+        }
+        ShapeHandler handler = registry.lookup(buffer, keywordStart, keywordEnd);
+        if (handler == null) {
+            return command.fail(keywordStart - from, "unsupported shape");
+        }
+        command.setHandler(handler);
+
+        // Coordinates, then the color, then the style.
+        int colorStart = -1;
+        i = skipSpaces(buffer, keywordEnd, to);
+        while (i < to) {
+            int end = tokenEnd(buffer, i, to);
+            if (colorStart < 0) {
+                if (isNumberStart(buffer, i, end)) {
+                    if (command.getCoordinateCount() == maxCoordinates) {
+                        return command.fail(i - from, "more than " + maxCoordinates / 2 + " vertices");
+                    }
+                    if (!parseInt(buffer, i, end, from, command)) {
+                        return false;
+                    }
+                } else {
+                    colorStart = i;
+                    Color color = ColorTable.lookup(buffer, i, end);
+                    if (color == null && buffer.get(i) == '#') {
+                        return command.fail(i - from, "invalid color");
+                    }
+                    command.setColor(color == null ? Color.BLACK : color);
+                }
+            } else if (!parseStyle(buffer, i, end, from, command)) {
+                return false;
+            }
+            i = skipSpaces(buffer, end, to);
+        }
+
+        if (!handler.acceptsCoordinates(command.getCoordinateCount())) {
+            return command.fail((colorStart >= 0 ? colorStart : to) - from, "wrong number of coordinates");
+        }
+        return true;
+    }
+
+    /**
+     * Parses a style token following the color: {@code FILL} or {@code WIDTH=<n>}.
+     *
+     * @param buffer  the buffer holding the token.
+     * @param from    the absolute index of the first byte of the token.
+     * @param to      the absolute index after the last byte of the token.
+     * @param origin  the absolute index of the first byte of the request, used for error positions.
+     * @param command the command receiving the style or the error.
+     * @return {@code true} if the token is a valid style.
+     */
+    private static boolean parseStyle(ByteBuffer buffer, int from, int to, int origin, ShapeCommand command) {
+        if (matches(buffer, from, to, "FILL")) {
+            command.setFilled(true);
+            return true;
+        }
+        int valueStart = from + WIDTH_PREFIX.length();
+        if (to - from <= WIDTH_PREFIX.length() || !matches(buffer, from, valueStart, WIDTH_PREFIX)) {
+            return isNumberStart(buffer, from, to)
+                    ? command.fail(from - origin, "color must follow the coordinates")
+                    : command.fail(from - origin, "unexpected token after color");
+        }
+        int width = 0;
+        for (int i = valueStart; i < to; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return command.fail(i - origin, "invalid digit");
+            }
+            width = width * 10 + digit;
+            if (width > ShapeHandler.MAX_STROKE_WIDTH) {
+                break;
+            }
+        }
+        if (width < 1 || width > ShapeHandler.MAX_STROKE_WIDTH) {
+            return command.fail(valueStart - origin, "width must be between 1 and " + ShapeHandler.MAX_STROKE_WIDTH);
+        }
+        command.setStrokeWidth(width);
+        return true;
+    }
+
+    /**
+     * Parses a decimal integer token and appends it to the command's coordinates.
+     *
+     * @param buffer  the buffer holding the token.
+     * @param from    the absolute index of the first byte of the token.
+     * @param to      the absolute index after the last byte of the token.
+     * @param origin  the absolute index of the first byte of the request, used for error positions.
+     * @param command the command receiving the coordinate or the error.
+     * @return {@code true} if the token is a valid {@code int}.
+     */
+    private static boolean parseInt(ByteBuffer buffer, int from, int to, int origin, ShapeCommand command) {
+        int i = from;
+        boolean negative = false;
+        byte first = buffer.get(i);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            i++;
+        }
+        // Accumulate negatively so that Integer.MIN_VALUE can be represented.
+        long value = 0;
+        for (; i < to; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return command.fail(i - origin, "invalid digit");
+            }
+            value = value * 10 - digit;
+            if (value < Integer.MIN_VALUE) {
+                return command.fail(from - origin, "integer out of range");
+            }
+        }
+        if (!negative && value == Integer.MIN_VALUE) {
+            return command.fail(from - origin, "integer out of range");
+        }
+        command.addCoordinate((int) (negative ? value : -value));
+        return true;
+    }
+
+    /**
+     * Determines whether a token looks like a number: a digit, optionally preceded by a sign.
+     */
+    private static boolean isNumberStart(ByteBuffer buffer, int from, int to) {
+        byte first = buffer.get(from);
+        if ((first == '-' || first == '+') && to - from > 1) {
+            first = buffer.get(from + 1);
+        }
+        return first >= '0' && first <= '9';
+    }
+
+    /**
+     * Skips spaces and tabs.
+     *
+     * @param buffer the buffer holding the request.
+     * @param from   the absolute index to start from.
+     * @param to     the absolute index after the last byte of the request.
+     * @return the absolute index of the next token, or {@code to}.
+     */
+    static int skipSpaces(ByteBuffer buffer, int from, int to) {
+        while (from < to && isSpace(buffer.get(from))) {
+            from++;
+        }
+        return from;
+    }
+
+    /**
+     * Finds the end of a token.
+     *
+     * @param buffer the buffer holding the request.
+     * @param from   the absolute index of the first byte of the token.
+     * @param to     the absolute index after the last byte of the request.
+     * @return the absolute index after the last byte of the token.
+     */
+    static int tokenEnd(ByteBuffer buffer, int from, int to) {
+        while (from < to && !isSpace(buffer.get(from))) {
+            from++;
+        }
+        return from;
+    }
+
+    /**
+     * Determines whether a token matches a keyword, ignoring the case of ASCII letters.
+     *
+     * @param buffer  the buffer holding the token.
+     * @param from    the absolute index of the first byte of the token.
+     * @param to      the absolute index after the last byte of the token.
+     * @param keyword the upper-case keyword.
+     * @return {@code true} if the token is the keyword.
+     */
+    static boolean matches(ByteBuffer buffer, int from, int to, String keyword) {
+        if (to - from != keyword.length()) {
+            return false;
+        }
+        for (int i = 0; i < keyword.length(); i++) {
+            if (ShapeRegistry.foldCase(buffer.get(from + i) & 0xFF) != keyword.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+}
@@ -0,0 +1,414 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Semaphore;
+
+/**
+ * The {@code ConnectionHandler} class serves a single client connection of the {@link DrawingServer}.
+ * <p>
+ * Each accepted socket is wrapped in a handler and run on a worker thread, so a slow or idle client only
+ * occupies its own thread instead of stalling the accept loop. Drawing requests are read from the socket
+ * with a {@link LineReader}, parsed in place by a {@link CommandParser} into a single reusable
+ * {@link ShapeCommand}, and queued to the {@link CanvasRenderer} of the canvas the connection draws on. Lines
+ * that are not drawing requests are tried as a {@code CANVAS} selection of the {@link CanvasManager}, then as
+ * {@link ControlCommands} of the current canvas, whose replies are written back to the client. Invalid requests
+ * are reported with the position of the error and skipped. When the connection is finished the connection
+ * slot taken by the accept loop is released.
+ * </p>
+ *
+ * <p>
+ * In the default one-shot mode a connection carries exactly one request. In persistent mode (see
+ * {@link ServerConfig#isPersistent()}) the connection stays open and newline-delimited requests are rendered
+ * as they arrive until the client closes its side. If {@link ServerConfig#getAckBatch()} is positive, the
+ * handler replies {@code ACK <count>} after every batch of that many requests, and once more at end of
+ * stream for a trailing partial batch, where {@code <count>} is the total number of requests accepted so far.
+ * A client can instead ask for sequenced replies with an {@code ACKS} request, as described by
+ * {@link Acknowledgements}, to be told about every failed request and acknowledged whenever it stops sending.
+ * In one-shot mode a {@code CANVAS} selection may precede the single request.
+ * </p>
+ *
+ * <p>
+ * A client whose first byte is {@link BinaryProtocol#MAGIC} negotiates the {@link BinaryProtocol} instead: its
+ * frames are read with a {@link FrameReader} and decoded by a {@link BinaryDecoder} into the same command, with the
+ * same acknowledgements, until the client closes its side.
+ * </p>
+ *
+ * <p>
+ * A {@code VIEW} request, in either protocol, turns the connection into a viewer of its canvas: the handler stops
+ * reading requests and the {@link CanvasStreamer} of the canvas streams frames to it on this thread until the
+ * client disconnects.
+ * </p>
+ *
+ * <p>
+ * Every request goes through the {@link AdmissionControl} of the server first: a request over the rate limit of
+ * its client, or a drawing command over the global in-flight budget, is answered with an {@code ERROR} line instead
+ * of being queued. A client silent for longer than {@link ServerConfig#getReadTimeoutMillis()}, or sending a line or
+ * frame longer than {@link ServerConfig#getMaxLineLength()}, is disconnected, the latter with an {@code ERROR} line.
+ * </p>
+ *
+ * @see DrawingServer
+ * @see CanvasRenderer
+ */
+public class ConnectionHandler implements Runnable {
+    private final Socket clientSocket;
+    private final CanvasManager canvases;
+    private final Semaphore connectionSlots;
+    private final ServerConfig config;
+    private final CommandParser parser;
+    private final BinaryDecoder decoder;
+    private final ShapeCommand command = new ShapeCommand();
+    private final ServerMetrics metrics;
+    private final AdmissionControl admission;
+    private final Acknowledgements acks;
+    private CanvasSession canvas;
+    private OutputStream out;
+    private boolean streaming;
+    private boolean viewed;
+
+    /**
+     * Creates a handler for an accepted client connection.
+     *
+     * @param clientSocket    the accepted client socket; it is closed when the handler completes.
+     * @param canvases        the canvases the client can draw on.
+     * @param connectionSlots the semaphore limiting concurrent connections; one permit is released on completion.
+     * @param config          the server configuration selecting the connection protocol.
+     */
+    public ConnectionHandler(Socket clientSocket, CanvasManager canvases, Semaphore connectionSlots,
+                             ServerConfig config) {
+        this.clientSocket = clientSocket;
+        this.canvases = canvases;
+        this.connectionSlots = connectionSlots;
+        this.config = config;
+        this.metrics = canvases.getDefault().getMetrics();
+        this.admission = canvases.getAdmissionControl();
+        this.parser = new CommandParser(DrawingServer.getShapeRegistry(), config.getMaxVertices());
+        this.decoder = new BinaryDecoder(DrawingServer.getShapeRegistry(), config.getMaxVertices());
+        this.acks = new Acknowledgements(config.getAckBatch());
+    }
+
+    /**
+     * Reads the drawing requests sent by the client and renders them.
+     */
+    @Override
+    public void run() {
+        metrics.connectionOpened();
+        canvas = canvases.attachDefault();
+        try (Socket socket = clientSocket) {
+            socket.setSoTimeout(config.getReadTimeoutMillis());
+            out = new BufferedOutputStream(socket.getOutputStream());
+            try {
+                serve(new PushbackInputStream(socket.getInputStream()));
+            } catch (ProtocolException e) {
+                metrics.requestOversized();
+                ServerLog.warn("Closing connection: " + e.getMessage());
+                acks.next();
+                refuse(Acknowledgements.INVALID, e.getMessage());
+            }
+            out.flush();
+        } catch (SocketTimeoutException e) {
+            metrics.connectionTimedOut();
+            ServerLog.info("Closing connection silent for " + config.getReadTimeoutMillis() + " ms");
+        } catch (Exception e) {
+            ServerLog.error("Connection failed", e);
+        } finally {
+            canvases.detach(canvas);
+            metrics.connectionClosed();
+            connectionSlots.release();
+        }
+    }
+
+    /**
+     * Serves the connection with the protocol chosen by its first byte.
+     *
+     * @param input the socket input.
+     * @throws IOException If reading a request or writing a reply fails.
+     * @throws InterruptedException If the thread is interrupted while waiting for room in the render queue.
+     */
+    private void serve(PushbackInputStream input) throws IOException, InterruptedException {
+        int first = input.read();
+        if (first == (BinaryProtocol.MAGIC & 0xFF)) {
+            if (negotiate(input)) {
+                serveFrames(new FrameReader(input, config.getMaxLineLength()));
+            }
+            return;
+        }
+        if (first >= 0) {
+            input.unread(first);
+        }
+        LineReader in = new LineReader(input, config.getMaxLineLength());
+        if (config.isPersistent()) {
+            serveStream(in);
+        } else {
+            while (!viewed && in.nextLine() && admit(in.buffer(), in.lineStart(), in.lineEnd())) {
+                // A canvas selection is followed by the request itself.
+            }
+        }
+    }
+
+    /**
+     * Renders newline-delimited requests until end of stream, acknowledging them in batches if configured.
+     *
+     * @param in the line reader over the socket input.
+     * @throws IOException If reading a request or writing a reply fails.
+     * @throws InterruptedException If the thread is interrupted while waiting for room in the render queue.
+     */
+    private void serveStream(LineReader in) throws IOException, InterruptedException {
+        streaming = true;
+        while (in.nextLine()) {
+            if (in.lineEnd() == in.lineStart()) {
+                continue;
+            }
+            admit(in.buffer(), in.lineStart(), in.lineEnd());
+            if (viewed) {
+                return;
+            }
+            acknowledge(acks.completed());
+            if (acks.isSequenced() && in.isDrained()) {
+                acknowledge(acks.drained());
+            }
+        }
+        acknowledge(acks.finished());
+    }
+
+    /**
+     * Answers the version requested by a binary client.
+     *
+     * @param input the socket input, positioned after {@link BinaryProtocol#MAGIC}.
+     * @return {@code true} if the requested version is supported.
+     * @throws IOException If reading the version or writing the answer fails.
+     */
+    private boolean negotiate(InputStream input) throws IOException {
+        int version = input.read();
+        boolean supported = version == BinaryProtocol.VERSION;
+        out.write(BinaryProtocol.MAGIC);
+        out.write(supported ? BinaryProtocol.VERSION : 0);
+        out.flush();
+        return supported;
+    }
+
+    /**
+     * Renders binary frames until end of stream, acknowledging them in batches if configured.
+     *
+     * @param in the frame reader over the socket input.
+     * @throws IOException If reading a frame or writing a reply fails.
+     * @throws InterruptedException If the thread is interrupted while waiting for room in the render queue.
+     */
+    private void serveFrames(FrameReader in) throws IOException, InterruptedException {
+        streaming = true;
+        while (in.nextFrame()) {
+            int from = in.bodyStart();
+            int to = in.bodyEnd();
+            if (from == to) {
+                continue;
+            }
+            if (in.buffer().get(from) == BinaryProtocol.TEXT_OPCODE) {
+                admit(in.buffer(), from + 1, to);
+                if (viewed) {
+                    return;
+                }
+            } else {
+                renderBinary(in.buffer(), from, to);
+            }
+            acknowledge(acks.completed());
+            if (acks.isSequenced() && in.isDrained()) {
+                acknowledge(acks.drained());
+            }
+        }
+        acknowledge(acks.finished());
+    }
+
+    /**
+     * Counts a binary drawing request, then decodes and queues it if the rate limit of the client allows it, or
+     * refuses it.
+     *
+     * @param buffer the buffer holding the frame.
+     * @param from   the absolute index of the first byte of the frame body.
+     * @param to     the absolute index after the last byte of the frame body.
+     * @throws IOException If writing a reply fails.
+     * @throws InterruptedException If the thread is interrupted while waiting for room in the render queue.
+     */
+    private void renderBinary(ByteBuffer buffer, int from, int to) throws IOException, InterruptedException {
+        acks.next();
+        if (!admission.allowRequest(clientSocket.getInetAddress())) {
+            canvas.getMetrics().commandRateLimited();
+            refuse(Acknowledgements.RATE_LIMITED, AdmissionControl.RATE_LIMITED);
+            return;
+        }
+        long start = System.nanoTime();
+        boolean valid = decoder.decode(buffer, from, to, command);
+        canvas.getMetrics().recordParse(System.nanoTime() - start);
+        if (valid) {
+            queue();
+        } else {
+            canvas.getMetrics().commandRejected();
+            ServerLog.warn("Invalid binary request (" + command + ")");
+            reject();
+        }
+    }
+
+    /**
+     * Counts a text request, then renders it if the rate limit of the client allows it, or refuses it.
+     *
+     * @param buffer the buffer holding the request.
+     * @param from   the absolute index of the first byte of the request.
+     * @param to     the absolute index after the last byte of the request.
+     * @return {@code true} if the request selected a canvas.
+     * @throws IOException If writing the reply fails.
+     * @throws InterruptedException If the thread is interrupted while waiting for room in the render queue.
+     */
+    private boolean admit(ByteBuffer buffer, int from, int to) throws IOException, InterruptedException {
+        acks.next();
+        if (admission.allowRequest(clientSocket.getInetAddress())) {
+            return render(buffer, from, to);
+        }
+        canvas.getMetrics().commandRateLimited();
+        refuse(Acknowledgements.RATE_LIMITED, AdmissionControl.RATE_LIMITED);
+        return false;
+    }
+
+    /**
+     * Parses a text request and queues it for rendering, executes it as a canvas selection, a {@code VIEW} or
+     * {@code ACKS} request or a control command, or reports why it is invalid.
+     *
+     * @param buffer the buffer holding the request.
+     * @param from   the absolute index of the first byte of the request.
+     * @param to     the absolute index after the last byte of the request.
+     * @return {@code true} if the request selected a canvas.
+     * @throws IOException If writing the reply of a control command fails.
+     * @throws InterruptedException If the thread is interrupted while waiting for room in the render queue.
+     */
+    private boolean render(ByteBuffer buffer, int from, int to) throws IOException, InterruptedException {
+        ServerMetrics canvasMetrics = canvas.getMetrics();
+        long start = System.nanoTime();
+        boolean valid = parser.parse(buffer, from, to, command);
+        canvasMetrics.recordParse(System.nanoTime() - start);
+        if (valid) {
+            queue();
+            return false;
+        }
+        boolean selected = false;
+        byte[] reply;
+        try {
+            CanvasSession selection = canvases.select(buffer, from, to, canvas);
+            if (selection != null) {
+                canvas = selection;
+                selected = true;
+                reply = CanvasManager.selectionReply(selection);
+            } else {
+                int fps = CanvasStreamer.viewRequest(buffer, from, to);
+                if (fps >= 0) {
+                    view(fps);
+                    return false;
+                }
+                int batch = Acknowledgements.request(buffer, from, to);
+                reply = batch >= 0 ? sequence(batch) : canvas.getControlCommands().execute(buffer, from, to);
+            }
+        } catch (IllegalArgumentException e) {
+            reply = ControlCommands.error(e.getMessage());
+        }
+        if (reply != null) {
+            canvasMetrics.controlCommandExecuted();
+            out.write(acks.reply(reply));
+            out.flush();
+        } else {
+            canvasMetrics.commandRejected();
+            if (ServerLog.isEnabled(ServerLog.Level.WARN)) {
+                byte[] line = new byte[to - from];
+                buffer.get(from, line);
+                ServerLog.warn("Invalid request (" + command + "): " + new String(line, StandardCharsets.US_ASCII));
+            }
+            reject();
+        }
+        return selected;
+    }
+
+    /**
+     * Switches the connection to sequenced replies.
+     *
+     * @param batch the number of requests per acknowledgement.
+     * @return the reply to the {@code ACKS} request.
+     * @throws IllegalArgumentException If the connection carries a single request.
+     */
+    private byte[] sequence(int batch) {
+        if (!streaming) {
+            throw new IllegalArgumentException("acknowledgements require a persistent connection");
+        }
+        return acks.enable(batch);
+    }
+
+    /**
+     * Streams the canvas to the client until it disconnects, after which the connection is finished.
+     *
+     * @param fps the frame rate asked for by the client, or {@code 0} for the rate of the server.
+     * @throws IllegalArgumentException If the canvas cannot be viewed.
+     * @throws IOException If writing the pending replies fails.
+     * @throws InterruptedException If the thread is interrupted.
+     */
+    private void view(int fps) throws IOException, InterruptedException {
+        out.flush();
+        canvas.getStreamer().view(out, fps);
+        canvas.getMetrics().controlCommandExecuted();
+        viewed = true;
+    }
+
+    /**
+     * Queues the parsed command for rendering if the in-flight budget of the server allows it, or refuses it.
+     *
+     * @throws IOException If writing the refusal fails.
+     * @throws InterruptedException If the thread is interrupted while waiting for room in the render queue.
+     */
+    private void queue() throws IOException, InterruptedException {
+        if (canvas.getRenderer().tryRender(command)) {
+            canvas.getMetrics().commandAccepted();
+        } else {
+            canvas.getMetrics().commandShed();
+            refuse(Acknowledgements.OVERLOADED, AdmissionControl.OVERLOADED);
+        }
+    }
+
+    /**
+     * Writes an error line for a refused request, a {@code NACK} with sequenced replies. The line is flushed right
+     * away, unless replies are sequenced: the acknowledgement following the request flushes it then.
+     *
+     * @param code   the code of the refusal.
+     * @param reason the reason of the refusal.
+     * @throws IOException If the write fails.
+     */
+    private void refuse(String code, String reason) throws IOException {
+        out.write(acks.failure(code, reason));
+        if (!acks.isSequenced()) {
+            out.flush();
+        }
+    }
+
+    /**
+     * Reports an invalid request to the client if it asked for sequenced replies; it is only logged otherwise.
+     *
+     * @throws IOException If the write fails.
+     */
+    private void reject() throws IOException {
+        if (acks.isSequenced()) {
+            refuse(Acknowledgements.INVALID, command.getErrorMessage() + " at " + command.getErrorPosition());
+        }
+    }
+
+    /**
+     * Writes and flushes an acknowledgement line, if one is due.
+     *
+     * @param reply the {@code ACK} line, or {@code null} if none is due.
+     * @throws IOException If the write fails.
+     */
+    private void acknowledge(byte[] reply) throws IOException {
+        if (reply != null) {
+            out.write(reply);
+            out.flush();
+        }
+    }
+}
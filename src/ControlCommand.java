@@ -0,0 +1,27 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Interface for protocol commands that do not draw a shape, such as taking a snapshot of the canvas.
+ * <p>
+ * Control commands share the text format of drawing requests, {@code <sender> <KEYWORD> <argument> ...}, and
+ * are registered by keyword in {@link ControlCommands}. Unlike drawing requests they produce a reply, which is
+ * written back to the client.
+ * </p>
+ *
+ * @see ControlCommands
+ */
+public interface ControlCommand {
+    /**
+     * Executes the command.
+     *
+     * @param buffer the buffer holding the request, in ASCII.
+     * @param from   the absolute index of the first argument, after the keyword.
+     * @param to     the absolute index after the last byte of the request.
+     * @return the reply to send to the client.
+     * @throws IllegalArgumentException If the arguments are invalid; the message is sent back as an error.
+     * @throws IOException If the command fails.
+     * @throws InterruptedException If the command is interrupted.
+     */
+    byte[] execute(ByteBuffer buffer, int from, int to) throws IOException, InterruptedException;
+}
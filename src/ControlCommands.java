@@ -0,0 +1,138 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The {@code ControlCommands} class dispatches the protocol commands that do not draw a shape.
+ * <p>
+ * Connections first try to parse a line as a drawing request; only lines whose keyword is not a registered
+ * shape are looked up here, so control commands add nothing to the cost of drawing. A command's reply is
+ * returned as bytes for the transport to send. Failures are turned into a single {@code ERROR <message>} line.
+ * </p>
+ *
+ * @see ControlCommand
+ * @see ConnectionHandler
+ * @see NioServer
+ */
+public class ControlCommands {
+    private final Map<String, ControlCommand> commands = new LinkedHashMap<>();
+
+    /**
+     * Creates the control commands available on a server.
+     *
+     * @param renderer the renderer of the canvas.
+     * @param config   the server configuration.
+     * @return the control commands.
+     */
+    public static ControlCommands createDefault(CanvasRenderer renderer, ServerConfig config) {
+        ControlCommands controlCommands = new ControlCommands();
+        controlCommands.register("SNAPSHOT", new SnapshotCommand(renderer, config.getSnapshotDirectory()));
+        controlCommands.register("STATS", new StatsCommand(renderer.getMetrics()));
+        controlCommands.register("SYNC", new SyncCommand(renderer));
+        for (SceneCommand.Operation operation : SceneCommand.Operation.values()) {
+            controlCommands.register(operation.name(), new SceneCommand(renderer, operation));
+        }
+        return controlCommands;
+    }
+
+    /**
+     * Registers a control command, replacing any command previously registered for the keyword.
+     *
+     * @param keyword the upper-case keyword of the command.
+     * @param command the command.
+     */
+    public synchronized void register(String keyword, ControlCommand command) {
+        commands.put(keyword, command);
+    }
+
+    /**
+     * Executes a request if it is a control command.
+     *
+     * @param buffer the buffer holding the request, in ASCII.
+     * @param from   the absolute index of the first byte of the request.
+     * @param to     the absolute index after the last byte of the request.
+     * @return the reply to send to the client, or {@code null} if the request is not a control command.
+     * @throws InterruptedException If the command is interrupted.
+     */
+    public byte[] execute(ByteBuffer buffer, int from, int to) throws InterruptedException {
+        if (to > from && buffer.get(to - 1) == '\r') {
+            to--;
+        }
+        int keywordEnd = CommandParser.tokenEnd(buffer, keywordStart(buffer, from, to), to);
+        ControlCommand command = find(buffer, from, to);
+        if (command == null) {
+            return null;
+        }
+        try {
+            return command.execute(buffer, CommandParser.skipSpaces(buffer, keywordEnd, to), to);
+        } catch (IllegalArgumentException | IOException e) {
+            return error(e.getMessage());
+        }
+    }
+
+    /**
+     * Tells whether a request is a control command, without executing it.
+     *
+     * @param buffer the buffer holding the request, in ASCII.
+     * @param from   the absolute index of the first byte of the request.
+     * @param to     the absolute index after the last byte of the request.
+     * @return {@code true} if {@link #execute(ByteBuffer, int, int)} would execute the request.
+     */
+    public boolean isCommand(ByteBuffer buffer, int from, int to) {
+        if (to > from && buffer.get(to - 1) == '\r') {
+            to--;
+        }
+        return find(buffer, from, to) != null;
+    }
+
+    private ControlCommand find(ByteBuffer buffer, int from, int to) {
+        int keywordStart = keywordStart(buffer, from, to);
+        int keywordEnd = CommandParser.tokenEnd(buffer, keywordStart, to);
+        synchronized (this) {
+            for (Map.Entry<String, ControlCommand> entry : commands.entrySet()) {
+                if (CommandParser.matches(buffer, keywordStart, keywordEnd, entry.getKey())) {
+                    return entry.getValue();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Skips the sender of a request.
+     */
+    private static int keywordStart(ByteBuffer buffer, int from, int to) {
+        return CommandParser.skipSpaces(buffer,
+                CommandParser.tokenEnd(buffer, CommandParser.skipSpaces(buffer, from, to), to), to);
+    }
+
+    /**
+     * Builds an error reply.
+     *
+     * @param message the description of the error.
+     * @return the {@code ERROR <message>} line.
+     */
+    static byte[] error(String message) {
+        return ("ERROR " + message + "\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Reads the next token of a request as a {@code String}.
+     *
+     * @param buffer the buffer holding the request.
+     * @param from   the absolute index of the token.
+     * @param to     the absolute index after the last byte of the request.
+     * @return the token, or {@code null} if there is none.
+     */
+    static String token(ByteBuffer buffer, int from, int to) {
+        int end = CommandParser.tokenEnd(buffer, from, to);
+        if (end == from) {
+            return null;
+        }
+        byte[] bytes = new byte[end - from];
+        buffer.get(from, bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+}
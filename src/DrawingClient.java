@@ -0,0 +1,485 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The {@code DrawingClient} class is an asynchronous client library for the {@link DrawingServer}, which must run
+ * with {@code -Ddrawing.server.persistent=true}.
+ * <p>
+ * {@link #send(String)} queues a request and returns at once with a {@link CompletableFuture}, completed when the
+ * server acknowledges the request, or completed exceptionally with a {@link RequestException} carrying the
+ * {@link Acknowledgements} code when the server refuses it, or with an {@link IOException} when the connection
+ * fails first. {@link #sync()} returns a future completed once every request sent before it has been drawn. A
+ * producer can thus keep thousands of requests in flight, and find out about each of them later.
+ * </p>
+ *
+ * <p>
+ * The client keeps a pool of persistent connections, each switched to sequenced replies with an {@code ACKS}
+ * request when it is opened, and spreads the requests over them in turn. Every connection has a writer thread
+ * which sends all the requests queued since its previous write at once and only flushes the socket when it has
+ * caught up, so requests are batched automatically under load without delaying a lone request, and a reader thread
+ * which matches the {@code ACK}, {@code NACK} and {@code OK SYNC} replies with the futures of the requests by their
+ * sequence numbers. A connection that fails fails the futures of its requests, and is replaced by a new connection
+ * when its turn comes again.
+ * </p>
+ *
+ * <p>
+ * The number of requests in flight, sent but not acknowledged yet, is bounded: {@link #send(String)} waits while
+ * the bound is reached, which slows producers down to the pace of the server. Requests sent on different
+ * connections may be drawn in any order, so a client that needs its shapes drawn in order, or {@code REMOVE}
+ * requests to follow the shapes they remove, uses a single connection. The replies of control commands other than
+ * {@code SYNC} are not returned; binary replies such as {@code SNAPSHOT RAW} are not supported.
+ * </p>
+ *
+ * @see Acknowledgements
+ * @see LoadGenerator
+ */
+public class DrawingClient implements AutoCloseable {
+    /** The default bound on the number of requests in flight. */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 16 * 1024;
+
+    private static final byte[] SYNC_REQUEST = "client SYNC\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final String host;
+    private final int port;
+    private final String canvas;
+    private final Semaphore inFlight;
+    private final AtomicReferenceArray<Connection> pool;
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile boolean closed;
+
+    /**
+     * Connects a client with a single connection to the default canvas.
+     *
+     * @param host the host of the server.
+     * @param port the port of the server.
+     * @throws IOException If the connection cannot be opened.
+     */
+    public DrawingClient(String host, int port) throws IOException {
+        this(host, port, null, 1, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Connects a client.
+     *
+     * @param host        the host of the server.
+     * @param port        the port of the server.
+     * @param canvas      the canvas every connection selects, or {@code null} for the default canvas.
+     * @param connections the number of connections of the pool.
+     * @param maxInFlight the largest number of requests in flight.
+     * @throws IOException If a connection cannot be opened.
+     */
+    public DrawingClient(String host, int port, String canvas, int connections, int maxInFlight) throws IOException {
+        if (connections < 1) {
+            throw new IllegalArgumentException("connections must be >= 1: " + connections);
+        }
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be >= 1: " + maxInFlight);
+        }
+        this.host = host;
+        this.port = port;
+        this.canvas = canvas;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.pool = new AtomicReferenceArray<>(connections);
+        try {
+            for (int i = 0; i < connections; i++) {
+                pool.set(i, new Connection(i));
+            }
+        } catch (IOException e) {
+            for (int i = 0; i < connections; i++) {
+                if (pool.get(i) != null) {
+                    pool.get(i).abort(e);
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a request, waiting first while the bound on requests in flight is reached.
+     *
+     * @param request the request, in the text protocol and without the terminating newline, for example
+     *                {@code "c1 CIRCLE 100 100 20 red"}.
+     * @return a future completed when the server acknowledges the request.
+     * @throws IllegalStateException If the client is closed.
+     * @throws InterruptedException If the calling thread is interrupted while waiting.
+     */
+    public CompletableFuture<Void> send(String request) throws InterruptedException {
+        byte[] line = (request + "\n").getBytes(StandardCharsets.US_ASCII);
+        return connection(Math.floorMod(next.getAndIncrement(), pool.length())).submit(line, false);
+    }
+
+    /**
+     * Asks every connection for a {@code SYNC}, waiting first while the bound on requests in flight is reached.
+     *
+     * @return a future completed once every request sent before has been drawn.
+     * @throws IllegalStateException If the client is closed.
+     * @throws InterruptedException If the calling thread is interrupted while waiting.
+     */
+    public CompletableFuture<Void> sync() throws InterruptedException {
+        CompletableFuture<?>[] syncs = new CompletableFuture<?>[pool.length()];
+        for (int i = 0; i < syncs.length; i++) {
+            syncs[i] = connection(i).submit(SYNC_REQUEST, true);
+        }
+        return CompletableFuture.allOf(syncs);
+    }
+
+    /**
+     * @return the number of requests sent but not acknowledged yet.
+     */
+    public int getInFlight() {
+        int inFlight = 0;
+        for (int i = 0; i < pool.length(); i++) {
+            inFlight += pool.get(i).size();
+        }
+        return inFlight;
+    }
+
+    /**
+     * Sends the queued requests, waits for their acknowledgements and closes the connections. Requests still
+     * unacknowledged when a connection ends fail. If the calling thread is interrupted, it stops waiting and keeps
+     * its interrupt status.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (int i = 0; i < pool.length(); i++) {
+            pool.get(i).shutdown();
+        }
+        try {
+            for (int i = 0; i < pool.length(); i++) {
+                pool.get(i).join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns a connection of the pool, replacing it first if it failed.
+     */
+    private Connection connection(int index) {
+        if (closed) {
+            throw new IllegalStateException("client closed");
+        }
+        Connection connection = pool.get(index);
+        if (connection.isFailed()) {
+            synchronized (pool) {
+                connection = pool.get(index);
+                if (connection.isFailed()) {
+                    try {
+                        connection = new Connection(index);
+                        pool.set(index, connection);
+                    } catch (IOException e) {
+                        // The request fails with the connection.
+                    }
+                }
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * A request refused by the server with a {@code NACK} reply.
+     */
+    public static class RequestException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final long sequence;
+        private final String code;
+
+        /**
+         * Creates the exception of a refused request.
+         *
+         * @param sequence the number of the request on its connection.
+         * @param code     the code of the refusal, such as {@link Acknowledgements#INVALID}.
+         * @param message  the description of the refusal.
+         */
+        public RequestException(long sequence, String code, String message) {
+            super(code + ": " + message);
+            this.sequence = sequence;
+            this.code = code;
+        }
+
+        /**
+         * @return the number of the request on its connection.
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return the code of the refusal, such as {@link Acknowledgements#INVALID}.
+         */
+        public String getCode() {
+            return code;
+        }
+    }
+
+    /**
+     * A request waiting for its acknowledgement.
+     */
+    private record Pending(long sequence, CompletableFuture<Void> future) {
+    }
+
+    /**
+     * A connection of the pool, with its writer and reader threads.
+     */
+    private final class Connection {
+        private final Socket socket;
+        private final OutputStream out;
+        private final BufferedReader in;
+        private final Thread writer;
+        private final Thread reader;
+        // Guarded by this connection.
+        private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+        private final ArrayDeque<CompletableFuture<Void>> syncs = new ArrayDeque<>();
+        private ArrayDeque<byte[]> outbox = new ArrayDeque<>();
+        private long sequence;
+        private boolean closing;
+        private IOException failure;
+
+        /**
+         * Opens the connection: selects the canvas if any, asks for sequenced replies and starts the threads.
+         */
+        Connection(int index) throws IOException {
+            socket = new Socket(host, port);
+            try {
+                socket.setTcpNoDelay(true);
+                out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+                in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII),
+                        64 * 1024);
+                if (canvas != null) {
+                    out.write(("client CANVAS " + canvas + "\n").getBytes(StandardCharsets.US_ASCII));
+                }
+                out.write(("client ACKS " + Acknowledgements.DEFAULT_BATCH + "\n").getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                if (canvas != null) {
+                    expect(in.readLine(), "OK CANVAS");
+                }
+                String reply = in.readLine();
+                expect(reply, "OK ACKS");
+                sequence = Long.parseLong(reply.split(" ")[2]);
+            } catch (IOException | RuntimeException e) {
+                socket.close();
+                throw e instanceof IOException io ? io : new IOException("Unexpected reply", e);
+            }
+            writer = new Thread(this::write, "drawing-client-writer-" + index);
+            writer.setDaemon(true);
+            reader = new Thread(this::read, "drawing-client-reader-" + index);
+            reader.setDaemon(true);
+            writer.start();
+            reader.start();
+        }
+
+        private static void expect(String reply, String prefix) throws IOException {
+            if (reply == null) {
+                throw new EOFException("Connection closed by the server");
+            }
+            if (!reply.startsWith(prefix)) {
+                throw new IOException("Unexpected reply: " + reply);
+            }
+        }
+
+        /**
+         * Queues a request for the writer thread.
+         */
+        CompletableFuture<Void> submit(byte[] line, boolean sync) throws InterruptedException {
+            inFlight.acquire();
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            IOException failed;
+            synchronized (this) {
+                failed = closing ? new IOException("client closed") : failure;
+                if (failed == null) {
+                    pending.add(new Pending(++sequence, future));
+                    if (sync) {
+                        syncs.add(future);
+                    }
+                    outbox.add(line);
+                    if (outbox.size() == 1) {
+                        notifyAll();
+                    }
+                    return future;
+                }
+            }
+            inFlight.release();
+            future.completeExceptionally(failed);
+            return future;
+        }
+
+        synchronized int size() {
+            return pending.size();
+        }
+
+        synchronized boolean isFailed() {
+            return failure != null;
+        }
+
+        /**
+         * Lets the writer send the queued requests, then end the output of the connection.
+         */
+        synchronized void shutdown() {
+            closing = true;
+            notifyAll();
+        }
+
+        void join() throws InterruptedException {
+            writer.join();
+            reader.join();
+        }
+
+        /**
+         * Writes the queued requests, flushing whenever no more are queued, until the connection is shut down.
+         */
+        private void write() {
+            ArrayDeque<byte[]> batch = new ArrayDeque<>();
+            try {
+                while (true) {
+                    synchronized (this) {
+                        while (outbox.isEmpty() && !closing && failure == null) {
+                            wait();
+                        }
+                        if (failure != null || outbox.isEmpty()) {
+                            break;
+                        }
+                        ArrayDeque<byte[]> queued = outbox;
+                        outbox = batch;
+                        batch = queued;
+                    }
+                    for (byte[] line : batch) {
+                        out.write(line);
+                    }
+                    batch.clear();
+                    boolean caughtUp;
+                    synchronized (this) {
+                        caughtUp = outbox.isEmpty();
+                    }
+                    if (caughtUp) {
+                        out.flush();
+                    }
+                }
+                out.flush();
+                socket.shutdownOutput();
+            } catch (IOException e) {
+                abort(e);
+            } catch (InterruptedException e) {
+                abort(new IOException("Interrupted while writing", e));
+            }
+        }
+
+        /**
+         * Reads the replies of the server until it closes the connection, completing the futures of the requests.
+         */
+        private void read() {
+            List<CompletableFuture<Void>> completed = new ArrayList<>();
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("ACK ")) {
+                        acknowledged(Long.parseLong(line.substring(4)), completed);
+                    } else if (line.startsWith("NACK ")) {
+                        refused(line);
+                    } else if (line.equals("OK SYNC")) {
+                        synced();
+                    }
+                    // Other replies answer control commands, and are acknowledged like any request.
+                }
+                abort(new EOFException("Connection closed by the server"));
+            } catch (IOException | RuntimeException e) {
+                abort(e instanceof IOException io ? io : new IOException("Unexpected reply", e));
+            }
+        }
+
+        /**
+         * Completes the futures of the requests up to a sequence number.
+         */
+        private void acknowledged(long sequence, List<CompletableFuture<Void>> completed) {
+            synchronized (this) {
+                while (!pending.isEmpty() && pending.peek().sequence() <= sequence) {
+                    completed.add(pending.poll().future());
+                }
+            }
+            inFlight.release(completed.size());
+            for (CompletableFuture<Void> future : completed) {
+                // Futures already failed by a NACK stay failed.
+                future.complete(null);
+            }
+            completed.clear();
+        }
+
+        /**
+         * Fails the future of a request refused with {@code NACK <sequence> <code> <message>}; its acknowledgement
+         * follows.
+         */
+        private void refused(String line) {
+            String[] fields = line.split(" ", 4);
+            long sequence = Long.parseLong(fields[1]);
+            CompletableFuture<Void> future = null;
+            synchronized (this) {
+                for (Pending request : pending) {
+                    if (request.sequence() == sequence) {
+                        future = request.future();
+                        break;
+                    }
+                }
+            }
+            if (future != null) {
+                future.completeExceptionally(new RequestException(sequence, fields[2],
+                        fields.length > 3 ? fields[3] : ""));
+            }
+        }
+
+        /**
+         * Completes the future of the oldest {@code SYNC} still waiting.
+         */
+        private void synced() {
+            CompletableFuture<Void> future;
+            synchronized (this) {
+                do {
+                    future = syncs.poll();
+                } while (future != null && future.isDone());
+            }
+            if (future != null) {
+                future.complete(null);
+            }
+        }
+
+        /**
+         * Fails the connection and the futures of its requests, and closes its socket.
+         */
+        void abort(IOException cause) {
+            List<Pending> failed;
+            synchronized (this) {
+                if (failure == null) {
+                    failure = cause;
+                }
+                failed = new ArrayList<>(pending);
+                pending.clear();
+                syncs.clear();
+                outbox.clear();
+                notifyAll();
+            }
+            inFlight.release(failed.size());
+            for (Pending request : failed) {
+                request.future().completeExceptionally(cause);
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already failed.
+            }
+        }
+    }
+}
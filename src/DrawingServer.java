@@ -1,9 +1,11 @@
 import java.awt.*;
-import java.awt.image.BufferStrategy;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.*;
 import java.net.*;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
 /**
  * The {@code DrawingServer} class implements a TCP server that receives drawing commands and renders shapes.
@@ -14,104 +16,197 @@ import java.util.Map;
  * </p>
  *
  * <p>
+ * Connections are served concurrently, either with one virtual thread per connection or with a bounded worker
+ * pool, as described by {@link ServerConfig}. Parsed commands are queued to the {@link CanvasRenderer}, whose
+ * single render thread draws them onto the shared frame in batches. In headless mode the frame is replaced by an
+ * offscreen {@link ImageSurface}, whose content clients can export with the {@code SNAPSHOT} command. When
+ * enabled, the drawn shapes are retained in a {@link Scene}, which clients can query with {@code HIT} and
+ * {@code QUERY} and edit with {@code REMOVE} and {@code CLEAR}.
+ * </p>
+ *
+ * <p>
+ * With {@link ServerConfig#getJournalDirectory()}, every change of the canvas is logged by a
+ * {@link CommandJournal}, which rebuilds the canvas when the server restarts.
+ * </p>
+ *
+ * <p>
+ * Besides the canvas shown in the frame, clients can draw on named offscreen canvases, selected with the
+ * {@code CANVAS} command. Each has its own size, scene and render thread, so clients of different canvases do not
+ * contend; the {@link CanvasManager} opens them on demand and evicts those left idle.
+ * </p>
+ *
+ * <p>
+ * The protocol is fire-and-forget by default. A client that wants to know what became of its requests asks for
+ * the sequenced replies of {@link Acknowledgements}: numbered acknowledgements, and a {@code NACK} with a code for
+ * every failed request. The {@code SYNC} command tells when the shapes sent before it are drawn.
+ * {@link DrawingClient} builds an asynchronous, pipelined client on top of them.
+ * </p>
+ *
+ * <p>
+ * A connection can also watch a canvas live: after a {@code VIEW} request, the {@link CanvasStreamer} of the canvas
+ * sends it the tiles of the framebuffer that changed, compressed, at a capped frame rate. A viewer too slow to keep
+ * up skips frames instead of slowing down the rendering.
+ * </p>
+ *
+ * <p>
+ * The server protects itself from misbehaving clients: connections silent for too long are closed, requests larger
+ * than the configured line length or vertex count are rejected, and the {@link AdmissionControl} refuses requests
+ * over the rate limit of their client or over the global in-flight budget with an {@code ERROR} reply, so an
+ * overload is shed explicitly instead of exhausting memory.
+ * </p>
+ *
+ * <p>
+ * Activity is measured by {@link ServerMetrics}, readable through JMX or with the {@code STATS} command, and
+ * console messages go through the asynchronous {@link ServerLog}.
+ * </p>
+ *
+ * <p>
  * Design Patterns used:
  * <ul>
  *   <li><b>Chain of Responsibility:</b> For delegating drawing requests to the appropriate handler.</li>
- *   <li><b>Singleton:</b> The color mapping is managed via a static initializer.</li>
+ *   <li><b>Registry:</b> The shape handlers are built once and looked up by shape keyword.</li>
+ *   <li><b>Singleton:</b> The color table is built once by a static initializer, see {@link ColorTable}.</li>
  * </ul>
  * </p>
  */
 public class DrawingServer {
-    private static final Map<String, Color> colorMap = new HashMap<>();
-
-    // Initialize the color mapping.
-    static {
-        colorMap.put("red", Color.RED);
-        colorMap.put("green", Color.GREEN);
-        colorMap.put("blue", Color.BLUE);
-        colorMap.put("yellow", Color.YELLOW);
-        colorMap.put("black", Color.BLACK);
-        colorMap.put("cyan", Color.CYAN);
-    }
+    private static final ShapeRegistry shapeRegistry = ShapeRegistry.createDefault();
 
     /**
      * The main method initializes the drawing frame and starts the server socket to listen for drawing requests.
      * <p>
-     * The frame is created with a fixed size (1000x800) and is set as non-resizable to block any modification
-     * to its size. A double-buffered strategy is used to render the shapes.
+     * The canvas is either a fixed-size frame (1000x800 by default), or an offscreen image in headless mode, see
+     * {@link ServerConfig#isHeadless()}. Connections are then served either by
+     * the non-blocking {@link NioServer} or by blocking sockets, depending on
+     * {@link ServerConfig#usesNioTransport()}.
      * </p>
      *
      * @param args Command-line arguments (not used).
      * @throws IOException If an I/O error occurs when opening the server socket.
+     * @throws InterruptedException If the accept loop is interrupted while waiting for a free connection slot.
      */
-    public static void main(String[] args) throws IOException {
-        ServerSocket serverSocket = new ServerSocket(8080);
-        System.out.println("Server is running...");
+    public static void main(String[] args) throws IOException, InterruptedException {
+        ServerConfig config = ServerConfig.fromSystemProperties();
+        ServerLog.setLevel(config.getLogLevel());
+        ServerLog.info("Server is running... (" + config + ")");
+        ServerMetrics metrics = new ServerMetrics(shapeRegistry);
+        metrics.registerMBean();
 
+        Frame frame = config.isHeadless() ? null : createFrame(config);
+        WindowSurface windowSurface = frame == null
+                ? null
+                : new WindowSurface(frame.getBufferStrategy(), config.getWidth(), config.getHeight());
+        ImageSurface surface = windowSurface == null
+                ? new ImageSurface(config.getWidth(), config.getHeight())
+                : windowSurface;
+        if (windowSurface != null) {
+            // The back buffer is not preserved while the window is hidden: show the framebuffer again.
+            frame.addWindowListener(new WindowAdapter() {
+                @Override
+                public void windowDeiconified(WindowEvent e) {
+                    windowSurface.refresh();
+                }
+
+                @Override
+                public void windowActivated(WindowEvent e) {
+                    windowSurface.refresh();
+                }
+            });
+        }
+        CanvasManager canvases = new CanvasManager(config, shapeRegistry);
+        canvases.openDefault(surface, metrics);
+        if (config.getJournalDirectory() != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(canvases::closeJournals, "journal-shutdown"));
+        }
+
+        if (config.usesNioTransport()) {
+            new NioServer(config, canvases).serve();
+        } else {
+            serveBlocking(config, canvases);
+        }
+    }
+
+    /**
+     * Creates the on-screen drawing frame.
+     * <p>
+     * The frame is created with a fixed size and is set as non-resizable to block any modification to its size.
+     * A double-buffered strategy is used to render the shapes.
+     * </p>
+     *
+     * @param config the server configuration providing the size of the frame.
+     * @return the visible frame, with its buffer strategy created.
+     */
+    private static Frame createFrame(ServerConfig config) {
         // Create a drawing frame with a fixed size and block any modifications to its size.
         Frame frame = new Frame("Drawing Server");
-        frame.setSize(1000, 800);
+        frame.setSize(config.getWidth(), config.getHeight());
         frame.setResizable(false); // Block any modification to the frame's size.
         frame.setVisible(true);
         frame.setIgnoreRepaint(true);
         frame.createBufferStrategy(2);
-        BufferStrategy bufferStrategy = frame.getBufferStrategy();
+        return frame;
+    }
 
-        // Main loop: process incoming drawing requests.
+    /**
+     * Accepts connections on a blocking server socket and serves each of them on a worker thread.
+     * <p>
+     * Each accepted connection is handed to a {@link ConnectionHandler}; once
+     * {@link ServerConfig#getMaxConnections()} connections are active, the accept loop waits for one of them
+     * to finish.
+     * </p>
+     *
+     * @param config   the server configuration.
+     * @param canvases the canvases clients can draw on.
+     * @throws IOException If an I/O error occurs when opening the server socket.
+     * @throws InterruptedException If the accept loop is interrupted while waiting for a free connection slot.
+     */
+    static void serveBlocking(ServerConfig config, CanvasManager canvases)
+            throws IOException, InterruptedException {
+        ServerSocket serverSocket = new ServerSocket(config.getPort());
+        ExecutorService workers = config.usesVirtualThreads()
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool(config.getWorkerThreads());
+        Semaphore connectionSlots = new Semaphore(config.getMaxConnections());
+
+        // Main loop: accept connections and serve each of them on a worker thread.
         while (true) {
-            try (Socket clientSocket = serverSocket.accept();
-                 BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()))) {
-                String request = in.readLine();
-                Graphics graphics = bufferStrategy.getDrawGraphics();
-                processRequest(request, graphics);
-                bufferStrategy.show();
-                graphics.dispose();
+            connectionSlots.acquire();
+            try {
+                Socket clientSocket = serverSocket.accept();
+                workers.execute(new ConnectionHandler(clientSocket, canvases, connectionSlots, config));
             } catch (Exception e) {
-                e.printStackTrace();
+                connectionSlots.release();
+                ServerLog.error("Cannot accept a connection", e);
             }
         }
     }
 
     /**
-     * Processes a drawing request by delegating it through a chain of {@link Handler} instances.
+     * Processes a drawing request by dispatching it to the {@link Handler} registered for its shape type.
      * <p>
-     * The request is a space-delimited string containing the shape type and parameters. Handlers for circles,
-     * segments, triangles, and polygons are created and chained together. The request is passed to the first
-     * handler in the chain.
+     * The request is a space-delimited string containing the shape type and parameters. The handlers for
+     * circles, segments, triangles, and polygons are registered once in the shared {@link ShapeRegistry},
+     * which selects the handler with a single lookup of the shape keyword.
      * </p>
      *
      * @param request  The drawing request as a string.
      * @param graphics The {@code Graphics} object used for rendering the shape.
      */
-    private static void processRequest(String request, Graphics graphics) {
-        System.out.println("Received: " + request);
+    static void processRequest(String request, Graphics graphics) {
+        ServerLog.debug("Received: " + request);
         String[] tokens = request.split(" ");
-
-        // Create handlers for different shapes.
-        Handler circleHandler = new CircleHandler();
-        Handler segmentHandler = new SegmentHandler();
-        Handler triangleHandler = new TriangleHandler();
-        Handler polygonHandler = new PolygonHandler();
-
-        // Chain the handlers.
-        circleHandler.setNextHandler(segmentHandler);
-        segmentHandler.setNextHandler(triangleHandler);
-        triangleHandler.setNextHandler(polygonHandler);
-
-        // Process the request starting with the circle handler.
-        circleHandler.handleRequest(tokens, graphics);
+        shapeRegistry.handleRequest(tokens, graphics);
     }
 
     /**
-     * Retrieves the {@code Color} object corresponding to the given color name.
+     * Returns the registry of shape handlers used to process drawing requests.
      * <p>
-     * If the specified color name is not found in the color map, {@code Color.BLACK} is returned by default.
+     * Additional shape types can be plugged in with {@link ShapeRegistry#register(String, ShapeHandler)}.
      * </p>
      *
-     * @param colorName The name of the color.
-     * @return The corresponding {@code Color} object, or {@code Color.BLACK} if not found.
+     * @return the shared shape registry.
      */
-    static Color getColor(String colorName) {
-        return colorMap.getOrDefault(colorName.toLowerCase(), Color.BLACK);
+    public static ShapeRegistry getShapeRegistry() {
+        return shapeRegistry;
     }
 }
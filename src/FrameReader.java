@@ -0,0 +1,118 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The {@code FrameReader} class splits a byte stream into the length-prefixed frames of the
+ * {@link BinaryProtocol}.
+ * <p>
+ * It is the binary counterpart of {@link LineReader}: frames are returned as index ranges into a reusable buffer,
+ * exposed through {@link #buffer()}, which can be handed directly to {@link BinaryDecoder}. A range is valid until
+ * the next call to {@link #nextFrame()}. The buffer only grows when a frame is longer than any previous one, up to
+ * an optional maximum frame length.
+ * Instances are not thread-safe.
+ * </p>
+ *
+ * @see BinaryProtocol
+ * @see ConnectionHandler
+ */
+public class FrameReader {
+    private final InputStream in;
+    private final int maxFrameLength;
+    private byte[] bytes;
+    private ByteBuffer buffer;
+    private int start;
+    private int end;
+    private int bodyStart;
+    private int bodyEnd;
+
+    /**
+     * Creates a frame reader over an input stream, accepting frames up to {@link BinaryProtocol#MAX_FRAME_LENGTH}.
+     *
+     * @param in the stream to read.
+     */
+    public FrameReader(InputStream in) {
+        this(in, BinaryProtocol.MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * Creates a frame reader over an input stream, refusing frames longer than a maximum.
+     *
+     * @param in             the stream to read.
+     * @param maxFrameLength the maximum length of a frame body, at most {@link BinaryProtocol#MAX_FRAME_LENGTH}.
+     */
+    public FrameReader(InputStream in, int maxFrameLength) {
+        this.in = in;
+        this.maxFrameLength = maxFrameLength;
+        this.bytes = new byte[8192];
+        this.buffer = ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * Advances to the next frame.
+     *
+     * @return {@code true} if a frame is available, {@code false} at end of stream.
+     * @throws IOException If reading the stream fails, the stream ends inside a frame or a frame is malformed.
+     */
+    public boolean nextFrame() throws IOException {
+        while (true) {
+            int frameEnd = BinaryProtocol.frameEnd(buffer, start, end, maxFrameLength);
+            if (frameEnd >= 0) {
+                bodyStart = BinaryProtocol.bodyStart(buffer, start);
+                bodyEnd = frameEnd;
+                start = frameEnd;
+                return true;
+            }
+            if (start > 0) {
+                System.arraycopy(bytes, start, bytes, 0, end - start);
+                end -= start;
+                start = 0;
+            }
+            if (end == bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                buffer = ByteBuffer.wrap(bytes);
+            }
+            int n = in.read(bytes, end, bytes.length - end);
+            if (n < 0) {
+                if (end > start) {
+                    throw new EOFException("Stream ended inside a frame");
+                }
+                return false;
+            }
+            end += n;
+        }
+    }
+
+    /**
+     * Tells whether all the input received so far has been returned, so that the next call may block.
+     *
+     * @return {@code true} if no byte is buffered and none can be read without blocking.
+     * @throws IOException If querying the stream fails.
+     */
+    public boolean isDrained() throws IOException {
+        return start == end && in.available() == 0;
+    }
+
+    /**
+     * @return the buffer holding the current frame.
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * @return the absolute index of the first byte of the body of the current frame, i.e. its opcode.
+     */
+    public int bodyStart() {
+        return bodyStart;
+    }
+
+    /**
+     * @return the absolute index after the last byte of the current frame.
+     */
+    public int bodyEnd() {
+        return bodyEnd;
+    }
+}
@@ -0,0 +1,162 @@
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The {@code ImageSurface} class draws frames into an offscreen {@link BufferedImage}.
+ * <p>
+ * It is used in headless mode, where no display is available to create an AWT frame, and as the framebuffer of the
+ * {@link WindowSurface}. The image is backed by an {@code int[]} framebuffer of ARGB pixels, which starts out opaque white. A lock is held from
+ * {@link #beginFrame()} to {@link #endFrame(Graphics)}, so snapshots taken from other threads never see a
+ * partially drawn frame.
+ * </p>
+ *
+ * <p>
+ * Snapshots can be exported as PNG, or as raw bytes: {@code width * height} pixels in row-major order, four bytes
+ * per pixel in big-endian ARGB order, without any header.
+ * </p>
+ *
+ * @see RenderSurface
+ */
+public class ImageSurface implements RenderSurface {
+    private final BufferedImage image;
+    private final int[] pixels;
+    private final ReentrantLock frameLock = new ReentrantLock();
+
+    /**
+     * Creates a white offscreen surface.
+     *
+     * @param width  the width of the surface, in pixels.
+     * @param height the height of the surface, in pixels.
+     */
+    public ImageSurface(int width, int height) {
+        this.image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        this.pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        Arrays.fill(pixels, Color.WHITE.getRGB());
+    }
+
+    @Override
+    public Graphics beginFrame() {
+        frameLock.lock();
+        return image.createGraphics();
+    }
+
+    @Override
+    public void endFrame(Graphics graphics) {
+        try {
+            graphics.dispose();
+        } finally {
+            frameLock.unlock();
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return image.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return image.getHeight();
+    }
+
+    /**
+     * Returns the image backing the surface. It must only be drawn into between {@link #beginFrame()} and
+     * {@link #endFrame(Graphics)}, for example by a {@link TileRasterizer}.
+     *
+     * @return the image holding the framebuffer.
+     */
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    /**
+     * Copies the current framebuffer.
+     *
+     * @return a new array of {@code width * height} ARGB pixels in row-major order.
+     */
+    public int[] copyPixels() {
+        frameLock.lock();
+        try {
+            return pixels.clone();
+        } finally {
+            frameLock.unlock();
+        }
+    }
+
+    /**
+     * Copies the current framebuffer into an existing array, so it can be captured repeatedly without allocating.
+     *
+     * @param target an array of at least {@code width * height} pixels, receiving the ARGB pixels in row-major
+     *               order.
+     */
+    public void copyPixels(int[] target) {
+        frameLock.lock();
+        try {
+            System.arraycopy(pixels, 0, target, 0, pixels.length);
+        } finally {
+            frameLock.unlock();
+        }
+    }
+
+    /**
+     * Copies the current framebuffer into a new image.
+     *
+     * @return a snapshot of the surface.
+     */
+    public BufferedImage snapshot() {
+        BufferedImage copy = new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_ARGB);
+        int[] target = ((DataBufferInt) copy.getRaster().getDataBuffer()).getData();
+        frameLock.lock();
+        try {
+            System.arraycopy(pixels, 0, target, 0, pixels.length);
+        } finally {
+            frameLock.unlock();
+        }
+        return copy;
+    }
+
+    /**
+     * Writes a snapshot of the surface as a PNG image.
+     *
+     * @param out the stream receiving the image; it is not closed.
+     * @throws IOException If writing fails.
+     */
+    public void writePng(OutputStream out) throws IOException {
+        ImageIO.write(snapshot(), "png", out);
+    }
+
+    /**
+     * Writes a snapshot of the surface as raw big-endian ARGB bytes.
+     *
+     * @param out the stream receiving the pixels; it is not closed.
+     * @throws IOException If writing fails.
+     */
+    public void writeRaw(OutputStream out) throws IOException {
+        writeRaw(copyPixels(), out);
+    }
+
+    /**
+     * Writes an image as raw big-endian ARGB bytes, in the same format as {@link #writeRaw(OutputStream)}.
+     *
+     * @param image the image to write.
+     * @param out   the stream receiving the pixels; it is not closed.
+     * @throws IOException If writing fails.
+     */
+    public static void writeRaw(BufferedImage image, OutputStream out) throws IOException {
+        int width = image.getWidth();
+        writeRaw(image.getRGB(0, 0, width, image.getHeight(), null, 0, width), out);
+    }
+
+    private static void writeRaw(int[] pixels, OutputStream out) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(pixels.length * 4);
+        bytes.asIntBuffer().put(pixels);
+        out.write(bytes.array());
+    }
+}
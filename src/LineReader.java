@@ -0,0 +1,141 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The {@code LineReader} class splits a byte stream into newline-delimited lines without creating Strings.
+ * <p>
+ * Lines are returned as index ranges into a reusable buffer, exposed through {@link #buffer()}, which can be
+ * handed directly to {@link CommandParser}. A range is valid until the next call to {@link #nextLine()}.
+ * The buffer only grows when a line is longer than any previous one, up to an optional maximum line length.
+ * Instances are not thread-safe.
+ * </p>
+ *
+ * @see CommandParser
+ * @see ConnectionHandler
+ */
+public class LineReader {
+    private final InputStream in;
+    private final int maxLineLength;
+    private byte[] bytes;
+    private ByteBuffer buffer;
+    private int start;
+    private int scan;
+    private int end;
+    private int lineStart;
+    private int lineEnd;
+
+    /**
+     * Creates a line reader over an input stream, without limit on the length of a line.
+     *
+     * @param in the stream to read.
+     */
+    public LineReader(InputStream in) {
+        this(in, Integer.MAX_VALUE - 8);
+    }
+
+    /**
+     * Creates a line reader over an input stream, refusing lines longer than a maximum.
+     *
+     * @param in            the stream to read.
+     * @param maxLineLength the maximum length of a line, terminator excluded.
+     */
+    public LineReader(InputStream in, int maxLineLength) {
+        this.in = in;
+        this.maxLineLength = maxLineLength;
+        this.bytes = new byte[8192];
+        this.buffer = ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * Advances to the next line.
+     * <p>
+     * The terminating {@code '\n'} is not part of the line. A final line without a terminator is returned when
+     * the stream ends.
+     * </p>
+     *
+     * @return {@code true} if a line is available, {@code false} at end of stream.
+     * @throws ProtocolException If the line is longer than the maximum line length.
+     * @throws IOException If reading the stream fails.
+     */
+    public boolean nextLine() throws IOException {
+        while (true) {
+            for (; scan < end; scan++) {
+                if (bytes[scan] == '\n') {
+                    if (scan - start > maxLineLength) {
+                        throw new ProtocolException("line too long");
+                    }
+                    lineStart = start;
+                    lineEnd = scan;
+                    start = ++scan;
+                    return true;
+                }
+            }
+            if (end - start > maxLineLength) {
+                throw new ProtocolException("line too long");
+            }
+            if (start > 0) {
+                System.arraycopy(bytes, start, bytes, 0, end - start);
+                end -= start;
+                scan -= start;
+                start = 0;
+            }
+            if (end == bytes.length) {
+                bytes = Arrays.copyOf(bytes, (int) Math.min((long) bytes.length * 2, maxLineLength + 2L));
+                buffer = ByteBuffer.wrap(bytes);
+            }
+            int n = in.read(bytes, end, bytes.length - end);
+            if (n < 0) {
+                if (end > start) {
+                    lineStart = start;
+                    lineEnd = end;
+                    start = scan = end;
+                    return true;
+                }
+                return false;
+            }
+            end += n;
+        }
+    }
+
+    /**
+     * Tells whether all the input received so far has been returned, so that the next call may block.
+     *
+     * @return {@code true} if no byte is buffered and none can be read without blocking.
+     * @throws IOException If querying the stream fails.
+     */
+    public boolean isDrained() throws IOException {
+        return start == end && in.available() == 0;
+    }
+
+    /**
+     * @return the buffer holding the current line.
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * @return the absolute index of the first byte of the current line.
+     */
+    public int lineStart() {
+        return lineStart;
+    }
+
+    /**
+     * @return the absolute index after the last byte of the current line.
+     */
+    public int lineEnd() {
+        return lineEnd;
+    }
+
+    /**
+     * @return the current line decoded as a {@code String}, for diagnostics.
+     */
+    public String lineAsString() {
+        return new String(bytes, lineStart, lineEnd - lineStart, StandardCharsets.US_ASCII);
+    }
+}
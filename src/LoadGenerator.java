@@ -0,0 +1,412 @@
+import java.awt.*;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The {@code LoadGenerator} class is a small command-line load test for a running {@link DrawingServer}.
+ * <p>
+ * It starts a number of concurrent clients sending drawing requests for a fixed duration. At the end it prints
+ * the number of accepted requests per second, so the throughput can be compared for different client counts
+ * and server settings.
+ * </p>
+ *
+ * <p>
+ * In {@code oneshot} mode each client repeatedly connects, sends one request and closes the connection.
+ * In {@code persistent} mode each client opens a single connection and streams requests over it; the server
+ * must then run with {@code -Ddrawing.server.persistent=true}. Running both modes against the same server
+ * setup compares the shapes/sec of the two protocols. In {@code binary} mode each client negotiates the
+ * {@link BinaryProtocol} and streams the same requests as frames. The persistent and binary modes also report the
+ * average number of bytes sent per shape. In {@code bulk} mode each client streams {@code CIRCLES} requests of
+ * {@code bulkSize} circles each (100 by default), drawing the same circles as the persistent mode; comparing the
+ * shapes/sec of the two modes measures the gain of bulk requests. In {@code async} mode the clients share a
+ * {@link DrawingClient} with one pooled connection per client, and count a request only once the server
+ * acknowledged it; the report adds the largest number of requests that were in flight.
+ * </p>
+ *
+ * <p>
+ * With a positive number of {@code canvases}, the clients are spread over that many named canvases
+ * {@code load0}, {@code load1}, ... which each client selects with a {@code CANVAS} request before drawing.
+ * Comparing the throughput for one and several canvases measures how well the server scales with canvases, each
+ * of which has its own render thread.
+ * </p>
+ *
+ * <p>
+ * Requests refused by the {@link AdmissionControl} of the server with an {@code ERROR} reply are counted apart and
+ * left out of the throughput, so overload behavior can be tested locally by running more clients than the server
+ * admits, e.g. against a server started with {@code -Ddrawing.server.clientRateLimit=1000} or
+ * {@code -Ddrawing.server.maxInFlight=100}: the report then shows how many requests were shed.
+ * </p>
+ *
+ * <pre>
+ * java LoadGenerator [host] [port] [clients] [seconds] [oneshot|persistent|binary|bulk|async] [bulkSize] [canvases]
+ * </pre>
+ *
+ * @see DrawingServer
+ */
+public class LoadGenerator {
+
+    /**
+     * Runs the load test.
+     *
+     * @param args optional host (default {@code localhost}), port (default {@code 8080}), number of clients
+     *             (default {@code 16}), duration in seconds (default {@code 10}), mode (default
+     *             {@code oneshot}), number of circles per bulk request (default {@code 100}) and number of
+     *             named canvases (default {@code 0}, drawing on the default canvas).
+     * @throws InterruptedException If the load test is interrupted.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+        int clients = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        String mode = args.length > 4 ? args[4].toLowerCase() : "oneshot";
+        boolean binary = "binary".equals(mode);
+        int bulkSize = "bulk".equals(mode) ? (args.length > 5 ? Integer.parseInt(args[5]) : 100) : 1;
+        boolean persistent = binary || bulkSize > 1 || "persistent".equals(mode);
+        int canvases = args.length > 6 ? Integer.parseInt(args[6]) : 0;
+        if ("async".equals(mode)) {
+            sendAsync(host, port, clients, seconds, canvases);
+            return;
+        }
+
+        LongAdder accepted = new LongAdder();
+        LongAdder refused = new LongAdder();
+        LongAdder failed = new LongAdder();
+        LongAdder bytes = new LongAdder();
+        AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        List<Runnable> tasks = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            int client = i;
+            String canvas = canvases > 0 ? "load" + client % canvases : null;
+            tasks.add(() -> {
+                if (persistent) {
+                    try {
+                        accepted.add(sendStream(host, port, client, canvas, running, binary, bulkSize, bytes,
+                                refused));
+                    } catch (IOException e) {
+                        failed.increment();
+                    }
+                    return;
+                }
+                int n = 0;
+                while (running.get()) {
+                    try {
+                        if (sendOneShot(host, port, canvas, request(client, n++))) {
+                            accepted.increment();
+                        } else {
+                            refused.increment();
+                        }
+                    } catch (IOException e) {
+                        failed.increment();
+                    }
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        tasks.forEach(executor::execute);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        running.set(false);
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        if (persistent) {
+            accepted.add(-refused.sum());
+        }
+        System.out.printf("mode=%s clients=%d canvases=%d requests=%d refused=%d failed=%d elapsed=%.2fs"
+                        + " throughput=%.1f req/s", mode, clients, canvases, accepted.sum(), refused.sum(),
+                failed.sum(), elapsed, accepted.sum() / elapsed);
+        if (persistent && accepted.sum() > 0) {
+            long shapeCount = accepted.sum() * bulkSize;
+            long sentShapes = (accepted.sum() + refused.sum()) * bulkSize;
+            System.out.printf(" shapes=%d shapes/s=%.1f bytes/shape=%.1f", shapeCount, shapeCount / elapsed,
+                    (double) bytes.sum() / sentShapes);
+        }
+        System.out.println();
+    }
+
+    /**
+     * Runs the load test in {@code async} mode and prints its report.
+     *
+     * @param host     the server host.
+     * @param port     the server port.
+     * @param clients  the number of clients, and of pooled connections.
+     * @param seconds  the duration of the test.
+     * @param canvases the number of named canvases; above {@code 0}, the clients draw on {@code load0}.
+     * @throws InterruptedException If the load test is interrupted.
+     */
+    private static void sendAsync(String host, int port, int clients, int seconds, int canvases)
+            throws InterruptedException {
+        LongAdder accepted = new LongAdder();
+        LongAdder refused = new LongAdder();
+        LongAdder failed = new LongAdder();
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicInteger maxInFlight = new AtomicInteger();
+        DrawingClient drawingClient;
+        try {
+            drawingClient = new DrawingClient(host, port, canvases > 0 ? "load0" : null, clients,
+                    DrawingClient.DEFAULT_MAX_IN_FLIGHT);
+        } catch (IOException e) {
+            System.out.println("mode=async cannot connect: " + e.getMessage());
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        for (int i = 0; i < clients; i++) {
+            int client = i;
+            executor.execute(() -> {
+                try {
+                    for (int n = 0; running.get(); n++) {
+                        drawingClient.send(request(client, n)).whenComplete((result, error) -> {
+                            if (error == null) {
+                                accepted.increment();
+                            } else if (error instanceof DrawingClient.RequestException) {
+                                refused.increment();
+                            } else {
+                                failed.increment();
+                            }
+                        });
+                        if (n % 1024 == 0) {
+                            maxInFlight.accumulateAndGet(drawingClient.getInFlight(), Math::max);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        running.set(false);
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        drawingClient.close();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("mode=async clients=%d canvases=%d requests=%d refused=%d failed=%d elapsed=%.2fs"
+                        + " throughput=%.1f req/s maxInFlight=%d%n", clients, Math.min(canvases, 1), accepted.sum(),
+                refused.sum(), failed.sum(), elapsed, accepted.sum() / elapsed, maxInFlight.get());
+    }
+
+    /**
+     * Builds a drawing request for the given client and sequence number.
+     *
+     * @param client the client index.
+     * @param n      the sequence number of the request for this client.
+     * @return a circle drawing request.
+     */
+    static String request(int client, int n) {
+        int x = 50 + (client * 37 + n * 13) % 900;
+        int y = 50 + (client * 53 + n * 7) % 700;
+        return "c" + client + " CIRCLE " + x + " " + y + " 10 blue";
+    }
+
+    /**
+     * Builds a bulk request drawing the circles of {@code size} consecutive {@link #request(int, int)} calls.
+     *
+     * @param client the client index.
+     * @param n      the sequence number of the bulk request for this client.
+     * @param size   the number of circles of the request.
+     * @return a {@code CIRCLES} drawing request.
+     */
+    static String bulkRequest(int client, int n, int size) {
+        StringBuilder request = new StringBuilder(16 + size * 12).append('c').append(client).append(" CIRCLES");
+        for (int i = 0; i < size; i++) {
+            int sequence = n * size + i;
+            request.append(' ').append(50 + (client * 37 + sequence * 13) % 900)
+                    .append(' ').append(50 + (client * 53 + sequence * 7) % 700)
+                    .append(" 10");
+        }
+        return request.append(" blue").toString();
+    }
+
+    /**
+     * Encodes the request built by {@link #request(int, int)} as a frame of the {@link BinaryProtocol}.
+     *
+     * @param client      the client index.
+     * @param n           the sequence number of the request for this client.
+     * @param coordinates a scratch array of at least three elements.
+     * @param out         the buffer receiving the frame.
+     */
+    static void binaryRequest(int client, int n, int[] coordinates, ByteBuffer out) {
+        coordinates[0] = 50 + (client * 37 + n * 13) % 900;
+        coordinates[1] = 50 + (client * 53 + n * 7) % 700;
+        coordinates[2] = 10;
+        BinaryProtocol.encode(DrawingServer.getShapeRegistry().getOpcode("CIRCLE"), coordinates, 3, Color.BLUE, out);
+    }
+
+    /**
+     * Builds the request selecting a named canvas.
+     *
+     * @param client the client index.
+     * @param canvas the name of the canvas.
+     * @return a {@code CANVAS} request.
+     */
+    static String selectRequest(int client, String canvas) {
+        return "c" + client + " CANVAS " + canvas;
+    }
+
+    /**
+     * Opens a connection, sends a single request and closes the connection.
+     *
+     * @param host    the server host.
+     * @param port    the server port.
+     * @param canvas  the canvas selected before the request, or {@code null} for the default canvas.
+     * @param request the request line to send.
+     * @return {@code true} if the request was accepted, {@code false} if the server refused it.
+     * @throws IOException If the connection or the write fails.
+     */
+    private static boolean sendOneShot(String host, int port, String canvas, String request) throws IOException {
+        try (Socket socket = new Socket(host, port)) {
+            OutputStream out = socket.getOutputStream();
+            String lines = canvas == null ? request + "\n" : selectRequest(0, canvas) + "\n" + request + "\n";
+            out.write(lines.getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            socket.shutdownOutput();
+            // Wait for the server to close the connection, i.e. for the request to be accepted or refused.
+            return countErrors(socket.getInputStream()) == 0;
+        }
+    }
+
+    /**
+     * Opens a single connection and streams requests over it while the load test is running.
+     * <p>
+     * Once the test stops, the output is shut down and the method waits for the server to close the
+     * connection, so every request counted has been rendered.
+     * </p>
+     *
+     * @param host     the server host.
+     * @param port     the server port.
+     * @param client   the client index.
+     * @param canvas   the canvas selected before drawing, or {@code null} for the default canvas.
+     * @param running  the flag cleared when the load test ends.
+     * @param binary   {@code true} to negotiate the binary protocol and send frames instead of text lines.
+     * @param bulkSize the number of circles per request; above {@code 1}, {@code CIRCLES} requests are sent.
+     * @param bytes    the counter receiving the number of bytes sent.
+     * @param refused  the counter receiving the number of requests refused by the server.
+     * @return the number of requests sent.
+     * @throws IOException If the connection or a write fails.
+     */
+    private static long sendStream(String host, int port, int client, String canvas, AtomicBoolean running,
+                                   boolean binary, int bulkSize, LongAdder bytes, LongAdder refused)
+            throws IOException {
+        try (Socket socket = new Socket(host, port)) {
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+            InputStream in = socket.getInputStream();
+            if (binary) {
+                out.write(new byte[] {BinaryProtocol.MAGIC, BinaryProtocol.VERSION});
+                out.flush();
+                if (in.read() != (BinaryProtocol.MAGIC & 0xFF) || in.read() != BinaryProtocol.VERSION) {
+                    throw new IOException("Binary protocol refused");
+                }
+            }
+            ByteBuffer frame = ByteBuffer.allocate(64);
+            if (canvas != null) {
+                if (binary) {
+                    BinaryProtocol.encodeText(selectRequest(client, canvas), frame);
+                    out.write(frame.array(), 0, frame.position());
+                } else {
+                    out.write((selectRequest(client, canvas) + "\n").getBytes(StandardCharsets.US_ASCII));
+                }
+                out.flush();
+                expectSelected(in);
+            }
+            // Replies are read while sending, so refusals cannot fill the socket buffers and stall the server.
+            Thread replies = new Thread(() -> {
+                try {
+                    refused.add(countErrors(in));
+                } catch (IOException e) {
+                    // The connection failed; the writes fail too.
+                }
+            }, "load-replies-" + client);
+            replies.start();
+            int[] coordinates = new int[3];
+            long sent = 0;
+            while (running.get()) {
+                if (binary) {
+                    frame.clear();
+                    binaryRequest(client, (int) sent, coordinates, frame);
+                    out.write(frame.array(), 0, frame.position());
+                    bytes.add(frame.position());
+                } else {
+                    String request = bulkSize > 1 ? bulkRequest(client, (int) sent, bulkSize)
+                            : request(client, (int) sent);
+                    byte[] line = (request + "\n").getBytes(StandardCharsets.US_ASCII);
+                    out.write(line);
+                    bytes.add(line.length);
+                }
+                sent++;
+            }
+            out.flush();
+            socket.shutdownOutput();
+            try {
+                replies.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the replies");
+            }
+            return sent;
+        }
+    }
+
+    /**
+     * Reads replies until the server closes the connection.
+     *
+     * @param in the socket input.
+     * @return the number of {@code ERROR} replies read.
+     * @throws IOException If the read fails.
+     */
+    private static long countErrors(InputStream in) throws IOException {
+        byte[] buffer = new byte[4096];
+        byte[] error = "ERROR".getBytes(StandardCharsets.US_ASCII);
+        long errors = 0;
+        int column = 0;
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            for (int i = 0; i < n; i++) {
+                if (buffer[i] == '\n') {
+                    column = 0;
+                } else if (column >= 0 && column < error.length) {
+                    column = buffer[i] == error[column] ? column + 1 : -1;
+                    if (column == error.length) {
+                        errors++;
+                    }
+                }
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * Reads the reply to a {@code CANVAS} request.
+     *
+     * @param in the socket input.
+     * @throws IOException If the read fails or the canvas was not selected.
+     */
+    private static void expectSelected(InputStream in) throws IOException {
+        StringBuilder reply = new StringBuilder();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            reply.append((char) b);
+        }
+        if (!reply.toString().startsWith("OK CANVAS")) {
+            throw new IOException("Canvas not selected: " + reply);
+        }
+    }
+}
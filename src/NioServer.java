@@ -0,0 +1,860 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The {@code NioServer} class is a non-blocking network front end for the {@link DrawingServer}.
+ * <p>
+ * A single selector thread accepts connections and reads from all of them, so no thread is tied to a client.
+ * When a connection becomes readable a direct buffer is borrowed from a {@link BufferPool}, filled, scanned for
+ * complete lines and returned to the pool. Complete lines are parsed with the {@link CommandParser} straight from
+ * that buffer and queued to the {@link CanvasRenderer} of the canvas the connection draws on, which draws them
+ * with the handlers of the {@link ShapeRegistry}. The selector thread never waits for a render queue: when one is
+ * full, the connection holds on to its request and the rest of its input and is no longer read, and once the
+ * render thread has freed room it posts the connection back to the selector, which queues the request and
+ * resumes. Only the clients of that canvas are throttled. Lines that are not drawing requests are tried as a
+ * {@code CANVAS} selection of the {@link CanvasManager}, then as {@link ControlCommands} of the current canvas.
+ * A selection may open a canvas from its journal, and control commands can wait for the render thread or write
+ * files, so both run on a worker thread while their connection is not read; the worker posts the reply back to
+ * the selector, which writes it without blocking and resumes the connection. A partial line at the end of a read
+ * is copied to a small array owned by the connection until the rest arrives; a long one is then read in place into
+ * that array, which grows up to the maximum line length, and the search for its end resumes where it stopped.
+ * An idle connection therefore only costs its channel, its selection key and a few fields, which keeps memory
+ * flat with tens of thousands of mostly idle clients.
+ * </p>
+ *
+ * <p>
+ * The connection protocol is the one of {@link ConnectionHandler}: a single request per connection by default,
+ * or a stream of requests until end of input in persistent mode, with optional {@code ACK <count>} replies or the
+ * sequenced replies of {@link Acknowledgements}, whose acknowledgement of all the input received is sent at the
+ * end of every read.
+ * Clients starting with {@link BinaryProtocol#MAGIC} negotiate the {@link BinaryProtocol} and send frames, which
+ * are split out of the same buffers and decoded by a {@link BinaryDecoder}.
+ * </p>
+ *
+ * <p>
+ * The limits are those of {@link ConnectionHandler} too: requests go through the {@link AdmissionControl} of the
+ * server and are refused with an {@code ERROR} line when over the rate limit of their client or the in-flight
+ * budget, and a line or frame longer than {@link ServerConfig#getMaxLineLength()} ends the connection with an
+ * {@code ERROR} line. Instead of a socket timeout, the selector wakes up regularly to close the connections that
+ * have neither sent nor taken any data for {@link ServerConfig#getReadTimeoutMillis()}. While a client does not
+ * take its replies the connection is not read, so replies cannot pile up without bound; such a client ends up
+ * closed as silent.
+ * </p>
+ *
+ * <p>
+ * A connection sending a {@code VIEW} request leaves the selector: once its key is cancelled, its channel is
+ * switched to blocking mode and handed to a thread of its own, on which the {@link CanvasStreamer} of its canvas
+ * streams frames until the client disconnects. Viewers therefore never hold up the selector thread, and are
+ * limited by {@link ServerConfig#getMaxViewers()} rather than by the connection limit.
+ * </p>
+ *
+ * @see DrawingServer
+ * @see ServerConfig#usesNioTransport()
+ */
+public class NioServer {
+    private static final int UNKNOWN_PROTOCOL = 0;
+    private static final int TEXT_PROTOCOL = 1;
+    private static final int BINARY_PROTOCOL = 2;
+    /** The number of bytes a request may take beyond the maximum line length: a line end or a frame header. */
+    private static final int MAX_FRAMING = 16;
+
+    /** The maximum number of pending replies written by one gathering write. */
+    private static final int GATHER_LIMIT = 64;
+
+    private final ServerConfig config;
+    private final CanvasManager canvases;
+    private final BufferPool bufferPool;
+    private final CommandParser parser;
+    private final BinaryDecoder decoder;
+    private final ShapeCommand command = new ShapeCommand();
+    private final ServerMetrics metrics;
+    private final AdmissionControl admission;
+    private final List<Connection> viewers = new ArrayList<>();
+    private final ByteBuffer[] gather = new ByteBuffer[GATHER_LIMIT];
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ExecutorService workers;
+    private Selector selector;
+    private SelectionKey acceptKey;
+    private int connections;
+
+    /**
+     * Creates a non-blocking server.
+     *
+     * @param config   the server configuration.
+     * @param canvases the canvases clients can draw on.
+     */
+    public NioServer(ServerConfig config, CanvasManager canvases) {
+        this.config = config;
+        this.canvases = canvases;
+        this.metrics = canvases.getDefault().getMetrics();
+        this.admission = canvases.getAdmissionControl();
+        this.bufferPool = new BufferPool(config.getNioBufferSize(), 64);
+        this.parser = new CommandParser(DrawingServer.getShapeRegistry(), config.getMaxVertices());
+        this.decoder = new BinaryDecoder(DrawingServer.getShapeRegistry(), config.getMaxVertices());
+        this.workers = config.usesVirtualThreads()
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool(config.getWorkerThreads());
+    }
+
+    /**
+     * Binds the server port and runs the selector loop on the calling thread.
+     *
+     * @throws IOException If the server channel cannot be opened or the selector fails.
+     */
+    public void serve() throws IOException {
+        try (Selector selector = Selector.open();
+             ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(config.getPort()), config.getMaxConnections());
+            serverChannel.configureBlocking(false);
+            acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            this.selector = selector;
+
+            long timeoutNanos = config.getReadTimeoutMillis() * 1_000_000L;
+            long sweepMillis = timeoutNanos > 0 ? Math.min(config.getReadTimeoutMillis(), 1000) : 0;
+            long nextSweep = System.nanoTime() + sweepMillis * 1_000_000L;
+            while (true) {
+                selector.select(sweepMillis);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (key.isValid() && key.isAcceptable()) {
+                            accept(serverChannel, selector);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read(key);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(key);
+                        }
+                    } catch (IOException e) {
+                        ServerLog.error("Connection failed", e);
+                        if (key != acceptKey) {
+                            close(key);
+                        }
+                    }
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                if (!viewers.isEmpty()) {
+                    // Flushes the cancelled keys, so the channels can be made blocking.
+                    selector.selectNow();
+                    for (Connection viewer : viewers) {
+                        startViewer(viewer);
+                    }
+                    viewers.clear();
+                }
+                long now = System.nanoTime();
+                if (timeoutNanos > 0 && now - nextSweep >= 0) {
+                    closeSilent(selector, now - timeoutNanos);
+                    nextSweep = now + sweepMillis * 1_000_000L;
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs a task on the selector thread, waking it up. This is how other threads hand work back to the selector.
+     */
+    private void post(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Closes the connections that have neither sent nor taken any data since the given time, unless they are
+     * waiting for the server.
+     */
+    private void closeSilent(Selector selector, long deadline) {
+        for (SelectionKey key : selector.keys()) {
+            if (key != acceptKey && key.isValid() && !((Connection) key.attachment()).suspended()
+                    && ((Connection) key.attachment()).activityNanos - deadline < 0) {
+                metrics.connectionTimedOut();
+                ServerLog.info("Closing connection silent for " + config.getReadTimeoutMillis() + " ms");
+                close(key);
+            }
+        }
+    }
+
+    /**
+     * Accepts all pending connections, up to the configured connection limit.
+     */
+    private void accept(ServerSocketChannel serverChannel, Selector selector) throws IOException {
+        while (connections < config.getMaxConnections()) {
+            SocketChannel channel = serverChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            Connection connection = new Connection(channel, canvases.attachDefault(), config.getAckBatch());
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connections++;
+            metrics.connectionOpened();
+        }
+        // Stop accepting until a connection is closed; further clients wait in the backlog.
+        acceptKey.interestOps(0);
+    }
+
+    /**
+     * Reads available bytes from a connection and renders every complete line.
+     */
+    private void read(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        byte[] pending = connection.pending;
+        int length = connection.pendingLength;
+        boolean pooled = pending == null || length <= bufferPool.bufferSize() / 2;
+        ByteBuffer buffer;
+        if (pooled) {
+            buffer = bufferPool.acquire();
+            if (pending != null) {
+                buffer.put(pending, 0, length);
+                connection.pending = null;
+            }
+        } else {
+            // A partial request too long for a pooled buffer is read in place into the array of the connection,
+            // which grows geometrically up to the longest request and its framing.
+            int maxPending = config.getMaxLineLength() + MAX_FRAMING;
+            if (length >= maxPending) {
+                throw new ProtocolException("request too long");
+            }
+            if (length == pending.length) {
+                pending = Arrays.copyOf(pending, (int) Math.min(2L * length, maxPending));
+            }
+            buffer = ByteBuffer.wrap(pending).position(length);
+            connection.pending = null;
+        }
+        try {
+            int n = connection.channel.read(buffer);
+            buffer.flip();
+            if (n > 0) {
+                connection.activityNanos = System.nanoTime();
+            }
+            connection.ended = n < 0;
+            consume(key, connection, buffer);
+        } finally {
+            if (pooled) {
+                bufferPool.release(buffer);
+            }
+        }
+    }
+
+    /**
+     * Resumes a connection once the request it was waiting for is done: processes the input it kept, then reads
+     * it again. Runs on the selector thread.
+     */
+    private void resume(Connection connection) {
+        SelectionKey key = connection.key;
+        if (!key.isValid()) {
+            return;
+        }
+        try {
+            if (connection.blocked != null) {
+                ShapeCommand blocked = connection.blocked;
+                connection.blocked = null;
+                queue(connection, blocked);
+                if (connection.suspended()) {
+                    return;
+                }
+                completed(connection, false);
+            }
+            byte[] pending = connection.pending;
+            connection.pending = null;
+            consume(key, connection, pending != null
+                    ? ByteBuffer.wrap(pending, 0, connection.pendingLength)
+                    : ByteBuffer.allocate(0));
+        } catch (IOException e) {
+            ServerLog.error("Connection failed", e);
+            close(key);
+        }
+    }
+
+    /**
+     * Renders the requests of the input of a connection, and keeps what is left for later: a partial line or
+     * frame, or everything following a request the connection has to wait for.
+     */
+    private void consume(SelectionKey key, Connection connection, ByteBuffer buffer) throws IOException {
+        int consumed = 0;
+        try {
+            if (connection.protocol == UNKNOWN_PROTOCOL && buffer.hasRemaining()) {
+                consumed = negotiate(connection, buffer);
+            }
+            if (connection.protocol == TEXT_PROTOCOL) {
+                consumed = renderLines(connection, buffer, consumed);
+            } else if (connection.protocol == BINARY_PROTOCOL) {
+                consumed = renderFrames(connection, buffer, consumed);
+            }
+            if (connection.ended && consumed < buffer.limit() && !connection.halted()) {
+                if (connection.protocol == BINARY_PROTOCOL) {
+                    metrics.commandRejected();
+                    ServerLog.warn("Connection ended inside a frame");
+                } else {
+                    renderLine(connection, buffer, consumed, buffer.limit());
+                }
+                consumed = buffer.limit();
+            }
+        } catch (ProtocolException e) {
+            metrics.requestOversized();
+            ServerLog.warn("Closing connection: " + e.getMessage());
+            connection.acks.next();
+            send(connection, connection.acks.failure(Acknowledgements.INVALID, e.getMessage()));
+            finish(key, connection);
+            return;
+        }
+        if (connection.viewerFps >= 0) {
+            handOff(key, connection);
+        } else if (connection.suspended()) {
+            keep(connection, buffer, consumed);
+            updateInterest(connection);
+        } else if (connection.ended || connection.finished) {
+            finish(key, connection);
+        } else {
+            keep(connection, buffer, consumed);
+            acknowledge(connection, connection.acks.drained());
+            updateInterest(connection);
+        }
+    }
+
+    /**
+     * Copies the input of a connection not consumed yet to an array owned by the connection.
+     */
+    private static void keep(Connection connection, ByteBuffer buffer, int consumed) {
+        int length = buffer.limit() - consumed;
+        if (length == 0) {
+            connection.pending = null;
+        } else if (consumed == 0 && buffer.hasArray()) {
+            // The input was read in place into the array of the connection: keep that array.
+            connection.pending = buffer.array();
+        } else {
+            connection.pending = new byte[length];
+            buffer.get(consumed, connection.pending);
+        }
+        connection.pendingLength = length;
+    }
+
+    /**
+     * Selects the events a connection waits for: writing while it has pending output, otherwise reading unless it
+     * waits for the server.
+     */
+    private static void updateInterest(Connection connection) {
+        int ops = connection.output != null ? SelectionKey.OP_WRITE
+                : connection.suspended() ? 0 : SelectionKey.OP_READ;
+        if (connection.key.interestOps() != ops) {
+            connection.key.interestOps(ops);
+        }
+    }
+
+    /**
+     * Selects the protocol of a connection from its first bytes, answering the version requested by a binary
+     * client.
+     *
+     * @return the number of bytes consumed by the negotiation.
+     */
+    private int negotiate(Connection connection, ByteBuffer buffer) throws IOException {
+        if (buffer.get(0) != BinaryProtocol.MAGIC) {
+            connection.protocol = TEXT_PROTOCOL;
+            return 0;
+        }
+        if (buffer.limit() < 2) {
+            return 0;
+        }
+        boolean supported = buffer.get(1) == BinaryProtocol.VERSION;
+        send(connection, new byte[] {BinaryProtocol.MAGIC, (byte) (supported ? BinaryProtocol.VERSION : 0)});
+        connection.protocol = BINARY_PROTOCOL;
+        connection.finished = !supported;
+        return 2;
+    }
+
+    /**
+     * Renders the complete frames of a buffer.
+     *
+     * @return the absolute index of the first byte not consumed.
+     */
+    private int renderFrames(Connection connection, ByteBuffer buffer, int start) throws IOException {
+        int limit = buffer.limit();
+        int end;
+        int maxLength = config.getMaxLineLength();
+        while (!connection.halted() && (end = BinaryProtocol.frameEnd(buffer, start, limit, maxLength)) >= 0) {
+            int body = BinaryProtocol.bodyStart(buffer, start);
+            if (body < end) {
+                if (buffer.get(body) == BinaryProtocol.TEXT_OPCODE) {
+                    process(connection, buffer, body + 1, end);
+                } else if (!admit(connection)) {
+                    // Refused with an error reply.
+                } else {
+                    ServerMetrics canvasMetrics = connection.canvas.getMetrics();
+                    long parseStart = System.nanoTime();
+                    boolean valid = decoder.decode(buffer, body, end, command);
+                    canvasMetrics.recordParse(System.nanoTime() - parseStart);
+                    if (valid) {
+                        queue(connection, command);
+                    } else {
+                        canvasMetrics.commandRejected();
+                        ServerLog.warn("Invalid binary request (" + command + ")");
+                        reject(connection);
+                    }
+                }
+                if (!connection.suspended()) {
+                    completed(connection, false);
+                }
+            }
+            start = end;
+        }
+        return start;
+    }
+
+    /**
+     * Renders the complete lines of a buffer.
+     *
+     * @return the absolute index of the first byte not consumed.
+     * @throws ProtocolException If a line, complete or not, is longer than the maximum line length.
+     */
+    private int renderLines(Connection connection, ByteBuffer buffer, int start) throws IOException {
+        int limit = buffer.limit();
+        int maxLength = config.getMaxLineLength();
+        // The kept partial line was already searched for a line feed by the previous reads.
+        int i = start + connection.scanned;
+        connection.scanned = 0;
+        for (; i < limit && !connection.halted(); i++) {
+            if (buffer.get(i) == '\n') {
+                if (i - start > maxLength) {
+                    throw new ProtocolException("line too long");
+                }
+                renderLine(connection, buffer, start, i);
+                start = i + 1;
+            }
+        }
+        if (!connection.halted()) {
+            if (limit - start > maxLength) {
+                throw new ProtocolException("line too long");
+            }
+            connection.scanned = limit - start;
+        }
+        return start;
+    }
+
+    /**
+     * Parses and renders one line, acknowledging it if a batch is complete, unless the connection has to wait for
+     * it to be done.
+     */
+    private void renderLine(Connection connection, ByteBuffer buffer, int from, int to) throws IOException {
+        if (from == to) {
+            return;
+        }
+        process(connection, buffer, from, to);
+        if (!connection.suspended()) {
+            completed(connection, false);
+        }
+    }
+
+    /**
+     * Parses and renders one text request, or executes it as a canvas selection, a {@code VIEW} or {@code ACKS}
+     * request or a control command.
+     */
+    private void process(Connection connection, ByteBuffer buffer, int from, int to) throws IOException {
+        if (!admit(connection)) {
+            return;
+        }
+        ServerMetrics canvasMetrics = connection.canvas.getMetrics();
+        long start = System.nanoTime();
+        boolean valid = parser.parse(buffer, from, to, command);
+        canvasMetrics.recordParse(System.nanoTime() - start);
+        if (valid) {
+            queue(connection, command);
+            return;
+        }
+        if (CanvasManager.isSelection(buffer, from, to)
+                || connection.canvas.getControlCommands().isCommand(buffer, from, to)) {
+            execute(connection, buffer, from, to);
+            return;
+        }
+        int fps = CanvasStreamer.viewRequest(buffer, from, to);
+        if (fps >= 0) {
+            // The connection is handed off once the current read is processed.
+            connection.viewerFps = fps;
+            connection.finished = true;
+            return;
+        }
+        byte[] reply;
+        try {
+            int batch = Acknowledgements.request(buffer, from, to);
+            reply = batch >= 0 ? sequence(connection, batch) : null;
+        } catch (IllegalArgumentException e) {
+            reply = ControlCommands.error(e.getMessage());
+        }
+        if (reply != null) {
+            canvasMetrics.controlCommandExecuted();
+            send(connection, connection.acks.reply(reply));
+        } else {
+            canvasMetrics.commandRejected();
+            if (ServerLog.isEnabled(ServerLog.Level.WARN)) {
+                byte[] line = new byte[to - from];
+                buffer.get(from, line);
+                ServerLog.warn("Invalid request (" + command + "): "
+                        + new String(line, StandardCharsets.US_ASCII));
+            }
+            reject(connection);
+        }
+    }
+
+    /**
+     * Runs a {@code CANVAS} selection or a control command of a connection on a worker thread, since opening a
+     * canvas or executing a command may block. The connection is not processed further until {@link #executed}
+     * sends the reply on the selector thread.
+     */
+    private void execute(Connection connection, ByteBuffer buffer, int from, int to) {
+        byte[] request = new byte[to - from];
+        buffer.get(from, request);
+        CanvasSession current = connection.canvas;
+        connection.working = true;
+        workers.execute(() -> {
+            ByteBuffer line = ByteBuffer.wrap(request);
+            CanvasSession selection = null;
+            byte[] reply;
+            try {
+                selection = canvases.select(line, 0, request.length, current);
+                reply = selection != null
+                        ? CanvasManager.selectionReply(selection)
+                        : current.getControlCommands().execute(line, 0, request.length);
+            } catch (IllegalArgumentException e) {
+                reply = ControlCommands.error(e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                reply = ControlCommands.error("interrupted");
+            } catch (RuntimeException e) {
+                ServerLog.error("Control command failed", e);
+                reply = ControlCommands.error(String.valueOf(e.getMessage()));
+            }
+            // The command may have been unregistered since it was looked up.
+            byte[] result = reply != null ? reply : ControlCommands.error("unknown command");
+            CanvasSession selected = selection;
+            post(() -> executed(connection, result, selected));
+        });
+    }
+
+    /**
+     * Sends the reply of a request run by {@link #execute} and resumes its connection. Runs on the selector
+     * thread.
+     *
+     * @param selection the canvas the request selected, or {@code null}.
+     */
+    private void executed(Connection connection, byte[] reply, CanvasSession selection) {
+        connection.working = false;
+        connection.canvas.getMetrics().controlCommandExecuted();
+        if (selection != null) {
+            connection.canvas = selection;
+        }
+        SelectionKey key = connection.key;
+        if (!key.isValid()) {
+            // Closed while the request ran: the canvas was kept attached until now.
+            canvases.detach(connection.canvas);
+            return;
+        }
+        try {
+            send(connection, connection.acks.reply(reply));
+            completed(connection, selection != null);
+        } catch (IOException e) {
+            ServerLog.error("Connection failed", e);
+            close(key);
+            return;
+        }
+        resume(connection);
+    }
+
+    /**
+     * Switches a connection to sequenced replies.
+     *
+     * @return the reply to the {@code ACKS} request.
+     * @throws IllegalArgumentException If the connection carries a single request.
+     */
+    private byte[] sequence(Connection connection, int batch) {
+        if (!config.isPersistent() && connection.protocol == TEXT_PROTOCOL) {
+            throw new IllegalArgumentException("acknowledgements require a persistent connection");
+        }
+        return connection.acks.enable(batch);
+    }
+
+    /**
+     * Counts a request of a connection and checks the rate limit of its client, refusing the request if it is
+     * exceeded.
+     *
+     * @return {@code true} if the request may be processed.
+     */
+    private boolean admit(Connection connection) throws IOException {
+        connection.acks.next();
+        if (admission.allowRequest(connection.address)) {
+            return true;
+        }
+        connection.canvas.getMetrics().commandRateLimited();
+        send(connection, connection.acks.failure(Acknowledgements.RATE_LIMITED, AdmissionControl.RATE_LIMITED));
+        return false;
+    }
+
+    /**
+     * Reports the invalid request of a connection to its client if it asked for sequenced replies; it is only
+     * logged otherwise.
+     */
+    private void reject(Connection connection) throws IOException {
+        if (connection.acks.isSequenced()) {
+            send(connection, connection.acks.failure(Acknowledgements.INVALID,
+                    command.getErrorMessage() + " at " + command.getErrorPosition()));
+        }
+    }
+
+    /**
+     * Queues a parsed command for rendering if the in-flight budget of the server allows it, or refuses it. If the
+     * render queue is full, the connection keeps a copy of the command and waits for room in the queue.
+     */
+    private void queue(Connection connection, ShapeCommand command) throws IOException {
+        CanvasRenderer renderer = connection.canvas.getRenderer();
+        switch (renderer.offerRender(command)) {
+            case QUEUED -> connection.canvas.getMetrics().commandAccepted();
+            case SHED -> {
+                connection.canvas.getMetrics().commandShed();
+                send(connection, connection.acks.failure(Acknowledgements.OVERLOADED, AdmissionControl.OVERLOADED));
+            }
+            case FULL -> {
+                ShapeCommand blocked = command;
+                if (blocked == this.command) {
+                    // The shared command is overwritten by the next request parsed.
+                    blocked = new ShapeCommand();
+                    blocked.copyFrom(command);
+                }
+                connection.blocked = blocked;
+                renderer.whenQueueHasRoom(() -> post(() -> resume(connection)));
+            }
+        }
+    }
+
+    /**
+     * Counts a processed request; ends a one-shot text connection unless the request only selected a canvas, or
+     * acknowledges a completed batch.
+     */
+    private void completed(Connection connection, boolean selected) throws IOException {
+        if (connection.viewerFps >= 0) {
+            return;
+        }
+        if (!config.isPersistent() && connection.protocol == TEXT_PROTOCOL) {
+            connection.finished = !selected;
+        } else {
+            acknowledge(connection, connection.acks.completed());
+        }
+    }
+
+    /**
+     * Ends a connection after its last request: sends the trailing acknowledgement, then closes it as soon as
+     * all pending output has been written.
+     */
+    private void finish(SelectionKey key, Connection connection) throws IOException {
+        if (config.isPersistent() || connection.protocol == BINARY_PROTOCOL) {
+            acknowledge(connection, connection.acks.finished());
+        }
+        connection.finished = true;
+        if (connection.output == null) {
+            close(key);
+        } else {
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Takes a connection that sent a {@code VIEW} request off the selector, to be streamed to on a thread of its
+     * own once its key is flushed.
+     */
+    private void handOff(SelectionKey key, Connection connection) {
+        key.cancel();
+        viewers.add(connection);
+        connections--;
+        if (acceptKey.isValid() && acceptKey.interestOps() == 0) {
+            acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+        }
+    }
+
+    /**
+     * Starts the thread streaming the canvas of a connection handed off by {@link #handOff}. The thread writes the
+     * pending replies of the connection first, and closes it once the viewer disconnects.
+     */
+    private void startViewer(Connection connection) {
+        Thread thread = new Thread(() -> {
+            try (SocketChannel channel = connection.channel) {
+                channel.configureBlocking(true);
+                if (connection.output != null) {
+                    for (ByteBuffer reply : connection.output) {
+                        while (reply.hasRemaining()) {
+                            channel.write(reply);
+                        }
+                    }
+                }
+                OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel));
+                try {
+                    connection.canvas.getStreamer().view(out, connection.viewerFps);
+                    connection.canvas.getMetrics().controlCommandExecuted();
+                } catch (IllegalArgumentException e) {
+                    out.write(ControlCommands.error(e.getMessage()));
+                    out.flush();
+                }
+            } catch (IOException e) {
+                ServerLog.debug("Viewer connection failed: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                canvases.detach(connection.canvas);
+                metrics.connectionClosed();
+            }
+        }, "viewer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues an {@code ACK} reply, if one is due.
+     */
+    private void acknowledge(Connection connection, byte[] reply) throws IOException {
+        if (reply != null) {
+            send(connection, reply);
+        }
+    }
+
+    /**
+     * Queues a reply, writing as much of it as the socket accepts right away. Replies queued behind pending output
+     * are kept as they are, to be written together by {@link #write}.
+     */
+    private void send(Connection connection, byte[] reply) throws IOException {
+        ByteBuffer output = ByteBuffer.wrap(reply);
+        if (connection.output == null) {
+            connection.channel.write(output);
+            if (!output.hasRemaining()) {
+                return;
+            }
+            // Stop reading until the client takes its replies, so it cannot make them pile up.
+            connection.output = new ArrayDeque<>();
+            connection.key.interestOps(SelectionKey.OP_WRITE);
+        }
+        connection.output.add(output);
+    }
+
+    /**
+     * Writes pending output of a connection, gathering up to {@link #GATHER_LIMIT} replies per write.
+     */
+    private void write(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        ArrayDeque<ByteBuffer> output = connection.output;
+        int count = 0;
+        for (ByteBuffer reply : output) {
+            gather[count++] = reply;
+            if (count == GATHER_LIMIT) {
+                break;
+            }
+        }
+        long written = connection.channel.write(gather, 0, count);
+        Arrays.fill(gather, 0, count, null);
+        if (written > 0) {
+            connection.activityNanos = System.nanoTime();
+        }
+        while (!output.isEmpty() && !output.peek().hasRemaining()) {
+            output.poll();
+        }
+        if (output.isEmpty()) {
+            connection.output = null;
+            if (connection.finished) {
+                close(key);
+            } else {
+                updateInterest(connection);
+            }
+        }
+    }
+
+    /**
+     * Closes a connection and resumes accepting if the connection limit had been reached.
+     */
+    private void close(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            ServerLog.error("Cannot close a connection", e);
+        }
+        connections--;
+        Connection connection = (Connection) key.attachment();
+        if (!connection.working) {
+            canvases.detach(connection.canvas);
+        }
+        metrics.connectionClosed();
+        if (acceptKey.isValid() && acceptKey.interestOps() == 0) {
+            acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+        }
+    }
+
+    /**
+     * The per-connection state. It holds no buffer while the connection is idle.
+     */
+    private static final class Connection {
+        final SocketChannel channel;
+        final InetAddress address;
+        final Acknowledgements acks;
+        SelectionKey key;
+        CanvasSession canvas;
+        /** The input kept for later, in its first {@link #pendingLength} bytes. */
+        byte[] pending;
+        int pendingLength;
+        /** The number of bytes of the kept input already searched for the end of a line. */
+        int scanned;
+        ArrayDeque<ByteBuffer> output;
+        /** A drawing request waiting for room in the render queue. */
+        ShapeCommand blocked;
+        int protocol = UNKNOWN_PROTOCOL;
+        /** Whether a control command of the connection runs on a worker thread. */
+        boolean working;
+        boolean finished;
+        boolean ended;
+        int viewerFps = -1;
+        long activityNanos = System.nanoTime();
+
+        Connection(SocketChannel channel, CanvasSession canvas, int ackBatch) {
+            this.channel = channel;
+            this.address = channel.socket().getInetAddress();
+            this.canvas = canvas;
+            this.acks = new Acknowledgements(ackBatch);
+        }
+
+        /**
+         * @return {@code true} if the connection waits for one of its requests to be done before processing the
+         * next ones.
+         */
+        boolean suspended() {
+            return blocked != null || working;
+        }
+
+        /**
+         * @return {@code true} if no further request of the connection may be processed for now.
+         */
+        boolean halted() {
+            return finished || suspended();
+        }
+    }
+}
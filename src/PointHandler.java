@@ -0,0 +1,68 @@
+import java.awt.*;
+
+/**
+ * The {@code PointHandler} class draws the single points that degenerate shapes collapse to.
+ * <p>
+ * It is not a shape of the protocol and is never registered in the {@link ShapeRegistry}: the {@link ShapeClipper}
+ * hands a command to it when all the vertices of the shape fall on the same pixel, such as a circle of radius zero
+ * or a segment whose endpoints coincide. The point is one pixel for the default outline, and a disc as wide as the
+ * outline otherwise, whether the shape was filled or not.
+ * </p>
+ *
+ * @see ShapeClipper
+ */
+public class PointHandler extends ShapeHandler {
+
+    /**
+     * Points cannot be requested, so this handler handles no shape type.
+     *
+     * @param shapeType the type of the shape to be drawn.
+     * @return {@code false}.
+     */
+    @Override
+    protected boolean canHandle(String shapeType) {
+        return false;
+    }
+
+    /**
+     * Processes a drawing request for a point, given as its x and y coordinates.
+     *
+     * @param tokens   an array of strings representing the drawing request details.
+     * @param graphics the {@code Graphics} object used for drawing.
+     */
+    @Override
+    protected void process(String[] tokens, Graphics graphics) {
+        draw(ShapeCommand.fromTokens(tokens, this), graphics);
+    }
+
+    /**
+     * Determines whether a point may carry the given number of coordinates.
+     *
+     * @param count the number of integer coordinates.
+     * @return {@code true} if there are exactly two coordinates.
+     */
+    @Override
+    protected boolean acceptsCoordinates(int count) {
+        return count == 2;
+    }
+
+    /**
+     * Draws the point with {@code Graphics.fillRect} for the default outline, or {@code Graphics.fillOval} centered
+     * on it for a wider outline.
+     *
+     * @param command  the command holding the point in coordinates 0 and 1.
+     * @param graphics the {@code Graphics} object used to render the point.
+     */
+    @Override
+    protected void draw(ShapeCommand command, Graphics graphics) {
+        int x = command.getCoordinate(0);
+        int y = command.getCoordinate(1);
+        int width = command.getStrokeWidth();
+        applyStyle(command, graphics);
+        if (width == 1) {
+            graphics.fillRect(x, y, 1, 1);
+        } else {
+            graphics.fillOval(x - width / 2, y - width / 2, width, width);
+        }
+    }
+}
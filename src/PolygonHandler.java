@@ -15,6 +15,11 @@ import static javax.swing.UIManager.getColor;
  * @see DrawingServer
  */
 public class PolygonHandler extends ShapeHandler {
+    /** The largest number of vertices whose scratch arrays are kept between polygons. */
+    private static final int RETAINED_VERTICES = 4096;
+
+    /** The scratch vertex arrays of each render thread, since the handlers are shared by every canvas. */
+    private static final ThreadLocal<Vertices> VERTICES = ThreadLocal.withInitial(Vertices::new);
 
     /**
      * Determines whether this handler can process the drawing request based on the shape type.
@@ -34,7 +39,8 @@ public class PolygonHandler extends ShapeHandler {
     /**
      * Processes the drawing request for a polygon.
      * <p>
-     * This method delegates the drawing operation to the {@link #drawPolygon(String[], Graphics)} method.
+     * This method parses the tokens into a {@link ShapeCommand} and delegates the drawing operation to the
+     * {@link #drawPolygon(ShapeCommand, Graphics)} method.
      * </p>
      *
      * @param tokens   an array of strings representing the drawing request details.
@@ -43,36 +49,96 @@ public class PolygonHandler extends ShapeHandler {
      */
     @Override
     protected void process(String[] tokens, Graphics graphics) {
-        drawPolygon(tokens, graphics);
+        drawPolygon(ShapeCommand.fromTokens(tokens, this), graphics);
+    }
+
+    /**
+     * Determines whether a polygon request may carry the given number of coordinates.
+     * <p>
+     * A polygon needs a non-zero, even number of coordinates: one (x, y) pair per vertex.
+     * </p>
+     *
+     * @param count the number of integer coordinates in the request.
+     * @return {@code true} if the coordinates form at least one complete vertex.
+     */
+    @Override
+    protected boolean acceptsCoordinates(int count) {
+        return count >= 2 && count % 2 == 0;
+    }
+
+    /**
+     * Clips the polygon to the canvas with the Sutherland&ndash;Hodgman algorithm.
+     *
+     * @param command the command to prepare.
+     * @param clipper the clipper of the canvas.
+     * @return the outcome of the preparation.
+     */
+    @Override
+    protected ShapeClipper.Result clip(ShapeCommand command, ShapeClipper clipper) {
+        return clipper.clipPolygon(command, command.getCoordinateCount());
     }
 
     /**
-     * Draws a polygon using the specified tokens and {@code Graphics} context.
+     * Draws a parsed polygon request.
      * <p>
-     * The method calculates the number of vertices by examining the tokens array.
-     * It then extracts the x and y coordinates of each vertex and stores them in integer arrays.
-     * Finally, it retrieves the desired color using {@link DrawingServer#getColor(String)},
-     * sets the drawing color, and renders the polygon using {@code Graphics.drawPolygon}.
+     * This method delegates the drawing operation to the {@link #drawPolygon(ShapeCommand, Graphics)} method.
      * </p>
      *
-     * @param tokens   an array of strings containing the drawing parameters.
-     *                 The vertices are expected to start at index 2, and the last token represents the color.
+     * @param command  the parsed request.
+     * @param graphics the {@code Graphics} object used for drawing the polygon.
+     */
+    @Override
+    protected void draw(ShapeCommand command, Graphics graphics) {
+        drawPolygon(command, graphics);
+    }
+
+    /**
+     * Draws a polygon using the specified command and {@code Graphics} context.
+     * <p>
+     * The method calculates the number of vertices from the coordinate count of the command. It then splits
+     * the x and y coordinates of each vertex into the scratch arrays of the calling thread, which only grow, and
+     * are only kept up to {@value #RETAINED_VERTICES} vertices. It sets the command's color and outline width,
+     * and renders the polygon using {@code Graphics.drawPolygon}, or {@code Graphics.fillPolygon} if it is filled.
+     * </p>
+     *
+     * @param command  the parsed request. The vertices are expected as coordinate pairs.
      * @param graphics the {@code Graphics} object used to render the polygon.
      */
-    private void drawPolygon(String[] tokens, Graphics graphics) {
-        System.out.println("Drawing Segment..."); // Debug message; may be a misnomer for polygon
-        int n = (tokens.length - 2) / 2;
-        int[] xPoints = new int[n];
-        int[] yPoints = new int[n];
+    private void drawPolygon(ShapeCommand command, Graphics graphics) {
+        int n = command.getCoordinateCount() / 2;
+        Vertices vertices = VERTICES.get();
+        int[] xPoints = vertices.x;
+        int[] yPoints = vertices.y;
+        if (xPoints.length < n) {
+            xPoints = new int[Math.max(n, xPoints.length * 2)];
+            yPoints = new int[xPoints.length];
+            if (xPoints.length <= RETAINED_VERTICES) {
+                vertices.x = xPoints;
+                vertices.y = yPoints;
+            }
+        }
         for (int i = 0; i < n; i++) {
-            xPoints[i] = Integer.parseInt(tokens[2 + i * 2]);
-            yPoints[i] = Integer.parseInt(tokens[3 + i * 2]);
+            xPoints[i] = command.getCoordinate(i * 2);
+            yPoints[i] = command.getCoordinate(i * 2 + 1);
         }
-        String colorName = tokens[tokens.length - 1].trim().toLowerCase();
-        Color color = DrawingServer.getColor(colorName);
+        Color color = command.getColor();
 
-        System.out.println(color);
-        graphics.setColor(color);
-        graphics.drawPolygon(xPoints, yPoints, n);
+        if (ServerLog.isEnabled(ServerLog.Level.DEBUG)) {
+            ServerLog.debug(String.valueOf(color));
+        }
+        applyStyle(command, graphics);
+        if (command.isFilled()) {
+            graphics.fillPolygon(xPoints, yPoints, n);
+        } else {
+            graphics.drawPolygon(xPoints, yPoints, n);
+        }
+    }
+
+    /**
+     * The x and y coordinates of the vertices of the last polygon drawn by a thread.
+     */
+    private static final class Vertices {
+        int[] x = new int[16];
+        int[] y = new int[16];
     }
 }
@@ -0,0 +1,172 @@
+import java.util.Arrays;
+
+/**
+ * The {@code PolygonSimplifier} class reduces the number of vertices of a polygon to what a canvas can show.
+ * <p>
+ * Clients tracing outlines from geographic data send polygons with a hundred thousand vertices or more, most of
+ * which fall on the same pixels as their neighbors once drawn. The simplifier works in place on the interleaved
+ * {@code x y} coordinates of a {@link ShapeCommand}, in two passes:
+ * <ul>
+ *   <li>{@link #dedupe(int[], int)} drops every vertex on the same pixel as the one before it, which changes no
+ *   pixel of the drawing;</li>
+ *   <li>{@link #simplify(int[], int, double)} first drops, in one linear pass, every vertex within the tolerance of
+ *   the last vertex kept, then applies the Douglas&ndash;Peucker algorithm to the rest: it keeps only the vertices
+ *   the outline would move by more than the tolerance, in pixels, without.</li>
+ * </ul>
+ * </p>
+ *
+ * <p>
+ * The recursion of Douglas&ndash;Peucker runs on an explicit stack of vertex indices, so deep or degenerate outlines
+ * cannot overflow the thread stack, and the pass only uses primitive arrays that are kept between calls. Instances
+ * are therefore not thread-safe: each {@link ShapeClipper} owns its own.
+ * </p>
+ *
+ * @see ServerConfig#getPolygonTolerance()
+ */
+public class PolygonSimplifier {
+    private int[] stack = new int[64];
+    private boolean[] keep = new boolean[32];
+
+    /**
+     * Removes the vertices lying on the same pixel as the previous vertex, the last vertex included when it closes
+     * the polygon on the first one.
+     *
+     * @param coordinates the vertices as {@code x y} pairs, compacted in place.
+     * @param count       the number of coordinates.
+     * @return the number of coordinates left.
+     */
+    public static int dedupe(int[] coordinates, int count) {
+        if (count < 4) {
+            return count;
+        }
+        int n = 2;
+        for (int i = 2; i + 1 < count; i += 2) {
+            if (coordinates[i] != coordinates[n - 2] || coordinates[i + 1] != coordinates[n - 1]) {
+                coordinates[n] = coordinates[i];
+                coordinates[n + 1] = coordinates[i + 1];
+                n += 2;
+            }
+        }
+        if (n > 2 && coordinates[n - 2] == coordinates[0] && coordinates[n - 1] == coordinates[1]) {
+            n -= 2;
+        }
+        return n;
+    }
+
+    /**
+     * Simplifies a closed polygon with the Douglas&ndash;Peucker algorithm.
+     * <p>
+     * Vertices closer than {@code tolerance} to the previous vertex kept are dropped first, which is cheap and
+     * leaves the quadratic worst case of Douglas&ndash;Peucker far fewer vertices on dense outlines. The polygon is
+     * split at its first vertex and at the vertex farthest from it, and each of the two chains is
+     * simplified: a chain keeps the vertex farthest from the line through its ends if it lies more than
+     * {@code tolerance} away, and the two halves around it are simplified in turn. Polygons of three vertices or
+     * fewer are left as they are.
+     * </p>
+     *
+     * @param coordinates the vertices as {@code x y} pairs, compacted in place.
+     * @param count       the number of coordinates.
+     * @param tolerance   the largest distance, in pixels, between a dropped vertex and the simplified outline.
+     * @return the number of coordinates left.
+     */
+    public int simplify(int[] coordinates, int count, double tolerance) {
+        if (count / 2 <= 3) {
+            return count;
+        }
+        double squaredTolerance = tolerance * tolerance;
+        int near = 2;
+        for (int i = 2; i + 1 < count; i += 2) {
+            long dx = (long) coordinates[i] - coordinates[near - 2];
+            long dy = (long) coordinates[i + 1] - coordinates[near - 1];
+            if (dx * dx + dy * dy > squaredTolerance) {
+                coordinates[near] = coordinates[i];
+                coordinates[near + 1] = coordinates[i + 1];
+                near += 2;
+            }
+        }
+        int n = near / 2;
+        if (n <= 3) {
+            return near;
+        }
+        if (keep.length < n) {
+            keep = new boolean[Math.max(keep.length * 2, n)];
+        }
+        // Every pending chain is two indices, and at most one chain per vertex is pending.
+        if (stack.length < 2 * n + 4) {
+            stack = new int[Math.max(stack.length * 2, 2 * n + 4)];
+        }
+        Arrays.fill(keep, 0, n, false);
+        int farthest = 0;
+        long farthestDistance = -1;
+        for (int i = 1; i < n; i++) {
+            long dx = (long) coordinates[2 * i] - coordinates[0];
+            long dy = (long) coordinates[2 * i + 1] - coordinates[1];
+            long distance = dx * dx + dy * dy;
+            if (distance > farthestDistance) {
+                farthestDistance = distance;
+                farthest = i;
+            }
+        }
+        keep[0] = true;
+        keep[farthest] = true;
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = farthest;
+        stack[top++] = farthest;
+        // Index n stands for the first vertex, closing the polygon.
+        stack[top++] = n;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+            if (last - first < 2) {
+                continue;
+            }
+            int end = last == n ? 0 : last;
+            double ax = coordinates[2 * first];
+            double ay = coordinates[2 * first + 1];
+            double dx = coordinates[2 * end] - ax;
+            double dy = coordinates[2 * end + 1] - ay;
+            double length = dx * dx + dy * dy;
+            int split = -1;
+            if (length == 0) {
+                double splitDistance = squaredTolerance;
+                for (int i = first + 1; i < last; i++) {
+                    double px = coordinates[2 * i] - ax;
+                    double py = coordinates[2 * i + 1] - ay;
+                    double distance = px * px + py * py;
+                    if (distance > splitDistance) {
+                        splitDistance = distance;
+                        split = i;
+                    }
+                }
+            } else {
+                // The cross product of the chord and a vertex is the distance of the vertex to the chord times the
+                // length of the chord, so vertices are compared without a division per vertex.
+                double splitCross = squaredTolerance * length;
+                for (int i = first + 1; i < last; i++) {
+                    double cross = (coordinates[2 * i] - ax) * dy - (coordinates[2 * i + 1] - ay) * dx;
+                    cross *= cross;
+                    if (cross > splitCross) {
+                        splitCross = cross;
+                        split = i;
+                    }
+                }
+            }
+            if (split >= 0) {
+                keep[split] = true;
+                stack[top++] = first;
+                stack[top++] = split;
+                stack[top++] = split;
+                stack[top++] = last;
+            }
+        }
+        int kept = 0;
+        for (int i = 0; i < n; i++) {
+            if (keep[i]) {
+                coordinates[kept++] = coordinates[2 * i];
+                coordinates[kept++] = coordinates[2 * i + 1];
+            }
+        }
+        return kept;
+    }
+}
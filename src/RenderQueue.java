@@ -0,0 +1,243 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The {@code RenderQueue} class is a bounded, lock-free queue of drawing commands between the network threads
+ * and the render thread.
+ * <p>
+ * The queue is a ring of preallocated {@link ShapeCommand} slots with one sequence number per slot (a
+ * multi-producer, single-consumer variant of Vyukov's bounded queue). A producer claims a slot with a single
+ * compare-and-set and copies its command into it, so the caller can immediately reuse its own command. The
+ * render thread reads commands in place and releases each slot after drawing it. Nothing is allocated once the
+ * slots have grown to the largest command seen.
+ * </p>
+ *
+ * <p>
+ * When the queue is full, {@link #put(ShapeCommand)} waits for the render thread to free a slot. This applies
+ * backpressure to the producing connections instead of buffering without bound. Producers that must not wait,
+ * such as a selector thread, use {@link #offer(ShapeCommand)} instead and register with
+ * {@link #whenSpaceAvailable(Runnable)} to be told when to try again.
+ * </p>
+ *
+ * @see CanvasRenderer
+ */
+public class RenderQueue {
+    private final ShapeCommand[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong enqueuePosition = new AtomicLong();
+    private volatile Thread consumer;
+    private volatile boolean consumerWaiting;
+    private volatile long dequeuePosition;
+    private final ConcurrentLinkedQueue<Runnable> spaceListeners = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Creates an empty queue.
+     *
+     * @param capacity the number of slots, rounded up to a power of two.
+     */
+    public RenderQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        slots = new ShapeCommand[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            slots[i] = new ShapeCommand();
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Copies a command into the queue if a slot is free.
+     *
+     * @param command the command to enqueue; it is not retained.
+     * @return {@code true} if the command was enqueued, {@code false} if the queue is full.
+     */
+    public boolean offer(ShapeCommand command) {
+        long position = enqueuePosition.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (enqueuePosition.compareAndSet(position, position + 1)) {
+                    slots[index].copyFrom(command);
+                    sequences.lazySet(index, position + 1);
+                    if (consumerWaiting) {
+                        LockSupport.unpark(consumer);
+                    }
+                    return true;
+                }
+                position = enqueuePosition.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = enqueuePosition.get();
+            }
+        }
+    }
+
+    /**
+     * Copies a command into the queue, waiting for a free slot if the queue is full.
+     *
+     * @param command the command to enqueue; it is not retained.
+     * @return {@code true} if the command had to wait for a free slot.
+     * @throws InterruptedException If the calling thread is interrupted while waiting.
+     */
+    public boolean put(ShapeCommand command) throws InterruptedException {
+        if (offer(command)) {
+            return false;
+        }
+        long backoff = 1_000;
+        while (!offer(command)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            LockSupport.parkNanos(backoff);
+            backoff = Math.min(backoff * 2, 1_000_000);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the oldest command without removing it. Must only be called by the consumer thread.
+     *
+     * @return the oldest command, or {@code null} if the queue is empty.
+     */
+    public ShapeCommand peek() {
+        int index = (int) dequeuePosition & mask;
+        return sequences.get(index) == dequeuePosition + 1 ? slots[index] : null;
+    }
+
+    /**
+     * Returns a command behind the oldest one without removing anything, so the consumer can work on a batch of
+     * commands in place. Must only be called by the consumer thread.
+     *
+     * @param offset the position of the command from the oldest one, which is at offset {@code 0}.
+     * @return the command, or {@code null} if fewer than {@code offset + 1} commands are available.
+     */
+    public ShapeCommand peek(int offset) {
+        long position = dequeuePosition + offset;
+        int index = (int) position & mask;
+        return offset < slots.length && sequences.get(index) == position + 1 ? slots[index] : null;
+    }
+
+    /**
+     * Releases the slot of the command returned by {@link #peek()}. Must only be called by the consumer thread.
+     */
+    public void release() {
+        releaseSlot();
+        signalSpace();
+    }
+
+    /**
+     * Releases the slots of the oldest commands. Must only be called by the consumer thread.
+     *
+     * @param count the number of commands to release, all previously returned by {@link #peek(int)}.
+     */
+    public void release(int count) {
+        for (int i = 0; i < count; i++) {
+            releaseSlot();
+        }
+        signalSpace();
+    }
+
+    private void releaseSlot() {
+        int index = (int) dequeuePosition & mask;
+        // A slot keeps the array of a large command only until it is released.
+        slots[index].trim();
+        sequences.lazySet(index, dequeuePosition + mask + 1);
+        dequeuePosition++;
+    }
+
+    /**
+     * Runs an action once at least half of the slots are free, for a producer whose {@link #offer(ShapeCommand)}
+     * failed and that cannot wait. Waiting for half of the queue rather than a single slot lets the producer
+     * enqueue a run of commands before it finds the queue full again.
+     * <p>
+     * The action runs once, on the consumer thread as it releases slots, or right away on the calling thread if
+     * the queue already has that much room. It must therefore be short and must not block.
+     * </p>
+     *
+     * @param action the action to run.
+     */
+    public void whenSpaceAvailable(Runnable action) {
+        spaceListeners.add(action);
+        // The consumer may have released its slots between the failed offer and the registration.
+        signalSpace();
+    }
+
+    private void signalSpace() {
+        if (!spaceListeners.isEmpty() && size() <= slots.length / 2) {
+            Runnable action;
+            while ((action = spaceListeners.poll()) != null) {
+                action.run();
+            }
+        }
+    }
+
+    /**
+     * Waits until a command is available or the timeout elapses. Must only be called by the consumer thread.
+     * <p>
+     * Producers wake the consumer up when they enqueue a command; the timeout bounds the wait should a wake-up
+     * race with the consumer going to sleep.
+     * </p>
+     *
+     * @param timeoutNanos the maximum time to wait, in nanoseconds.
+     */
+    public void awaitCommand(long timeoutNanos) {
+        if (peek() != null) {
+            return;
+        }
+        consumer = Thread.currentThread();
+        consumerWaiting = true;
+        try {
+            if (peek() == null) {
+                LockSupport.parkNanos(this, timeoutNanos);
+            }
+        } finally {
+            consumerWaiting = false;
+        }
+    }
+
+    /**
+     * Wakes the consumer up if it is waiting in {@link #awaitCommand(long)}, for example because it has work
+     * to do that does not come from the queue.
+     */
+    public void wakeConsumer() {
+        Thread thread = consumer;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * @return the total number of commands enqueued so far.
+     */
+    public long enqueuedCount() {
+        return enqueuePosition.get();
+    }
+
+    /**
+     * @return the total number of commands released by the consumer so far.
+     */
+    public long releasedCount() {
+        return dequeuePosition;
+    }
+
+    /**
+     * @return the approximate number of commands waiting in the queue.
+     */
+    public int size() {
+        long size = enqueuePosition.get() - dequeuePosition;
+        return (int) Math.max(0, Math.min(size, slots.length));
+    }
+
+    /**
+     * @return the number of slots of the queue.
+     */
+    public int capacity() {
+        return slots.length;
+    }
+}
@@ -0,0 +1,37 @@
+import java.awt.*;
+
+/**
+ * Interface for the drawing targets of the {@link CanvasRenderer}.
+ * <p>
+ * A surface hands out a {@code Graphics} for each frame and publishes the frame when it is done. This lets the
+ * same {@link ShapeHandler} implementations draw either into the on-screen frame ({@link WindowSurface}) or into
+ * an offscreen image on machines without a display ({@link ImageSurface}).
+ * </p>
+ *
+ * @see CanvasRenderer
+ */
+public interface RenderSurface {
+    /**
+     * Starts a frame.
+     *
+     * @return the {@code Graphics} object to draw the frame with.
+     */
+    Graphics beginFrame();
+
+    /**
+     * Publishes the frame started by {@link #beginFrame()} and disposes its {@code Graphics}.
+     *
+     * @param graphics the {@code Graphics} object returned by {@link #beginFrame()}.
+     */
+    void endFrame(Graphics graphics);
+
+    /**
+     * @return the width of the surface, in pixels.
+     */
+    int getWidth();
+
+    /**
+     * @return the height of the surface, in pixels.
+     */
+    int getHeight();
+}
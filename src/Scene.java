@@ -0,0 +1,457 @@
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The {@code Scene} class is the retained model of everything drawn on a canvas.
+ * <p>
+ * Every shape drawn by the {@link CanvasRenderer} is also added to the scene, so the canvas can be rebuilt when
+ * the window is exposed, when its back buffer is lost, or for a snapshot, without clients resending anything.
+ * Shapes are kept in drawing order and indexed by bounding box in a uniform grid of
+ * {@value #CELL_SIZE}-pixel cells covering the canvas. Each cell lists the identifiers of the shapes touching it;
+ * shapes reaching outside the canvas are filed under the border cells. Region queries and hit tests only visit the
+ * cells they overlap, so their cost depends on the local density of shapes rather than on the size of the scene.
+ * </p>
+ *
+ * <p>
+ * Removing a shape marks its bounding box dirty. The renderer then repaints only the dirty rectangles: it clears
+ * each of them and redraws, clipped to it, the shapes intersecting it. The scene is thread-safe: it is changed by
+ * the render thread and by control commands, and can be queried from any thread.
+ * </p>
+ *
+ * @see SceneShape
+ * @see CanvasRenderer
+ */
+public class Scene {
+    /** The side of a grid cell, in pixels. */
+    public static final int CELL_SIZE = 32;
+
+    private static final int CELL_SHIFT = Integer.numberOfTrailingZeros(CELL_SIZE);
+    private static final int MAX_DIRTY_REGIONS = 64;
+
+    private final int width;
+    private final int height;
+    private final int columns;
+    private final int rows;
+    private final int[][] cells;
+    private final int[] cellSizes;
+    private final Color background;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final int[] bounds = new int[4];
+    private SceneShape[] shapes = new SceneShape[1024];
+    private int nextId;
+    private int size;
+    private final List<Rectangle> dirtyRegions = new ArrayList<>();
+    private boolean fullRepaint;
+
+    /**
+     * Creates an empty scene.
+     *
+     * @param width      the width of the canvas, in pixels.
+     * @param height     the height of the canvas, in pixels.
+     * @param background the color the canvas is cleared with.
+     */
+    public Scene(int width, int height, Color background) {
+        this.width = width;
+        this.height = height;
+        this.background = background;
+        this.columns = (width + CELL_SIZE - 1) >> CELL_SHIFT;
+        this.rows = (height + CELL_SIZE - 1) >> CELL_SHIFT;
+        this.cells = new int[columns * rows][];
+        this.cellSizes = new int[columns * rows];
+    }
+
+    /**
+     * Adds a shape on top of the scene.
+     *
+     * @param command the valid, parsed shape; its coordinates are copied.
+     * @return the identifier of the new shape.
+     */
+    public int add(ShapeCommand command) {
+        lock.writeLock().lock();
+        try {
+            int id = nextId++;
+            insert(id, command);
+            return id;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Puts back a shape saved with its identifier, when the scene is rebuilt from a {@link CommandJournal}
+     * snapshot. The canvas is not marked dirty.
+     *
+     * @param id      the identifier of the shape; it must be larger than every identifier used so far.
+     * @param command the valid, parsed shape; its coordinates are copied.
+     * @throws IllegalArgumentException If the identifier is already used.
+     */
+    public void restore(int id, ShapeCommand command) {
+        lock.writeLock().lock();
+        try {
+            if (id < nextId) {
+                throw new IllegalArgumentException("shape " + id + " is not after shape " + (nextId - 1));
+            }
+            nextId = id + 1;
+            insert(id, command);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Skips identifiers, so the next shape added gets at least the given one. This restores the identifiers
+     * of the shapes removed after the last shape of a snapshot.
+     *
+     * @param id the smallest identifier of the next shape.
+     */
+    public void reserveIds(int id) {
+        lock.writeLock().lock();
+        try {
+            nextId = Math.max(nextId, id);
+            if (nextId > shapes.length) {
+                shapes = Arrays.copyOf(shapes, nextId);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Copies the shapes of the scene, for a {@link CommandJournal} snapshot.
+     *
+     * @return the shapes indexed by identifier, with {@code null} for removed identifiers; the length of the
+     * array is the identifier of the next shape.
+     */
+    public SceneShape[] copyShapes() {
+        lock.readLock().lock();
+        try {
+            return Arrays.copyOf(shapes, nextId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a shape and marks its bounding box for repainting.
+     *
+     * @param id the identifier of the shape.
+     * @return {@code true} if the shape was in the scene.
+     */
+    public boolean remove(int id) {
+        lock.writeLock().lock();
+        try {
+            if (id < 0 || id >= nextId || shapes[id] == null) {
+                return false;
+            }
+            Rectangle box = shapes[id].getBounds();
+            shapes[id] = null;
+            size--;
+            int x1 = box.x + box.width - 1;
+            int y1 = box.y + box.height - 1;
+            for (int row = row(box.y); row <= row(y1); row++) {
+                for (int column = column(box.x); column <= column(x1); column++) {
+                    removeFromCell(row * columns + column, id);
+                }
+            }
+            markDirty(box);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes every shape and marks the whole canvas for repainting.
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            Arrays.fill(shapes, 0, nextId, null);
+            Arrays.fill(cells, null);
+            Arrays.fill(cellSizes, 0);
+            size = 0;
+            invalidateAll();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns a shape of the scene.
+     *
+     * @param id the identifier of the shape.
+     * @return the shape, or {@code null} if there is no such shape.
+     */
+    public SceneShape get(int id) {
+        lock.readLock().lock();
+        try {
+            return id >= 0 && id < nextId ? shapes[id] : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of shapes in the scene.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the shapes whose bounding box intersects a rectangle.
+     *
+     * @param x0 the left edge of the rectangle, inclusive.
+     * @param y0 the top edge of the rectangle, inclusive.
+     * @param x1 the right edge of the rectangle, inclusive.
+     * @param y1 the bottom edge of the rectangle, inclusive.
+     * @return the identifiers of the matching shapes, in drawing order (bottom-most first).
+     */
+    public int[] query(int x0, int y0, int x1, int y1) {
+        lock.readLock().lock();
+        try {
+            int[] found = new int[16];
+            int count = 0;
+            for (int row = row(y0); row <= row(y1); row++) {
+                for (int column = column(x0); column <= column(x1); column++) {
+                    int cell = row * columns + column;
+                    int[] ids = cells[cell];
+                    for (int i = 0; i < cellSizes[cell]; i++) {
+                        if (shapes[ids[i]].intersects(x0, y0, x1, y1)) {
+                            if (count == found.length) {
+                                found = Arrays.copyOf(found, count * 2);
+                            }
+                            found[count++] = ids[i];
+                        }
+                    }
+                }
+            }
+            // A shape spanning several cells is found once per cell.
+            Arrays.sort(found, 0, count);
+            int unique = 0;
+            for (int i = 0; i < count; i++) {
+                if (unique == 0 || found[unique - 1] != found[i]) {
+                    found[unique++] = found[i];
+                }
+            }
+            return Arrays.copyOf(found, unique);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the shapes whose bounding box contains a point.
+     *
+     * @param x the x-coordinate of the point.
+     * @param y the y-coordinate of the point.
+     * @return the identifiers of the matching shapes, top-most first.
+     */
+    public int[] hitTest(int x, int y) {
+        int[] ids = query(x, y, x, y);
+        for (int i = 0, j = ids.length - 1; i < j; i++, j--) {
+            int id = ids[i];
+            ids[i] = ids[j];
+            ids[j] = id;
+        }
+        return ids;
+    }
+
+    /**
+     * Clears the whole canvas and draws every shape again.
+     *
+     * @param graphics the {@code Graphics} object of the canvas.
+     * @param scratch  a command reused to pass shapes to their handlers.
+     * @param clipper  the clipper the shapes went through when they were first drawn, or {@code null} for none.
+     */
+    public void paintAll(Graphics graphics, ShapeCommand scratch, ShapeClipper clipper) {
+        lock.readLock().lock();
+        try {
+            graphics.setColor(background);
+            graphics.fillRect(0, 0, width, height);
+            for (int id = 0; id < nextId; id++) {
+                SceneShape shape = shapes[id];
+                if (shape != null) {
+                    shape.draw(graphics, scratch, clipper);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Clears a region of the canvas and draws the shapes intersecting it again, clipped to the region.
+     *
+     * @param graphics the {@code Graphics} object of the canvas.
+     * @param region   the region to repaint.
+     * @param scratch  a command reused to pass shapes to their handlers.
+     * @param clipper  the clipper the shapes went through when they were first drawn, or {@code null} for none.
+     */
+    public void paint(Graphics graphics, Rectangle region, ShapeCommand scratch, ShapeClipper clipper) {
+        Shape clip = graphics.getClip();
+        graphics.setClip(region);
+        try {
+            graphics.setColor(background);
+            graphics.fillRect(region.x, region.y, region.width, region.height);
+            int[] ids = query(region.x, region.y, region.x + region.width - 1, region.y + region.height - 1);
+            lock.readLock().lock();
+            try {
+                for (int id : ids) {
+                    SceneShape shape = shapes[id];
+                    if (shape != null) {
+                        shape.draw(graphics, scratch, clipper);
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        } finally {
+            graphics.setClip(clip);
+        }
+    }
+
+    /**
+     * Marks a region of the canvas for repainting.
+     *
+     * @param region the region to repaint; it is copied.
+     */
+    public void markDirty(Rectangle region) {
+        Rectangle visible = region.intersection(new Rectangle(0, 0, width, height));
+        if (visible.isEmpty()) {
+            return;
+        }
+        synchronized (dirtyRegions) {
+            if (fullRepaint) {
+                return;
+            }
+            for (Rectangle dirty : dirtyRegions) {
+                if (dirty.contains(visible)) {
+                    return;
+                }
+            }
+            if (dirtyRegions.size() == MAX_DIRTY_REGIONS) {
+                // Too many small regions: repaint their union instead.
+                Rectangle union = visible;
+                for (Rectangle dirty : dirtyRegions) {
+                    union = union.union(dirty);
+                }
+                dirtyRegions.clear();
+                visible = union;
+            }
+            dirtyRegions.add(visible);
+        }
+    }
+
+    /**
+     * Marks the whole canvas for repainting.
+     */
+    public void invalidateAll() {
+        synchronized (dirtyRegions) {
+            fullRepaint = true;
+            dirtyRegions.clear();
+        }
+    }
+
+    /**
+     * @return {@code true} if some region of the canvas needs repainting.
+     */
+    public boolean needsRepaint() {
+        synchronized (dirtyRegions) {
+            return fullRepaint || !dirtyRegions.isEmpty();
+        }
+    }
+
+    /**
+     * Repaints the regions marked dirty and forgets them.
+     *
+     * @param graphics the {@code Graphics} object of the canvas.
+     * @param scratch  a command reused to pass shapes to their handlers.
+     * @param clipper  the clipper the shapes went through when they were first drawn, or {@code null} for none.
+     */
+    public void repaintDirty(Graphics graphics, ShapeCommand scratch, ShapeClipper clipper) {
+        Rectangle[] regions;
+        boolean all;
+        synchronized (dirtyRegions) {
+            all = fullRepaint;
+            regions = dirtyRegions.toArray(new Rectangle[0]);
+            fullRepaint = false;
+            dirtyRegions.clear();
+        }
+        if (all) {
+            paintAll(graphics, scratch, clipper);
+            return;
+        }
+        for (Rectangle region : regions) {
+            paint(graphics, region, scratch, clipper);
+        }
+    }
+
+    /**
+     * @return the width of the canvas, in pixels.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the height of the canvas, in pixels.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Files a new shape under its identifier. Must be called with the write lock held.
+     */
+    private void insert(int id, ShapeCommand command) {
+        command.getHandler().computeBounds(command, bounds);
+        if (id >= shapes.length) {
+            shapes = Arrays.copyOf(shapes, Math.max(shapes.length * 2, id + 1));
+        }
+        shapes[id] = new SceneShape(id, command, bounds);
+        size++;
+        for (int row = row(bounds[1]); row <= row(bounds[3]); row++) {
+            for (int column = column(bounds[0]); column <= column(bounds[2]); column++) {
+                addToCell(row * columns + column, id);
+            }
+        }
+    }
+
+    private int column(int x) {
+        return Math.max(0, Math.min(columns - 1, x >> CELL_SHIFT));
+    }
+
+    private int row(int y) {
+        return Math.max(0, Math.min(rows - 1, y >> CELL_SHIFT));
+    }
+
+    private void addToCell(int cell, int id) {
+        int[] ids = cells[cell];
+        if (ids == null) {
+            ids = cells[cell] = new int[8];
+        } else if (cellSizes[cell] == ids.length) {
+            ids = cells[cell] = Arrays.copyOf(ids, ids.length * 2);
+        }
+        ids[cellSizes[cell]++] = id;
+    }
+
+    private void removeFromCell(int cell, int id) {
+        int[] ids = cells[cell];
+        int count = cellSizes[cell];
+        // Identifiers are appended in increasing order, so the cell stays sorted.
+        int index = Arrays.binarySearch(ids, 0, count, id);
+        if (index >= 0) {
+            System.arraycopy(ids, index + 1, ids, index, count - index - 1);
+            cellSizes[cell] = count - 1;
+        }
+    }
+}
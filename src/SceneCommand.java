@@ -0,0 +1,116 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The {@code SceneCommand} class implements the control commands that query and edit the retained {@link Scene}.
+ * <p>
+ * Every command first waits for the commands queued before it to be drawn, so it sees the shapes the client sent
+ * earlier on the same connection:
+ * <ul>
+ *   <li>{@code <sender> HIT <x> <y>} replies {@code SHAPES <id> ...} with the shapes whose bounding box contains
+ *   the point, top-most first.</li>
+ *   <li>{@code <sender> QUERY <x0> <y0> <x1> <y1>} replies {@code SHAPES <id> ...} with the shapes whose bounding
+ *   box intersects the rectangle, in drawing order.</li>
+ *   <li>{@code <sender> REMOVE <id> ...} removes shapes, repaints the regions they covered and replies
+ *   {@code OK REMOVE <count>} with the number of shapes actually removed.</li>
+ *   <li>{@code <sender> CLEAR} removes every shape, repaints the canvas and replies {@code OK CLEAR}.</li>
+ * </ul>
+ * {@code REMOVE} and {@code CLEAR} go through the {@link CanvasRenderer}, which records them in the
+ * {@link CommandJournal} when there is one.
+ * </p>
+ *
+ * @see Scene
+ * @see ControlCommands
+ */
+public class SceneCommand implements ControlCommand {
+    /**
+     * The operations on the scene.
+     */
+    public enum Operation {
+        HIT(2, 2),
+        QUERY(4, 4),
+        REMOVE(1, Integer.MAX_VALUE),
+        CLEAR(0, 0);
+
+        private final int minArguments;
+        private final int maxArguments;
+
+        Operation(int minArguments, int maxArguments) {
+            this.minArguments = minArguments;
+            this.maxArguments = maxArguments;
+        }
+    }
+
+    private final CanvasRenderer renderer;
+    private final Operation operation;
+
+    /**
+     * Creates a scene command.
+     *
+     * @param renderer  the renderer holding the scene.
+     * @param operation the operation performed by the command.
+     */
+    public SceneCommand(CanvasRenderer renderer, Operation operation) {
+        this.renderer = renderer;
+        this.operation = operation;
+    }
+
+    @Override
+    public byte[] execute(ByteBuffer buffer, int from, int to) throws InterruptedException {
+        Scene scene = renderer.getScene();
+        if (scene == null) {
+            throw new IllegalArgumentException("the scene is not retained");
+        }
+        int[] arguments = parseArguments(buffer, from, to);
+        if (arguments.length < operation.minArguments || arguments.length > operation.maxArguments) {
+            throw new IllegalArgumentException("wrong number of arguments for " + operation);
+        }
+        renderer.awaitRendered();
+
+        switch (operation) {
+            case HIT:
+                return shapes(scene.hitTest(arguments[0], arguments[1]));
+            case QUERY:
+                return shapes(scene.query(Math.min(arguments[0], arguments[2]), Math.min(arguments[1], arguments[3]),
+                        Math.max(arguments[0], arguments[2]), Math.max(arguments[1], arguments[3])));
+            case REMOVE:
+                int removed = renderer.removeShapes(arguments);
+                return ("OK REMOVE " + removed + "\n").getBytes(StandardCharsets.US_ASCII);
+            default:
+                renderer.clearScene();
+                return "OK CLEAR\n".getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * Parses the remaining tokens of a request as decimal integers.
+     */
+    private static int[] parseArguments(ByteBuffer buffer, int from, int to) {
+        int[] arguments = new int[4];
+        int count = 0;
+        int i = CommandParser.skipSpaces(buffer, from, to);
+        while (i < to) {
+            int end = CommandParser.tokenEnd(buffer, i, to);
+            String token = ControlCommands.token(buffer, i, to);
+            if (count == arguments.length) {
+                arguments = Arrays.copyOf(arguments, count * 2);
+            }
+            try {
+                arguments[count++] = Integer.parseInt(token);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid integer: " + token);
+            }
+            i = CommandParser.skipSpaces(buffer, end, to);
+        }
+        return Arrays.copyOf(arguments, count);
+    }
+
+    private static byte[] shapes(int[] ids) {
+        StringBuilder reply = new StringBuilder("SHAPES");
+        for (int id : ids) {
+            reply.append(' ').append(id);
+        }
+        return reply.append('\n').toString().getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,113 @@
+import java.awt.*;
+import java.util.Arrays;
+
+/**
+ * The {@code SceneShape} class is one shape retained in a {@link Scene}.
+ * <p>
+ * It keeps what is needed to draw the shape again: its handler, an exactly sized copy of its coordinates, its
+ * color and its style, together with its bounding box for the spatial index. Instances are immutable.
+ * </p>
+ *
+ * @see Scene
+ */
+public final class SceneShape {
+    private final int id;
+    private final ShapeHandler handler;
+    private final int[] coordinates;
+    private final Color color;
+    private final boolean filled;
+    private final int strokeWidth;
+    private final int minX;
+    private final int minY;
+    private final int maxX;
+    private final int maxY;
+
+    SceneShape(int id, ShapeCommand command, int[] bounds) {
+        this.id = id;
+        this.handler = command.getHandler();
+        this.coordinates = Arrays.copyOf(command.getCoordinates(), command.getCoordinateCount());
+        this.color = command.getColor();
+        this.filled = command.isFilled();
+        this.strokeWidth = command.getStrokeWidth();
+        this.minX = bounds[0];
+        this.minY = bounds[1];
+        this.maxX = bounds[2];
+        this.maxY = bounds[3];
+    }
+
+    /**
+     * Draws the shape again.
+     *
+     * @param graphics the {@code Graphics} object used for drawing the shape.
+     * @param scratch  a command reused to pass the shape to its handler.
+     * @param clipper  the clipper the shape went through when it was first drawn, or {@code null} for none.
+     */
+    void draw(Graphics graphics, ShapeCommand scratch, ShapeClipper clipper) {
+        scratch.set(handler, coordinates, coordinates.length, color, filled, strokeWidth);
+        if (clipper == null || clipper.clip(scratch)) {
+            scratch.draw(graphics);
+        }
+    }
+
+    /**
+     * Determines whether the bounding box of the shape intersects a rectangle.
+     *
+     * @param x0 the left edge of the rectangle, inclusive.
+     * @param y0 the top edge of the rectangle, inclusive.
+     * @param x1 the right edge of the rectangle, inclusive.
+     * @param y1 the bottom edge of the rectangle, inclusive.
+     * @return {@code true} if the bounding box and the rectangle overlap.
+     */
+    boolean intersects(int x0, int y0, int x1, int y1) {
+        return minX <= x1 && maxX >= x0 && minY <= y1 && maxY >= y0;
+    }
+
+    /**
+     * @return the identifier of the shape in its scene; shapes added later have larger identifiers.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return the handler drawing the shape.
+     */
+    public ShapeHandler getHandler() {
+        return handler;
+    }
+
+    /**
+     * @return a copy of the coordinates of the shape.
+     */
+    public int[] getCoordinates() {
+        return coordinates.clone();
+    }
+
+    /**
+     * @return the color of the shape.
+     */
+    public Color getColor() {
+        return color;
+    }
+
+    /**
+     * @return {@code true} if the shape is filled rather than outlined.
+     */
+    public boolean isFilled() {
+        return filled;
+    }
+
+    /**
+     * @return the width of the outline of the shape, in pixels.
+     */
+    public int getStrokeWidth() {
+        return strokeWidth;
+    }
+
+    /**
+     * @return the bounding box of the shape, inclusive on all sides.
+     */
+    public Rectangle getBounds() {
+        return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+    }
+}
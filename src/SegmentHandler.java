@@ -33,7 +33,8 @@ public class SegmentHandler extends ShapeHandler {
     /**
      * Processes the drawing request for a segment.
      * <p>
-     * This method delegates the drawing operation to the {@link #drawSegment(String[], Graphics)} method.
+     * This method parses the tokens into a {@link ShapeCommand} and delegates the drawing operation to the
+     * {@link #drawSegment(ShapeCommand, Graphics)} method.
      * </p>
      *
      * @param tokens   an array of strings representing the drawing request details.
@@ -43,31 +44,67 @@ public class SegmentHandler extends ShapeHandler {
      */
     @Override
     protected void process(String[] tokens, Graphics graphics) {
-        drawSegment(tokens, graphics);
+        drawSegment(ShapeCommand.fromTokens(tokens, this), graphics);
     }
 
     /**
-     * Draws a segment using the specified tokens and {@code Graphics} context.
+     * Determines whether a segment request may carry the given number of coordinates.
      * <p>
-     * This method parses the endpoint coordinates (x1, y1) and (x2, y2) from the tokens array,
-     * extracts the color from the last token, and retrieves the corresponding {@code Color} object via
-     * {@link DrawingServer#getColor(String)}. It then sets the drawing color and draws the segment using
-     * {@code Graphics.drawLine}.
+     * A segment needs at least four coordinates: its two endpoints.
      * </p>
      *
-     * @param tokens   an array of strings containing the drawing parameters.
-     *                 The endpoints are expected at tokens[2] through tokens[5], and the color at the last token.
+     * @param count the number of integer coordinates in the request.
+     * @return {@code true} if there are at least four coordinates.
+     */
+    @Override
+    protected boolean acceptsCoordinates(int count) {
+        return count >= 4;
+    }
+
+    /**
+     * Clips the segment to the canvas with the Cohen&ndash;Sutherland algorithm.
+     *
+     * @param command the command to prepare.
+     * @param clipper the clipper of the canvas.
+     * @return the outcome of the preparation.
+     */
+    @Override
+    protected ShapeClipper.Result clip(ShapeCommand command, ShapeClipper clipper) {
+        return clipper.clipSegments(command, 4);
+    }
+
+    /**
+     * Draws a parsed segment request.
+     * <p>
+     * This method delegates the drawing operation to the {@link #drawSegment(ShapeCommand, Graphics)} method.
+     * </p>
+     *
+     * @param command  the parsed request.
+     * @param graphics the {@code Graphics} object used for drawing.
+     */
+    @Override
+    protected void draw(ShapeCommand command, Graphics graphics) {
+        drawSegment(command, graphics);
+    }
+
+    /**
+     * Draws a segment using the specified command and {@code Graphics} context.
+     * <p>
+     * This method reads the endpoint coordinates (x1, y1) and (x2, y2) from the command, sets the command's
+     * color and outline width and draws the segment using {@code Graphics.drawLine}. A segment encloses no area,
+     * so it is drawn the same way whether it is filled or not.
+     * </p>
+     *
+     * @param command  the parsed request. The endpoints are expected in coordinates 0 through 3.
      * @param graphics the {@code Graphics} object used to render the segment.
      */
-    private void drawSegment(String[] tokens, Graphics graphics) {
-        System.out.println("Drawing Segment...");
-        int x1 = Integer.parseInt(tokens[2]);
-        int y1 = Integer.parseInt(tokens[3]);
-        int x2 = Integer.parseInt(tokens[4]);
-        int y2 = Integer.parseInt(tokens[5]);
-        String colorName = tokens[tokens.length - 1].trim().toLowerCase();
-        Color color = DrawingServer.getColor(colorName);
-        graphics.setColor(color);
+    private void drawSegment(ShapeCommand command, Graphics graphics) {
+        ServerLog.debug("Drawing Segment...");
+        int x1 = command.getCoordinate(0);
+        int y1 = command.getCoordinate(1);
+        int x2 = command.getCoordinate(2);
+        int y2 = command.getCoordinate(3);
+        applyStyle(command, graphics);
         graphics.drawLine(x1, y1, x2, y2);
     }
 }
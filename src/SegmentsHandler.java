@@ -0,0 +1,118 @@
+import java.awt.*;
+
+/**
+ * The {@code SegmentsHandler} class handles bulk drawing requests for many segments of one color.
+ * <p>
+ * This class extends {@link ShapeHandler} as part of the Chain of Responsibility pattern. A request identified by
+ * the token "SEGMENTS" carries a packed array of {@code x1 y1 x2 y2} quadruples followed by a single color and
+ * style, for example {@code x SEGMENTS 0 0 10 10 10 10 20 5 blue}. The quadruples stay in the primitive
+ * coordinate array of the {@link ShapeCommand}, and are drawn in one tight loop after setting the color and
+ * stroke once. Segments lying entirely outside the clip of the {@code Graphics} are skipped without calling
+ * Java2D, which matters when the {@link TileRasterizer} draws the same request once per tile.
+ * </p>
+ *
+ * <p>
+ * The segments of a request are one shape for the {@link Scene}: they share a single identifier and a bounding
+ * box enclosing all of them.
+ * </p>
+ *
+ * @see SegmentHandler
+ * @see CirclesHandler
+ */
+public class SegmentsHandler extends ShapeHandler {
+
+    /**
+     * Determines whether this handler can process the drawing request based on the shape type.
+     * <p>
+     * This implementation returns {@code true} if the provided {@code shapeType} equals "SEGMENTS"
+     * (ignoring case).
+     * </p>
+     *
+     * @param shapeType the type of the shape to be drawn.
+     * @return {@code true} if the shape type is "SEGMENTS", {@code false} otherwise.
+     */
+    @Override
+    protected boolean canHandle(String shapeType) {
+        return "SEGMENTS".equalsIgnoreCase(shapeType);
+    }
+
+    /**
+     * Processes the drawing request for a batch of segments.
+     *
+     * @param tokens   an array of strings representing the drawing request details: the shape type at index 1,
+     *                 then the {@code x1 y1 x2 y2} quadruples, and the color in the last token.
+     * @param graphics the {@code Graphics} object used for drawing.
+     */
+    @Override
+    protected void process(String[] tokens, Graphics graphics) {
+        drawSegments(ShapeCommand.fromTokens(tokens, this), graphics);
+    }
+
+    /**
+     * Determines whether a bulk segment request may carry the given number of coordinates.
+     *
+     * @param count the number of integer coordinates in the request.
+     * @return {@code true} if the coordinates form at least one complete {@code x1 y1 x2 y2} quadruple.
+     */
+    @Override
+    protected boolean acceptsCoordinates(int count) {
+        return count > 0 && count % 4 == 0;
+    }
+
+    /**
+     * Clips every segment to the canvas with the Cohen&ndash;Sutherland algorithm, dropping those that miss it.
+     *
+     * @param command the command to prepare.
+     * @param clipper the clipper of the canvas.
+     * @return the outcome of the preparation.
+     */
+    @Override
+    protected ShapeClipper.Result clip(ShapeCommand command, ShapeClipper clipper) {
+        return clipper.clipSegments(command, command.getCoordinateCount());
+    }
+
+    /**
+     * Draws a parsed bulk segment request.
+     *
+     * @param command  the parsed request.
+     * @param graphics the {@code Graphics} object used for drawing.
+     */
+    @Override
+    protected void draw(ShapeCommand command, Graphics graphics) {
+        drawSegments(command, graphics);
+    }
+
+    /**
+     * Draws every segment of a command with {@code Graphics.drawLine}, exactly as the same segments sent one by
+     * one to the {@link SegmentHandler}.
+     *
+     * @param command  the parsed request, holding {@code x1 y1 x2 y2} quadruples.
+     * @param graphics the {@code Graphics} object used to render the segments.
+     */
+    private void drawSegments(ShapeCommand command, Graphics graphics) {
+        if (ServerLog.isEnabled(ServerLog.Level.DEBUG)) {
+            ServerLog.debug("Drawing " + command.getCoordinateCount() / 4 + " segments...");
+        }
+        applyStyle(command, graphics);
+        int[] coordinates = command.getCoordinates();
+        int count = command.getCoordinateCount();
+        Rectangle clip = graphics.getClipBounds();
+        // Reach of the outline beyond the endpoints, so culling never drops a visible pixel.
+        int margin = command.getStrokeWidth() / 2 + 1;
+        long clipX0 = clip == null ? Long.MIN_VALUE : clip.x - margin;
+        long clipY0 = clip == null ? Long.MIN_VALUE : clip.y - margin;
+        long clipX1 = clip == null ? Long.MAX_VALUE : (long) clip.x + clip.width + margin;
+        long clipY1 = clip == null ? Long.MAX_VALUE : (long) clip.y + clip.height + margin;
+        for (int i = 0; i < count; i += 4) {
+            int x1 = coordinates[i];
+            int y1 = coordinates[i + 1];
+            int x2 = coordinates[i + 2];
+            int y2 = coordinates[i + 3];
+            if (Math.max(x1, x2) < clipX0 || Math.min(x1, x2) > clipX1
+                    || Math.max(y1, y2) < clipY0 || Math.min(y1, y2) > clipY1) {
+                continue;
+            }
+            graphics.drawLine(x1, y1, x2, y2);
+        }
+    }
+}
@@ -0,0 +1,621 @@
+import java.awt.*;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * The {@code ServerConfig} class holds the tunable settings of the {@link DrawingServer}.
+ * <p>
+ * Every setting is read once at startup from a property (for example {@code -Ddrawing.server.port=9090})
+ * and falls back to a default that keeps the historical behavior of the server where one exists.
+ * Instances are immutable and can be shared freely between threads.
+ * </p>
+ *
+ * @see DrawingServer
+ */
+public class ServerConfig {
+    /** The value of {@link #THREADS_PROPERTY} selecting one virtual thread per connection. */
+    public static final String VIRTUAL_THREADS = "virtual";
+    /** The value of {@link #TRANSPORT_PROPERTY} selecting blocking sockets served by worker threads. */
+    public static final String BLOCKING_TRANSPORT = "blocking";
+    /** The value of {@link #TRANSPORT_PROPERTY} selecting the non-blocking {@link NioServer}. */
+    public static final String NIO_TRANSPORT = "nio";
+
+    static final String PORT_PROPERTY = "drawing.server.port";
+    static final String THREADS_PROPERTY = "drawing.server.threads";
+    static final String MAX_CONNECTIONS_PROPERTY = "drawing.server.maxConnections";
+    static final String PERSISTENT_PROPERTY = "drawing.server.persistent";
+    static final String ACK_BATCH_PROPERTY = "drawing.server.ackBatch";
+    static final String TRANSPORT_PROPERTY = "drawing.server.transport";
+    static final String NIO_BUFFER_SIZE_PROPERTY = "drawing.server.nioBufferSize";
+    static final String MAX_FPS_PROPERTY = "drawing.server.maxFps";
+    static final String RENDER_QUEUE_CAPACITY_PROPERTY = "drawing.server.renderQueueCapacity";
+    static final String HEADLESS_PROPERTY = "drawing.server.headless";
+    static final String WIDTH_PROPERTY = "drawing.server.width";
+    static final String HEIGHT_PROPERTY = "drawing.server.height";
+    static final String SNAPSHOT_DIRECTORY_PROPERTY = "drawing.server.snapshotDir";
+    static final String RETAIN_SCENE_PROPERTY = "drawing.server.retainScene";
+    static final String LOG_LEVEL_PROPERTY = "drawing.server.logLevel";
+    static final String RENDER_THREADS_PROPERTY = "drawing.server.renderThreads";
+    static final String TILE_SIZE_PROPERTY = "drawing.server.tileSize";
+    static final String JOURNAL_DIRECTORY_PROPERTY = "drawing.server.journalDir";
+    static final String JOURNAL_SYNC_MILLIS_PROPERTY = "drawing.server.journalSyncMillis";
+    static final String JOURNAL_COMPACT_BYTES_PROPERTY = "drawing.server.journalCompactBytes";
+    static final String MAX_CANVASES_PROPERTY = "drawing.server.maxCanvases";
+    static final String CANVAS_IDLE_SECONDS_PROPERTY = "drawing.server.canvasIdleSeconds";
+    static final String READ_TIMEOUT_MILLIS_PROPERTY = "drawing.server.readTimeoutMillis";
+    static final String MAX_LINE_LENGTH_PROPERTY = "drawing.server.maxLineLength";
+    static final String MAX_VERTICES_PROPERTY = "drawing.server.maxVertices";
+    static final String CLIENT_RATE_LIMIT_PROPERTY = "drawing.server.clientRateLimit";
+    static final String CLIENT_RATE_BURST_PROPERTY = "drawing.server.clientRateBurst";
+    static final String MAX_IN_FLIGHT_PROPERTY = "drawing.server.maxInFlight";
+    static final String MAX_IN_FLIGHT_BYTES_PROPERTY = "drawing.server.maxInFlightBytes";
+    static final String CLIP_SHAPES_PROPERTY = "drawing.server.clipShapes";
+    static final String POLYGON_TOLERANCE_PROPERTY = "drawing.server.polygonTolerance";
+    static final String VIEWER_FPS_PROPERTY = "drawing.server.viewerFps";
+    static final String MAX_VIEWERS_PROPERTY = "drawing.server.maxViewers";
+    static final String VIEWER_TILE_SIZE_PROPERTY = "drawing.server.viewerTileSize";
+    static final String VIEWER_DEFLATE_PROPERTY = "drawing.server.viewerDeflate";
+
+    /** The number of maximum-size requests the in-flight byte budget holds with the raised request limits. */
+    static final int LARGE_COMMANDS_IN_FLIGHT = 64;
+
+    private final int port;
+    private final int workerThreads;
+    private final int maxConnections;
+    private final boolean persistent;
+    private final int ackBatch;
+    private final boolean nioTransport;
+    private final int nioBufferSize;
+    private final int maxFps;
+    private final int renderQueueCapacity;
+    private final boolean headless;
+    private final int width;
+    private final int height;
+    private final Path snapshotDirectory;
+    private final boolean retainScene;
+    private final ServerLog.Level logLevel;
+    private final int renderThreads;
+    private final int tileSize;
+    private final Path journalDirectory;
+    private final int journalSyncMillis;
+    private final long journalCompactBytes;
+    private final int maxCanvases;
+    private final int canvasIdleSeconds;
+    private final int readTimeoutMillis;
+    private final int maxLineLength;
+    private final int maxVertices;
+    private final int clientRateLimit;
+    private final int clientRateBurst;
+    private final int maxInFlight;
+    private final long maxInFlightBytes;
+    private final boolean clipShapes;
+    private final double polygonTolerance;
+    private final int viewerFps;
+    private final int maxViewers;
+    private final int viewerTileSize;
+    private final boolean viewerDeflate;
+
+    /**
+     * Creates a configuration from the {@code drawing.server.*} entries of the given properties.
+     * <p>
+     * {@code drawing.server.threads} is either {@value #VIRTUAL_THREADS} (the default) or a positive pool size.
+     * {@code drawing.server.transport} is either {@value #BLOCKING_TRANSPORT} (the default) or
+     * {@value #NIO_TRANSPORT}. {@code drawing.server.headless} defaults to {@code true} when the JVM has no display.
+     * </p>
+     *
+     * @param properties the properties to read; missing entries take their default value.
+     * @throws IllegalArgumentException If a property has an invalid value.
+     */
+    public ServerConfig(Properties properties) {
+        this.port = intProperty(properties, PORT_PROPERTY, 8080);
+        String threads = properties.getProperty(THREADS_PROPERTY, VIRTUAL_THREADS).trim();
+        this.workerThreads = VIRTUAL_THREADS.equalsIgnoreCase(threads) ? 0 : Integer.parseInt(threads);
+        this.maxConnections = intProperty(properties, MAX_CONNECTIONS_PROPERTY, 1024);
+        this.persistent = Boolean.parseBoolean(properties.getProperty(PERSISTENT_PROPERTY, "false").trim());
+        this.ackBatch = intProperty(properties, ACK_BATCH_PROPERTY, 0);
+        String transport = properties.getProperty(TRANSPORT_PROPERTY, BLOCKING_TRANSPORT).trim();
+        this.nioTransport = NIO_TRANSPORT.equalsIgnoreCase(transport);
+        this.nioBufferSize = intProperty(properties, NIO_BUFFER_SIZE_PROPERTY, 64 * 1024);
+        this.maxFps = intProperty(properties, MAX_FPS_PROPERTY, 60);
+        this.renderQueueCapacity = intProperty(properties, RENDER_QUEUE_CAPACITY_PROPERTY, 16 * 1024);
+        String headlessValue = properties.getProperty(HEADLESS_PROPERTY);
+        this.headless = headlessValue == null
+                ? GraphicsEnvironment.isHeadless()
+                : Boolean.parseBoolean(headlessValue.trim());
+        this.width = intProperty(properties, WIDTH_PROPERTY, 1000);
+        this.height = intProperty(properties, HEIGHT_PROPERTY, 800);
+        String snapshotDirectoryValue = properties.getProperty(SNAPSHOT_DIRECTORY_PROPERTY);
+        this.snapshotDirectory = snapshotDirectoryValue == null ? null : Path.of(snapshotDirectoryValue.trim());
+        this.retainScene = Boolean.parseBoolean(properties.getProperty(RETAIN_SCENE_PROPERTY, "false").trim());
+        String logLevelValue = properties.getProperty(LOG_LEVEL_PROPERTY, ServerLog.Level.INFO.name()).trim();
+        try {
+            this.logLevel = ServerLog.Level.valueOf(logLevelValue.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(LOG_LEVEL_PROPERTY + " must be one of DEBUG, INFO, WARN, ERROR or OFF: "
+                    + logLevelValue);
+        }
+        this.renderThreads = intProperty(properties, RENDER_THREADS_PROPERTY,
+                Runtime.getRuntime().availableProcessors());
+        this.tileSize = intProperty(properties, TILE_SIZE_PROPERTY, 128);
+        String journalDirectoryValue = properties.getProperty(JOURNAL_DIRECTORY_PROPERTY);
+        this.journalDirectory = journalDirectoryValue == null ? null : Path.of(journalDirectoryValue.trim());
+        this.journalSyncMillis = intProperty(properties, JOURNAL_SYNC_MILLIS_PROPERTY, 10);
+        String journalCompactBytesValue = properties.getProperty(JOURNAL_COMPACT_BYTES_PROPERTY);
+        this.journalCompactBytes = journalCompactBytesValue == null
+                ? 64L * 1024 * 1024
+                : Long.parseLong(journalCompactBytesValue.trim());
+        this.maxCanvases = intProperty(properties, MAX_CANVASES_PROPERTY, 64);
+        this.canvasIdleSeconds = intProperty(properties, CANVAS_IDLE_SECONDS_PROPERTY, 300);
+        this.readTimeoutMillis = intProperty(properties, READ_TIMEOUT_MILLIS_PROPERTY, 60_000);
+        this.clipShapes = Boolean.parseBoolean(properties.getProperty(CLIP_SHAPES_PROPERTY, "true").trim());
+        this.polygonTolerance = doubleProperty(properties, POLYGON_TOLERANCE_PROPERTY, 0);
+        String maxInFlightBytesValue = properties.getProperty(MAX_IN_FLIGHT_BYTES_PROPERTY);
+        this.maxInFlightBytes = maxInFlightBytesValue == null
+                ? 256L * 1024 * 1024
+                : Long.parseLong(maxInFlightBytesValue.trim());
+        // Polygons are simplified after they are accepted: the limits must let detailed outlines through, as far
+        // as the in-flight byte budget bounds the memory they take while queued.
+        int defaultVertices = 16 * 1024;
+        if (clipShapes && polygonTolerance > 0 && maxInFlightBytes > 0) {
+            long commandBytes = maxInFlightBytes / LARGE_COMMANDS_IN_FLIGHT;
+            defaultVertices = (int) Math.max(defaultVertices, Math.min(1024 * 1024,
+                    (commandBytes - AdmissionControl.sizeOf(0)) / 8));
+        }
+        this.maxVertices = intProperty(properties, MAX_VERTICES_PROPERTY, defaultVertices);
+        this.maxLineLength = intProperty(properties, MAX_LINE_LENGTH_PROPERTY,
+                (int) Math.min(BinaryProtocol.MAX_FRAME_LENGTH, Math.max(1024 * 1024, 16L * defaultVertices)));
+        this.clientRateLimit = intProperty(properties, CLIENT_RATE_LIMIT_PROPERTY, 0);
+        this.clientRateBurst = intProperty(properties, CLIENT_RATE_BURST_PROPERTY, Math.max(1, clientRateLimit));
+        this.maxInFlight = intProperty(properties, MAX_IN_FLIGHT_PROPERTY, 64 * 1024);
+        this.viewerFps = intProperty(properties, VIEWER_FPS_PROPERTY, 30);
+        this.maxViewers = intProperty(properties, MAX_VIEWERS_PROPERTY, 64);
+        this.viewerTileSize = intProperty(properties, VIEWER_TILE_SIZE_PROPERTY, 64);
+        this.viewerDeflate = Boolean.parseBoolean(properties.getProperty(VIEWER_DEFLATE_PROPERTY, "true").trim());
+
+        if (workerThreads < 0) {
+            throw new IllegalArgumentException(THREADS_PROPERTY + " must be >= 0: " + workerThreads);
+        }
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException(MAX_CONNECTIONS_PROPERTY + " must be >= 1: " + maxConnections);
+        }
+        if (ackBatch < 0) {
+            throw new IllegalArgumentException(ACK_BATCH_PROPERTY + " must be >= 0: " + ackBatch);
+        }
+        if (!nioTransport && !BLOCKING_TRANSPORT.equalsIgnoreCase(transport)) {
+            throw new IllegalArgumentException(TRANSPORT_PROPERTY + " must be "
+                    + BLOCKING_TRANSPORT + " or " + NIO_TRANSPORT + ": " + transport);
+        }
+        if (nioBufferSize < 256) {
+            throw new IllegalArgumentException(NIO_BUFFER_SIZE_PROPERTY + " must be >= 256: " + nioBufferSize);
+        }
+        if (maxFps < 0) {
+            throw new IllegalArgumentException(MAX_FPS_PROPERTY + " must be >= 0: " + maxFps);
+        }
+        if (renderQueueCapacity < 2) {
+            throw new IllegalArgumentException(
+                    RENDER_QUEUE_CAPACITY_PROPERTY + " must be >= 2: " + renderQueueCapacity);
+        }
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("Canvas size must be positive: " + width + "x" + height);
+        }
+        if (renderThreads < 1) {
+            throw new IllegalArgumentException(RENDER_THREADS_PROPERTY + " must be >= 1: " + renderThreads);
+        }
+        if (tileSize < 16) {
+            throw new IllegalArgumentException(TILE_SIZE_PROPERTY + " must be >= 16: " + tileSize);
+        }
+        if (journalSyncMillis < 0) {
+            throw new IllegalArgumentException(
+                    JOURNAL_SYNC_MILLIS_PROPERTY + " must be >= 0: " + journalSyncMillis);
+        }
+        if (journalCompactBytes < 0) {
+            throw new IllegalArgumentException(
+                    JOURNAL_COMPACT_BYTES_PROPERTY + " must be >= 0: " + journalCompactBytes);
+        }
+        if (maxCanvases < 1) {
+            throw new IllegalArgumentException(MAX_CANVASES_PROPERTY + " must be >= 1: " + maxCanvases);
+        }
+        if (canvasIdleSeconds < 0) {
+            throw new IllegalArgumentException(
+                    CANVAS_IDLE_SECONDS_PROPERTY + " must be >= 0: " + canvasIdleSeconds);
+        }
+        if (readTimeoutMillis < 0) {
+            throw new IllegalArgumentException(
+                    READ_TIMEOUT_MILLIS_PROPERTY + " must be >= 0: " + readTimeoutMillis);
+        }
+        if (maxLineLength < 256 || maxLineLength > BinaryProtocol.MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException(MAX_LINE_LENGTH_PROPERTY + " must be between 256 and "
+                    + BinaryProtocol.MAX_FRAME_LENGTH + ": " + maxLineLength);
+        }
+        if (maxVertices < 3) {
+            throw new IllegalArgumentException(MAX_VERTICES_PROPERTY + " must be >= 3: " + maxVertices);
+        }
+        if (clientRateLimit < 0) {
+            throw new IllegalArgumentException(CLIENT_RATE_LIMIT_PROPERTY + " must be >= 0: " + clientRateLimit);
+        }
+        if (clientRateBurst < 1) {
+            throw new IllegalArgumentException(CLIENT_RATE_BURST_PROPERTY + " must be >= 1: " + clientRateBurst);
+        }
+        if (maxInFlight < 0) {
+            throw new IllegalArgumentException(MAX_IN_FLIGHT_PROPERTY + " must be >= 0: " + maxInFlight);
+        }
+        if (maxInFlightBytes < 0) {
+            throw new IllegalArgumentException(
+                    MAX_IN_FLIGHT_BYTES_PROPERTY + " must be >= 0: " + maxInFlightBytes);
+        }
+        if (maxInFlightBytes > 0 && AdmissionControl.sizeOf(2 * maxVertices) > maxInFlightBytes) {
+            throw new IllegalArgumentException(MAX_IN_FLIGHT_BYTES_PROPERTY + " must hold a request of "
+                    + MAX_VERTICES_PROPERTY + " vertices: " + maxInFlightBytes);
+        }
+        if (!(polygonTolerance >= 0) || Double.isInfinite(polygonTolerance)) {
+            throw new IllegalArgumentException(POLYGON_TOLERANCE_PROPERTY + " must be a number >= 0: "
+                    + polygonTolerance);
+        }
+        if (viewerFps < 1 || viewerFps > 1000) {
+            throw new IllegalArgumentException(VIEWER_FPS_PROPERTY + " must be between 1 and 1000: " + viewerFps);
+        }
+        if (maxViewers < 0) {
+            throw new IllegalArgumentException(MAX_VIEWERS_PROPERTY + " must be >= 0: " + maxViewers);
+        }
+        if (viewerTileSize < 8 || viewerTileSize > CanvasStreamer.MAX_TILE_SIZE) {
+            throw new IllegalArgumentException(VIEWER_TILE_SIZE_PROPERTY + " must be between 8 and "
+                    + CanvasStreamer.MAX_TILE_SIZE + ": " + viewerTileSize);
+        }
+    }
+
+    /**
+     * Builds a configuration from the {@code drawing.server.*} system properties.
+     *
+     * @return the configuration read from the system properties.
+     */
+    public static ServerConfig fromSystemProperties() {
+        return new ServerConfig(System.getProperties());
+    }
+
+    /**
+     * Reads an integer property.
+     *
+     * @param properties   the properties to read.
+     * @param name         the property name.
+     * @param defaultValue the value used when the property is missing.
+     * @return the property value.
+     */
+    private static int intProperty(Properties properties, String name, int defaultValue) {
+        String value = properties.getProperty(name);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    /**
+     * Reads a decimal property.
+     *
+     * @param properties   the properties to read.
+     * @param name         the property name.
+     * @param defaultValue the value used when the property is missing.
+     * @return the property value.
+     */
+    private static double doubleProperty(Properties properties, String name, double defaultValue) {
+        String value = properties.getProperty(name);
+        return value == null ? defaultValue : Double.parseDouble(value.trim());
+    }
+
+    /**
+     * @return the TCP port the server listens on.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return the size of the bounded worker pool, or {@code 0} when virtual threads are used. The workers serve
+     * the connections of the blocking transport, and the control commands of the {@link NioServer}.
+     */
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    /**
+     * @return {@code true} if each connection, or each control command with the {@link NioServer}, is served by
+     * its own virtual thread.
+     */
+    public boolean usesVirtualThreads() {
+        return workerThreads == 0;
+    }
+
+    /**
+     * @return the maximum number of connections served concurrently.
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @return {@code true} if a connection carries newline-delimited commands until EOF, {@code false} if it
+     * carries a single command (the historical one-shot protocol).
+     */
+    public boolean isPersistent() {
+        return persistent;
+    }
+
+    /**
+     * @return the number of commands after which a persistent connection is acknowledged, or {@code 0} if
+     * no acknowledgements are sent. A client can ask for its own batch size, with sequenced replies, with an
+     * {@code ACKS} request, see {@link Acknowledgements}.
+     */
+    public int getAckBatch() {
+        return ackBatch;
+    }
+
+    /**
+     * @return {@code true} if connections are served by the non-blocking {@link NioServer}, {@code false} if
+     * they are served by blocking sockets on worker threads.
+     */
+    public boolean usesNioTransport() {
+        return nioTransport;
+    }
+
+    /**
+     * @return the capacity of the pooled direct buffers used by the {@link NioServer}, in bytes.
+     */
+    public int getNioBufferSize() {
+        return nioBufferSize;
+    }
+
+    /**
+     * @return the maximum number of frames shown per second, or {@code 0} to flip as fast as commands arrive.
+     */
+    public int getMaxFps() {
+        return maxFps;
+    }
+
+    /**
+     * @return the number of commands the render queue holds before producers have to wait.
+     */
+    public int getRenderQueueCapacity() {
+        return renderQueueCapacity;
+    }
+
+    /**
+     * @return {@code true} if the canvas is rendered offscreen instead of in an AWT frame.
+     */
+    public boolean isHeadless() {
+        return headless;
+    }
+
+    /**
+     * @return the width of the canvas, in pixels.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the height of the canvas, in pixels.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the directory receiving snapshot files, or {@code null} if snapshots can only be sent back to clients.
+     */
+    public Path getSnapshotDirectory() {
+        return snapshotDirectory;
+    }
+
+    /**
+     * @return {@code true} if the drawn shapes are kept in a {@link Scene}, so they can be queried, removed and
+     * repainted. The scene keeps every shape drawn on a canvas, so it grows with the traffic: it is off by default.
+     */
+    public boolean retainsScene() {
+        return retainScene;
+    }
+
+    /**
+     * @return the minimum level of the messages written to the console.
+     */
+    public ServerLog.Level getLogLevel() {
+        return logLevel;
+    }
+
+    /**
+     * @return the number of threads rasterizing each frame; {@code 1} draws every shape on the render thread.
+     */
+    public int getRenderThreads() {
+        return renderThreads;
+    }
+
+    /**
+     * @return the side of the square tiles rasterized in parallel, in pixels.
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * @return the directory of the {@link CommandJournal} rebuilding the canvas on restart, or {@code null} if
+     * the canvas starts empty.
+     */
+    public Path getJournalDirectory() {
+        return journalDirectory;
+    }
+
+    /**
+     * @return the interval of the group commits of the journal, in milliseconds; {@code 0} writes as soon as
+     * commands are pending.
+     */
+    public int getJournalSyncMillis() {
+        return journalSyncMillis;
+    }
+
+    /**
+     * @return the number of bytes logged after which the journal is compacted into a snapshot, or {@code 0} if
+     * it is never compacted.
+     */
+    public long getJournalCompactBytes() {
+        return journalCompactBytes;
+    }
+
+    /**
+     * @return the maximum number of canvases open at once, the default canvas included.
+     */
+    public int getMaxCanvases() {
+        return maxCanvases;
+    }
+
+    /**
+     * @return the number of seconds after which a canvas no connection uses is evicted, or {@code 0} to keep
+     * idle canvases until the canvas limit or the heap is reached.
+     */
+    public int getCanvasIdleSeconds() {
+        return canvasIdleSeconds;
+    }
+
+    /**
+     * @return the number of milliseconds a connection may stay silent before it is closed, or {@code 0} to wait
+     * forever.
+     */
+    public int getReadTimeoutMillis() {
+        return readTimeoutMillis;
+    }
+
+    /**
+     * @return the maximum length of a text request or of a binary frame, in bytes. A connection sending a longer
+     * one gets an error and is closed. It defaults to 1 MiB, or to 16 bytes per vertex of the raised vertex limit
+     * when polygons are simplified, at most {@value BinaryProtocol#MAX_FRAME_LENGTH} bytes, see
+     * {@link #getMaxVertices()}.
+     */
+    public int getMaxLineLength() {
+        return maxLineLength;
+    }
+
+    /**
+     * Returns the maximum number of vertices of a request, i.e. half its number of coordinates.
+     * <p>
+     * Requests are refused by this limit and by {@link #getMaxLineLength()} before they reach the
+     * {@link ShapeClipper}, so simplifying polygons, see {@link #getPolygonTolerance()}, only helps with the
+     * outlines both limits let through. The limits therefore depend on it: by default, a request has at most 16384
+     * vertices, but when polygons are simplified its limit is raised as far as the in-flight byte budget allows,
+     * see {@link #getMaxInFlightBytes()}: {@value #LARGE_COMMANDS_IN_FLIGHT} requests of the raised size fit in
+     * the budget, up to 1048576 vertices. With the default budget of 256 MiB a request may have 524280 vertices
+     * and 8 MiB, 16 bytes per vertex, enough for a polygon of half a million vertices near the canvas. Without a
+     * byte budget the limits are not raised, since nothing would bound the memory of the queued polygons. Setting
+     * either property explicitly overrides its default, as long as a request of the maximum size fits in the byte
+     * budget.
+     * </p>
+     *
+     * @return the maximum number of vertices of a request.
+     */
+    public int getMaxVertices() {
+        return maxVertices;
+    }
+
+    /**
+     * @return the number of requests per second each client address may send, or {@code 0} for no limit.
+     */
+    public int getClientRateLimit() {
+        return clientRateLimit;
+    }
+
+    /**
+     * @return the number of requests a client address may send in a burst above its rate; by default one second
+     * of its rate.
+     */
+    public int getClientRateBurst() {
+        return clientRateBurst;
+    }
+
+    /**
+     * @return the maximum number of drawing commands accepted but not drawn yet, over all the canvases, or
+     * {@code 0} for no limit.
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * @return the maximum memory the drawing commands accepted but not drawn yet may take, over all the canvases,
+     * in bytes as counted by {@link AdmissionControl#sizeOf(ShapeCommand)}, or {@code 0} for no limit.
+     */
+    public long getMaxInFlightBytes() {
+        return maxInFlightBytes;
+    }
+
+    /**
+     * @return {@code true} if shapes go through a {@link ShapeClipper} before being drawn, so those outside the
+     * canvas are skipped and those reaching far beyond it are clipped.
+     */
+    public boolean clipsShapes() {
+        return clipShapes;
+    }
+
+    /**
+     * @return the largest distance, in pixels, by which the {@link ShapeClipper} may move the outline of a polygon
+     * to draw it with fewer vertices, or {@code 0} to draw polygons with all their vertices. A positive tolerance
+     * with clipping enabled raises the default request limits, see {@link #getMaxVertices()}.
+     */
+    public double getPolygonTolerance() {
+        return polygonTolerance;
+    }
+
+    /**
+     * @return the largest number of frames per second sent to the viewers of a canvas.
+     */
+    public int getViewerFps() {
+        return viewerFps;
+    }
+
+    /**
+     * @return the maximum number of viewers of each canvas, or {@code 0} to refuse viewers.
+     */
+    public int getMaxViewers() {
+        return maxViewers;
+    }
+
+    /**
+     * @return the side, in pixels, of the square tiles into which the canvas is split for its viewers; only the
+     * tiles that changed are sent.
+     */
+    public int getViewerTileSize() {
+        return viewerTileSize;
+    }
+
+    /**
+     * @return {@code true} if tiles sent to viewers are compressed with deflate when it makes them smaller, on top
+     * of run-length encoding.
+     */
+    public boolean deflatesViewerTiles() {
+        return viewerDeflate;
+    }
+
+    @Override
+    public String toString() {
+        return "port=" + port
+                + ", transport=" + (nioTransport ? NIO_TRANSPORT : BLOCKING_TRANSPORT)
+                + ", threads=" + (usesVirtualThreads() ? VIRTUAL_THREADS : String.valueOf(workerThreads))
+                + ", maxConnections=" + maxConnections
+                + ", persistent=" + persistent
+                + ", ackBatch=" + ackBatch
+                + ", maxFps=" + maxFps
+                + ", renderQueueCapacity=" + renderQueueCapacity
+                + ", headless=" + headless
+                + ", size=" + width + "x" + height
+                + ", retainScene=" + retainScene
+                + ", logLevel=" + logLevel
+                + ", renderThreads=" + renderThreads
+                + ", tileSize=" + tileSize
+                + ", journal=" + (journalDirectory == null ? "off" : journalDirectory + " (sync "
+                + journalSyncMillis + " ms, compact " + journalCompactBytes + " bytes)")
+                + ", maxCanvases=" + maxCanvases
+                + ", canvasIdleSeconds=" + canvasIdleSeconds
+                + ", readTimeoutMillis=" + readTimeoutMillis
+                + ", maxLineLength=" + maxLineLength
+                + ", maxVertices=" + maxVertices
+                + ", clientRateLimit=" + (clientRateLimit == 0 ? "off" : clientRateLimit + "/s burst " + clientRateBurst)
+                + ", maxInFlight=" + maxInFlight
+                + ", maxInFlightBytes=" + (maxInFlightBytes == 0 ? "off" : String.valueOf(maxInFlightBytes))
+                + ", clipShapes=" + clipShapes
+                + ", polygonTolerance=" + (polygonTolerance == 0 ? "off" : polygonTolerance)
+                + ", viewers=" + (maxViewers == 0 ? "off" : maxViewers + " at " + viewerFps + " fps, tiles "
+                + viewerTileSize + (viewerDeflate ? " deflated" : " rle"));
+    }
+}
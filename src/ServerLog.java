@@ -0,0 +1,145 @@
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The {@code ServerLog} class is the asynchronous console log of the {@link DrawingServer}.
+ * <p>
+ * Writing to the console is slow and synchronized, so doing it on the network threads or on the render thread
+ * stalls every client. Messages are instead offered to a bounded queue and written by a single daemon thread.
+ * When the queue is full, messages are dropped and counted rather than blocking the caller. Messages below the
+ * configured {@link Level} are discarded with a single volatile read; callers building costly messages should
+ * still check {@link #isEnabled(Level)} first.
+ * </p>
+ *
+ * <p>
+ * The level is set at startup from {@link ServerConfig#getLogLevel()}; it defaults to {@link Level#INFO}, which
+ * hides the per-shape messages of the handlers.
+ * </p>
+ *
+ * @see ServerConfig#getLogLevel()
+ * @see ServerMetrics
+ */
+public final class ServerLog {
+    /**
+     * The severity of a message. A message is written if its level is at least the configured level.
+     */
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static final LongAdder dropped = new LongAdder();
+    private static volatile Level level = Level.INFO;
+
+    static {
+        Thread writer = new Thread(ServerLog::drain, "log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private ServerLog() {
+    }
+
+    /**
+     * Sets the minimum level of the messages written.
+     *
+     * @param level the new level; {@link Level#OFF} disables the log.
+     */
+    public static void setLevel(Level level) {
+        ServerLog.level = level;
+    }
+
+    /**
+     * @return the minimum level of the messages written.
+     */
+    public static Level getLevel() {
+        return level;
+    }
+
+    /**
+     * Determines whether messages of a level are written.
+     *
+     * @param messageLevel the level of a message.
+     * @return {@code true} if such messages are written.
+     */
+    public static boolean isEnabled(Level messageLevel) {
+        return messageLevel.compareTo(level) >= 0 && messageLevel != Level.OFF;
+    }
+
+    /**
+     * Logs a debug message.
+     *
+     * @param message the message.
+     */
+    public static void debug(String message) {
+        log(Level.DEBUG, message);
+    }
+
+    /**
+     * Logs an informational message.
+     *
+     * @param message the message.
+     */
+    public static void info(String message) {
+        log(Level.INFO, message);
+    }
+
+    /**
+     * Logs a warning.
+     *
+     * @param message the message.
+     */
+    public static void warn(String message) {
+        log(Level.WARN, message);
+    }
+
+    /**
+     * Logs an error with the stack trace of its cause.
+     *
+     * @param message the message.
+     * @param cause   the exception, or {@code null}.
+     */
+    public static void error(String message, Throwable cause) {
+        if (!isEnabled(Level.ERROR)) {
+            return;
+        }
+        if (cause == null) {
+            log(Level.ERROR, message);
+            return;
+        }
+        StringWriter trace = new StringWriter();
+        cause.printStackTrace(new PrintWriter(trace));
+        log(Level.ERROR, message + ": " + trace.toString().stripTrailing());
+    }
+
+    /**
+     * @return the number of messages dropped because the log queue was full.
+     */
+    public static long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    private static void log(Level messageLevel, String message) {
+        if (!isEnabled(messageLevel)) {
+            return;
+        }
+        String line = messageLevel == Level.INFO ? message : messageLevel + " " + message;
+        if (!queue.offer(line)) {
+            dropped.increment();
+        }
+    }
+
+    private static void drain() {
+        while (true) {
+            try {
+                System.out.println(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,491 @@
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The {@code ServerMetrics} class collects the counters and latencies of a running {@link DrawingServer}.
+ * <p>
+ * Every update is a single uncontended atomic operation, so instrumentation stays on the hot paths: the transports
+ * count connections and accepted, rejected and control commands and time each parse, and the render thread counts
+ * the shapes drawn per shape type and times the drawing and the publication of each frame. Latencies go to
+ * {@link LatencyHistogram}s. Queue depth and frame counts are read from the {@link CanvasRenderer} on demand.
+ * </p>
+ *
+ * <p>
+ * The metrics can be read through JMX, see {@link #registerMBean()}, or as text with the {@code STATS} command,
+ * see {@link StatsCommand}.
+ * </p>
+ *
+ * @see ServerMetricsMXBean
+ * @see StatsCommand
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+    /** The JMX name of the metrics. */
+    public static final String OBJECT_NAME = "drawing.server:type=Metrics";
+
+    private final ShapeRegistry registry;
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder acceptedConnections = new LongAdder();
+    private final LongAdder acceptedCommands = new LongAdder();
+    private final LongAdder rejectedCommands = new LongAdder();
+    private final LongAdder controlCommands = new LongAdder();
+    private final LongAdder rateLimitedCommands = new LongAdder();
+    private final LongAdder shedCommands = new LongAdder();
+    private final LongAdder timedOutConnections = new LongAdder();
+    private final LongAdder oversizedRequests = new LongAdder();
+    private final LongAdder culledShapes = new LongAdder();
+    private final LongAdder clippedShapes = new LongAdder();
+    private final LongAdder collapsedShapes = new LongAdder();
+    private final LongAdder simplifiedShapes = new LongAdder();
+    private final LongAdder simplifiedVerticesIn = new LongAdder();
+    private final LongAdder simplifiedVerticesOut = new LongAdder();
+    private final LongAdder activeViewers = new LongAdder();
+    private final LongAdder viewerFrames = new LongAdder();
+    private final LongAdder viewerBytes = new LongAdder();
+    private final LongAdder droppedViewerFrames = new LongAdder();
+    private final LongAdder encodedTiles = new LongAdder();
+    private final AtomicLongArray shapesByOpcode = new AtomicLongArray(ShapeRegistry.MAX_OPCODE + 1);
+    private final LatencyHistogram parseLatency = new LatencyHistogram();
+    private final LatencyHistogram renderLatency = new LatencyHistogram();
+    private final LatencyHistogram flipLatency = new LatencyHistogram();
+    private final LatencyHistogram streamLatency = new LatencyHistogram();
+    private volatile CanvasRenderer renderer;
+    private ObjectName objectName;
+
+    /**
+     * Creates empty metrics.
+     *
+     * @param registry the registry naming the shape types.
+     */
+    public ServerMetrics(ShapeRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server under {@value #OBJECT_NAME}.
+     * <p>
+     * Failures are logged and otherwise ignored, since the metrics remain available through {@code STATS}.
+     * </p>
+     */
+    public void registerMBean() {
+        register(OBJECT_NAME);
+    }
+
+    /**
+     * Registers the metrics of a named canvas with the platform MBean server, under {@value #OBJECT_NAME} with an
+     * additional {@code canvas} key.
+     *
+     * @param canvas the name of the canvas.
+     */
+    public void registerMBean(String canvas) {
+        register(OBJECT_NAME + ",canvas=" + canvas);
+    }
+
+    /**
+     * Removes the metrics from the platform MBean server, if they were registered.
+     */
+    public synchronized void unregisterMBean() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            ServerLog.error("Cannot unregister the metrics MBean", e);
+        }
+        objectName = null;
+    }
+
+    private synchronized void register(String name) {
+        try {
+            ObjectName registered = new ObjectName(name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, registered);
+            objectName = registered;
+        } catch (JMException e) {
+            ServerLog.error("Cannot register the metrics MBean", e);
+        }
+    }
+
+    /**
+     * Sets the renderer providing the queue depth and frame counts.
+     *
+     * @param renderer the renderer of the canvas.
+     */
+    void attach(CanvasRenderer renderer) {
+        this.renderer = renderer;
+    }
+
+    /**
+     * Counts a newly opened connection.
+     */
+    public void connectionOpened() {
+        acceptedConnections.increment();
+        activeConnections.increment();
+    }
+
+    /**
+     * Counts a closed connection.
+     */
+    public void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    /**
+     * Counts a drawing request queued for rendering.
+     */
+    public void commandAccepted() {
+        acceptedCommands.increment();
+    }
+
+    /**
+     * Counts a rejected request.
+     */
+    public void commandRejected() {
+        rejectedCommands.increment();
+    }
+
+    /**
+     * Counts an executed control command.
+     */
+    public void controlCommandExecuted() {
+        controlCommands.increment();
+    }
+
+    /**
+     * Counts a request refused by the rate limit of its client.
+     */
+    public void commandRateLimited() {
+        rateLimitedCommands.increment();
+    }
+
+    /**
+     * Counts a drawing command refused because too many commands were in flight.
+     */
+    public void commandShed() {
+        shedCommands.increment();
+    }
+
+    /**
+     * Counts a connection closed because the client stayed silent for too long.
+     */
+    public void connectionTimedOut() {
+        timedOutConnections.increment();
+    }
+
+    /**
+     * Counts a connection closed because it sent a request longer than the maximum line length, or a binary frame
+     * with a malformed length.
+     */
+    public void requestOversized() {
+        oversizedRequests.increment();
+    }
+
+    /**
+     * Counts a shape the {@link ShapeClipper} did not draw as requested.
+     *
+     * @param result the outcome of the clipper, other than {@link ShapeClipper.Result#UNCHANGED}.
+     */
+    public void shapeClipped(ShapeClipper.Result result) {
+        switch (result) {
+            case CULLED -> culledShapes.increment();
+            case CLIPPED -> clippedShapes.increment();
+            case COLLAPSED -> collapsedShapes.increment();
+            case SIMPLIFIED -> simplifiedShapes.increment();
+            default -> {
+            }
+        }
+    }
+
+    /**
+     * Counts the vertices of a polygon before and after simplification.
+     *
+     * @param verticesIn  the number of vertices requested.
+     * @param verticesOut the number of vertices drawn.
+     */
+    public void polygonSimplified(int verticesIn, int verticesOut) {
+        simplifiedVerticesIn.add(verticesIn);
+        simplifiedVerticesOut.add(verticesOut);
+    }
+
+    /**
+     * Counts a drawn shape. Must only be called by the render thread.
+     *
+     * @param handler the handler that drew the shape.
+     */
+    public void shapeDrawn(ShapeHandler handler) {
+        int opcode = registry.getOpcode(handler);
+        // Single writer: a plain read-increment-write is enough.
+        shapesByOpcode.lazySet(opcode, shapesByOpcode.get(opcode) + 1);
+    }
+
+    /**
+     * Records the time spent parsing or decoding a request.
+     *
+     * @param nanos the duration, in nanoseconds.
+     */
+    public void recordParse(long nanos) {
+        parseLatency.record(nanos);
+    }
+
+    /**
+     * Records the time spent drawing the shapes of a frame.
+     *
+     * @param nanos the duration, in nanoseconds.
+     */
+    public void recordRender(long nanos) {
+        renderLatency.record(nanos);
+    }
+
+    /**
+     * Records the time spent publishing a frame.
+     *
+     * @param nanos the duration, in nanoseconds.
+     */
+    public void recordFlip(long nanos) {
+        flipLatency.record(nanos);
+    }
+
+    /**
+     * Counts a viewer starting to receive the frames of the canvas.
+     */
+    public void viewerConnected() {
+        activeViewers.increment();
+    }
+
+    /**
+     * Counts a viewer gone.
+     */
+    public void viewerDisconnected() {
+        activeViewers.decrement();
+    }
+
+    /**
+     * Counts a frame sent to a viewer.
+     *
+     * @param bytes   the size of the frame, header included.
+     * @param dropped the number of captured frames the viewer skipped, because it was still busy with earlier ones
+     *                or asked for a lower frame rate.
+     */
+    public void viewerFrameSent(int bytes, long dropped) {
+        viewerFrames.increment();
+        viewerBytes.add(bytes);
+        droppedViewerFrames.add(dropped);
+    }
+
+    /**
+     * Records the capture of a frame for the viewers.
+     *
+     * @param tiles the number of tiles that changed and were encoded.
+     * @param nanos the time spent copying, comparing and encoding, in nanoseconds.
+     */
+    public void recordStream(int tiles, long nanos) {
+        encodedTiles.add(tiles);
+        streamLatency.record(nanos);
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return activeConnections.sum();
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return acceptedConnections.sum();
+    }
+
+    @Override
+    public long getAcceptedCommands() {
+        return acceptedCommands.sum();
+    }
+
+    @Override
+    public long getRejectedCommands() {
+        return rejectedCommands.sum();
+    }
+
+    @Override
+    public long getControlCommands() {
+        return controlCommands.sum();
+    }
+
+    @Override
+    public long getRateLimitedCommands() {
+        return rateLimitedCommands.sum();
+    }
+
+    @Override
+    public long getShedCommands() {
+        return shedCommands.sum();
+    }
+
+    @Override
+    public long getTimedOutConnections() {
+        return timedOutConnections.sum();
+    }
+
+    @Override
+    public long getOversizedRequests() {
+        return oversizedRequests.sum();
+    }
+
+    @Override
+    public long getCulledShapes() {
+        return culledShapes.sum();
+    }
+
+    @Override
+    public long getClippedShapes() {
+        return clippedShapes.sum();
+    }
+
+    @Override
+    public long getCollapsedShapes() {
+        return collapsedShapes.sum();
+    }
+
+    @Override
+    public long getSimplifiedShapes() {
+        return simplifiedShapes.sum();
+    }
+
+    @Override
+    public long getSimplifiedVerticesIn() {
+        return simplifiedVerticesIn.sum();
+    }
+
+    @Override
+    public long getSimplifiedVerticesOut() {
+        return simplifiedVerticesOut.sum();
+    }
+
+    @Override
+    public long getActiveViewers() {
+        return activeViewers.sum();
+    }
+
+    @Override
+    public long getViewerFrames() {
+        return viewerFrames.sum();
+    }
+
+    @Override
+    public long getViewerBytes() {
+        return viewerBytes.sum();
+    }
+
+    @Override
+    public long getDroppedViewerFrames() {
+        return droppedViewerFrames.sum();
+    }
+
+    @Override
+    public long getEncodedTiles() {
+        return encodedTiles.sum();
+    }
+
+    @Override
+    public Map<String, Long> getShapesDrawn() {
+        Map<String, Long> shapes = new LinkedHashMap<>();
+        for (int opcode = 1; opcode < shapesByOpcode.length(); opcode++) {
+            String keyword = registry.getKeyword(opcode);
+            if (keyword != null) {
+                shapes.put(keyword, shapesByOpcode.get(opcode));
+            }
+        }
+        if (shapesByOpcode.get(0) > 0) {
+            shapes.put("OTHER", shapesByOpcode.get(0));
+        }
+        return shapes;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        CanvasRenderer current = renderer;
+        return current == null ? 0 : current.getQueueDepth();
+    }
+
+    @Override
+    public long getFrames() {
+        CanvasRenderer current = renderer;
+        return current == null ? 0 : current.getFrameCount();
+    }
+
+    @Override
+    public Map<String, Long> getParseLatency() {
+        return parseLatency.summary();
+    }
+
+    @Override
+    public Map<String, Long> getRenderLatency() {
+        return renderLatency.summary();
+    }
+
+    @Override
+    public Map<String, Long> getFlipLatency() {
+        return flipLatency.summary();
+    }
+
+    @Override
+    public Map<String, Long> getStreamLatency() {
+        return streamLatency.summary();
+    }
+
+    @Override
+    public long getDroppedLogMessages() {
+        return ServerLog.getDroppedCount();
+    }
+
+    @Override
+    public void resetLatencies() {
+        parseLatency.reset();
+        renderLatency.reset();
+        flipLatency.reset();
+        streamLatency.reset();
+    }
+
+    /**
+     * Formats the metrics as {@code <name> <value>} lines, as sent by the {@code STATS} command.
+     *
+     * @return the metrics, one per line, each line terminated by {@code '\n'}.
+     */
+    public String format() {
+        StringBuilder text = new StringBuilder();
+        line(text, "connections.active", getActiveConnections());
+        line(text, "connections.accepted", getAcceptedConnections());
+        line(text, "commands.accepted", getAcceptedCommands());
+        line(text, "commands.rejected", getRejectedCommands());
+        line(text, "commands.control", getControlCommands());
+        line(text, "commands.rateLimited", getRateLimitedCommands());
+        line(text, "commands.shed", getShedCommands());
+        line(text, "connections.timedOut", getTimedOutConnections());
+        line(text, "requests.oversized", getOversizedRequests());
+        line(text, "queue.depth", getQueueDepth());
+        line(text, "frames", getFrames());
+        getShapesDrawn().forEach((keyword, count) -> line(text, "shapes." + keyword, count));
+        line(text, "clip.culled", getCulledShapes());
+        line(text, "clip.clipped", getClippedShapes());
+        line(text, "clip.collapsed", getCollapsedShapes());
+        line(text, "clip.simplified", getSimplifiedShapes());
+        line(text, "lod.verticesIn", getSimplifiedVerticesIn());
+        line(text, "lod.verticesOut", getSimplifiedVerticesOut());
+        line(text, "viewers.active", getActiveViewers());
+        line(text, "viewers.frames", getViewerFrames());
+        line(text, "viewers.bytes", getViewerBytes());
+        line(text, "viewers.dropped", getDroppedViewerFrames());
+        line(text, "viewers.tiles", getEncodedTiles());
+        getParseLatency().forEach((name, value) -> line(text, "latency.parse." + name, value));
+        getRenderLatency().forEach((name, value) -> line(text, "latency.render." + name, value));
+        getFlipLatency().forEach((name, value) -> line(text, "latency.flip." + name, value));
+        getStreamLatency().forEach((name, value) -> line(text, "latency.stream." + name, value));
+        line(text, "log.dropped", getDroppedLogMessages());
+        return text.toString();
+    }
+
+    private static void line(StringBuilder text, String name, long value) {
+        text.append(name).append(' ').append(value).append('\n');
+    }
+}
@@ -0,0 +1,160 @@
+import java.util.Map;
+
+/**
+ * Management interface of the {@link ServerMetrics}, registered with the platform MBean server under
+ * {@value ServerMetrics#OBJECT_NAME}.
+ * <p>
+ * Latencies are summarized as maps of {@code count}, {@code mean}, {@code p50}, {@code p90}, {@code p99},
+ * {@code p999} and {@code max}, in nanoseconds.
+ * </p>
+ *
+ * @see ServerMetrics
+ */
+public interface ServerMetricsMXBean {
+    /**
+     * @return the number of connections currently open.
+     */
+    long getActiveConnections();
+
+    /**
+     * @return the number of connections accepted since startup.
+     */
+    long getAcceptedConnections();
+
+    /**
+     * @return the number of drawing requests accepted and queued for rendering.
+     */
+    long getAcceptedCommands();
+
+    /**
+     * @return the number of requests rejected because they were invalid.
+     */
+    long getRejectedCommands();
+
+    /**
+     * @return the number of control commands executed.
+     */
+    long getControlCommands();
+
+    /**
+     * @return the number of requests refused by the rate limit of their client.
+     */
+    long getRateLimitedCommands();
+
+    /**
+     * @return the number of drawing commands refused because too many commands were in flight.
+     */
+    long getShedCommands();
+
+    /**
+     * @return the number of connections closed because the client stayed silent for too long.
+     */
+    long getTimedOutConnections();
+
+    /**
+     * @return the number of connections closed because they sent a request longer than the maximum line length, or
+     * a binary frame with a malformed length.
+     */
+    long getOversizedRequests();
+
+    /**
+     * @return the number of shapes not drawn because they could not touch the canvas.
+     */
+    long getCulledShapes();
+
+    /**
+     * @return the number of shapes whose parts far outside the canvas were cut off before drawing.
+     */
+    long getClippedShapes();
+
+    /**
+     * @return the number of shapes drawn as a point because all their vertices fell on one pixel.
+     */
+    long getCollapsedShapes();
+
+    /**
+     * @return the number of polygons drawn with fewer vertices, besides the clipped ones.
+     */
+    long getSimplifiedShapes();
+
+    /**
+     * @return the total number of vertices of the polygons that were simplified, as requested.
+     */
+    long getSimplifiedVerticesIn();
+
+    /**
+     * @return the total number of vertices of the polygons that were simplified, as drawn.
+     */
+    long getSimplifiedVerticesOut();
+
+    /**
+     * @return the number of viewers receiving the frames of the canvas.
+     */
+    long getActiveViewers();
+
+    /**
+     * @return the number of frames sent to viewers.
+     */
+    long getViewerFrames();
+
+    /**
+     * @return the number of bytes sent to viewers.
+     */
+    long getViewerBytes();
+
+    /**
+     * @return the number of captured frames viewers skipped, being busy with earlier ones or asking for a lower
+     * frame rate.
+     */
+    long getDroppedViewerFrames();
+
+    /**
+     * @return the number of changed tiles encoded for the viewers.
+     */
+    long getEncodedTiles();
+
+    /**
+     * @return the number of shapes drawn, by shape keyword.
+     */
+    Map<String, Long> getShapesDrawn();
+
+    /**
+     * @return the number of commands waiting in the render queue.
+     */
+    int getQueueDepth();
+
+    /**
+     * @return the number of frames shown.
+     */
+    long getFrames();
+
+    /**
+     * @return the time spent parsing or decoding a request.
+     */
+    Map<String, Long> getParseLatency();
+
+    /**
+     * @return the time spent drawing the shapes of a frame.
+     */
+    Map<String, Long> getRenderLatency();
+
+    /**
+     * @return the time spent publishing a frame.
+     */
+    Map<String, Long> getFlipLatency();
+
+    /**
+     * @return the time spent capturing and encoding the changed tiles of a frame for the viewers.
+     */
+    Map<String, Long> getStreamLatency();
+
+    /**
+     * @return the number of log messages dropped because the log could not keep up.
+     */
+    long getDroppedLogMessages();
+
+    /**
+     * Resets the latency histograms.
+     */
+    void resetLatencies();
+}
@@ -0,0 +1,429 @@
+/**
+ * The {@code ShapeClipper} class prepares parsed shapes for drawing on a canvas of a given size.
+ * <p>
+ * Java2D walks the whole path of a shape even when none of it lands on the canvas, so every shape goes through a
+ * clipper between parsing and its handler's {@code draw}. Each {@link ShapeHandler} chooses its treatment with
+ * {@link ShapeHandler#clip(ShapeCommand, ShapeClipper)}:
+ * <ul>
+ *   <li>a shape whose bounding box, outline included, misses the canvas is culled: it is not drawn at all;</li>
+ *   <li>segments are clipped with the Cohen&ndash;Sutherland algorithm and polygons with the
+ *   Sutherland&ndash;Hodgman algorithm, so the coordinates handed to Java2D stay near the canvas;</li>
+ *   <li>a shape whose vertices all fall on one pixel collapses to a point drawn by the {@link PointHandler};</li>
+ *   <li>with a positive polygon tolerance, polygons are simplified by a {@link PolygonSimplifier}, so outlines with
+ *   far more vertices than pixels are drawn with a few of them.</li>
+ * </ul>
+ * </p>
+ *
+ * <p>
+ * Clipping moves the vertices where a shape crosses the clip rectangle to the nearest pixel, which tilts the edges
+ * that cross it. Shapes are therefore only clipped to a guard band, a rectangle reaching eight canvas sizes beyond
+ * every side of the canvas: shapes that stay within it are drawn unchanged, exactly as without the clipper; the
+ * edges of a clipped shape move by a small fraction of a pixel on the canvas, and the edges added along the guard
+ * band are too far out to be seen, even with a wide outline.
+ * </p>
+ *
+ * <p>
+ * The clipper rewrites the command in place, so it must run after the command has been filed in the scene and
+ * the journal, which keep the shape as requested. Instances keep scratch arrays and are not thread-safe: each
+ * drawing thread owns its own.
+ * </p>
+ *
+ * @see ShapeHandler#clip(ShapeCommand, ShapeClipper)
+ * @see ServerConfig#clipsShapes()
+ */
+public class ShapeClipper {
+    /**
+     * The outcome of preparing a shape for drawing.
+     */
+    public enum Result {
+        /** The shape cannot touch the canvas and must not be drawn. */
+        CULLED,
+        /** The shape is drawn as requested. */
+        UNCHANGED,
+        /** Parts of the shape outside the guard band have been cut off. */
+        CLIPPED,
+        /** The shape has been replaced by a point. */
+        COLLAPSED,
+        /** The shape is drawn with fewer vertices. */
+        SIMPLIFIED
+    }
+
+    private static final int LEFT = 1;
+    private static final int RIGHT = 2;
+    private static final int ABOVE = 4;
+    private static final int BELOW = 8;
+    /** How far the guard band reaches beyond the canvas, in canvas sizes. */
+    private static final int GUARD_BAND = 8;
+
+    private static final PointHandler pointHandler = new PointHandler();
+    private static final PolygonHandler polygonHandler = new PolygonHandler();
+
+    private final int width;
+    private final int height;
+    private final int guard;
+    private final double tolerance;
+    private final PolygonSimplifier simplifier;
+    private final ServerMetrics metrics;
+    private final int[] bounds = new int[4];
+    private final double[] line = new double[4];
+    private int[] polygon = new int[64];
+    private int[] clipped = new int[64];
+
+    /**
+     * Creates a clipper for a canvas.
+     *
+     * @param width   the width of the canvas, in pixels.
+     * @param height  the height of the canvas, in pixels.
+     * @param metrics the metrics counting culled, clipped and collapsed shapes, or {@code null} not to count them.
+     */
+    public ShapeClipper(int width, int height, ServerMetrics metrics) {
+        this(width, height, 0, metrics);
+    }
+
+    /**
+     * Creates a clipper for a canvas that also simplifies polygons.
+     *
+     * @param width     the width of the canvas, in pixels.
+     * @param height    the height of the canvas, in pixels.
+     * @param tolerance the largest distance, in pixels, by which simplifying a polygon may move its outline, or
+     *                  {@code 0} not to simplify polygons.
+     * @param metrics   the metrics counting the shapes the clipper changes, or {@code null} not to count them.
+     */
+    public ShapeClipper(int width, int height, double tolerance, ServerMetrics metrics) {
+        this.width = width;
+        this.height = height;
+        this.guard = GUARD_BAND * Math.max(width, height);
+        this.tolerance = tolerance;
+        this.simplifier = tolerance > 0 ? new PolygonSimplifier() : null;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Prepares a valid command for drawing with the treatment chosen by its handler.
+     *
+     * @param command the command to draw; it may be rewritten.
+     * @return {@code true} if the command must be drawn, {@code false} if it was culled.
+     */
+    public boolean clip(ShapeCommand command) {
+        Result result = command.getHandler().clip(command, this);
+        if (metrics != null && result != Result.UNCHANGED) {
+            metrics.shapeClipped(result);
+        }
+        return result != Result.CULLED;
+    }
+
+    /**
+     * Culls a shape by its bounding box, or collapses it to a point if the box is a single pixel.
+     *
+     * @param command the command to prepare.
+     * @return {@link Result#CULLED}, {@link Result#COLLAPSED} or {@link Result#UNCHANGED}.
+     */
+    public Result cull(ShapeCommand command) {
+        if (!boundsVisible(command)) {
+            return Result.CULLED;
+        }
+        return collapseIfPoint(command) ? Result.COLLAPSED : Result.UNCHANGED;
+    }
+
+    /**
+     * Culls a circle, also when the canvas lies entirely inside an outline circle, or collapses a circle of radius
+     * zero to its center.
+     *
+     * @param command the command holding the center and the radius in coordinates 0 to 2.
+     * @return {@link Result#CULLED}, {@link Result#COLLAPSED} or {@link Result#UNCHANGED}.
+     */
+    public Result cullCircle(ShapeCommand command) {
+        Result result = cull(command);
+        if (result != Result.UNCHANGED || command.isFilled()) {
+            return result;
+        }
+        // The farthest corner of the canvas, outline reach included, is still inside the hole of the outline.
+        int margin = margin(command);
+        double cx = command.getCoordinate(0);
+        double cy = command.getCoordinate(1);
+        double dx = Math.max(Math.abs(cx + margin), Math.abs(width - 1 + margin - cx));
+        double dy = Math.max(Math.abs(cy + margin), Math.abs(height - 1 + margin - cy));
+        double inner = Math.abs((double) command.getCoordinate(2)) - margin - 1;
+        return inner > 0 && dx * dx + dy * dy < inner * inner ? Result.CULLED : Result.UNCHANGED;
+    }
+
+    /**
+     * Clips the segments of a command, given as {@code x1 y1 x2 y2} quadruples, with the Cohen&ndash;Sutherland
+     * algorithm. Segments missing the canvas are dropped; a single segment whose endpoints coincide collapses to a
+     * point.
+     *
+     * @param command the command holding the segments.
+     * @param count   the number of coordinates to clip, a multiple of four; the others are dropped.
+     * @return the outcome for the whole command: {@link Result#CULLED} if no segment is left.
+     */
+    public Result clipSegments(ShapeCommand command, int count) {
+        int[] coordinates = command.getCoordinates();
+        int margin = margin(command);
+        int kept = 0;
+        boolean changed = false;
+        for (int i = 0; i + 3 < count; i += 4) {
+            for (int j = 0; j < 4; j++) {
+                line[j] = coordinates[i + j];
+            }
+            if (!clipLine(line, -margin, -margin, width - 1 + margin, height - 1 + margin)) {
+                changed = true;
+                continue;
+            }
+            for (int j = 0; j < 4; j++) {
+                line[j] = coordinates[i + j];
+            }
+            double low = -guard;
+            if (outCode(line[0], line[1], low, low, width - 1 + guard, height - 1 + guard)
+                    + outCode(line[2], line[3], low, low, width - 1 + guard, height - 1 + guard) != 0
+                    && clipLine(line, low, low, width - 1 + guard, height - 1 + guard)) {
+                for (int j = 0; j < 4; j++) {
+                    coordinates[i + j] = (int) Math.round(line[j]);
+                }
+                changed = true;
+            }
+            if (kept != i) {
+                System.arraycopy(coordinates, i, coordinates, kept, 4);
+            }
+            kept += 4;
+        }
+        if (kept == 0) {
+            return Result.CULLED;
+        }
+        if (changed || kept != command.getCoordinateCount()) {
+            command.setCoordinates(coordinates, kept);
+        }
+        if (kept == 4 && collapseIfPoint(command)) {
+            return Result.COLLAPSED;
+        }
+        return changed ? Result.CLIPPED : Result.UNCHANGED;
+    }
+
+    /**
+     * Culls a polygon by its bounding box, collapses it to a point if the box is a single pixel, or clips it with
+     * the Sutherland&ndash;Hodgman algorithm if it reaches beyond the guard band. A clipped shape that is not a
+     * polygon, such as a triangle, is handed to a {@link PolygonHandler}, which draws it the same way. Polygons are
+     * then simplified if the clipper has a tolerance.
+     *
+     * @param command the command holding the vertices as {@code x y} pairs.
+     * @param count   the number of coordinates forming the polygon; the others are dropped if it is clipped.
+     * @return {@link Result#CULLED}, {@link Result#COLLAPSED}, {@link Result#CLIPPED}, {@link Result#SIMPLIFIED}
+     * or {@link Result#UNCHANGED}.
+     */
+    public Result clipPolygon(ShapeCommand command, int count) {
+        if (!boundsVisible(command)) {
+            return Result.CULLED;
+        }
+        if (collapseIfPoint(command)) {
+            return Result.COLLAPSED;
+        }
+        long low = -guard;
+        if (bounds[0] >= low && bounds[1] >= low && bounds[2] <= (long) width - 1 + guard
+                && bounds[3] <= (long) height - 1 + guard) {
+            return simplify(command) ? Result.SIMPLIFIED : Result.UNCHANGED;
+        }
+        if (polygon.length < count) {
+            polygon = new int[Math.max(polygon.length * 2, count)];
+        }
+        System.arraycopy(command.getCoordinates(), 0, polygon, 0, count);
+        int n = clipEdge(polygon, count, LEFT, -guard);
+        n = clipEdge(clipped, n, RIGHT, width - 1 + guard);
+        n = clipEdge(clipped, n, ABOVE, -guard);
+        n = clipEdge(clipped, n, BELOW, height - 1 + guard);
+        if (n == 0) {
+            return Result.CULLED;
+        }
+        command.setCoordinates(clipped, n);
+        if (!(command.getHandler() instanceof PolygonHandler)) {
+            command.setHandler(polygonHandler);
+        }
+        simplify(command);
+        return Result.CLIPPED;
+    }
+
+    /**
+     * Simplifies a polygon of more than three vertices if the clipper has a tolerance.
+     *
+     * @return {@code true} if vertices have been dropped.
+     */
+    private boolean simplify(ShapeCommand command) {
+        int count = command.getCoordinateCount();
+        if (simplifier == null || count <= 6 || !(command.getHandler() instanceof PolygonHandler)) {
+            return false;
+        }
+        int[] coordinates = command.getCoordinates();
+        int simplified = simplifier.simplify(coordinates, PolygonSimplifier.dedupe(coordinates, count), tolerance);
+        if (simplified == count) {
+            return false;
+        }
+        command.setCoordinates(coordinates, simplified);
+        if (metrics != null) {
+            metrics.polygonSimplified(count / 2, simplified / 2);
+        }
+        return true;
+    }
+
+    /**
+     * Determines whether the bounding box of a command, outline included, intersects the canvas. Leaves the
+     * bounding box, outline included, in {@link #bounds}.
+     */
+    private boolean boundsVisible(ShapeCommand command) {
+        command.getHandler().computeBounds(command, bounds);
+        return bounds[2] >= 0 && bounds[3] >= 0 && bounds[0] < width && bounds[1] < height;
+    }
+
+    /**
+     * Replaces a command by the point at its vertices if its bounding box is a single pixel.
+     *
+     * @return {@code true} if the command has been collapsed.
+     */
+    private boolean collapseIfPoint(ShapeCommand command) {
+        command.getHandler().computeBounds(command.getCoordinates(), command.getCoordinateCount(), bounds);
+        if (bounds[0] != bounds[2] || bounds[1] != bounds[3]) {
+            return false;
+        }
+        command.setHandler(pointHandler);
+        command.setCoordinates(bounds, 2);
+        return true;
+    }
+
+    /**
+     * Clips a polygon to one side of the guard band, writing the result to {@link #clipped}.
+     *
+     * @param input the vertices as {@code x y} pairs; it is copied to {@link #polygon} first if it is
+     *              {@link #clipped}.
+     * @param count the number of coordinates.
+     * @param side  the side of the band: {@link #LEFT}, {@link #RIGHT}, {@link #ABOVE} or {@link #BELOW}.
+     * @param bound the coordinate of the side.
+     * @return the number of coordinates of the clipped polygon.
+     */
+    private int clipEdge(int[] input, int count, int side, int bound) {
+        if (input == clipped) {
+            if (polygon.length < count) {
+                polygon = new int[Math.max(polygon.length * 2, count)];
+            }
+            System.arraycopy(clipped, 0, polygon, 0, count);
+        }
+        if (count < 2) {
+            return 0;
+        }
+        // Every edge adds at most two vertices.
+        if (clipped.length < count * 2) {
+            clipped = new int[count * 2];
+        }
+        int n = 0;
+        int px = polygon[count - 2];
+        int py = polygon[count - 1];
+        boolean previousInside = inside(px, py, side, bound);
+        for (int i = 0; i + 1 < count; i += 2) {
+            int x = polygon[i];
+            int y = polygon[i + 1];
+            boolean currentInside = inside(x, y, side, bound);
+            if (currentInside != previousInside) {
+                n = intersect(px, py, x, y, side, bound, n);
+            }
+            if (currentInside) {
+                clipped[n++] = x;
+                clipped[n++] = y;
+            }
+            px = x;
+            py = y;
+            previousInside = currentInside;
+        }
+        return n;
+    }
+
+    private static boolean inside(int x, int y, int side, int bound) {
+        return switch (side) {
+            case LEFT -> x >= bound;
+            case RIGHT -> x <= bound;
+            case ABOVE -> y >= bound;
+            default -> y <= bound;
+        };
+    }
+
+    /**
+     * Appends the intersection of an edge with a side of the guard band to {@link #clipped}. The differences of
+     * coordinates are computed in {@code double}, since they overflow an {@code int} for vertices far apart.
+     *
+     * @return the new number of coordinates of {@link #clipped}.
+     */
+    private int intersect(int x0, int y0, int x1, int y1, int side, int bound, int n) {
+        if (side == LEFT || side == RIGHT) {
+            clipped[n++] = bound;
+            clipped[n++] = (int) Math.round(y0 + ((double) y1 - y0) * ((double) bound - x0) / ((double) x1 - x0));
+        } else {
+            clipped[n++] = (int) Math.round(x0 + ((double) x1 - x0) * ((double) bound - y0) / ((double) y1 - y0));
+            clipped[n++] = bound;
+        }
+        return n;
+    }
+
+    /**
+     * Clips a segment to a rectangle with the Cohen&ndash;Sutherland algorithm.
+     *
+     * @param segment the endpoints {@code x1 y1 x2 y2}, replaced by those of the clipped segment.
+     * @return {@code false} if the segment misses the rectangle.
+     */
+    private static boolean clipLine(double[] segment, double x0, double y0, double x1, double y1) {
+        int code0 = outCode(segment[0], segment[1], x0, y0, x1, y1);
+        int code1 = outCode(segment[2], segment[3], x0, y0, x1, y1);
+        while (true) {
+            if ((code0 | code1) == 0) {
+                return true;
+            }
+            if ((code0 & code1) != 0) {
+                return false;
+            }
+            int code = code0 != 0 ? code0 : code1;
+            double dx = segment[2] - segment[0];
+            double dy = segment[3] - segment[1];
+            double x;
+            double y;
+            if ((code & BELOW) != 0) {
+                x = segment[0] + dx * (y1 - segment[1]) / dy;
+                y = y1;
+            } else if ((code & ABOVE) != 0) {
+                x = segment[0] + dx * (y0 - segment[1]) / dy;
+                y = y0;
+            } else if ((code & RIGHT) != 0) {
+                x = x1;
+                y = segment[1] + dy * (x1 - segment[0]) / dx;
+            } else {
+                x = x0;
+                y = segment[1] + dy * (x0 - segment[0]) / dx;
+            }
+            if (code == code0) {
+                segment[0] = x;
+                segment[1] = y;
+                code0 = outCode(x, y, x0, y0, x1, y1);
+            } else {
+                segment[2] = x;
+                segment[3] = y;
+                code1 = outCode(x, y, x0, y0, x1, y1);
+            }
+        }
+    }
+
+    private static int outCode(double x, double y, double x0, double y0, double x1, double y1) {
+        int code = 0;
+        if (x < x0) {
+            code |= LEFT;
+        } else if (x > x1) {
+            code |= RIGHT;
+        }
+        if (y < y0) {
+            code |= ABOVE;
+        } else if (y > y1) {
+            code |= BELOW;
+        }
+        return code;
+    }
+
+    /**
+     * @return how far the outline of a command reaches beyond its coordinates, as in
+     * {@link ShapeHandler#computeBounds(ShapeCommand, int[])}.
+     */
+    private static int margin(ShapeCommand command) {
+        return command.getStrokeWidth() > 1 ? (command.getStrokeWidth() + 1) / 2 : 0;
+    }
+}
@@ -0,0 +1,278 @@
+import java.awt.*;
+import java.util.Arrays;
+
+/**
+ * The {@code ShapeCommand} class is a reusable, mutable holder for one parsed drawing request.
+ * <p>
+ * A command is filled in place by {@link CommandParser} and then drawn by the {@link ShapeHandler} it refers to.
+ * It stores the coordinates in a primitive array that only grows when a request carries more coordinates
+ * than any previous one, so a connection can parse and draw any number of requests with a single instance
+ * and without allocating.
+ * </p>
+ *
+ * <p>
+ * Besides its color, a command carries a style: whether the shape is filled, and the width of its outline.
+ * The default style, an outline one pixel wide, draws exactly as the historical protocol did.
+ * </p>
+ *
+ * <p>
+ * A command is either valid, in which case {@link #getHandler()} and the coordinates and color are set, or
+ * failed, in which case {@link #getErrorPosition()} and {@link #getErrorMessage()} describe the first error.
+ * Instances are not thread-safe.
+ * </p>
+ *
+ * @see CommandParser
+ * @see ShapeHandler
+ */
+public class ShapeCommand {
+    /** The largest coordinate array a command keeps through {@link #trim()}. */
+    static final int RETAINED_COORDINATES = 64;
+    private static final int INITIAL_COORDINATES = 16;
+
+    private ShapeHandler handler;
+    private int[] coordinates = new int[INITIAL_COORDINATES];
+    private int coordinateCount;
+    private Color color = Color.BLACK;
+    private boolean filled;
+    private int strokeWidth = 1;
+    private int errorPosition = -1;
+    private String errorMessage;
+
+    /**
+     * Clears the command so it can be filled with a new request.
+     */
+    public void reset() {
+        handler = null;
+        coordinateCount = 0;
+        color = Color.BLACK;
+        filled = false;
+        strokeWidth = 1;
+        errorPosition = -1;
+        errorMessage = null;
+    }
+
+    /**
+     * Makes this command a copy of another one, reusing this command's coordinate array when it is large enough.
+     * The array grows with the coordinates copied, not with the capacity of the other command.
+     *
+     * @param other the command to copy.
+     */
+    public void copyFrom(ShapeCommand other) {
+        handler = other.handler;
+        ensureCapacity(other.coordinateCount);
+        System.arraycopy(other.coordinates, 0, coordinates, 0, other.coordinateCount);
+        coordinateCount = other.coordinateCount;
+        color = other.color;
+        filled = other.filled;
+        strokeWidth = other.strokeWidth;
+        errorPosition = other.errorPosition;
+        errorMessage = other.errorMessage;
+    }
+
+    /**
+     * Drops a coordinate array grown beyond {@link #RETAINED_COORDINATES} by a large request, so a command that is
+     * recycled, such as a render queue slot, does not hold on to it for the requests that follow.
+     */
+    void trim() {
+        if (coordinates.length > RETAINED_COORDINATES) {
+            coordinates = new int[INITIAL_COORDINATES];
+        }
+    }
+
+    private void ensureCapacity(int count) {
+        if (coordinates.length < count) {
+            coordinates = new int[Math.max(coordinates.length * 2, count)];
+        }
+    }
+
+    /**
+     * Fills the command with a shape, copying its coordinates.
+     *
+     * @param handler     the handler drawing the shape.
+     * @param coordinates the coordinates of the shape.
+     * @param count       the number of coordinates to copy.
+     * @param color       the drawing color.
+     * @param filled      whether the shape is filled.
+     * @param strokeWidth the width of the outline, in pixels.
+     */
+    void set(ShapeHandler handler, int[] coordinates, int count, Color color, boolean filled, int strokeWidth) {
+        reset();
+        this.handler = handler;
+        ensureCapacity(count);
+        System.arraycopy(coordinates, 0, this.coordinates, 0, count);
+        this.coordinateCount = count;
+        this.color = color;
+        this.filled = filled;
+        this.strokeWidth = strokeWidth;
+    }
+
+    /**
+     * Replaces the coordinates of the command, keeping its handler and style. The source may be the array of the
+     * command itself, to shorten it in place.
+     *
+     * @param source the new coordinates.
+     * @param count  the number of coordinates to copy.
+     */
+    void setCoordinates(int[] source, int count) {
+        ensureCapacity(count);
+        System.arraycopy(source, 0, coordinates, 0, count);
+        coordinateCount = count;
+    }
+
+    /**
+     * Builds a command from a request that has already been split into tokens.
+     * <p>
+     * This supports the {@code String[]} based {@link Handler} API: tokens[2] up to the token before the
+     * last one are parsed as integer coordinates and the last token is the color, as in the historical protocol.
+     * Unknown colors are drawn in black.
+     * </p>
+     *
+     * @param tokens  an array of strings representing the drawing request details.
+     * @param handler the handler drawing the shape.
+     * @return a new command holding the request.
+     * @throws NumberFormatException If a coordinate token is not an integer.
+     */
+    static ShapeCommand fromTokens(String[] tokens, ShapeHandler handler) {
+        ShapeCommand command = new ShapeCommand();
+        command.setHandler(handler);
+        for (int i = 2; i < tokens.length - 1; i++) {
+            command.addCoordinate(Integer.parseInt(tokens[i]));
+        }
+        Color color = ColorTable.lookup(tokens[tokens.length - 1].trim());
+        command.setColor(color == null ? Color.BLACK : color);
+        return command;
+    }
+
+    /**
+     * @return the handler drawing this command, or {@code null} if the command is not valid.
+     */
+    public ShapeHandler getHandler() {
+        return handler;
+    }
+
+    void setHandler(ShapeHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Returns a coordinate of the command.
+     *
+     * @param index the index of the coordinate, starting at {@code 0} for the first number after the shape type.
+     * @return the coordinate value.
+     */
+    public int getCoordinate(int index) {
+        return coordinates[index];
+    }
+
+    /**
+     * Returns the coordinate array. Only the first {@link #getCoordinateCount()} entries are meaningful.
+     *
+     * @return the backing coordinate array; it must not be modified.
+     */
+    public int[] getCoordinates() {
+        return coordinates;
+    }
+
+    /**
+     * @return the number of coordinates of the command.
+     */
+    public int getCoordinateCount() {
+        return coordinateCount;
+    }
+
+    void addCoordinate(int value) {
+        if (coordinateCount == coordinates.length) {
+            coordinates = Arrays.copyOf(coordinates, coordinates.length * 2);
+        }
+        coordinates[coordinateCount++] = value;
+    }
+
+    /**
+     * @return the drawing color of the command.
+     */
+    public Color getColor() {
+        return color;
+    }
+
+    void setColor(Color color) {
+        this.color = color;
+    }
+
+    /**
+     * @return {@code true} if the shape is filled rather than outlined.
+     */
+    public boolean isFilled() {
+        return filled;
+    }
+
+    void setFilled(boolean filled) {
+        this.filled = filled;
+    }
+
+    /**
+     * @return the width of the outline, in pixels; {@code 1} for the historical thin outline.
+     */
+    public int getStrokeWidth() {
+        return strokeWidth;
+    }
+
+    void setStrokeWidth(int strokeWidth) {
+        this.strokeWidth = strokeWidth;
+    }
+
+    /**
+     * @return {@code true} if the command was parsed successfully and can be drawn.
+     */
+    public boolean isValid() {
+        return errorMessage == null && handler != null;
+    }
+
+    /**
+     * @return the offset of the first error in the request, relative to its first byte, or {@code -1} if
+     * there is no error.
+     */
+    public int getErrorPosition() {
+        return errorPosition;
+    }
+
+    /**
+     * @return the description of the first error, or {@code null} if there is no error.
+     */
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    /**
+     * Marks the command as failed. Only the first error is kept.
+     *
+     * @param position the offset of the error relative to the first byte of the request.
+     * @param message  the description of the error.
+     * @return always {@code false}, so parsers can {@code return command.fail(...)}.
+     */
+    boolean fail(int position, String message) {
+        if (errorMessage == null) {
+            errorPosition = position;
+            errorMessage = message;
+        }
+        return false;
+    }
+
+    /**
+     * Draws the command with its handler.
+     *
+     * @param graphics the {@code Graphics} object used for drawing the shape.
+     */
+    public void draw(Graphics graphics) {
+        handler.draw(this, graphics);
+    }
+
+    @Override
+    public String toString() {
+        if (errorMessage != null) {
+            return "error at " + errorPosition + ": " + errorMessage;
+        }
+        return (handler == null ? "?" : handler.getClass().getSimpleName())
+                + Arrays.toString(Arrays.copyOf(coordinates, coordinateCount)) + " " + color
+                + (filled ? " filled" : "") + (strokeWidth != 1 ? " width=" + strokeWidth : "");
+    }
+}
@@ -8,9 +8,33 @@ import java.awt.*;
  * methods to determine whether it can handle a specific shape type and to perform the drawing operation, respectively.
  * </p>
  *
+ * <p>
+ * Requests parsed by {@link CommandParser} do not go through the {@code String[]} tokens: they are validated with
+ * {@code acceptsCoordinates} and drawn directly from a {@link ShapeCommand} with {@code draw}. Handlers set the
+ * color and outline width of a command with {@link #applyStyle(ShapeCommand, Graphics)}, which only touches the
+ * stroke of the {@code Graphics} when the width changes.
+ * </p>
+ *
  * @see Handler
  */
 public abstract class ShapeHandler implements Handler {
+    /** The widest outline a request may ask for, in pixels. */
+    public static final int MAX_STROKE_WIDTH = 255;
+
+    /**
+     * The strokes of every outline width, shared by all handlers. Index {@code 1} is the AWT default stroke; wider
+     * strokes have round caps and joins, so they never reach further than half their width from the outline.
+     */
+    private static final BasicStroke[] strokes = new BasicStroke[MAX_STROKE_WIDTH + 1];
+
+    static {
+        for (int width = 1; width <= MAX_STROKE_WIDTH; width++) {
+            strokes[width] = width == 1
+                    ? new BasicStroke()
+                    : new BasicStroke(width, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+        }
+    }
+
     /**
      * The next handler in the chain. If the current handler is unable to process the request,
      * the request is delegated to this handler.
@@ -47,7 +71,7 @@ public abstract class ShapeHandler implements Handler {
         } else if (nextHandler != null) {
             nextHandler.handleRequest(tokens, graphics);
         } else {
-            System.out.println("Unsupported shape: " + tokens[1]);
+            ServerLog.warn("Unsupported shape: " + tokens[1]);
         }
     }
 
@@ -69,4 +93,121 @@ public abstract class ShapeHandler implements Handler {
      * @param graphics the {@code Graphics} object used to draw the shape.
      */
     protected abstract void process(String[] tokens, Graphics graphics);
+
+    /**
+     * Determines whether a request for this shape may carry the given number of coordinates.
+     *
+     * @param count the number of integer coordinates between the shape type and the color.
+     * @return {@code true} if the shape can be drawn from that many coordinates; {@code false} otherwise.
+     */
+    protected abstract boolean acceptsCoordinates(int count);
+
+    /**
+     * Draws a parsed request and renders it using the provided {@code Graphics} object.
+     *
+     * @param command  the parsed request; its coordinate count has been accepted by {@link #acceptsCoordinates(int)}.
+     * @param graphics the {@code Graphics} object used to draw the shape.
+     */
+    protected abstract void draw(ShapeCommand command, Graphics graphics);
+
+    /**
+     * Computes the bounding box of a shape, in pixels, inclusive on all sides.
+     * <p>
+     * The default implementation treats the coordinates as (x, y) vertex pairs, which covers segments, triangles
+     * and polygons. Handlers whose coordinates are not vertices must override it.
+     * </p>
+     *
+     * @param coordinates the coordinates of the shape.
+     * @param count       the number of coordinates.
+     * @param bounds      receives the bounding box as {@code minX, minY, maxX, maxY}.
+     */
+    protected void computeBounds(int[] coordinates, int count, int[] bounds) {
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        for (int i = 0; i + 1 < count; i += 2) {
+            minX = Math.min(minX, coordinates[i]);
+            maxX = Math.max(maxX, coordinates[i]);
+            minY = Math.min(minY, coordinates[i + 1]);
+            maxY = Math.max(maxY, coordinates[i + 1]);
+        }
+        bounds[0] = minX;
+        bounds[1] = minY;
+        bounds[2] = maxX;
+        bounds[3] = maxY;
+    }
+
+    /**
+     * Computes the bounding box of the pixels a command may touch: the bounding box of its coordinates, widened by
+     * half the width of its outline.
+     *
+     * @param command the command.
+     * @param bounds  receives the bounding box as {@code minX, minY, maxX, maxY}.
+     */
+    final void computeBounds(ShapeCommand command, int[] bounds) {
+        computeBounds(command.getCoordinates(), command.getCoordinateCount(), bounds);
+        if (command.getStrokeWidth() > 1) {
+            int margin = (command.getStrokeWidth() + 1) / 2;
+            bounds[0] = (int) Math.max(Integer.MIN_VALUE, (long) bounds[0] - margin);
+            bounds[1] = (int) Math.max(Integer.MIN_VALUE, (long) bounds[1] - margin);
+            bounds[2] = (int) Math.min(Integer.MAX_VALUE, (long) bounds[2] + margin);
+            bounds[3] = (int) Math.min(Integer.MAX_VALUE, (long) bounds[3] + margin);
+        }
+    }
+
+    /**
+     * Determines whether drawing a command through a clip produces, inside the clip, exactly the pixels drawn
+     * without it.
+     * <p>
+     * This holds for the opaque straight edges and areas drawn by {@code drawLine}, {@code drawPolygon} and
+     * {@code fillPolygon} with the default stroke, and is the default for them. Wide outlines and translucent
+     * colors go through other Java2D pipelines, whose pixels near the clip depend on it, and handlers drawing
+     * curves, which Java2D flattens differently where they cross the clip, return {@code false} for every command;
+     * the {@link TileRasterizer} then never draws such commands through a tile clip.
+     * </p>
+     *
+     * @param command the command to draw.
+     * @return {@code true} if the command can be drawn piecewise through clips.
+     */
+    protected boolean isClipInvariant(ShapeCommand command) {
+        return command.getStrokeWidth() == 1 && command.getColor().getAlpha() == 255;
+    }
+
+    /**
+     * Prepares a command for drawing on a canvas: culls it if it cannot touch the canvas, clips it, or collapses it
+     * to a point.
+     * <p>
+     * The default implementation culls the shape by its bounding box and collapses it when the box is a single
+     * pixel. Handlers whose shapes can be clipped override it with the matching algorithm of the
+     * {@link ShapeClipper}.
+     * </p>
+     *
+     * @param command the command to prepare; it may be rewritten, and its handler replaced.
+     * @param clipper the clipper of the canvas.
+     * @return the outcome of the preparation.
+     */
+    protected ShapeClipper.Result clip(ShapeCommand command, ShapeClipper clipper) {
+        return clipper.cull(command);
+    }
+
+    /**
+     * Sets the color and outline width of a command on a {@code Graphics} object.
+     * <p>
+     * Strokes are preallocated, and the stroke is only replaced when it differs from the current one, so drawing
+     * with the default width costs a single reference comparison.
+     * </p>
+     *
+     * @param command  the command being drawn.
+     * @param graphics the {@code Graphics} object used for drawing the command.
+     */
+    protected static void applyStyle(ShapeCommand command, Graphics graphics) {
+        graphics.setColor(command.getColor());
+        if (graphics instanceof Graphics2D graphics2D) {
+            BasicStroke stroke = strokes[command.getStrokeWidth()];
+            if (graphics2D.getStroke() != stroke) {
+                graphics2D.setStroke(stroke);
+            }
+        }
+    }
 }
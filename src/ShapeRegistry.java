@@ -0,0 +1,306 @@
+import java.awt.*;
+import java.nio.ByteBuffer;
+
+/**
+ * The {@code ShapeRegistry} class maps shape keywords to the {@link ShapeHandler} drawing them.
+ * <p>
+ * The registry is built once at startup and replaces walking the chain of handlers on every request:
+ * a request is dispatched with a single case-insensitive hash lookup of its shape keyword, followed by a
+ * direct call to the handler's {@code process} method. The registered handlers are stateless and are shared
+ * by all requests and threads.
+ * </p>
+ *
+ * <p>
+ * Each keyword is also given a one-byte opcode, in registration order starting at {@code 1}, which identifies the
+ * shape in the {@link BinaryProtocol}; the built-in shapes therefore always have the opcodes {@code 1} to
+ * {@code 6}. Re-registering a keyword keeps its opcode.
+ * </p>
+ *
+ * <p>
+ * New shape types are plugged in with {@link #register(String, ShapeHandler)}. The registry also implements
+ * {@link Handler}, so it can itself be placed in a chain of responsibility: requests for a keyword that is not
+ * registered are delegated to the next handler, if any.
+ * </p>
+ *
+ * @see ShapeHandler
+ * @see DrawingServer
+ */
+public class ShapeRegistry implements Handler {
+    /**
+     * The largest opcode, so that opcodes fit in one byte.
+     */
+    static final int MAX_OPCODE = 255;
+
+    /**
+     * The open-addressing lookup table. It is replaced as a whole on registration, so lookups never lock.
+     */
+    private volatile Table table = new Table(8);
+
+    /**
+     * The handler receiving requests for unregistered keywords, or {@code null}.
+     */
+    private volatile Handler nextHandler;
+
+    /**
+     * Creates a registry containing the built-in shapes: {@code CIRCLE}, {@code SEGMENT}, {@code TRIANGLE},
+     * {@code POLYGONE}, and the bulk {@code CIRCLES} and {@code SEGMENTS}.
+     *
+     * @return a new registry with the built-in shapes registered.
+     */
+    public static ShapeRegistry createDefault() {
+        ShapeRegistry registry = new ShapeRegistry();
+        registry.register("CIRCLE", new CircleHandler());
+        registry.register("SEGMENT", new SegmentHandler());
+        registry.register("TRIANGLE", new TriangleHandler());
+        registry.register("POLYGONE", new PolygonHandler());
+        registry.register("CIRCLES", new CirclesHandler());
+        registry.register("SEGMENTS", new SegmentsHandler());
+        return registry;
+    }
+
+    /**
+     * Registers the handler drawing a shape type, replacing any handler previously registered for the keyword.
+     *
+     * @param keyword the shape keyword, matched ignoring case.
+     * @param handler the handler drawing the shape.
+     */
+    public synchronized void register(String keyword, ShapeHandler handler) {
+        if (keyword.isEmpty()) {
+            throw new IllegalArgumentException("Empty shape keyword");
+        }
+        Table current = table;
+        int opcode = current.opcode(keyword);
+        if (opcode == 0) {
+            opcode = current.size + 1;
+            if (opcode > MAX_OPCODE) {
+                throw new IllegalStateException("Too many shape types");
+            }
+        }
+        Table updated = new Table(current.size + 1 > current.keys.length / 2
+                ? current.keys.length * 2 : current.keys.length);
+        for (int i = 0; i < current.keys.length; i++) {
+            if (current.keys[i] != null) {
+                updated.put(current.keys[i], current.handlers[i], current.opcodes[i]);
+            }
+        }
+        updated.put(keyword, handler, opcode);
+        table = updated;
+    }
+
+    /**
+     * Returns the handler registered for a shape keyword.
+     *
+     * @param keyword the shape keyword, matched ignoring case.
+     * @return the registered handler, or {@code null} if the keyword is unknown.
+     */
+    public ShapeHandler lookup(CharSequence keyword) {
+        return table.get(keyword);
+    }
+
+    /**
+     * Returns the handler registered for a shape keyword stored in a byte buffer, without creating a {@code String}.
+     *
+     * @param buffer the buffer holding the keyword, in ASCII.
+     * @param from   the absolute index of the first byte of the keyword.
+     * @param to     the absolute index after the last byte of the keyword.
+     * @return the registered handler, or {@code null} if the keyword is unknown.
+     */
+    public ShapeHandler lookup(ByteBuffer buffer, int from, int to) {
+        return table.get(buffer, from, to);
+    }
+
+    /**
+     * Returns the handler registered for an opcode of the binary protocol.
+     *
+     * @param opcode the opcode.
+     * @return the registered handler, or {@code null} if the opcode is unknown.
+     */
+    public ShapeHandler lookup(int opcode) {
+        ShapeHandler[] byOpcode = table.byOpcode;
+        return opcode > 0 && opcode < byOpcode.length ? byOpcode[opcode] : null;
+    }
+
+    /**
+     * Returns the opcode identifying a shape keyword in the binary protocol.
+     *
+     * @param keyword the shape keyword, matched ignoring case.
+     * @return the opcode, or {@code 0} if the keyword is unknown.
+     */
+    public int getOpcode(CharSequence keyword) {
+        return table.opcode(keyword);
+    }
+
+    /**
+     * Returns the opcode of a registered handler.
+     *
+     * @param handler the handler.
+     * @return the opcode of the first keyword registered for the handler, or {@code 0} if it is not registered.
+     */
+    public int getOpcode(ShapeHandler handler) {
+        Table current = table;
+        for (int opcode = 1; opcode <= current.size; opcode++) {
+            if (current.byOpcode[opcode] == handler) {
+                return opcode;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the keyword registered for an opcode.
+     *
+     * @param opcode the opcode.
+     * @return the keyword as registered, or {@code null} if the opcode is unknown.
+     */
+    public String getKeyword(int opcode) {
+        String[] keywords = table.keywordByOpcode;
+        return opcode > 0 && opcode < keywords.length ? keywords[opcode] : null;
+    }
+
+    /**
+     * Sets the handler receiving requests for keywords that are not registered.
+     *
+     * @param nextHandler the fallback handler, or {@code null} to report such requests as unsupported.
+     */
+    @Override
+    public void setNextHandler(Handler nextHandler) {
+        this.nextHandler = nextHandler;
+    }
+
+    /**
+     * Dispatches a drawing request to the handler registered for its shape type.
+     *
+     * @param tokens   an array of strings representing the drawing request. The shape type is expected at index 1.
+     * @param graphics the {@code Graphics} object used for drawing the shape.
+     */
+    @Override
+    public void handleRequest(String[] tokens, Graphics graphics) {
+        ShapeHandler handler = lookup(tokens[1]);
+        if (handler != null) {
+            handler.process(tokens, graphics);
+        } else if (nextHandler != null) {
+            nextHandler.handleRequest(tokens, graphics);
+        } else {
+            ServerLog.warn("Unsupported shape: " + tokens[1]);
+        }
+    }
+
+    /**
+     * Folds an ASCII letter to upper case; other characters are returned unchanged.
+     *
+     * @param c the character.
+     * @return the upper-case character.
+     */
+    static int foldCase(int c) {
+        return c >= 'a' && c <= 'z' ? c - ('a' - 'A') : c;
+    }
+
+    /**
+     * An immutable-once-published open-addressing hash table with linear probing, keyed by upper-case keyword.
+     */
+    private static final class Table {
+        final String[] keys;
+        final ShapeHandler[] handlers;
+        final int[] opcodes;
+        final ShapeHandler[] byOpcode = new ShapeHandler[MAX_OPCODE + 1];
+        final String[] keywordByOpcode = new String[MAX_OPCODE + 1];
+        int size;
+
+        Table(int capacity) {
+            keys = new String[capacity];
+            handlers = new ShapeHandler[capacity];
+            opcodes = new int[capacity];
+        }
+
+        void put(String keyword, ShapeHandler handler, int opcode) {
+            int mask = keys.length - 1;
+            int i = hash(keyword) & mask;
+            while (keys[i] != null && !equalsFolded(keys[i], keyword)) {
+                i = (i + 1) & mask;
+            }
+            if (keys[i] == null) {
+                size++;
+            }
+            keys[i] = keyword;
+            handlers[i] = handler;
+            opcodes[i] = opcode;
+            byOpcode[opcode] = handler;
+            keywordByOpcode[opcode] = keyword;
+        }
+
+        int opcode(CharSequence keyword) {
+            int mask = keys.length - 1;
+            int i = hash(keyword) & mask;
+            String key;
+            while ((key = keys[i]) != null) {
+                if (equalsFolded(key, keyword)) {
+                    return opcodes[i];
+                }
+                i = (i + 1) & mask;
+            }
+            return 0;
+        }
+
+        ShapeHandler get(CharSequence keyword) {
+            int mask = keys.length - 1;
+            int i = hash(keyword) & mask;
+            String key;
+            while ((key = keys[i]) != null) {
+                if (equalsFolded(key, keyword)) {
+                    return handlers[i];
+                }
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+
+        ShapeHandler get(ByteBuffer buffer, int from, int to) {
+            int h = 0;
+            for (int i = from; i < to; i++) {
+                h = 31 * h + foldCase(buffer.get(i) & 0xFF);
+            }
+            int mask = keys.length - 1;
+            int i = (h ^ (h >>> 16)) & mask;
+            String key;
+            while ((key = keys[i]) != null) {
+                if (equalsFolded(key, buffer, from, to)) {
+                    return handlers[i];
+                }
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+
+        private static int hash(CharSequence keyword) {
+            int h = 0;
+            for (int i = 0; i < keyword.length(); i++) {
+                h = 31 * h + foldCase(keyword.charAt(i));
+            }
+            return h ^ (h >>> 16);
+        }
+
+        private static boolean equalsFolded(String key, CharSequence keyword) {
+            if (key.length() != keyword.length()) {
+                return false;
+            }
+            for (int i = 0; i < key.length(); i++) {
+                if (foldCase(key.charAt(i)) != foldCase(keyword.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean equalsFolded(String key, ByteBuffer buffer, int from, int to) {
+            if (key.length() != to - from) {
+                return false;
+            }
+            for (int i = 0; i < key.length(); i++) {
+                if (foldCase(key.charAt(i)) != foldCase(buffer.get(from + i) & 0xFF)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
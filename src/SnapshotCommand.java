@@ -0,0 +1,114 @@
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The {@code SnapshotCommand} class exports the content of the canvas.
+ * <p>
+ * The command has the form {@code <sender> SNAPSHOT <PNG|RAW> [file]}. The snapshot includes every command queued
+ * before it. Without a file name the image is sent back on the connection, preceded by a
+ * {@code SNAPSHOT <format> <width> <height> <length>} header line. With a file name the image is written into the
+ * configured snapshot directory and the reply is {@code OK SNAPSHOT <path>}; names leaving that directory are
+ * rejected. The snapshot is a copy of the framebuffer of the {@link ImageSurface}, which the on-screen
+ * {@link WindowSurface} also draws into; other surfaces, which cannot be read, are drawn again from the retained
+ * {@link Scene}.
+ * </p>
+ *
+ * @see ImageSurface
+ * @see ServerConfig#getSnapshotDirectory()
+ */
+public class SnapshotCommand implements ControlCommand {
+    private final CanvasRenderer renderer;
+    private final Path snapshotDirectory;
+
+    /**
+     * Creates the snapshot command.
+     *
+     * @param renderer          the renderer of the canvas.
+     * @param snapshotDirectory the directory receiving snapshot files, or {@code null} to only allow snapshots
+     *                          sent back on the connection.
+     */
+    public SnapshotCommand(CanvasRenderer renderer, Path snapshotDirectory) {
+        this.renderer = renderer;
+        this.snapshotDirectory = snapshotDirectory == null ? null : snapshotDirectory.toAbsolutePath().normalize();
+    }
+
+    @Override
+    public byte[] execute(ByteBuffer buffer, int from, int to) throws IOException, InterruptedException {
+        String format = ControlCommands.token(buffer, from, to);
+        boolean png = "PNG".equalsIgnoreCase(format);
+        if (!png && !"RAW".equalsIgnoreCase(format)) {
+            throw new IllegalArgumentException("snapshot format must be PNG or RAW");
+        }
+        String fileName = ControlCommands.token(buffer,
+                CommandParser.skipSpaces(buffer, CommandParser.tokenEnd(buffer, from, to), to), to);
+        if (!(renderer.getSurface() instanceof ImageSurface) && renderer.getScene() == null) {
+            throw new IllegalArgumentException("snapshots require a framebuffer or a retained scene");
+        }
+        renderer.awaitRendered();
+        BufferedImage snapshot = snapshot();
+
+        if (fileName == null) {
+            ByteArrayOutputStream image = new ByteArrayOutputStream();
+            write(snapshot, png, image);
+            String header = "SNAPSHOT " + (png ? "PNG " : "RAW ") + snapshot.getWidth() + " " + snapshot.getHeight()
+                    + " " + image.size() + "\n";
+            ByteArrayOutputStream reply = new ByteArrayOutputStream(header.length() + image.size());
+            reply.write(header.getBytes(StandardCharsets.US_ASCII));
+            image.writeTo(reply);
+            return reply.toByteArray();
+        }
+
+        if (snapshotDirectory == null) {
+            throw new IllegalArgumentException("no snapshot directory configured");
+        }
+        Path target = snapshotDirectory.resolve(fileName).normalize();
+        if (!target.startsWith(snapshotDirectory) || target.equals(snapshotDirectory)) {
+            throw new IllegalArgumentException("invalid snapshot file name");
+        }
+        Files.createDirectories(snapshotDirectory);
+        Path temporary = Files.createTempFile(snapshotDirectory, ".snapshot", ".tmp");
+        try (OutputStream out = Files.newOutputStream(temporary)) {
+            write(snapshot, png, out);
+        } catch (IOException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return ("OK SNAPSHOT " + target + "\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Copies the canvas into a new image.
+     */
+    private BufferedImage snapshot() {
+        if (renderer.getSurface() instanceof ImageSurface surface) {
+            return surface.snapshot();
+        }
+        Scene scene = renderer.getScene();
+        BufferedImage image = new BufferedImage(scene.getWidth(), scene.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        Graphics graphics = image.createGraphics();
+        try {
+            scene.paintAll(graphics, new ShapeCommand(), renderer.createClipper(null));
+        } finally {
+            graphics.dispose();
+        }
+        return image;
+    }
+
+    private static void write(BufferedImage image, boolean png, OutputStream out) throws IOException {
+        if (png) {
+            ImageIO.write(image, "png", out);
+        } else {
+            ImageSurface.writeRaw(image, out);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The {@code StatsCommand} class sends the server metrics back to the client as plain text.
+ * <p>
+ * The command has the form {@code <sender> STATS}. The reply is a {@code STATS <count>} header line followed by
+ * {@code <count>} lines of the form {@code <name> <value>}, as formatted by {@link ServerMetrics#format()}, so it
+ * can be read by a script without knowing the metric names in advance.
+ * </p>
+ *
+ * @see ServerMetrics
+ */
+public class StatsCommand implements ControlCommand {
+    private final ServerMetrics metrics;
+
+    /**
+     * Creates the stats command.
+     *
+     * @param metrics the metrics of the server.
+     */
+    public StatsCommand(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public byte[] execute(ByteBuffer buffer, int from, int to) {
+        String lines = metrics.format();
+        long count = lines.chars().filter(c -> c == '\n').count();
+        return ("STATS " + count + "\n" + lines).getBytes(StandardCharsets.US_ASCII);
+    }
+}
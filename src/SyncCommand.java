@@ -0,0 +1,34 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The {@code SyncCommand} class tells a client when the shapes it sent have been drawn.
+ * <p>
+ * The command has the form {@code <sender> SYNC}. It waits until every command queued to the canvas before it,
+ * by any client, has been drawn, then replies {@code OK SYNC}. Since the requests of a connection are processed in
+ * order, the reply means that every drawing request sent before it on the same connection is on the canvas,
+ * whereas an {@code ACK} only means that it is queued, see {@link Acknowledgements}.
+ * </p>
+ *
+ * @see CanvasRenderer#awaitRendered()
+ */
+public class SyncCommand implements ControlCommand {
+    private static final byte[] REPLY = "OK SYNC\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final CanvasRenderer renderer;
+
+    /**
+     * Creates the sync command.
+     *
+     * @param renderer the renderer of the canvas.
+     */
+    public SyncCommand(CanvasRenderer renderer) {
+        this.renderer = renderer;
+    }
+
+    @Override
+    public byte[] execute(ByteBuffer buffer, int from, int to) throws InterruptedException {
+        renderer.awaitRendered();
+        return REPLY;
+    }
+}
@@ -0,0 +1,378 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The {@code TileRasterizer} class draws a batch of shapes into an image on several cores at once.
+ * <p>
+ * The image is split into square tiles. Each shape of the batch is binned, by bounding box, into the tiles it
+ * touches, keeping the order of the batch within every tile. The tiles are then rasterized in parallel by a
+ * {@link ForkJoinPool}: each tile draws its shapes in order with its own {@code Graphics} clipped to the tile.
+ * Tiles do not share any pixel, so the threads never write to the same part of the {@code int[]} framebuffer,
+ * and shapes overlapping in a tile are still drawn in the order they were received.
+ * </p>
+ *
+ * <p>
+ * The result is pixel-for-pixel the result of drawing the batch sequentially on one {@code Graphics}. Opaque
+ * shapes made of straight edges are drawn by the same Java2D loops as the handlers' {@code drawLine},
+ * {@code drawPolygon} and {@code fillPolygon} calls, only clipped, which does not change their pixels. Other
+ * shapes depend on the clip (see {@link ShapeHandler#isClipInvariant(ShapeCommand)}) when they span several
+ * tiles. If such a shape is opaque, it is first drawn, in parallel with the other ones, into a private image as
+ * large as the canvas; the pixels it covers are recorded as horizontal spans, which the tiles then fill with the
+ * shape's color. A translucent one may blend some pixels more than once, which spans cannot reproduce, so it is
+ * drawn alone on the whole image between the tiles rasterizing the shapes before it and those after it. Shapes
+ * entirely outside the image are skipped. Instances are meant to be used by the render thread only.
+ * </p>
+ *
+ * @see CanvasRenderer
+ * @see ImageSurface
+ */
+public class TileRasterizer {
+    /**
+     * The number of coordinates below which a batch is drawn on the calling thread, since splitting it would cost
+     * more than drawing it. Counting coordinates rather than shapes gives bulk requests their true weight.
+     */
+    static final int MIN_PARALLEL_COORDINATES = 256;
+
+    private final ForkJoinPool pool;
+    private final int tileSize;
+    private final int width;
+    private final int height;
+    private final int columns;
+    private final int rows;
+    private final int[][] bins;
+    private final int[] binSizes;
+    private final int[] bounds = new int[4];
+    private final ThreadLocal<BufferedImage> scratchImages;
+    private Mask[] masks = new Mask[0];
+    private int[] maskedShapes = new int[64];
+    private int maskedCount;
+
+    /**
+     * Creates a rasterizer for images of a given size.
+     *
+     * @param width    the width of the images, in pixels.
+     * @param height   the height of the images, in pixels.
+     * @param tileSize the side of a tile, in pixels.
+     * @param threads  the number of threads rasterizing tiles.
+     */
+    public TileRasterizer(int width, int height, int tileSize, int threads) {
+        this.pool = new ForkJoinPool(threads, pool -> {
+            ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {
+            };
+            thread.setName("raster-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+        this.tileSize = tileSize;
+        this.width = width;
+        this.height = height;
+        this.columns = (width + tileSize - 1) / tileSize;
+        this.rows = (height + tileSize - 1) / tileSize;
+        this.bins = new int[columns * rows][16];
+        this.binSizes = new int[columns * rows];
+        this.scratchImages = ThreadLocal.withInitial(
+                () -> new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB));
+    }
+
+    /**
+     * Draws a batch of shapes into an image.
+     *
+     * @param image  the image to draw into, of the size given to the constructor.
+     * @param shapes the shapes, in drawing order.
+     * @param count  the number of shapes to draw.
+     */
+    public void draw(BufferedImage image, ShapeCommand[] shapes, int count) {
+        if (pool.getParallelism() == 1 || coordinateCount(shapes, count) < MIN_PARALLEL_COORDINATES) {
+            drawSequentially(image, shapes, 0, count);
+            return;
+        }
+
+        if (masks.length < count) {
+            int previous = masks.length;
+            masks = Arrays.copyOf(masks, Math.max(count, previous * 2));
+            for (int i = previous; i < masks.length; i++) {
+                masks[i] = new Mask();
+            }
+        }
+        int[] pixels = image.getType() == BufferedImage.TYPE_INT_ARGB || image.getType() == BufferedImage.TYPE_INT_RGB
+                ? ((DataBufferInt) image.getRaster().getDataBuffer()).getData()
+                : null;
+        int start = 0;
+        while (start < count) {
+            Arrays.fill(binSizes, 0);
+            maskedCount = 0;
+            int end = start;
+            while (end < count && bin(shapes[end], end)) {
+                end++;
+            }
+            if (end > start) {
+                if (maskedCount > 0) {
+                    pool.invoke(new MaskTask(shapes, 0, maskedCount));
+                }
+                pool.invoke(new TileTask(image, pixels, shapes, 0, bins.length));
+            }
+            if (end < count) {
+                drawSequentially(image, shapes, end, end + 1);
+                end++;
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * @return the number of threads rasterizing tiles.
+     */
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Stops the rasterizing threads.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Adds a shape to the bins of the tiles its bounding box touches.
+     *
+     * @return {@code false} if the shape must be drawn alone on the whole image instead; it is not binned then.
+     */
+    private boolean bin(ShapeCommand shape, int index) {
+        masks[index].masked = false;
+        shape.getHandler().computeBounds(shape, bounds);
+        // One pixel of margin: the pen hangs below and to the right of the outline.
+        long minX = bounds[0] - 1L;
+        long minY = bounds[1] - 1L;
+        long maxX = bounds[2] + 1L;
+        long maxY = bounds[3] + 1L;
+        if (maxX < 0 || maxY < 0 || minX >= width || minY >= height) {
+            return true;
+        }
+        int column0 = (int) Math.max(0, minX / tileSize);
+        int row0 = (int) Math.max(0, minY / tileSize);
+        int column1 = (int) Math.min(columns - 1, maxX / tileSize);
+        int row1 = (int) Math.min(rows - 1, maxY / tileSize);
+        if ((column0 != column1 || row0 != row1) && !shape.getHandler().isClipInvariant(shape)) {
+            if (shape.getColor().getAlpha() != 255) {
+                return false;
+            }
+            Mask mask = masks[index];
+            mask.masked = true;
+            mask.minX = (int) Math.max(0, minX);
+            mask.minY = (int) Math.max(0, minY);
+            mask.maxX = (int) Math.min(width - 1, maxX);
+            mask.maxY = (int) Math.min(height - 1, maxY);
+            if (maskedCount == maskedShapes.length) {
+                maskedShapes = Arrays.copyOf(maskedShapes, maskedCount * 2);
+            }
+            maskedShapes[maskedCount++] = index;
+        }
+        for (int row = row0; row <= row1; row++) {
+            for (int column = column0; column <= column1; column++) {
+                int tile = row * columns + column;
+                if (binSizes[tile] == bins[tile].length) {
+                    bins[tile] = Arrays.copyOf(bins[tile], binSizes[tile] * 2);
+                }
+                bins[tile][binSizes[tile]++] = index;
+            }
+        }
+        return true;
+    }
+
+    private static int coordinateCount(ShapeCommand[] shapes, int count) {
+        int total = 0;
+        for (int i = 0; i < count && total < MIN_PARALLEL_COORDINATES; i++) {
+            total += shapes[i].getCoordinateCount();
+        }
+        return total;
+    }
+
+    private static void drawSequentially(BufferedImage image, ShapeCommand[] shapes, int from, int to) {
+        Graphics graphics = image.createGraphics();
+        try {
+            for (int i = from; i < to; i++) {
+                draw(shapes[i], graphics);
+            }
+        } finally {
+            graphics.dispose();
+        }
+    }
+
+    private static void draw(ShapeCommand shape, Graphics graphics) {
+        try {
+            shape.draw(graphics);
+        } catch (RuntimeException e) {
+            ServerLog.error("Cannot draw " + shape, e);
+        }
+    }
+
+    /**
+     * The pixels covered by an opaque shape depending on the clip, as spans of {@code y, x0, x1} triples with {@code x1} exclusive, in
+     * increasing {@code y}.
+     */
+    private static final class Mask {
+        boolean masked;
+        int minX;
+        int minY;
+        int maxX;
+        int maxY;
+        int[] spans = new int[48];
+        int spanCount;
+
+        /**
+         * Draws a shape alone on a clear canvas-sized image, records the pixels it covers within its bounds
+         * and clears them again.
+         */
+        void record(ShapeCommand shape, BufferedImage scratch) {
+            Graphics graphics = scratch.createGraphics();
+            try {
+                draw(shape, graphics);
+            } finally {
+                graphics.dispose();
+            }
+            int[] pixels = ((DataBufferInt) scratch.getRaster().getDataBuffer()).getData();
+            int scratchWidth = scratch.getWidth();
+            spanCount = 0;
+            for (int y = minY; y <= maxY; y++) {
+                int row = y * scratchWidth;
+                int x = minX;
+                while (x <= maxX) {
+                    while (x <= maxX && pixels[row + x] == 0) {
+                        x++;
+                    }
+                    int start = x;
+                    while (x <= maxX && pixels[row + x] != 0) {
+                        x++;
+                    }
+                    if (x > start) {
+                        if (spanCount + 3 > spans.length) {
+                            spans = Arrays.copyOf(spans, spans.length * 2);
+                        }
+                        spans[spanCount++] = y;
+                        spans[spanCount++] = start;
+                        spans[spanCount++] = x;
+                    }
+                }
+                Arrays.fill(pixels, row + minX, row + maxX + 1, 0);
+            }
+        }
+    }
+
+    /**
+     * Records the masks of a range of shapes, splitting it in halves until a single shape is left.
+     */
+    private final class MaskTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final transient ShapeCommand[] shapes;
+        private final int from;
+        private final int to;
+
+        MaskTask(ShapeCommand[] shapes, int from, int to) {
+            this.shapes = shapes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new MaskTask(shapes, from, middle), new MaskTask(shapes, middle, to));
+                return;
+            }
+            int index = maskedShapes[from];
+            masks[index].record(shapes[index], scratchImages.get());
+        }
+    }
+
+    /**
+     * Rasterizes a range of tiles, splitting it in halves until a single tile is left.
+     */
+    private final class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final transient BufferedImage image;
+        private final transient int[] pixels;
+        private final transient ShapeCommand[] shapes;
+        private final int from;
+        private final int to;
+
+        TileTask(BufferedImage image, int[] pixels, ShapeCommand[] shapes, int from, int to) {
+            this.image = image;
+            this.pixels = pixels;
+            this.shapes = shapes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new TileTask(image, pixels, shapes, from, middle),
+                        new TileTask(image, pixels, shapes, middle, to));
+                return;
+            }
+            int tile = from;
+            int size = binSizes[tile];
+            if (size == 0) {
+                return;
+            }
+            int x0 = (tile % columns) * tileSize;
+            int y0 = (tile / columns) * tileSize;
+            int x1 = Math.min(x0 + tileSize, width);
+            int y1 = Math.min(y0 + tileSize, height);
+            Graphics graphics = image.createGraphics();
+            try {
+                graphics.clipRect(x0, y0, x1 - x0, y1 - y0);
+                int[] bin = bins[tile];
+                for (int i = 0; i < size; i++) {
+                    ShapeCommand shape = shapes[bin[i]];
+                    Mask mask = masks[bin[i]];
+                    if (mask.masked) {
+                        fill(mask, shape.getColor(), graphics, x0, y0, x1, y1);
+                    } else {
+                        draw(shape, graphics);
+                    }
+                }
+            } finally {
+                graphics.dispose();
+            }
+        }
+
+        /**
+         * Fills the spans of an opaque mask that fall in the tile. The color is written straight into the
+         * framebuffer, which is what Java2D does for opaque colors, unless the image is not backed by an
+         * {@code int[]}.
+         */
+        private void fill(Mask mask, Color color, Graphics graphics, int x0, int y0, int x1, int y1) {
+            boolean direct = pixels != null;
+            int rgb = color.getRGB();
+            graphics.setColor(color);
+            int[] spans = mask.spans;
+            for (int i = 0; i < mask.spanCount; i += 3) {
+                int y = spans[i];
+                if (y < y0) {
+                    continue;
+                }
+                if (y >= y1) {
+                    break;
+                }
+                int start = Math.max(spans[i + 1], x0);
+                int end = Math.min(spans[i + 2], x1);
+                if (start >= end) {
+                    continue;
+                }
+                if (direct) {
+                    Arrays.fill(pixels, y * width + start, y * width + end, rgb);
+                } else {
+                    graphics.fillRect(start, y, end - start, 1);
+                }
+            }
+        }
+    }
+}
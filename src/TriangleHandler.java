@@ -33,7 +33,8 @@ public class TriangleHandler extends ShapeHandler {
     /**
      * Processes the drawing request for a triangle.
      * <p>
-     * This method delegates the drawing operation to the {@link #drawTriangle(String[], Graphics)} method.
+     * This method parses the tokens into a {@link ShapeCommand} and delegates the drawing operation to the
+     * {@link #drawTriangle(ShapeCommand, Graphics)} method.
      * </p>
      *
      * @param tokens   an array of strings representing the drawing request details.
@@ -43,39 +44,79 @@ public class TriangleHandler extends ShapeHandler {
      */
     @Override
     protected void process(String[] tokens, Graphics graphics) {
-        drawTriangle(tokens, graphics);
+        drawTriangle(ShapeCommand.fromTokens(tokens, this), graphics);
     }
 
     /**
-     * Draws a triangle using the specified tokens and {@code Graphics} context.
+     * Determines whether a triangle request may carry the given number of coordinates.
      * <p>
-     * This method parses the vertex coordinates from the tokens array. The x-coordinates of the vertices are
-     * extracted from tokens[2], tokens[4], and tokens[6], while the y-coordinates are extracted from tokens[3],
-     * tokens[5], and tokens[7]. It then retrieves the desired {@code Color} object via
-     * {@link DrawingServer#getColor(String)}, sets the drawing color, and renders the triangle using
-     * {@code Graphics.drawPolygon}.
+     * A triangle needs at least six coordinates: its three vertices.
      * </p>
      *
-     * @param tokens   an array of strings containing the drawing parameters.
-     *                 The vertices are expected to be specified in pairs starting from index 2,
-     *                 and the final token represents the color.
+     * @param count the number of integer coordinates in the request.
+     * @return {@code true} if there are at least six coordinates.
+     */
+    @Override
+    protected boolean acceptsCoordinates(int count) {
+        return count >= 6;
+    }
+
+    /**
+     * Clips the triangle to the canvas with the Sutherland&ndash;Hodgman algorithm; a clipped triangle is drawn
+     * as a polygon.
+     *
+     * @param command the command to prepare.
+     * @param clipper the clipper of the canvas.
+     * @return the outcome of the preparation.
+     */
+    @Override
+    protected ShapeClipper.Result clip(ShapeCommand command, ShapeClipper clipper) {
+        return clipper.clipPolygon(command, 6);
+    }
+
+    /**
+     * Draws a parsed triangle request.
+     * <p>
+     * This method delegates the drawing operation to the {@link #drawTriangle(ShapeCommand, Graphics)} method.
+     * </p>
+     *
+     * @param command  the parsed request.
+     * @param graphics the {@code Graphics} object used for drawing.
+     */
+    @Override
+    protected void draw(ShapeCommand command, Graphics graphics) {
+        drawTriangle(command, graphics);
+    }
+
+    /**
+     * Draws a triangle using the specified command and {@code Graphics} context.
+     * <p>
+     * The x-coordinates of the vertices are read from coordinates 0, 2 and 4 of the command, while the
+     * y-coordinates are read from coordinates 1, 3 and 5. The method then sets the command's color and outline
+     * width and renders the triangle using {@code Graphics.drawPolygon}, or {@code Graphics.fillPolygon} if it is
+     * filled.
+     * </p>
+     *
+     * @param command  the parsed request. The vertices are expected as coordinate pairs.
      * @param graphics the {@code Graphics} object used to render the triangle.
      */
-    private void drawTriangle(String[] tokens, Graphics graphics) {
-        System.out.println("Drawing Triangle...");
+    private void drawTriangle(ShapeCommand command, Graphics graphics) {
+        ServerLog.debug("Drawing Triangle...");
         int[] xPoints = {
-                Integer.parseInt(tokens[2]),
-                Integer.parseInt(tokens[4]),
-                Integer.parseInt(tokens[6])
+                command.getCoordinate(0),
+                command.getCoordinate(2),
+                command.getCoordinate(4)
         };
         int[] yPoints = {
-                Integer.parseInt(tokens[3]),
-                Integer.parseInt(tokens[5]),
-                Integer.parseInt(tokens[7])
+                command.getCoordinate(1),
+                command.getCoordinate(3),
+                command.getCoordinate(5)
         };
-        String colorName = tokens[tokens.length - 1].trim().toLowerCase();
-        Color color = DrawingServer.getColor(colorName);
-        graphics.setColor(color);
-        graphics.drawPolygon(xPoints, yPoints, 3);
+        applyStyle(command, graphics);
+        if (command.isFilled()) {
+            graphics.fillPolygon(xPoints, yPoints, 3);
+        } else {
+            graphics.drawPolygon(xPoints, yPoints, 3);
+        }
     }
 }
@@ -0,0 +1,309 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * The {@code ViewerLoadGenerator} class is a small command-line load test for the viewers of a running
+ * {@link DrawingServer}, which must run with {@code -Ddrawing.server.persistent=true}.
+ * <p>
+ * It opens a number of viewer connections with {@code VIEW} requests and reads the frames the
+ * {@link CanvasStreamer} sends them, while a single drawing connection draws small random circles at a steady
+ * rate, so that a realistic share of the tiles changes between frames. At the end it prints the number of frames
+ * received per viewer and per second, the average bytes and tiles per frame, the frames skipped by viewers too
+ * slow to keep up, and the total bandwidth.
+ * </p>
+ *
+ * <p>
+ * To measure the end-to-end latency, the drawing connection also fills a small square in the top-left corner of
+ * the canvas ten times per second, each time with a new color encoding a sequence number; the random circles
+ * never reach that corner. Each viewer decodes the tile covering the corner in every frame, and records the time
+ * from sending a square to first seeing its color, which includes parsing, the render queue, the capture and the
+ * frame transfer. The latency percentiles are printed in milliseconds.
+ * </p>
+ *
+ * <pre>
+ * java ViewerLoadGenerator [host] [port] [viewers] [seconds] [fps] [shapesPerSecond]
+ * </pre>
+ *
+ * @see CanvasStreamer
+ * @see LoadGenerator
+ */
+public class ViewerLoadGenerator {
+    private static final int PROBES_PER_SECOND = 10;
+    private static final int PROBE_SIZE = 8;
+    private static final int PROBE_PIXEL = 4;
+
+    /**
+     * Runs the load test.
+     *
+     * @param args optional host (default {@code localhost}), port (default {@code 8080}), number of viewers
+     *             (default {@code 16}), duration in seconds (default {@code 10}), frame rate asked by the viewers
+     *             (default {@code 0}, the rate of the server) and number of circles drawn per second (default
+     *             {@code 1000}).
+     * @throws InterruptedException If the load test is interrupted.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+        int viewerCount = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        int fps = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+        int shapesPerSecond = args.length > 5 ? Integer.parseInt(args[5]) : 1000;
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLongArray probes = new AtomicLongArray(seconds * PROBES_PER_SECOND + 2 * PROBES_PER_SECOND);
+        LatencyHistogram latency = new LatencyHistogram();
+        LongAdder frames = new LongAdder();
+        LongAdder bytes = new LongAdder();
+        LongAdder tiles = new LongAdder();
+        LongAdder dropped = new LongAdder();
+        LongAdder failed = new LongAdder();
+        List<Socket> sockets = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        int[] size = new int[2];
+        for (int i = 0; i < viewerCount; i++) {
+            try {
+                Socket socket = new Socket(host, port);
+                sockets.add(socket);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+                OutputStream out = socket.getOutputStream();
+                out.write(("v" + i + " VIEW" + (fps > 0 ? " " + fps : "") + "\n").getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                String[] reply = readLine(in).split(" ");
+                if (reply.length != 5 || !"OK".equals(reply[0])) {
+                    throw new IOException("Viewer refused: " + String.join(" ", reply));
+                }
+                size[0] = Integer.parseInt(reply[2]);
+                size[1] = Integer.parseInt(reply[3]);
+                Thread thread = new Thread(() -> {
+                    try {
+                        view(in, probes, latency, frames, bytes, tiles, dropped);
+                    } catch (IOException e) {
+                        if (running.get()) {
+                            failed.increment();
+                        }
+                    }
+                }, "viewer-" + i);
+                thread.start();
+                threads.add(thread);
+            } catch (IOException e) {
+                failed.increment();
+            }
+        }
+
+        long start = System.nanoTime();
+        long drawn = 0;
+        try {
+            drawn = draw(host, port, size[0], size[1], seconds, shapesPerSecond, probes);
+        } catch (IOException e) {
+            failed.increment();
+        }
+        // Lets the last probes reach the viewers.
+        Thread.sleep(500);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        running.set(false);
+        for (Socket socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed.
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long frameCount = frames.sum();
+        System.out.printf("viewers=%d fps=%s shapes=%d failed=%d elapsed=%.2fs frames=%d frames/s/viewer=%.1f"
+                        + " bytes/frame=%.0f tiles/frame=%.1f dropped=%d bandwidth=%.2f MB/s", viewerCount,
+                fps > 0 ? fps : "server", drawn, failed.sum(), elapsed, frameCount,
+                threads.isEmpty() ? 0 : frameCount / elapsed / threads.size(),
+                frameCount == 0 ? 0 : (double) bytes.sum() / frameCount,
+                frameCount == 0 ? 0 : (double) tiles.sum() / frameCount, dropped.sum(),
+                bytes.sum() / elapsed / 1e6);
+        System.out.printf(" latency.count=%d latency.p50=%.1fms latency.p99=%.1fms latency.max=%.1fms%n",
+                latency.getCount(), latency.getPercentile(50) / 1e6, latency.getPercentile(99) / 1e6,
+                latency.getMax() / 1e6);
+    }
+
+    /**
+     * Draws random circles and probe squares over a persistent connection for the given duration.
+     *
+     * @return the number of circles drawn.
+     */
+    private static long draw(String host, int port, int width, int height, int seconds, int shapesPerSecond,
+                             AtomicLongArray probes) throws IOException, InterruptedException {
+        try (Socket socket = new Socket(host, port)) {
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+            InputStream in = socket.getInputStream();
+            // Replies are drained so refusals cannot fill the socket buffers and stall the server.
+            Thread replies = new Thread(() -> {
+                byte[] buffer = new byte[4096];
+                try {
+                    while (in.read(buffer) >= 0) {
+                        // Ignored.
+                    }
+                } catch (IOException e) {
+                    // The connection failed; the writes fail too.
+                }
+            }, "viewer-load-replies");
+            replies.start();
+            Random random = new Random(42);
+            long tickNanos = TimeUnit.SECONDS.toNanos(1) / PROBES_PER_SECOND / 10;
+            int shapesPerTick = Math.max(1, shapesPerSecond / PROBES_PER_SECOND / 10);
+            long start = System.nanoTime();
+            long end = start + TimeUnit.SECONDS.toNanos(seconds);
+            long drawn = 0;
+            int probe = 1;
+            for (long tick = 0; start + tick * tickNanos - end < 0; tick++) {
+                long delay = start + tick * tickNanos - System.nanoTime();
+                if (delay > 0) {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                }
+                if (shapesPerSecond > 0) {
+                    for (int i = 0; i < shapesPerTick; i++) {
+                        int x = 100 + random.nextInt(Math.max(1, width - 120));
+                        int y = 20 + random.nextInt(Math.max(1, height - 40));
+                        out.write(("d CIRCLE " + x + " " + y + " " + (2 + random.nextInt(18)) + " #"
+                                + String.format("%06X", random.nextInt(0x1000000)) + " FILL\n")
+                                .getBytes(StandardCharsets.US_ASCII));
+                    }
+                    drawn += shapesPerTick;
+                }
+                if (tick % 10 == 0 && probe < probes.length()) {
+                    out.write(("p POLYGONE 0 0 " + PROBE_SIZE + " 0 " + PROBE_SIZE + " " + PROBE_SIZE + " 0 "
+                            + PROBE_SIZE + " #" + String.format("%06X", probe) + " FILL\n")
+                            .getBytes(StandardCharsets.US_ASCII));
+                    probes.set(probe++, System.nanoTime());
+                }
+                out.flush();
+            }
+            socket.shutdownOutput();
+            replies.join();
+            return drawn;
+        }
+    }
+
+    /**
+     * Reads frames until the connection is closed, recording their size and the latency of the probes they show.
+     */
+    private static void view(DataInputStream in, AtomicLongArray probes, LatencyHistogram latency, LongAdder frames,
+                             LongAdder bytes, LongAdder tiles, LongAdder dropped) throws IOException {
+        Inflater inflater = new Inflater();
+        byte[] data = new byte[0];
+        byte[] inflated = new byte[CanvasStreamer.MAX_TILE_SIZE * CanvasStreamer.MAX_TILE_SIZE * 6];
+        long previousVersion = 0;
+        int seen = 0;
+        try {
+            while (true) {
+                String header = readLine(in);
+                String[] fields = header.split(" ");
+                if (fields.length != 4 || !"FRAME".equals(fields[0])) {
+                    throw new IOException("Unexpected frame: " + header);
+                }
+                long version = Long.parseLong(fields[1]);
+                int tileCount = Integer.parseInt(fields[2]);
+                int length = Integer.parseInt(fields[3]);
+                long received = System.nanoTime();
+                for (int i = 0; i < tileCount; i++) {
+                    int x = in.readUnsignedShort();
+                    int y = in.readUnsignedShort();
+                    int w = in.readUnsignedShort();
+                    in.readUnsignedShort();
+                    int encoding = in.readUnsignedByte();
+                    int dataLength = in.readInt();
+                    if (data.length < dataLength) {
+                        data = new byte[dataLength];
+                    }
+                    in.readFully(data, 0, dataLength);
+                    if (x != 0 || y != 0) {
+                        continue;
+                    }
+                    int probe = pixel(encoding, data, dataLength, inflater, inflated, PROBE_PIXEL * w + PROBE_PIXEL)
+                            & 0xFFFFFF;
+                    if (probe > seen && probe < probes.length() && probes.get(probe) != 0) {
+                        latency.record(received - probes.get(probe));
+                        seen = probe;
+                    }
+                }
+                if (tileCount > 0) {
+                    frames.increment();
+                    bytes.add(header.length() + 1 + length);
+                    tiles.add(tileCount);
+                    if (previousVersion > 0) {
+                        dropped.add(version - previousVersion - 1);
+                    }
+                    previousVersion = version;
+                }
+            }
+        } catch (EOFException e) {
+            // The viewer was closed.
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Decodes one pixel of a tile.
+     *
+     * @param index the index of the pixel in the tile, in row-major order.
+     */
+    private static int pixel(int encoding, byte[] data, int length, Inflater inflater, byte[] inflated, int index)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        if (encoding == CanvasStreamer.RAW) {
+            return buffer.getInt(index * 4);
+        }
+        if (encoding == CanvasStreamer.DEFLATE) {
+            inflater.reset();
+            inflater.setInput(data, 0, length);
+            try {
+                buffer = ByteBuffer.wrap(inflated, 0, inflater.inflate(inflated));
+            } catch (DataFormatException e) {
+                throw new IOException("Invalid deflated tile", e);
+            }
+        } else if (encoding != CanvasStreamer.RLE) {
+            throw new IOException("Unknown tile encoding " + encoding);
+        }
+        int pixels = 0;
+        while (buffer.hasRemaining()) {
+            pixels += buffer.getShort() & 0xFFFF;
+            int pixel = buffer.getInt();
+            if (index < pixels) {
+                return pixel;
+            }
+        }
+        throw new IOException("Tile too short");
+    }
+
+    /**
+     * Reads a line in ASCII.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new EOFException();
+            }
+            line.append((char) b);
+        }
+        return line.toString();
+    }
+}
@@ -0,0 +1,62 @@
+import java.awt.*;
+import java.awt.image.BufferStrategy;
+
+/**
+ * The {@code WindowSurface} class draws frames into an {@code int[]} framebuffer shown in an on-screen AWT frame.
+ * <p>
+ * Frames are drawn into the offscreen image of the {@link ImageSurface}, so they can be rasterized in parallel by
+ * a {@link TileRasterizer} and snapshotted like in headless mode. Each frame is then copied into the back buffer
+ * of the {@link BufferStrategy} and made visible with {@link BufferStrategy#show()}. Since the framebuffer is
+ * retained, a back buffer lost by the system is simply drawn again from it, see {@link #refresh()}.
+ * </p>
+ *
+ * @see RenderSurface
+ */
+public class WindowSurface extends ImageSurface {
+    private final BufferStrategy bufferStrategy;
+
+    /**
+     * Creates a surface over the buffer strategy of a frame.
+     *
+     * @param bufferStrategy the buffer strategy of the drawing frame.
+     * @param width          the width of the frame, in pixels.
+     * @param height         the height of the frame, in pixels.
+     */
+    public WindowSurface(BufferStrategy bufferStrategy, int width, int height) {
+        super(width, height);
+        this.bufferStrategy = bufferStrategy;
+    }
+
+    @Override
+    public void endFrame(Graphics graphics) {
+        try {
+            present();
+        } finally {
+            super.endFrame(graphics);
+        }
+    }
+
+    /**
+     * Shows the framebuffer again, for example after the window has been exposed and its back buffer lost.
+     */
+    public void refresh() {
+        endFrame(beginFrame());
+    }
+
+    /**
+     * Copies the framebuffer into the back buffer and shows it, until the back buffer survives the copy.
+     */
+    private void present() {
+        do {
+            do {
+                Graphics graphics = bufferStrategy.getDrawGraphics();
+                try {
+                    graphics.drawImage(getImage(), 0, 0, null);
+                } finally {
+                    graphics.dispose();
+                }
+            } while (bufferStrategy.contentsRestored());
+            bufferStrategy.show();
+        } while (bufferStrategy.contentsLost());
+    }
+}
@@ -0,0 +1,81 @@
+import org.junit.jupiter.api.Test;
+
+import java.awt.*;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests that the in-flight budget of the {@link AdmissionControl} counts the size of the commands as well as their
+ * number, so large polygons cannot queue more memory than small shapes.
+ */
+class AdmissionControlTest {
+    private static final int VERTICES = 16 * 1024;
+
+    @Test
+    void refusesLargeCommandsBeyondByteBudget() {
+        ShapeCommand polygon = command(2 * VERTICES);
+        long size = AdmissionControl.sizeOf(polygon);
+        AdmissionControl admission = new AdmissionControl(config(String.valueOf(10 * size)));
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(admission.acquireInFlight(size), "polygon " + i);
+        }
+        assertFalse(admission.acquireInFlight(size));
+        assertEquals(10, admission.getInFlight());
+        assertEquals(10 * size, admission.getInFlightBytes());
+
+        // Small shapes still fit once a polygon has been drawn.
+        admission.releaseInFlight(1, size);
+        ShapeCommand circle = command(3);
+        for (int i = 0; i < size / AdmissionControl.sizeOf(circle); i++) {
+            assertTrue(admission.acquireInFlight(AdmissionControl.sizeOf(circle)), "circle " + i);
+        }
+        assertFalse(admission.acquireInFlight(size));
+    }
+
+    @Test
+    void renderersGiveBackTheSizeTheyTook() throws InterruptedException {
+        ShapeCommand polygon = command(2 * VERTICES);
+        ServerConfig config = config(String.valueOf(4 * AdmissionControl.sizeOf(polygon)));
+        AdmissionControl admission = new AdmissionControl(config);
+        ImageSurface surface = new ImageSurface(config.getWidth(), config.getHeight());
+        ServerMetrics metrics = new ServerMetrics(DrawingServer.getShapeRegistry());
+        CanvasRenderer renderer = new CanvasRenderer(surface, config, metrics, admission);
+        Thread thread = renderer.start();
+        try {
+            for (int i = 0; i < 100; i++) {
+                while (renderer.offerRender(polygon) != CanvasRenderer.Offer.QUEUED) {
+                    renderer.awaitRendered();
+                }
+            }
+            renderer.awaitRendered();
+        } finally {
+            thread.interrupt();
+            thread.join();
+        }
+        assertEquals(0, admission.getInFlight());
+        assertEquals(0, admission.getInFlightBytes());
+    }
+
+    private static ShapeCommand command(int coordinates) {
+        int[] values = new int[coordinates];
+        for (int i = 0; i < coordinates; i++) {
+            values[i] = i % 2 == 0 ? -5000 + i % 11000 : i % 900;
+        }
+        ShapeCommand command = new ShapeCommand();
+        command.set(coordinates == 3 ? new CircleHandler() : new PolygonHandler(), values, coordinates, Color.RED,
+                true, 1);
+        return command;
+    }
+
+    private static ServerConfig config(String maxInFlightBytes) {
+        Properties properties = new Properties();
+        properties.setProperty(ServerConfig.MAX_IN_FLIGHT_BYTES_PROPERTY, maxInFlightBytes);
+        properties.setProperty(ServerConfig.MAX_FPS_PROPERTY, "0");
+        properties.setProperty(ServerConfig.RENDER_THREADS_PROPERTY, "1");
+        return new ServerConfig(properties);
+    }
+}
@@ -0,0 +1,350 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the {@link CommandJournal}: replay after a clean close, recovery from a torn or corrupt tail, and
+ * restarts of a {@link CanvasRenderer} from its logs and snapshots.
+ */
+class CommandJournalTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+
+    @TempDir
+    Path directory;
+
+    private final ShapeRegistry registry = DrawingServer.getShapeRegistry();
+    private final CommandParser parser = new CommandParser(registry);
+    private ServerLog.Level level;
+
+    @BeforeEach
+    void quietLog() {
+        level = ServerLog.getLevel();
+        ServerLog.setLevel(ServerLog.Level.ERROR);
+    }
+
+    @AfterEach
+    void restoreLog() {
+        ServerLog.setLevel(level);
+    }
+
+    @Test
+    void replaysRecordsAfterCleanClose() throws IOException {
+        CommandJournal journal = new CommandJournal(directory, registry, 0, 0);
+        assertEquals(0, journal.open(new RecordingReplayer()));
+        journal.append(parse("t CIRCLE 10 20 5 red"));
+        journal.append(parse("t TRIANGLE 1 2 30 4 5 60 #80336699 fill"));
+        journal.appendRemove(new int[]{0, 7}, 2);
+        journal.append(parse("t SEGMENT 0 0 100 100 blue"));
+        journal.appendClear();
+        journal.close();
+
+        RecordingReplayer replayer = new RecordingReplayer();
+        journal = new CommandJournal(directory, registry, 0, 0);
+        assertEquals(5, journal.open(replayer));
+        journal.close();
+        assertEquals(List.of(
+                "shape CIRCLE 10 20 5",
+                "shape TRIANGLE 1 2 30 4 5 60",
+                "remove 0 7",
+                "shape SEGMENT 0 0 100 100",
+                "clear",
+                "finish"), replayer.records);
+    }
+
+    @Test
+    void truncatesTornTail() throws IOException {
+        Path log = writeTwoBlocks();
+        long firstBlockEnd = firstBlockEnd(log);
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        assertRecoversFirstBlock(log, firstBlockEnd);
+    }
+
+    @Test
+    void truncatesCorruptTail() throws IOException {
+        Path log = writeTwoBlocks();
+        long firstBlockEnd = firstBlockEnd(log);
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            long position = channel.size() - 1;
+            channel.read(last, position);
+            last.put(0, (byte) ~last.get(0)).rewind();
+            channel.write(last, position);
+        }
+
+        assertRecoversFirstBlock(log, firstBlockEnd);
+    }
+
+    @Test
+    void replaysRemoveAndClear() throws Exception {
+        CanvasRenderer renderer = newRenderer();
+        CommandJournal journal = new CommandJournal(directory, registry, 0, 0);
+        renderer.restore(journal);
+        Thread renderThread = renderer.start();
+        Random random = new Random(7);
+        drawRandom(renderer, random, 200);
+        renderer.awaitRendered();
+        renderer.removeShapes(new int[]{3, 50, 51, 52, 199, 1000});
+        drawRandom(renderer, random, 50);
+        renderer.awaitRendered();
+        renderer.clearScene();
+        drawRandom(renderer, random, 100);
+        renderer.awaitRendered();
+        renderer.removeShapes(new int[]{260, 300});
+        renderer.awaitRendered();
+        renderThread.interrupt();
+        renderThread.join();
+        journal.close();
+        Canvas before = Canvas.of(renderer);
+        assertFalse(hasSnapshot(), "closing the journal alone must not compact it");
+
+        CanvasRenderer restored = newRenderer();
+        journal = new CommandJournal(directory, registry, 0, 0);
+        assertEquals(200 + 1 + 50 + 1 + 100 + 1, restored.restore(journal));
+        journal.close();
+        assertEquals(before, Canvas.of(restored));
+        assertEquals(98, restored.getScene().size());
+    }
+
+    @Test
+    void compactionAndRestartReproduceCanvas() throws Exception {
+        ServerConfig config = config();
+        CanvasSession session = CanvasSession.open("test", new ImageSurface(WIDTH, HEIGHT),
+                new ServerMetrics(registry), config, registry, null, directory);
+        CanvasRenderer renderer = session.getRenderer();
+        Random random = new Random(11);
+        drawRandom(renderer, random, 500);
+        renderer.awaitRendered();
+        renderer.removeShapes(new int[]{0, 10, 499});
+        drawRandom(renderer, random, 20);
+        renderer.awaitRendered();
+        // Removing the last shapes leaves identifiers after the last shape of the snapshot.
+        renderer.removeShapes(new int[]{518, 519});
+        renderer.awaitRendered();
+        Canvas before = Canvas.of(renderer);
+        session.close();
+        assertTrue(hasSnapshot(), "closing the canvas must compact its journal");
+
+        session = CanvasSession.open("test", new ImageSurface(WIDTH, HEIGHT), new ServerMetrics(registry), config,
+                registry, null, directory);
+        renderer = session.getRenderer();
+        assertEquals(before, Canvas.of(renderer));
+        renderer.render(parse("t CIRCLE 50 50 10 green fill"));
+        renderer.awaitRendered();
+        Canvas after = Canvas.of(renderer);
+        session.close();
+        assertEquals(List.of(520, 521), after.ids.subList(after.ids.size() - 2, after.ids.size()),
+                "new shapes must not reuse the identifiers of removed ones");
+
+        session = CanvasSession.open("test", new ImageSurface(WIDTH, HEIGHT), new ServerMetrics(registry), config,
+                registry, null, directory);
+        assertEquals(after, Canvas.of(session.getRenderer()));
+        session.close();
+    }
+
+    /**
+     * Writes a journal of two blocks, forcing a group commit between them. The commits wait long enough for
+     * the records appended together to share a block.
+     *
+     * @return the log file.
+     */
+    private Path writeTwoBlocks() throws IOException {
+        CommandJournal journal = new CommandJournal(directory, registry, 200, 0);
+        journal.open(new RecordingReplayer());
+        journal.append(parse("t CIRCLE 1 1 1 red"));
+        journal.append(parse("t CIRCLE 2 2 2 red"));
+        journal.sync();
+        journal.append(parse("t CIRCLE 3 3 3 red"));
+        journal.appendClear();
+        journal.close();
+        return onlyLog();
+    }
+
+    private void assertRecoversFirstBlock(Path log, long firstBlockEnd) throws IOException {
+        RecordingReplayer replayer = new RecordingReplayer();
+        CommandJournal journal = new CommandJournal(directory, registry, 0, 0);
+        assertEquals(2, journal.open(replayer));
+        assertEquals(List.of("shape CIRCLE 1 1 1", "shape CIRCLE 2 2 2", "finish"), replayer.records);
+        assertEquals(firstBlockEnd, Files.size(log), "the damaged block must be cut off");
+
+        // New records follow the last good block.
+        journal.append(parse("t CIRCLE 4 4 4 red"));
+        journal.close();
+        replayer = new RecordingReplayer();
+        journal = new CommandJournal(directory, registry, 0, 0);
+        assertEquals(3, journal.open(replayer));
+        journal.close();
+        assertEquals(List.of("shape CIRCLE 1 1 1", "shape CIRCLE 2 2 2", "shape CIRCLE 4 4 4", "finish"),
+                replayer.records);
+    }
+
+    private static long firstBlockEnd(Path log) throws IOException {
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ)) {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            channel.read(length, 0);
+            return 8 + length.getInt(0);
+        }
+    }
+
+    private Path onlyLog() throws IOException {
+        List<Path> logs = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                CommandJournal.LOG_PREFIX + "*" + CommandJournal.LOG_SUFFIX)) {
+            files.forEach(logs::add);
+        }
+        assertEquals(1, logs.size());
+        return logs.get(0);
+    }
+
+    private boolean hasSnapshot() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                CommandJournal.SNAPSHOT_PREFIX + "*" + CommandJournal.SNAPSHOT_SUFFIX)) {
+            return files.iterator().hasNext();
+        }
+    }
+
+    private CanvasRenderer newRenderer() {
+        return new CanvasRenderer(new ImageSurface(WIDTH, HEIGHT), config(), new ServerMetrics(registry));
+    }
+
+    private static ServerConfig config() {
+        Properties properties = new Properties();
+        properties.setProperty(ServerConfig.WIDTH_PROPERTY, String.valueOf(WIDTH));
+        properties.setProperty(ServerConfig.HEIGHT_PROPERTY, String.valueOf(HEIGHT));
+        properties.setProperty(ServerConfig.RENDER_THREADS_PROPERTY, "1");
+        properties.setProperty(ServerConfig.MAX_FPS_PROPERTY, "0");
+        properties.setProperty(ServerConfig.JOURNAL_SYNC_MILLIS_PROPERTY, "0");
+        properties.setProperty(ServerConfig.JOURNAL_COMPACT_BYTES_PROPERTY, "0");
+        properties.setProperty(ServerConfig.RETAIN_SCENE_PROPERTY, "true");
+        return new ServerConfig(properties);
+    }
+
+    /**
+     * Draws random shapes, some translucent, some reaching past the canvas.
+     */
+    private void drawRandom(CanvasRenderer renderer, Random random, int count) throws InterruptedException {
+        String[] colors = {"red", "blue", "#80336699", "#40FF8000", "black"};
+        for (int i = 0; i < count; i++) {
+            int x = random.nextInt(WIDTH + 40) - 20;
+            int y = random.nextInt(HEIGHT + 40) - 20;
+            String color = colors[random.nextInt(colors.length)] + (random.nextBoolean() ? " fill" : "");
+            String request = switch (random.nextInt(3)) {
+                case 0 -> "t CIRCLE " + x + " " + y + " " + (1 + random.nextInt(30)) + " " + color;
+                case 1 -> "t SEGMENT " + x + " " + y + " " + (x + random.nextInt(81) - 40) + " "
+                        + (y + random.nextInt(81) - 40) + " " + color;
+                default -> "t TRIANGLE " + x + " " + y + " " + (x + random.nextInt(61) - 30) + " "
+                        + (y + random.nextInt(61) - 30) + " " + (x + random.nextInt(61) - 30) + " "
+                        + (y + random.nextInt(61) - 30) + " " + color;
+            };
+            renderer.render(parse(request));
+        }
+    }
+
+    private ShapeCommand parse(String request) {
+        byte[] bytes = request.getBytes(StandardCharsets.US_ASCII);
+        ShapeCommand command = new ShapeCommand();
+        assertTrue(parser.parse(ByteBuffer.wrap(bytes), 0, bytes.length, command), request);
+        return command;
+    }
+
+    /**
+     * The pixels of a canvas and the identifiers of the shapes of its scene, followed by the identifier of the
+     * next shape.
+     */
+    private record Canvas(int[] pixels, List<Integer> ids) {
+        static Canvas of(CanvasRenderer renderer) {
+            SceneShape[] shapes = renderer.getScene().copyShapes();
+            List<Integer> ids = new ArrayList<>();
+            for (SceneShape shape : shapes) {
+                if (shape != null) {
+                    ids.add(shape.getId());
+                }
+            }
+            ids.add(shapes.length);
+            return new Canvas(((ImageSurface) renderer.getSurface()).copyPixels(), ids);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Canvas canvas && Arrays.equals(pixels, canvas.pixels) && ids.equals(canvas.ids);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(pixels) * 31 + ids.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return ids.size() - 1 + " shapes, next identifier " + ids.get(ids.size() - 1);
+        }
+    }
+
+    /**
+     * Records what a journal replays.
+     */
+    private final class RecordingReplayer implements CommandJournal.Replayer {
+        final List<String> records = new ArrayList<>();
+
+        @Override
+        public void restoreShape(int id, ShapeCommand command) {
+            records.add("restore " + id);
+        }
+
+        @Override
+        public void restoreCanvas(int[] pixels, int width, int height, int nextShapeId) {
+            records.add("canvas " + width + "x" + height + " " + nextShapeId);
+        }
+
+        @Override
+        public void shape(ShapeCommand command) {
+            StringBuilder record = new StringBuilder("shape ")
+                    .append(registry.getKeyword(registry.getOpcode(command.getHandler())));
+            for (int i = 0; i < command.getCoordinateCount(); i++) {
+                record.append(' ').append(command.getCoordinates()[i]);
+            }
+            records.add(record.toString());
+        }
+
+        @Override
+        public void remove(int[] ids, int count) {
+            StringBuilder record = new StringBuilder("remove");
+            for (int i = 0; i < count; i++) {
+                record.append(' ').append(ids[i]);
+            }
+            records.add(record.toString());
+        }
+
+        @Override
+        public void clear() {
+            records.add("clear");
+        }
+
+        @Override
+        public void finish() {
+            records.add("finish");
+        }
+    }
+}
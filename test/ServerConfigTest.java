@@ -0,0 +1,90 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the request limits of the {@link ServerConfig}, which depend on polygon simplification.
+ */
+class ServerConfigTest {
+
+    @Test
+    void keepsSmallLimitsWithoutSimplification() {
+        ServerConfig config = config();
+        assertEquals(16 * 1024, config.getMaxVertices());
+        assertEquals(1024 * 1024, config.getMaxLineLength());
+
+        config = config(ServerConfig.POLYGON_TOLERANCE_PROPERTY, "0.5", ServerConfig.CLIP_SHAPES_PROPERTY, "false");
+        assertEquals(16 * 1024, config.getMaxVertices());
+        assertEquals(1024 * 1024, config.getMaxLineLength());
+    }
+
+    @Test
+    void raisesLimitsWhenPolygonsAreSimplified() {
+        ServerConfig config = config(ServerConfig.POLYGON_TOLERANCE_PROPERTY, "0.5");
+        assertEquals(524_280, config.getMaxVertices());
+        assertEquals(16 * 524_280, config.getMaxLineLength());
+
+        config = config(ServerConfig.POLYGON_TOLERANCE_PROPERTY, "0.5",
+                ServerConfig.MAX_IN_FLIGHT_BYTES_PROPERTY, String.valueOf(1024L * 1024 * 1024));
+        assertEquals(1024 * 1024, config.getMaxVertices());
+        assertEquals(BinaryProtocol.MAX_FRAME_LENGTH, config.getMaxLineLength());
+
+        config = config(ServerConfig.POLYGON_TOLERANCE_PROPERTY, "0.5", ServerConfig.MAX_VERTICES_PROPERTY, "1000",
+                ServerConfig.MAX_LINE_LENGTH_PROPERTY, "4096");
+        assertEquals(1000, config.getMaxVertices());
+        assertEquals(4096, config.getMaxLineLength());
+    }
+
+    @Test
+    void boundsRaisedLimitsByInFlightBytes() {
+        ServerConfig config = config(ServerConfig.POLYGON_TOLERANCE_PROPERTY, "0.5",
+                ServerConfig.MAX_IN_FLIGHT_BYTES_PROPERTY, String.valueOf(64L * 1024 * 1024));
+        assertEquals(131_064, config.getMaxVertices());
+        assertEquals(16 * 131_064, config.getMaxLineLength());
+
+        // Without a byte budget nothing bounds the queued polygons: the limits stay small.
+        config = config(ServerConfig.POLYGON_TOLERANCE_PROPERTY, "0.5", ServerConfig.MAX_IN_FLIGHT_BYTES_PROPERTY, "0");
+        assertEquals(16 * 1024, config.getMaxVertices());
+        assertEquals(1024 * 1024, config.getMaxLineLength());
+
+        assertThrows(IllegalArgumentException.class, () -> config(ServerConfig.MAX_VERTICES_PROPERTY, "100000",
+                ServerConfig.MAX_IN_FLIGHT_BYTES_PROPERTY, "65536"));
+    }
+
+    @Test
+    void acceptsDetailedPolygonsWhenSimplified() {
+        StringBuilder request = new StringBuilder("t POLYGONE");
+        int vertices = 200_000;
+        for (int i = 0; i < vertices; i++) {
+            double angle = 2 * Math.PI * i / vertices;
+            request.append(' ').append(500 + Math.round(300 * Math.cos(angle)))
+                    .append(' ').append(400 + Math.round(300 * Math.sin(angle)));
+        }
+        byte[] bytes = request.append(" red fill").toString().getBytes(StandardCharsets.US_ASCII);
+
+        ServerConfig config = config(ServerConfig.POLYGON_TOLERANCE_PROPERTY, "0.5");
+        assertTrue(bytes.length <= config.getMaxLineLength());
+        assertTrue(parse(config, bytes));
+        assertFalse(parse(config(), bytes));
+    }
+
+    private static boolean parse(ServerConfig config, byte[] request) {
+        CommandParser parser = new CommandParser(DrawingServer.getShapeRegistry(), config.getMaxVertices());
+        return parser.parse(ByteBuffer.wrap(request), 0, request.length, new ShapeCommand());
+    }
+
+    private static ServerConfig config(String... entries) {
+        Properties properties = new Properties();
+        for (int i = 0; i + 1 < entries.length; i += 2) {
+            properties.setProperty(entries[i], entries[i + 1]);
+        }
+        return new ServerConfig(properties);
+    }
+}
@@ -0,0 +1,136 @@
+import org.junit.jupiter.api.Test;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests that the {@link ShapeClipper} keeps the shapes it clips, including shapes whose coordinates are far beyond
+ * the guard band.
+ */
+class ShapeClipperTest {
+    private static final int WIDTH = 1000;
+    private static final int HEIGHT = 800;
+    /** Far beyond the guard band, yet within the range Java2D draws exactly without clipping. */
+    private static final int FAR = 2_000_000_000;
+    private static final int MIN = Integer.MIN_VALUE;
+    private static final int MAX = Integer.MAX_VALUE;
+
+    private final CommandParser parser = new CommandParser(DrawingServer.getShapeRegistry());
+
+    @Test
+    void drawsFarShapesAsUnclipped() {
+        String[] requests = {
+                "t TRIANGLE -2000000000 -2000000000 2000000000 2000000000 -2000000000 2000000000 red",
+                "t TRIANGLE -2000000000 -2000000000 2000000000 2000000000 -2000000000 2000000000 red fill",
+                "t TRIANGLE -2000000000 400 2000000000 300 500 2000000000 blue fill",
+                "t TRIANGLE 500 -2000000000 -2000000000 2000000000 2000000000 2000000000 #80336699 fill",
+                "t POLYGONE -1500000000 100 1500000000 700 1500000000 710 -1500000000 110 black fill",
+                "t POLYGONE 100 -1500000000 900 1500000000 910 1500000000 110 -1500000000 black",
+                "t SEGMENT -2000000000 -2000000000 2000000000 2000000000 red",
+                "t SEGMENT -2000000000 300 2000000000 500 blue",
+        };
+        for (String request : requests) {
+            BufferedImage unclipped = draw(request, null);
+            BufferedImage clipped = draw(request, new ShapeClipper(WIDTH, HEIGHT, null));
+            assertEquals(0, countDifferences(unclipped, clipped), request);
+        }
+    }
+
+    /**
+     * Checks the polygons whose edges Java2D itself only approximates, or cannot draw at all once their extent
+     * overflows an {@code int}: every vertex of the clipped polygon must lie inside the requested one, or on its
+     * outline.
+     */
+    @Test
+    void keepsClippedVerticesInsideRequestedPolygon() {
+        int[][] polygons = {
+                {-FAR, -FAR, FAR, FAR, -FAR, FAR},
+                {-FAR, -FAR, FAR, -FAR, 600, 500, FAR, FAR, -FAR, FAR},
+                {MIN, 400, MAX, 300, 500, MAX},
+                {MIN, MIN, MAX, MIN, MAX, MAX, MIN, MAX},
+                {500, MIN, MIN, MAX, MAX, MAX},
+                {MIN, MIN, MAX, MAX, MIN + 1, MAX},
+        };
+        for (int[] polygon : polygons) {
+            StringBuilder request = new StringBuilder(polygon.length == 6 ? "t TRIANGLE" : "t POLYGONE");
+            for (int coordinate : polygon) {
+                request.append(' ').append(coordinate);
+            }
+            ShapeCommand command = parse(request.append(" red fill").toString());
+            assertTrue(new ShapeClipper(WIDTH, HEIGHT, null).clip(command), request.toString());
+            int[] clipped = command.getCoordinates();
+            for (int i = 0; i + 1 < command.getCoordinateCount(); i += 2) {
+                assertTrue(contains(polygon, clipped[i], clipped[i + 1])
+                                || distanceToOutline(polygon, clipped[i], clipped[i + 1]) <= 1,
+                        request + ": vertex " + clipped[i] + " " + clipped[i + 1] + " is outside the polygon");
+            }
+        }
+    }
+
+    private static boolean contains(int[] polygon, double x, double y) {
+        boolean inside = false;
+        for (int i = 0; i < polygon.length; i += 2) {
+            double x0 = polygon[i];
+            double y0 = polygon[i + 1];
+            double x1 = polygon[(i + 2) % polygon.length];
+            double y1 = polygon[(i + 3) % polygon.length];
+            if ((y0 > y) != (y1 > y) && x < x0 + (x1 - x0) * (y - y0) / (y1 - y0)) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+    private static double distanceToOutline(int[] polygon, double x, double y) {
+        double distance = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < polygon.length; i += 2) {
+            double x0 = polygon[i];
+            double y0 = polygon[i + 1];
+            double dx = polygon[(i + 2) % polygon.length] - x0;
+            double dy = polygon[(i + 3) % polygon.length] - y0;
+            double t = Math.max(0, Math.min(1, ((x - x0) * dx + (y - y0) * dy) / (dx * dx + dy * dy)));
+            distance = Math.min(distance, Math.hypot(x - x0 - t * dx, y - y0 - t * dy));
+        }
+        return distance;
+    }
+
+    private BufferedImage draw(String request, ShapeClipper clipper) {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        try {
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, WIDTH, HEIGHT);
+            ShapeCommand command = parse(request);
+            if (clipper == null || clipper.clip(command)) {
+                command.draw(graphics);
+            }
+        } finally {
+            graphics.dispose();
+        }
+        return image;
+    }
+
+    private static int countDifferences(BufferedImage expected, BufferedImage actual) {
+        int differences = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                if (expected.getRGB(x, y) != actual.getRGB(x, y)) {
+                    differences++;
+                }
+            }
+        }
+        return differences;
+    }
+
+    private ShapeCommand parse(String request) {
+        byte[] bytes = request.getBytes(StandardCharsets.US_ASCII);
+        ShapeCommand command = new ShapeCommand();
+        assertTrue(parser.parse(ByteBuffer.wrap(bytes), 0, bytes.length, command), request);
+        return command;
+    }
+}
@@ -0,0 +1,50 @@
+import org.junit.jupiter.api.Test;
+
+import java.awt.*;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests that copies of a {@link ShapeCommand} and the slots of a {@link RenderQueue} only keep coordinate arrays
+ * as large as the commands they hold, even after a large command went through the same holders.
+ */
+class ShapeCommandTest {
+    private static final int LARGE = 32 * 1024;
+
+    @Test
+    void copiesSizeArraysFromCoordinateCount() {
+        ShapeCommand shared = new ShapeCommand();
+        shared.set(new PolygonHandler(), new int[LARGE], LARGE, Color.RED, false, 1);
+        shared.set(new TriangleHandler(), new int[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18},
+                18, Color.RED, false, 1);
+
+        ShapeCommand copy = new ShapeCommand();
+        copy.copyFrom(shared);
+        assertEquals(18, copy.getCoordinateCount());
+        assertTrue(copy.getCoordinates().length <= 32, "copy holds " + copy.getCoordinates().length + " ints");
+        assertArrayEquals(Arrays.copyOf(shared.getCoordinates(), 18), Arrays.copyOf(copy.getCoordinates(), 18));
+    }
+
+    @Test
+    void releasedSlotsDropLargeArrays() {
+        RenderQueue queue = new RenderQueue(2);
+        ShapeCommand large = new ShapeCommand();
+        large.set(new PolygonHandler(), new int[LARGE], LARGE, Color.RED, false, 1);
+        ShapeCommand small = new ShapeCommand();
+        small.set(new CircleHandler(), new int[] {10, 10, 5}, 3, Color.RED, false, 1);
+
+        for (int i = 0; i < queue.capacity(); i++) {
+            assertTrue(queue.offer(i == 0 ? large : small));
+        }
+        assertEquals(LARGE, queue.peek().getCoordinateCount());
+        queue.release(queue.capacity());
+        for (int i = 0; i < queue.capacity(); i++) {
+            assertTrue(queue.offer(small));
+            assertTrue(queue.peek().getCoordinates().length <= ShapeCommand.RETAINED_COORDINATES);
+            queue.release();
+        }
+    }
+}
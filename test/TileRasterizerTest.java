@@ -0,0 +1,195 @@
+import org.junit.jupiter.api.Test;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests that the {@link TileRasterizer} draws a batch pixel for pixel as drawing it sequentially on one
+ * {@code Graphics} does.
+ * <p>
+ * The scenes mix every drawing path of the rasterizer: opaque straight-edged shapes drawn per tile, opaque
+ * circles and wide outlines spanning tiles, which go through masks, translucent shapes spanning tiles, which are
+ * drawn alone, and shapes within one tile.
+ * </p>
+ */
+class TileRasterizerTest {
+    private static final int WIDTH = 1000;
+    private static final int HEIGHT = 800;
+    private static final String[] OPAQUE = {"red", "blue", "black", "#336699", "green"};
+    private static final String[] TRANSLUCENT = {"#80336699", "#40FF8000", "#C0000000"};
+
+    private final CommandParser parser = new CommandParser(DrawingServer.getShapeRegistry());
+
+    @Test
+    void drawsMixedSceneAsSequentially() {
+        for (int tileSize : new int[]{16, 64, 128}) {
+            for (long seed = 1; seed <= 3; seed++) {
+                List<ShapeCommand> scene = mixedScene(new Random(seed), 3000);
+                assertTrue(maskedShapes(scene, tileSize) > 100, "the scene must exercise the masks");
+                assertSameAsSequential(scene, tileSize, 4, BufferedImage.TYPE_INT_ARGB, "tile " + tileSize
+                        + ", seed " + seed);
+            }
+        }
+    }
+
+    @Test
+    void drawsIntoImagesWithoutAlpha() {
+        assertSameAsSequential(mixedScene(new Random(42), 2000), 128, 3, BufferedImage.TYPE_INT_RGB, "RGB");
+    }
+
+    @Test
+    void drawsSmallBatchesAsSequentially() {
+        // Batches below the parallel threshold are drawn on the calling thread, the others split in tiles.
+        List<ShapeCommand> scene = mixedScene(new Random(7), 600);
+        BufferedImage sequential = drawSequentially(scene, BufferedImage.TYPE_INT_ARGB);
+        BufferedImage tiled = image(BufferedImage.TYPE_INT_ARGB);
+        TileRasterizer rasterizer = new TileRasterizer(WIDTH, HEIGHT, 64, 4);
+        try {
+            Random random = new Random(7);
+            for (int start = 0; start < scene.size(); ) {
+                int end = Math.min(scene.size(), start + 1 + random.nextInt(120));
+                rasterizer.draw(tiled, scene.subList(start, end).toArray(new ShapeCommand[0]), end - start);
+                start = end;
+            }
+        } finally {
+            rasterizer.shutdown();
+        }
+        assertEquals(0, countDifferences(sequential, tiled));
+    }
+
+    private void assertSameAsSequential(List<ShapeCommand> scene, int tileSize, int threads, int imageType,
+                                        String message) {
+        BufferedImage sequential = drawSequentially(scene, imageType);
+        BufferedImage tiled = image(imageType);
+        TileRasterizer rasterizer = new TileRasterizer(WIDTH, HEIGHT, tileSize, threads);
+        try {
+            rasterizer.draw(tiled, scene.toArray(new ShapeCommand[0]), scene.size());
+        } finally {
+            rasterizer.shutdown();
+        }
+        assertEquals(0, countDifferences(sequential, tiled), message);
+    }
+
+    /**
+     * Builds a scene as the render thread hands it to the rasterizer: parsed, then clipped to the canvas.
+     */
+    private List<ShapeCommand> mixedScene(Random random, int count) {
+        ShapeClipper clipper = new ShapeClipper(WIDTH, HEIGHT, null);
+        List<ShapeCommand> scene = new ArrayList<>();
+        while (scene.size() < count) {
+            ShapeCommand command = parse(randomRequest(random));
+            if (clipper.clip(command)) {
+                scene.add(command);
+            }
+        }
+        return scene;
+    }
+
+    private static String randomRequest(Random random) {
+        int x = random.nextInt(WIDTH + 200) - 100;
+        int y = random.nextInt(HEIGHT + 200) - 100;
+        // Most shapes stay within a few tiles; some cover a large part of the canvas.
+        int size = random.nextInt(10) == 0 ? 200 + random.nextInt(400) : 2 + random.nextInt(60);
+        String color = random.nextInt(4) == 0
+                ? TRANSLUCENT[random.nextInt(TRANSLUCENT.length)]
+                : OPAQUE[random.nextInt(OPAQUE.length)];
+        String style = color + (random.nextBoolean() ? " FILL" : "")
+                + (random.nextInt(5) == 0 ? " WIDTH=" + (2 + random.nextInt(6)) : "");
+        return switch (random.nextInt(6)) {
+            case 0, 1 -> "t CIRCLE " + x + " " + y + " " + size + " " + style;
+            case 2 -> "t SEGMENT " + x + " " + y + " " + around(random, x, size) + " " + around(random, y, size)
+                    + " " + style;
+            case 3 -> "t TRIANGLE " + x + " " + y + " " + around(random, x, size) + " " + around(random, y, size)
+                    + " " + around(random, x, size) + " " + around(random, y, size) + " " + style;
+            case 4 -> {
+                StringBuilder polygon = new StringBuilder("t POLYGONE");
+                for (int i = 0; i < 5; i++) {
+                    polygon.append(' ').append(around(random, x, size)).append(' ').append(around(random, y, size));
+                }
+                yield polygon.append(' ').append(style).toString();
+            }
+            default -> {
+                StringBuilder circles = new StringBuilder("t CIRCLES");
+                for (int i = 0; i < 20; i++) {
+                    circles.append(' ').append(around(random, x, 100)).append(' ').append(around(random, y, 100))
+                            .append(' ').append(1 + random.nextInt(20));
+                }
+                yield circles.append(' ').append(style).toString();
+            }
+        };
+    }
+
+    private static int around(Random random, int center, int size) {
+        return center + random.nextInt(2 * size + 1) - size;
+    }
+
+    /**
+     * Counts the opaque shapes spanning tiles that the rasterizer draws through a mask.
+     */
+    private static int maskedShapes(List<ShapeCommand> scene, int tileSize) {
+        int[] bounds = new int[4];
+        int masked = 0;
+        for (ShapeCommand command : scene) {
+            command.getHandler().computeBounds(command, bounds);
+            boolean spansTiles = Math.floorDiv(bounds[0] - 1, tileSize) != Math.floorDiv(bounds[2] + 1, tileSize)
+                    || Math.floorDiv(bounds[1] - 1, tileSize) != Math.floorDiv(bounds[3] + 1, tileSize);
+            if (spansTiles && command.getColor().getAlpha() == 255
+                    && !command.getHandler().isClipInvariant(command)) {
+                masked++;
+            }
+        }
+        return masked;
+    }
+
+    private static BufferedImage drawSequentially(List<ShapeCommand> scene, int imageType) {
+        BufferedImage image = image(imageType);
+        Graphics graphics = image.createGraphics();
+        try {
+            for (ShapeCommand command : scene) {
+                command.draw(graphics);
+            }
+        } finally {
+            graphics.dispose();
+        }
+        return image;
+    }
+
+    private static BufferedImage image(int imageType) {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, imageType);
+        Graphics graphics = image.createGraphics();
+        try {
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, WIDTH, HEIGHT);
+        } finally {
+            graphics.dispose();
+        }
+        return image;
+    }
+
+    private static int countDifferences(BufferedImage expected, BufferedImage actual) {
+        int differences = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                if (expected.getRGB(x, y) != actual.getRGB(x, y)) {
+                    differences++;
+                }
+            }
+        }
+        return differences;
+    }
+
+    private ShapeCommand parse(String request) {
+        byte[] bytes = request.getBytes(StandardCharsets.US_ASCII);
+        ShapeCommand command = new ShapeCommand();
+        assertTrue(parser.parse(ByteBuffer.wrap(bytes), 0, bytes.length, command), request);
+        return command;
+    }
+}